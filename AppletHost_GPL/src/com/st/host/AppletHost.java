@@ -0,0 +1,458 @@
+/**
+ * This file is part of AppletHost which is open implementation 
+ * of a multi-tenant remote SE host for SimplyTapp card applets.
+ * Copyright 2014 SimplyTapp, Inc.
+ * 
+ * AppletHost is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, either version 3 of the License, or 
+ * (at your option) any later version.
+ * 
+ * AppletHost is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with AppletHost.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.st.host;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import javacard.framework.Applet;
+
+import com.st.crypto.HexCodec;
+
+/**
+ * Hosts many personalized applet instances, such as <code>STPayW</code> (VCBP) 
+ * and <code>STPayP</code> (MMPP), in one JVM.
+ * <p>
+ * The host owns the instances, keyed by instance AID. C-APDUs from card agents 
+ * (SOFT channel) are run on a shared thread pool, so unrelated cards are served 
+ * in parallel while the C-APDUs of one card are processed one at a time in the 
+ * order they were submitted. Saving and removing an instance are queued behind 
+ * its pending C-APDUs in the same way. The {@link AppletRuntime} executes the 
+ * instances.
+ * 
+ * @author SimplyTapp, Inc.
+ * @version 1.0
+ */
+public final class AppletHost {
+
+    /**
+     * File name extension of serialized applet instances, see {@link #load(File)}.
+     */
+    public static final String FILE_EXTENSION = ".ser";
+
+    /**
+     * Maximum number of C-APDUs processed for one card before yielding the thread to other cards.
+     */
+    private static final int MAX_APDUS_PER_TURN = 16;
+
+    private static final int MIN_AID_LENGTH = 5;
+    private static final int MAX_AID_LENGTH = 16;
+
+    private final AppletRuntime runtime;
+
+    private final ExecutorService executor;
+
+    private final ConcurrentHashMap<String, Instance> instances = new ConcurrentHashMap<String, Instance>();
+
+    // Guarded by 'this'.
+    private boolean shutdown;
+
+    /**
+     * Creates host serving cards from a pool of <code>threads</code> threads.
+     * 
+     * @param runtime
+     *            runtime executing the applet instances
+     * @param threads
+     *            number of cards served at the same time
+     */
+    public AppletHost(AppletRuntime runtime, int threads) {
+        this.runtime = runtime;
+        this.executor = Executors.newFixedThreadPool(threads);
+    }
+
+    /**
+     * Installs new applet instance.
+     * 
+     * @param aid
+     *            instance AID as hex string
+     * @param appletClass
+     *            applet class, e.g. <code>STPayW</code> or <code>STPayP</code>
+     * @return installed applet instance, to be personalized by the issuer
+     * @throws IllegalArgumentException
+     *             if the AID is not valid or already used by another instance
+     * @throws Exception
+     *             exception thrown by the applet install method
+     */
+    public Applet install(String aid, Class<? extends Applet> appletClass) throws Exception {
+        String key = toKey(aid);
+        if (this.instances.containsKey(key)) {
+            throw new IllegalArgumentException("Instance AID already in use: " + aid);
+        }
+
+        Applet applet = this.runtime.install(appletClass, toAid(key));
+        add(key, applet);
+        return applet;
+    }
+
+    /**
+     * Adds applet instance, e.g. personalized instance restored from storage.
+     * 
+     * @param aid
+     *            instance AID as hex string
+     * @param applet
+     *            applet instance
+     * @throws IllegalArgumentException
+     *             if the AID is not valid or already used by another instance
+     * @throws RejectedExecutionException
+     *             if the host has been shut down
+     */
+    public void add(String aid, Applet applet) {
+        String key = toKey(aid);
+        Instance instance = new Instance(key, toAid(key), applet);
+        synchronized (this) {
+            if (this.shutdown) {
+                throw new RejectedExecutionException("Host is shut down");
+            }
+            if (this.instances.putIfAbsent(key, instance) != null) {
+                throw new IllegalArgumentException("Instance AID already in use: " + aid);
+            }
+        }
+    }
+
+    /**
+     * Returns applet instance with the given AID, or <code>null</code> if none is hosted.
+     */
+    public Applet get(String aid) {
+        Instance instance = this.instances.get(toKey(aid));
+        return (instance != null) ? instance.applet : null;
+    }
+
+    /**
+     * Removes applet instance. C-APDUs already submitted are still processed, 
+     * then the instance is deselected so it releases its resources.
+     * 
+     * @param aid
+     *            instance AID as hex string
+     * @return future removed applet instance, or <code>null</code> if none is hosted
+     */
+    public Future<Applet> remove(String aid) {
+        Instance instance = this.instances.remove(toKey(aid));
+        if (instance == null) {
+            return null;
+        }
+
+        return close(instance);
+    }
+
+    /**
+     * Returns the AIDs of the hosted applet instances as upper case hex strings.
+     */
+    public Set<String> getAids() {
+        return Collections.unmodifiableSet(this.instances.keySet());
+    }
+
+    /**
+     * Returns number of hosted applet instances.
+     */
+    public int size() {
+        return this.instances.size();
+    }
+
+    /**
+     * Adds the applet instances serialized in a directory, one file per instance 
+     * named after its instance AID with {@link #FILE_EXTENSION}.
+     * 
+     * @param directory
+     *            directory holding serialized applet instances
+     * @return number of instances added
+     */
+    public int load(File directory) throws IOException, ClassNotFoundException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            throw new IOException("Not a directory: " + directory);
+        }
+
+        int count = 0;
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.endsWith(FILE_EXTENSION)) {
+                continue;
+            }
+
+            ObjectInputStream in = new ObjectInputStream(new FileInputStream(file));
+            try {
+                add(name.substring(0, name.length() - FILE_EXTENSION.length()), (Applet) in.readObject());
+            }
+            finally {
+                in.close();
+            }
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Serializes applet instance into a directory, once C-APDUs already submitted 
+     * have been processed. The file is replaced only once it has been written completely.
+     * 
+     * @param aid
+     *            instance AID as hex string
+     * @param directory
+     *            directory holding serialized applet instances
+     * @return future completing when the file has been written
+     * @throws IllegalArgumentException
+     *             if no instance is registered with the AID
+     */
+    public Future<Void> save(String aid, final File directory) {
+        final Instance instance = getInstance(aid);
+        return enqueue(instance, new FutureTask<Void>(new Callable<Void>() {
+            public Void call() throws IOException {
+                File file = new File(directory, instance.key + FILE_EXTENSION);
+                File tempFile = new File(directory, instance.key + FILE_EXTENSION + ".tmp");
+                ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(tempFile));
+                try {
+                    out.writeObject(instance.applet);
+                }
+                finally {
+                    out.close();
+                }
+                if (!tempFile.renameTo(file)) {
+                    throw new IOException("Cannot replace " + file);
+                }
+                return null;
+            }
+        }), false);
+    }
+
+    /**
+     * Queues C-APDU for the applet instance with the given AID.
+     * 
+     * @param aid
+     *            instance AID as hex string
+     * @param commandApdu
+     *            C-APDU
+     * @return future R-APDU including SW, cancelled if the host is shut down before processing it
+     * @throws IllegalArgumentException
+     *             if no instance is registered with the AID
+     * @throws RejectedExecutionException
+     *             if the instance has been removed or the host has been shut down
+     */
+    public Future<byte[]> submit(String aid, final byte[] commandApdu) {
+        final Instance instance = getInstance(aid);
+        return enqueue(instance, new FutureTask<byte[]>(new Callable<byte[]>() {
+            public byte[] call() throws Exception {
+                return AppletHost.this.runtime.process(instance.applet, instance.aid, commandApdu);
+            }
+        }), false);
+    }
+
+    /**
+     * Processes C-APDU for the applet instance with the given AID and waits for the R-APDU.
+     * 
+     * @return R-APDU including SW
+     * @throws Exception
+     *             exception thrown while processing C-APDU
+     */
+    public byte[] transmit(String aid, byte[] commandApdu) throws Exception {
+        try {
+            return submit(aid, commandApdu).get();
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Stops accepting work. C-APDUs already submitted are still processed, 
+     * then every instance is deselected.
+     */
+    public void shutdown() {
+        synchronized (this) {
+            if (this.shutdown) {
+                return;
+            }
+            this.shutdown = true;
+        }
+
+        for (Instance instance : this.instances.values()) {
+            close(instance);
+        }
+        this.executor.shutdown();
+    }
+
+    /**
+     * Waits for the work queued before {@link #shutdown()} to complete.
+     * 
+     * @return <code>true</code> if completed, <code>false</code> if the timeout elapsed first
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return this.executor.awaitTermination(timeout, unit);
+    }
+
+    private Instance getInstance(String aid) {
+        Instance instance = this.instances.get(toKey(aid));
+        if (instance == null) {
+            throw new IllegalArgumentException("Unknown instance AID: " + aid);
+        }
+        return instance;
+    }
+
+    /**
+     * Queues deselection of the instance after its pending work, once.
+     */
+    private Future<Applet> close(final Instance instance) {
+        FutureTask<Applet> task = new FutureTask<Applet>(new Callable<Applet>() {
+            public Applet call() throws Exception {
+                AppletHost.this.runtime.deselect(instance.applet, instance.aid);
+                return instance.applet;
+            }
+        });
+
+        synchronized (instance) {
+            if (instance.closeTask != null) {
+                return instance.closeTask;
+            }
+            instance.closeTask = task;
+        }
+
+        return enqueue(instance, task, true);
+    }
+
+    private <T> FutureTask<T> enqueue(Instance instance, FutureTask<T> task, boolean last) {
+        boolean schedule = false;
+        synchronized (instance) {
+            if (instance.closed) {
+                throw new RejectedExecutionException("Instance removed: " + instance.key);
+            }
+            instance.closed = last;
+            instance.queue.add(task);
+            if (!instance.scheduled) {
+                instance.scheduled = true;
+                schedule = true;
+            }
+        }
+
+        if (schedule) {
+            try {
+                this.executor.execute(instance.drain);
+            }
+            catch (RejectedExecutionException e) {
+                // Host shut down, fail the queued work instead of leaving callers waiting.
+                List<FutureTask<?>> cancelled = new ArrayList<FutureTask<?>>();
+                synchronized (instance) {
+                    cancelled.addAll(instance.queue);
+                    instance.queue.clear();
+                    instance.scheduled = false;
+                }
+                for (FutureTask<?> queued : cancelled) {
+                    queued.cancel(false);
+                }
+            }
+        }
+
+        return task;
+    }
+
+    private static String toKey(String aid) {
+        return aid.toUpperCase(Locale.US);
+    }
+
+    private static byte[] toAid(String key) {
+        byte[] aid = null;
+        if (((key.length() & 1) == 0) && 
+            (key.length() >= MIN_AID_LENGTH * 2) && (key.length() <= MAX_AID_LENGTH * 2)) {
+            aid = HexCodec.toPackedBytes(key);
+        }
+        if (aid == null) {
+            throw new IllegalArgumentException("Invalid instance AID: " + key);
+        }
+        return aid;
+    }
+
+    /**
+     * Hosted applet instance and its pending work.
+     */
+    private final class Instance {
+
+        final String key;
+
+        final byte[] aid;
+
+        final Applet applet;
+
+        final ArrayDeque<FutureTask<?>> queue = new ArrayDeque<FutureTask<?>>();
+
+        // Whether a pool thread is processing or about to process the queue.
+        boolean scheduled;
+
+        // Whether deselection has been queued, no work is accepted after it.
+        boolean closed;
+
+        FutureTask<Applet> closeTask;
+
+        final Runnable drain = new Runnable() {
+            public void run() {
+                while (true) {
+                    for (int i = 0; i < MAX_APDUS_PER_TURN; i++) {
+                        FutureTask<?> task;
+                        synchronized (Instance.this) {
+                            task = Instance.this.queue.poll();
+                            if (task == null) {
+                                Instance.this.scheduled = false;
+                                return;
+                            }
+                        }
+
+                        task.run();
+                    }
+
+                    // Yield to other cards, keep this card's order.
+                    try {
+                        AppletHost.this.executor.execute(this);
+                        return;
+                    }
+                    catch (RejectedExecutionException e) {
+                        // Shutting down, finish this card's queue on this thread.
+                    }
+                }
+            }
+        };
+
+        Instance(String key, byte[] aid, Applet applet) {
+            this.key = key;
+            this.aid = aid;
+            this.applet = applet;
+        }
+
+    }
+
+}
@@ -0,0 +1,71 @@
+/**
+ * This file is part of AppletHost which is open implementation 
+ * of a multi-tenant remote SE host for SimplyTapp card applets.
+ * Copyright 2014 SimplyTapp, Inc.
+ * 
+ * AppletHost is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, either version 3 of the License, or 
+ * (at your option) any later version.
+ * 
+ * AppletHost is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with AppletHost.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.st.host;
+
+import javacard.framework.Applet;
+
+/**
+ * Java Card runtime that executes the applet instances of an {@link AppletHost}.
+ * <p>
+ * Implemented on top of the SimplyTapp remote SE runtime, which sets up the 
+ * applet context (<code>JCSystem.getAID()</code>, APDU object and selection 
+ * state) of the instance for each call. The host calls an instance from one 
+ * thread at a time.
+ * 
+ * @author SimplyTapp, Inc.
+ * @version 1.0
+ */
+public interface AppletRuntime {
+
+    /**
+     * Creates applet instance by running the install method of the applet class 
+     * in the context of the instance AID.
+     * 
+     * @param appletClass
+     *            applet class, e.g. <code>STPayW</code> or <code>STPayP</code>
+     * @param aid
+     *            instance AID
+     * @return registered applet instance
+     */
+    Applet install(Class<? extends Applet> appletClass, byte[] aid) throws Exception;
+
+    /**
+     * Processes C-APDU received by the applet instance from its card agent (SOFT channel).
+     * 
+     * @param applet
+     *            applet instance
+     * @param aid
+     *            instance AID
+     * @param commandApdu
+     *            C-APDU
+     * @return R-APDU including SW
+     */
+    byte[] process(Applet applet, byte[] aid, byte[] commandApdu) throws Exception;
+
+    /**
+     * Deselects the applet instance, letting it release resources held while selected.
+     * 
+     * @param applet
+     *            applet instance
+     * @param aid
+     *            instance AID
+     */
+    void deselect(Applet applet, byte[] aid) throws Exception;
+
+}
@@ -0,0 +1,218 @@
+/**
+ * This file is part of AppletHost which is open implementation 
+ * of a multi-tenant remote SE host for SimplyTapp card applets.
+ * Copyright 2014 SimplyTapp, Inc.
+ * 
+ * AppletHost is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, either version 3 of the License, or 
+ * (at your option) any later version.
+ * 
+ * AppletHost is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with AppletHost.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.st.host;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javacard.framework.Applet;
+
+import com.st.crypto.HexCodec;
+import com.st.mmpp.STPayP;
+import com.st.vcbp.STPayW;
+
+/**
+ * Replays card agent replenishment traffic against an {@link AppletHost} and 
+ * reports card replenishments per second and p50/p99 replenishment latency.
+ * <p>
+ * Personalized applet instances are loaded from a directory (see 
+ * {@link AppletHost#load(java.io.File)}). Each replenishment is one card agent 
+ * session sent as one batch, like the agents' <code>TransceiveData</code>:
+ * <ul>
+ * <li><code>STPayW</code>: Select, Get Dynamic Account Parameters for a batch of <i>keys</i> sets
+ * <li><code>STPayP</code>: Select, <i>keys</i> times Get PTP_SUK
+ * </ul>
+ * <p>
+ * Usage: <code>LoadGenerator &lt;runtime class&gt; &lt;applet directory&gt; 
+ * [threads] [agents] [rounds] [keys]</code>
+ * <ul>
+ * <li>runtime class: {@link AppletRuntime} implementation with a public no-argument constructor
+ * <li>threads: host thread pool size, default number of processors
+ * <li>agents: concurrent card agent sessions, default 4 per thread
+ * <li>rounds: replenishments per card, default 10
+ * <li>keys: keys requested per replenishment, default 5
+ * </ul>
+ * 
+ * @author SimplyTapp, Inc.
+ * @version 1.0
+ */
+public final class LoadGenerator {
+
+    // NOTE: Use extended APDU format. P1 is set to the number of sets, P2 requests binary format.
+    private static final byte[] APDU_GET_DYNAMIC_ACCOUNT_PARAMETERS = {
+        (byte) 0x80, (byte) 0x32, (byte) 0x00, (byte) 0x01, 
+        (byte) 0x00, (byte) 0x00, (byte) 0x00
+    };
+
+    // NOTE: P1=0x01 indicates Mobile PIN not used.
+    private static final byte[] APDU_GET_PTPSUK = {
+        (byte) 0x80, (byte) 0x82, (byte) 0x01, (byte) 0x00, (byte) 0x00
+    };
+
+    private static final short SW_NO_ERROR = (short) 0x9000;
+
+    private LoadGenerator() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: LoadGenerator <runtime class> <applet directory> [threads] [agents] [rounds] [keys]");
+            System.exit(1);
+        }
+
+        AppletRuntime runtime = (AppletRuntime) Class.forName(args[0]).newInstance();
+        int threads = (args.length > 2) ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        int agents = (args.length > 3) ? Integer.parseInt(args[3]) : threads * 4;
+        int rounds = (args.length > 4) ? Integer.parseInt(args[4]) : 10;
+        int keys = (args.length > 5) ? Integer.parseInt(args[5]) : 5;
+
+        AppletHost host = new AppletHost(runtime, threads);
+        try {
+            host.load(new File(args[1]));
+            run(host, agents, rounds, keys);
+        }
+        finally {
+            host.shutdown();
+            host.awaitTermination(1, TimeUnit.MINUTES);
+        }
+    }
+
+    /**
+     * Replays <code>rounds</code> replenishments of every hosted card from 
+     * <code>agents</code> concurrent sessions and prints the results.
+     */
+    static void run(final AppletHost host, int agents, int rounds, int keys) throws InterruptedException {
+        final List<String> aids = new ArrayList<String>();
+        final List<byte[][]> scripts = new ArrayList<byte[][]>();
+        for (String aid : host.getAids()) {
+            byte[][] script = getReplenishmentScript(aid, host.get(aid), keys);
+            if (script != null) {
+                aids.add(aid);
+                scripts.add(script);
+            }
+        }
+        if (aids.isEmpty()) {
+            System.out.println("No STPayW or STPayP instances to replenish");
+            return;
+        }
+
+        final int sessions = aids.size() * rounds;
+        final long[] latencies = new long[sessions];
+        final AtomicInteger nextSession = new AtomicInteger();
+        final AtomicLong errors = new AtomicLong();
+
+        Thread[] agentThreads = new Thread[agents];
+        for (int i = 0; i < agents; i++) {
+            agentThreads[i] = new Thread(new Runnable() {
+                public void run() {
+                    int session;
+                    while ((session = nextSession.getAndIncrement()) < sessions) {
+                        int card = session % aids.size();
+                        latencies[session] = replenish(host, aids.get(card), scripts.get(card), errors);
+                    }
+                }
+            }, "Agent-" + i);
+        }
+
+        long start = System.nanoTime();
+        for (Thread agentThread : agentThreads) {
+            agentThread.start();
+        }
+        for (Thread agentThread : agentThreads) {
+            agentThread.join();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        Arrays.sort(latencies);
+        System.out.println("cards=" + aids.size() + " sessions=" + sessions + " errors=" + errors.get() + 
+                           " elapsed=" + formatMillis(elapsed) + " ms");
+        System.out.println("cards/sec=" + (long) (sessions * 1e9 / elapsed) + 
+                           " p50=" + formatMillis(percentile(latencies, 50)) + " ms" + 
+                           " p99=" + formatMillis(percentile(latencies, 99)) + " ms");
+    }
+
+    /**
+     * Sends one replenishment session and returns its latency in nanoseconds.
+     */
+    private static long replenish(AppletHost host, String aid, byte[][] script, AtomicLong errors) {
+        long start = System.nanoTime();
+        Future<?>[] responses = new Future<?>[script.length];
+        for (int i = 0; i < script.length; i++) {
+            responses[i] = host.submit(aid, script[i]);
+        }
+        for (int i = 0; i < script.length; i++) {
+            try {
+                byte[] rapdu = (byte[]) responses[i].get();
+                if ((rapdu.length < 2) || 
+                    ((short) (((rapdu[rapdu.length - 2] & 0xFF) << 8) | (rapdu[rapdu.length - 1] & 0xFF)) != SW_NO_ERROR)) {
+                    errors.incrementAndGet();
+                }
+            }
+            catch (Exception e) {
+                errors.incrementAndGet();
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Returns the C-APDUs of a card agent replenishment session, or <code>null</code> 
+     * for applets other than <code>STPayW</code> and <code>STPayP</code>.
+     */
+    static byte[][] getReplenishmentScript(String aid, Applet applet, int keys) {
+        byte[] aidBytes = HexCodec.toPackedBytes(aid);
+        byte[] select = new byte[aidBytes.length + 6];
+        select[1] = (byte) 0xA4;
+        select[2] = (byte) 0x04;
+        select[4] = (byte) aidBytes.length;
+        System.arraycopy(aidBytes, 0, select, 5, aidBytes.length);
+
+        if (applet instanceof STPayW) {
+            byte[] getDynamicAccountParams = APDU_GET_DYNAMIC_ACCOUNT_PARAMETERS.clone();
+            getDynamicAccountParams[2] = (byte) Math.min(keys, 0xFF);
+            return new byte[][] { select, getDynamicAccountParams };
+        }
+        if (applet instanceof STPayP) {
+            byte[][] script = new byte[keys + 1][];
+            script[0] = select;
+            for (int i = 1; i <= keys; i++) {
+                script[i] = APDU_GET_PTPSUK;
+            }
+            return script;
+        }
+        return null;
+    }
+
+    private static long percentile(long[] sorted, int percent) {
+        int index = (int) Math.ceil(sorted.length * percent / 100.0) - 1;
+        return sorted[Math.max(index, 0)];
+    }
+
+    private static String formatMillis(long nanos) {
+        return String.format(Locale.US, "%.2f", nanos / 1e6);
+    }
+
+}
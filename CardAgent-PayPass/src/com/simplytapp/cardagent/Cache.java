@@ -1,86 +1,246 @@
 package com.simplytapp.cardagent;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Comparator;
 
+/**
+ * Command/response cache keyed on the normalized command header.
+ * <p>
+ * A cached command is matched on CLA/INS/P1/P2 plus the data bytes it was
+ * stored with, ignoring Lc.  Entries are hashed on those bytes so a lookup
+ * only probes one bucket per distinct key length in use instead of scanning
+ * every entry.  When several entries match, the oldest one wins, as it did
+ * with the linear scan.
+ */
 public class Cache implements Serializable {
 	private static final long serialVersionUID = 1L;
-	CmdRsp[] cmdRsp = null;
-		
-	private void rmCmdRsp(short index)
+	//keep the serialized form of the original array based cache
+	private static final ObjectStreamField[] serialPersistentFields = {
+		new ObjectStreamField("cmdRsp", CmdRsp[].class)
+	};
+	private static final int INITIAL_BUCKETS = 16;
+
+	private transient CmdRsp[] buckets = null;
+	private transient int count = 0;
+	private transient long nextSeq = 0;
+	//distinct key lengths in use, longest first, and number of entries using each
+	private transient short[] keyLens = new short[0];
+	private transient int[] keyLenCount = new int[0];
+
+	private static short keyLength(byte[] cmd)
+	{
+		short len = (short)cmd.length;
+		if(len>4 && len>((short)(cmd[4]&0xFF)+5))
+			len=(short)(5+(short)(cmd[4]&0xFF));
+		return len;
+	}
+
+	private static int hash(byte[] buf, int off, short len)
+	{
+		int h = 0;
+		for(short j=0;j<len;j++)
+		{
+			if(j!=4)  //ignore length byte
+				h = 31*h + buf[off+j];
+		}
+		return h ^ (h>>>16);
+	}
+
+	private static boolean keyEquals(CmdRsp e, byte[] buf, int off)
+	{
+		for(short j=0;j<e.keyLen;j++)
+		{
+			if(j!=4 && buf[off+j]!=e.cmd[j])
+				return false;
+		}
+		return true;
+	}
+
+	private void addKeyLen(short len)
 	{
-		CmdRsp[] tmp=null;
-		for(short i=0;i<cmdRsp.length;i++)
-			if(i==index)
+		short i;
+		for(i=0;i<keyLens.length;i++)
+		{
+			if(keyLens[i]==len)
 			{
-				tmp = new CmdRsp[cmdRsp.length-1];
+				keyLenCount[i]++;
+				return;
+			}
+			if(keyLens[i]<len)
 				break;
+		}
+		short[] lens = new short[keyLens.length+1];
+		int[] counts = new int[keyLens.length+1];
+		System.arraycopy(keyLens, 0, lens, 0, i);
+		System.arraycopy(keyLenCount, 0, counts, 0, i);
+		lens[i] = len;
+		counts[i] = 1;
+		System.arraycopy(keyLens, i, lens, i+1, keyLens.length-i);
+		System.arraycopy(keyLenCount, i, counts, i+1, keyLens.length-i);
+		keyLens = lens;
+		keyLenCount = counts;
+	}
+
+	private void rmKeyLen(short len)
+	{
+		for(short i=0;i<keyLens.length;i++)
+		{
+			if(keyLens[i]!=len)
+				continue;
+			if(--keyLenCount[i]>0)
+				return;
+			short[] lens = new short[keyLens.length-1];
+			int[] counts = new int[keyLens.length-1];
+			System.arraycopy(keyLens, 0, lens, 0, i);
+			System.arraycopy(keyLenCount, 0, counts, 0, i);
+			System.arraycopy(keyLens, i+1, lens, i, keyLens.length-i-1);
+			System.arraycopy(keyLenCount, i+1, counts, i, keyLens.length-i-1);
+			keyLens = lens;
+			keyLenCount = counts;
+			return;
+		}
+	}
+
+	private void rmCmdRsp(CmdRsp entry)
+	{
+		int b = entry.hash & (buckets.length-1);
+		CmdRsp prev = null;
+		for(CmdRsp e=buckets[b];e!=null;prev=e,e=e.next)
+		{
+			if(e==entry)
+			{
+				if(prev==null)
+					buckets[b] = e.next;
+				else
+					prev.next = e.next;
+				e.next = null;
+				count--;
+				rmKeyLen(e.keyLen);
+				return;
 			}
-		if(tmp!=null)
+		}
+	}
+
+	private void resize()
+	{
+		CmdRsp[] old = buckets;
+		buckets = new CmdRsp[old.length*2];
+		for(int i=0;i<old.length;i++)
 		{
-			short j=0;
-			for(short i=0;i<cmdRsp.length;i++)
-				if(i!=index)
-					tmp[j++] = cmdRsp[i];
-			cmdRsp = tmp;
+			CmdRsp e = old[i];
+			while(e!=null)
+			{
+				CmdRsp next = e.next;
+				int b = e.hash & (buckets.length-1);
+				e.next = buckets[b];
+				buckets[b] = e;
+				e = next;
+			}
 		}
 	}
-		
-	private short getMatchIndex(byte[] cmd)
+
+	private void put(CmdRsp entry)
 	{
-		if(cmdRsp==null)
-			return -1;
-		//check for match in cache for any command
-		for(short i=0;i<cmdRsp.length;i++)
+		if(buckets==null)
+			buckets = new CmdRsp[INITIAL_BUCKETS];
+		entry.keyLen = keyLength(entry.cmd);
+		entry.hash = hash(entry.cmd, 0, entry.keyLen);
+		entry.seq = nextSeq++;
+		if(count+1>(buckets.length>>1)+(buckets.length>>2))
+			resize();
+		int b = entry.hash & (buckets.length-1);
+		entry.next = buckets[b];
+		buckets[b] = entry;
+		count++;
+		addKeyLen(entry.keyLen);
+	}
+
+	private CmdRsp getMatch(byte[] cmd, int off, int len)
+	{
+		if(buckets==null || cmd==null || len<=4 || (short)(cmd[off+4]&0xff)+5>len)
+			return null;
+		//check for match in cache for every key length in use
+		CmdRsp match = null;
+		for(short i=0;i<keyLens.length;i++)
 		{
-			if(cmd!=null && cmd.length>4 && cmdRsp[i].cmd.length>1 && cmd[1] == cmdRsp[i].cmd[1] && 
-						(short)(cmd[4]&0xff)+5<=cmd.length && 
-						cmdRsp[i].cmd.length<=cmd.length)
+			short keyLen = keyLens[i];
+			if(keyLen>len)
+				continue;
+			int h = hash(cmd, off, keyLen);
+			for(CmdRsp e=buckets[h & (buckets.length-1)];e!=null;e=e.next)
 			{
-				//command code is the same...now compare content
-				short j=0;
-				short len = (short)cmdRsp[i].cmd.length;
-				if(cmdRsp[i].cmd.length>4 && len>((short)(cmdRsp[i].cmd[4]&0xFF)+5))
-					len=(short)(5+(short)(cmdRsp[i].cmd[4]&0xFF));
-				for(j=0;j<len;j++)
-				{
-					if(j!=4 && cmd[j]!=cmdRsp[i].cmd[j])  //ignore length byte
-						break;
-				}
-				if(j==len)
-				{
-					//match!
-					return i;
-				}
+				if(e.hash==h && e.keyLen==keyLen && e.cmd.length<=len && 
+						(match==null || e.seq<match.seq) && keyEquals(e, cmd, off))
+					match = e;
 			}
 		}
-		return -1;
+		return match;
 	}
-		
+
 	void addCmd(byte[] cmd, byte[] rsp)
 	{
-		if(cmd==null || rsp==null)
+		if(cmd==null || rsp==null || cmd.length<2)
 			return;
-		short i = getMatchIndex(cmd);
-		if(i>-1)
-		{
-			rmCmdRsp(i);
-		}
-		if(cmdRsp==null)
-			cmdRsp = new CmdRsp[0];
-		CmdRsp[] tmp = new CmdRsp[cmdRsp.length+1];
-		for(i=0;i<cmdRsp.length;i++)
-			tmp[i]=cmdRsp[i];
-		tmp[i] = new CmdRsp(cmd,rsp);
-		cmdRsp = tmp;
+		CmdRsp match = getMatch(cmd, 0, cmd.length);
+		if(match!=null)
+			rmCmdRsp(match);
+		put(new CmdRsp(cmd,rsp));
 	}
-		
+
 	byte[] getRsp(byte[] cmd)
 	{
-		short i = getMatchIndex(cmd);
-		if(i>-1 && i<cmdRsp.length)
-			return cmdRsp[i].rsp;
+		if(cmd==null)
+			return null;
+		CmdRsp match = getMatch(cmd, 0, cmd.length);
+		if(match!=null)
+			return match.rsp;
 		else
 			return null;
 	}
 
+	//match directly against a command held in a larger buffer, such as the APDU buffer
+	byte[] getRsp(byte[] buf, short off, short len)
+	{
+		CmdRsp match = getMatch(buf, off, len);
+		if(match!=null)
+			return match.rsp;
+		else
+			return null;
+	}
+
+	private void writeObject(ObjectOutputStream out) throws IOException
+	{
+		CmdRsp[] cmdRsp = new CmdRsp[count];
+		int j = 0;
+		for(int i=0;buckets!=null && i<buckets.length;i++)
+			for(CmdRsp e=buckets[i];e!=null;e=e.next)
+				cmdRsp[j++] = e;
+		//store in insertion order
+		Arrays.sort(cmdRsp, new Comparator<CmdRsp>() {
+			public int compare(CmdRsp a, CmdRsp b)
+			{
+				return a.seq<b.seq ? -1 : (a.seq==b.seq ? 0 : 1);
+			}
+		});
+		ObjectOutputStream.PutField fields = out.putFields();
+		fields.put("cmdRsp", cmdRsp);
+		out.writeFields();
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
+	{
+		CmdRsp[] cmdRsp = (CmdRsp[]) in.readFields().get("cmdRsp", null);
+		keyLens = new short[0];
+		keyLenCount = new int[0];
+		if(cmdRsp!=null)
+			for(int i=0;i<cmdRsp.length;i++)
+				if(cmdRsp[i]!=null && cmdRsp[i].cmd!=null && cmdRsp[i].cmd.length>1)
+					put(cmdRsp[i]);
+	}
+
 }
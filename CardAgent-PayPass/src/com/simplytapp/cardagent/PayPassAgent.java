@@ -23,6 +23,7 @@ public class PayPassAgent extends Agent {
 	transient boolean selected = false;
 	transient boolean transactionFailed = false;
 	transient byte state = sentApdu;
+	private transient volatile ApduSequencer apduSequencer = null;
 	transient Thread tLoadCache = null;
 	transient Thread connectTimer = null;
 	
@@ -172,11 +173,35 @@ public class PayPassAgent extends Agent {
 	{
 	}
 	
+	private ApduSequencer getApduSequencer()
+	{
+		ApduSequencer sequencer = apduSequencer;
+		if(sequencer==null)
+		{
+			synchronized(this)
+			{
+				sequencer = apduSequencer;
+				if(sequencer==null)
+				{
+					sequencer = new ApduSequencer(new ApduSequencer.Idle() {
+						public boolean isIdle()
+						{
+							return state==sentApdu;
+						}
+					});
+					apduSequencer = sequencer;
+				}
+			}
+		}
+		return sequencer;
+	}
+	
 	@Override
 	public void transactionFinished()
 	{
 		selected = false;
 		state = sentApdu;
+		getApduSequencer().cancel();
 		transactionFailed = false;
 		//update the state of the class
 		try {
@@ -199,6 +224,7 @@ public class PayPassAgent extends Agent {
 			break;
 		}
 		state = sentApdu;
+		getApduSequencer().signal();
 	}
 	
 	void sendApduCFailure() throws ISOException
@@ -212,13 +238,10 @@ public class PayPassAgent extends Agent {
 	private byte[] queryCache(APDU apdu, short len)
 	{
 		//check the cache for a response
-		byte[] cmd = new byte[len];
-		for(short i=0;i<len;i++)
-			cmd[i] = apdu.getBuffer()[i];
 		byte[] rsp = null;
 		if(cache!=null)
 		{
-			rsp = cache.getRsp(cmd);
+			rsp = cache.getRsp(apdu.getBuffer(), (short)0, len);
 			if(rsp==null)
 				sendApduCFailure();
 		}
@@ -230,19 +253,25 @@ public class PayPassAgent extends Agent {
 	@Override
 	public void process(APDU apdu) throws ISOException {
 		
-		while(state!=sentApdu)  //wait for previous one to complete (thread safe)
+		if(state!=sentApdu)  //wait for previous one to complete (thread safe)
 		{
-			try {
-				Thread.sleep(1);
-			} catch (InterruptedException e) {
-			}
-			try {
-				if(getTransactionFinished())
-				{
-					state = sendingApdu;
-					throw new ISOException(ISO7816.SW_UNKNOWN);
+			ApduSequencer sequencer = getApduSequencer();
+			int ticket = sequencer.ticket();
+			while(!sequencer.await(ticket, ApduSequencer.POLL_INTERVAL))
+			{
+				try {
+					if(getTransactionFinished())
+					{
+						state = sendingApdu;
+						throw new ISOException(ISO7816.SW_UNKNOWN);
+					}
+				} catch (IOException e) {
 				}
-			} catch (IOException e) {
+			}
+			if(sequencer.isCancelled(ticket))  //transaction finished while waiting
+			{
+				state = sendingApdu;
+				throw new ISOException(ISO7816.SW_UNKNOWN);
 			}
 		}
 		
@@ -0,0 +1,231 @@
+package com.simplytapp.cardagent;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Equivalence of the indexed Cache with the linear scan it replaced, which
+ * is kept here as the oracle.
+ */
+public class CacheTest {
+	private static final byte[] CLA = {(byte)0x00, (byte)0x80};
+	private static final byte[] INS = {(byte)0xA4, (byte)0xB2, (byte)0xCA, (byte)0x2A};
+
+	@Test
+	public void randomCommandsMatchLinearScan() throws Exception
+	{
+		Random random = new Random(1);
+		for(int run=0;run<200;run++)
+			compare(random, 500, false);
+	}
+
+	@Test
+	public void randomCommandsMatchLinearScanAcrossSerialization() throws Exception
+	{
+		Random random = new Random(2);
+		for(int run=0;run<50;run++)
+			compare(random, 500, true);
+	}
+
+	@Test
+	public void manyEntriesMatchLinearScan() throws Exception
+	{
+		Random random = new Random(3);
+		compare(random, 20000, false);
+	}
+
+	@Test
+	public void ignoresShortAndNullCommands()
+	{
+		Cache cache = new Cache();
+		cache.addCmd(null, new byte[]{(byte)0x90, 0x00});
+		cache.addCmd(new byte[]{0x00}, new byte[]{(byte)0x90, 0x00});
+		cache.addCmd(new byte[]{0x00, (byte)0xA4}, null);
+		assertNull(cache.getRsp(null));
+		assertNull(cache.getRsp(new byte[]{0x00}));
+		assertNull(cache.getRsp(new byte[]{0x00, (byte)0xA4, 0x04, 0x00, 0x00}));
+	}
+
+	private static void compare(Random random, int operations, boolean serialize) throws Exception
+	{
+		Cache cache = new Cache();
+		LinearCache oracle = new LinearCache();
+		int hits = 0;
+		//every response is distinct, so equal responses come from the same entry
+		for(int i=0;i<operations;i++)
+		{
+			byte[] cmd = randomCommand(random);
+			if(random.nextInt(3)==0)
+			{
+				byte[] rsp = new byte[]{(byte)i, (byte)(i>>8), (byte)0x90, 0x00};
+				cache.addCmd(cmd, rsp);
+				oracle.addCmd(cmd, rsp);
+			}
+			else
+			{
+				byte[] rsp = oracle.getRsp(cmd);
+				assertArrayEquals(toHex(cmd), rsp, cache.getRsp(cmd));
+				if(rsp!=null)
+					hits++;
+			}
+			if(serialize && random.nextInt(50)==0)
+			{
+				cache = copy(cache);
+				oracle = copy(oracle);
+			}
+		}
+		assertTrue(hits>operations/10);
+	}
+
+	//commands from a small alphabet so headers, data and Lc collide often
+	private static byte[] randomCommand(Random random)
+	{
+		int dataLength = random.nextInt(4);
+		int length = 4;
+		switch(random.nextInt(6))
+		{
+		case 0:
+			//header only, or shorter
+			length = 2+random.nextInt(3);
+			break;
+		case 1:
+			//Lc and data followed by Le
+			length = 5+dataLength+1;
+			break;
+		default:
+			length = 5+dataLength;
+			break;
+		}
+		byte[] cmd = new byte[length];
+		cmd[0] = CLA[random.nextInt(CLA.length)];
+		cmd[1] = INS[random.nextInt(INS.length)];
+		for(int j=2;j<length;j++)
+			cmd[j] = (byte)random.nextInt(3);
+		if(length>4)
+		{
+			//Lc is usually right, sometimes shorter or longer than the data
+			cmd[4] = (byte)(random.nextInt(4)==0 ? random.nextInt(6) : dataLength);
+		}
+		return cmd;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> T copy(T object) throws IOException, ClassNotFoundException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(object);
+		out.close();
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+		try
+		{
+			return (T)in.readObject();
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	private static String toHex(byte[] data)
+	{
+		StringBuilder hex = new StringBuilder();
+		for(int i=0;i<data.length;i++)
+			hex.append(String.format("%02X", data[i]));
+		return hex.toString();
+	}
+
+	//the array based cache before commands were indexed, responses are looked up by a linear scan
+	private static class LinearCache implements java.io.Serializable {
+		private static final long serialVersionUID = 1L;
+		byte[][] cmds = null;
+		byte[][] rsps = null;
+
+		private void rmCmdRsp(short index)
+		{
+			byte[][] tmpCmds = new byte[cmds.length-1][];
+			byte[][] tmpRsps = new byte[rsps.length-1][];
+			short j=0;
+			for(short i=0;i<cmds.length;i++)
+				if(i!=index)
+				{
+					tmpCmds[j] = cmds[i];
+					tmpRsps[j++] = rsps[i];
+				}
+			cmds = tmpCmds;
+			rsps = tmpRsps;
+		}
+
+		private short getMatchIndex(byte[] cmd)
+		{
+			if(cmds==null)
+				return -1;
+			//check for match in cache for any command
+			for(short i=0;i<cmds.length;i++)
+			{
+				if(cmd!=null && cmd.length>4 && cmds[i].length>1 && cmd[1] == cmds[i][1] && 
+							(short)(cmd[4]&0xff)+5<=cmd.length && 
+							cmds[i].length<=cmd.length)
+				{
+					//command code is the same...now compare content
+					short j=0;
+					short len = (short)cmds[i].length;
+					if(cmds[i].length>4 && len>((short)(cmds[i][4]&0xFF)+5))
+						len=(short)(5+(short)(cmds[i][4]&0xFF));
+					for(j=0;j<len;j++)
+					{
+						if(j!=4 && cmd[j]!=cmds[i][j])  //ignore length byte
+							break;
+					}
+					if(j==len)
+					{
+						//match!
+						return i;
+					}
+				}
+			}
+			return -1;
+		}
+
+		void addCmd(byte[] cmd, byte[] rsp)
+		{
+			if(cmd==null || rsp==null)
+				return;
+			short i = getMatchIndex(cmd);
+			if(i>-1)
+				rmCmdRsp(i);
+			if(cmds==null)
+			{
+				cmds = new byte[0][];
+				rsps = new byte[0][];
+			}
+			byte[][] tmpCmds = new byte[cmds.length+1][];
+			byte[][] tmpRsps = new byte[rsps.length+1][];
+			System.arraycopy(cmds, 0, tmpCmds, 0, cmds.length);
+			System.arraycopy(rsps, 0, tmpRsps, 0, rsps.length);
+			tmpCmds[cmds.length] = cmd;
+			tmpRsps[rsps.length] = rsp;
+			cmds = tmpCmds;
+			rsps = tmpRsps;
+		}
+
+		byte[] getRsp(byte[] cmd)
+		{
+			short i = getMatchIndex(cmd);
+			if(i>-1 && i<cmds.length)
+				return rsps[i];
+			else
+				return null;
+		}
+	}
+}
@@ -0,0 +1,149 @@
+/**
+ * This file is part of CardAgent-RemoteMPP-NoDB which is card agent implementation 
+ * of M Remote-SE Mobile PayP for SimplyTapp mobile platform.
+ * Copyright 2014 SimplyTapp, Inc.
+ * 
+ * CardAgent-RemoteMPP-NoDB is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, either version 3 of the License, or 
+ * (at your option) any later version.
+ * 
+ * CardAgent-RemoteMPP-NoDB is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with CardAgent-RemoteMPP-NoDB.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.simplytapp.cardagent;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Sequences C-APDUs handed to <code>Agent.process</code>.
+ * <p>
+ * <code>process</code> must not start on a new C-APDU until the R-APDU of the 
+ * previous one has been sent. Instead of polling, the waiting thread blocks on 
+ * a condition that is signalled from <code>sentApdu</code> and cancelled from 
+ * <code>transactionFinished</code>.
+ * 
+ * @author SimplyTapp, Inc.
+ * @version 1.0
+ */
+final class ApduSequencer {
+
+    /**
+     * Fallback interval to check the transaction state with the platform while waiting.
+     */
+    static final long POLL_INTERVAL = 50;
+
+    /**
+     * Reports whether the previous R-APDU has been sent.
+     */
+    interface Idle {
+        boolean isIdle();
+    }
+
+    private final Idle idle;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition stateChanged = this.lock.newCondition();
+
+    // Incremented every time waiters are cancelled.
+    private int cancelCount;
+
+    ApduSequencer(Idle idle) {
+        this.idle = idle;
+    }
+
+    /**
+     * Returns a ticket identifying the current transaction for {@link #await} and {@link #isCancelled}.
+     */
+    int ticket() {
+        this.lock.lock();
+        try {
+            return this.cancelCount;
+        }
+        finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Blocks until the previous R-APDU has been sent, the transaction is cancelled or 
+     * the timeout elapses.
+     * 
+     * @param ticket
+     *            ticket returned by {@link #ticket} when processing started
+     * @param timeoutMillis
+     *            maximum time to wait in milliseconds
+     * @return <code>true</code> if idle or cancelled, <code>false</code> if timed out
+     */
+    boolean await(int ticket, long timeoutMillis) {
+        this.lock.lock();
+        try {
+            long nanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            while (!this.idle.isIdle() && (this.cancelCount == ticket)) {
+                if (nanos <= 0) {
+                    return false;
+                }
+
+                try {
+                    nanos = this.stateChanged.awaitNanos(nanos);
+                }
+                catch (InterruptedException e) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+        finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Returns whether {@link #cancel} has been called since the ticket was issued.
+     */
+    boolean isCancelled(int ticket) {
+        this.lock.lock();
+        try {
+            return this.cancelCount != ticket;
+        }
+        finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Wakes up waiters after the idle state has changed.
+     */
+    void signal() {
+        this.lock.lock();
+        try {
+            this.stateChanged.signalAll();
+        }
+        finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Cancels all current waiters.
+     */
+    void cancel() {
+        this.lock.lock();
+        try {
+            this.cancelCount++;
+            this.stateChanged.signalAll();
+        }
+        finally {
+            this.lock.unlock();
+        }
+    }
+
+}
@@ -42,6 +42,7 @@ import android.util.Log;
 import com.simplytapp.cardagent.remotempp.crypto.CryptogramGeneration;
 import com.simplytapp.cardagent.remotempp.crypto.DataCipher;
 import com.simplytapp.cardagent.remotempp.crypto.OfflineDataAuthentication;
+import com.st.crypto.RsaSigningEngine;
 import com.simplytapp.virtualcard.Agent;
 import com.simplytapp.virtualcard.ApprovalData;
 import com.simplytapp.virtualcard.CardAgentConnector;
@@ -119,6 +120,13 @@ public final class CardAgent extends Agent {
         (byte) 0x00, (byte) 0x00, (byte) 0x00
     };
 
+    // NOTE: Use extended APDU format. APDU header includes Lc, followed by Card Profile hash and Le=0x0000.
+    //       P1=0x01 returns no data if Card Profile is not modified, otherwise the Card Profile.
+    private static final byte[] APDU_HEADER_GET_CARDPROFILE_IF_MODIFIED = {
+        (byte) 0x80, (byte) 0x80, (byte) 0x01, (byte) 0x00, 
+        (byte) 0x00, (byte) 0x00, (byte) 0x20
+    };
+
     // NOTE: P1=0x01 indicates Mobile PIN not used.
     private static final byte[] APDU_GET_PTPSUK = {
         (byte) 0x80, (byte) 0x82, (byte) 0x01, (byte) 0x00, (byte) 0x00
@@ -134,6 +142,7 @@ public final class CardAgent extends Agent {
     };
 
     private transient byte apduState = APDU_SENT;
+    private transient volatile ApduSequencer apduSequencer = null;
 
     private transient byte transactionState = TRANSACTION_START;
 
@@ -145,16 +154,25 @@ public final class CardAgent extends Agent {
     private transient boolean terminated = false;
     private transient boolean invalidVersion = false;
 
-    // Threads to access remote card applet.
-    private transient Thread tGetCardProfile;
-    private transient Thread tGetPtpSuk;
+    // Jobs to access remote card applet.
+    private static final String TASK_GET_CARD_PROFILE  = "getCardProfile";
+    private static final String TASK_GET_PTP_SUK       = "getPtpSuk";
+    private static final String TASK_REPLENISH_PTP_SUK = "replenishPtpSuk";
+    private transient RemoteTaskCoordinator remoteTasks;
+    private transient RemoteSession remoteSession;
 
     private static final int MAX_CONNECT_RETRY = 3;
     private transient int connectRetryCounter;
 
     private CardProfile cardProfile;
+    // SHA-256 hash of serialized 'cardProfile' as returned by remote card applet.
+    private byte[] cardProfileHash;
     private ArrayDeque<PaymentTokenPayloadSingleUseKey> arrayPtpSuk;
 
+    // Signing engine for the ICC Private Key of 'iccSigningEngineCardProfile'.
+    private transient RsaSigningEngine iccSigningEngine;
+    private transient CardProfile iccSigningEngineCardProfile;
+
     private byte[] pdolData;
 
     // POS Cardholder Interaction Information (Tag 'DF4B') stores indicators.
@@ -231,11 +249,11 @@ public final class CardAgent extends Agent {
     public void activated() {
         //Log.i(LOG_TAG, "activated");
 
-        if (this.tGetCardProfile != null) {
-            // Block until 'tGetCardProfile' thread has stopped before performing transaction checks.
-            blockCondition(true, false, 100, "activated");
+        if (getRemoteTasks().isPending(TASK_GET_CARD_PROFILE)) {
+            // Block until 'getCardProfile' job has completed before performing transaction checks.
+            getRemoteTasks().await(TASK_GET_CARD_PROFILE);
 
-            // Provide enough time for message generated in 'tGetCardProfile' thread to be displayed on screen. 
+            // Provide enough time for message generated in 'getCardProfile' job to be displayed on screen. 
             try {
                 Thread.sleep(3000);
             }
@@ -243,6 +261,9 @@ public final class CardAgent extends Agent {
             }
         }
 
+        // Warm up CDA signing, e.g. after the agent is restored.
+        getIccSigningEngine(this.cardProfile);
+
         performTransactionChecks(true);
     }
 
@@ -313,6 +334,7 @@ public final class CardAgent extends Agent {
         }
 
         this.apduState = APDU_SENT;
+        getApduSequencer().signal();
     }
 
     /* 
@@ -354,6 +376,8 @@ public final class CardAgent extends Agent {
         this.transactionFailed = false;
 
         this.apduState = APDU_SENT;
+        // Release a C-APDU waiting on the previous R-APDU.
+        getApduSequencer().cancel();
 
         if (!this.twoTap) {
             // Reset transaction data.
@@ -386,8 +410,8 @@ public final class CardAgent extends Agent {
     public void messageFromRemoteCard(String msg) {
         Log.i(LOG_TAG, "messageFromRemoteCard: " + msg);
 
-        // Block until there is no thread accessing remote card applet before processing remote message.
-        blockCondition(true, true, 50, "messageFromRemoteCard");
+        // Block until there is no job accessing remote card applet before processing remote message.
+        getRemoteTasks().awaitAll();
 
         try {
             if (!DataCipher.isMobileKeySet()) {
@@ -411,8 +435,7 @@ public final class CardAgent extends Agent {
 
             byte remoteNotificationFunction = (byte) (msgData[0] & RMI_FUNCTION_MASK);
             if (remoteNotificationFunction == RMI_FUNCTION_PTP_CP) {
-                this.cardProfile = null;
-                this.arrayPtpSuk = null;
+                // NOTE: Card Profile and PTP_SUK are kept until 'getCardProfile' finds Card Profile is modified.
 
                 // NOTE: Kludge to delay processing in case there is STBridge connection.
                 try {
@@ -493,6 +516,30 @@ public final class CardAgent extends Agent {
         }
     }
 
+    /**
+     * Returns the sequencer used by <code>process</code> to wait for the previous R-APDU.
+     * Created lazily as transient state is not restored on deserialization.
+     */
+    private ApduSequencer getApduSequencer() {
+        ApduSequencer sequencer = this.apduSequencer;
+        if (sequencer == null) {
+            synchronized (this) {
+                sequencer = this.apduSequencer;
+                if (sequencer == null) {
+                    sequencer = new ApduSequencer(new ApduSequencer.Idle() {
+                        @Override
+                        public boolean isIdle() {
+                            return CardAgent.this.apduState == APDU_SENT;
+                        }
+                    });
+                    this.apduSequencer = sequencer;
+                }
+            }
+        }
+
+        return sequencer;
+    }
+
     /*
      * Similar to MPP Remote-SE Lite interface:
      * transceive(C-APDU)
@@ -504,20 +551,24 @@ public final class CardAgent extends Agent {
      */
     @Override
     public void process(APDU apdu) throws ISOException {
-        while (this.apduState != APDU_SENT) {  // wait for previous one to complete (thread safe)
-            try {
-                Thread.sleep(1);
-            }
-            catch (InterruptedException e) {
-            }
-
-            try {
-                if (getTransactionFinished()) {
-                    this.apduState = APDU_SENDING_LAST;
-                    throw new ISOException(ISO7816.SW_UNKNOWN);
+        if (this.apduState != APDU_SENT) {  // wait for previous one to complete (thread safe)
+            ApduSequencer sequencer = getApduSequencer();
+            int ticket = sequencer.ticket();
+            while (!sequencer.await(ticket, ApduSequencer.POLL_INTERVAL)) {
+                try {
+                    if (getTransactionFinished()) {
+                        this.apduState = APDU_SENDING_LAST;
+                        throw new ISOException(ISO7816.SW_UNKNOWN);
+                    }
+                }
+                catch (IOException e) {
                 }
             }
-            catch (IOException e) {
+
+            // Check if transaction has finished while waiting.
+            if (sequencer.isCancelled(ticket)) {
+                this.apduState = APDU_SENDING_LAST;
+                throw new ISOException(ISO7816.SW_UNKNOWN);
             }
         }
 
@@ -1626,24 +1677,11 @@ public final class CardAgent extends Agent {
         int sdadLength = -1;
         // IF 'Combined DDA/AC Generation Requested' in Reference Control Parameter is set
         if ((cid == PayPConstants.CID_ARQC) && cdaRequested) {
-            try {
-                BigInteger primeP = new BigInteger(1, this.cardProfile.getIccPrivKeyPrimeP());
-                BigInteger primeQ = new BigInteger(1, this.cardProfile.getIccPrivKeyPrimeQ());
-                BigInteger primeExponentP = new BigInteger(1, this.cardProfile.getIccPrivKeyPrimeExponentP());
-                BigInteger primeExponentQ = new BigInteger(1, this.cardProfile.getIccPrivKeyPrimeExponentQ());
-                BigInteger crtCoefficient = new BigInteger(1, this.cardProfile.getIccPrivKeyCrtCoefficient());
-                BigInteger modulus = primeP.multiply(primeQ);
-                RSAPrivateCrtKeySpec iccPrivKeySpec = new RSAPrivateCrtKeySpec(modulus, 
-                                                                               null, 
-                                                                               null, 
-                                                                               primeP, 
-                                                                               primeQ, 
-                                                                               primeExponentP, 
-                                                                               primeExponentQ, 
-                                                                               crtCoefficient);
-                // Note: Need to use "BC" provider.
-                RSAPrivateCrtKey iccPrivKey = (RSAPrivateCrtKey) KeyFactory.getInstance("RSA", "BC").generatePrivate(iccPrivKeySpec);
-
+            RsaSigningEngine iccSigningEngine = getIccSigningEngine(this.cardProfile);
+            if (iccSigningEngine == null) {
+                Log.e(LOG_TAG, "ICC Private Key not available.");
+            }
+            else {
                 sdadLength = OfflineDataAuthentication.generateSdad(ptpSuk, 
                                                                     apduBuffer, 
                                                                     sdadOffset, 
@@ -1654,10 +1692,7 @@ public final class CardAgent extends Agent {
                                                                     ac, 
                                                                     unpredictableNumber, 
                                                                     this.cardProfile.getIccPubKeyModulusLength(), 
-                                                                    iccPrivKey);
-            }
-            catch (Exception e) {
-                Log.e(LOG_TAG, "ICC Private Key not available.");
+                                                                    iccSigningEngine);
             }
             if (sdadLength != this.cardProfile.getIccPubKeyModulusLength()) {
                 ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
@@ -1781,50 +1816,93 @@ public final class CardAgent extends Agent {
         return exceptionMessage;
     }
 
-    private void blockCondition(boolean waitGetCardProfile, 
-                                boolean waitGetPtpSuk, 
-                                int sleepInterval, 
-                                String caller) {
-        if (caller == null) {
-            caller = "blockCondition";
-        }
-
-        // Block until the specified thread(s) has stopped and no longer accessing remote card applet.
-        while (((this.tGetCardProfile != null) && waitGetCardProfile) || 
-               ((this.tGetPtpSuk != null) && waitGetPtpSuk)) {
-            if ((this.tGetCardProfile != null) && waitGetCardProfile) {
-                Log.i(LOG_TAG, caller + ", tGetCardProfile is still accessing remote card applet, waiting...");
-            }
-            if ((this.tGetPtpSuk != null) && waitGetPtpSuk) {
-                Log.i(LOG_TAG, caller + ", tGetPtpSuk is still accessing remote card applet, waiting...");
+    /**
+     * Returns the signing engine for the ICC Private Key of the card profile, or null if not available.
+     * Created and warmed up on first use for each card profile.
+     */
+    private synchronized RsaSigningEngine getIccSigningEngine(CardProfile cardProfile) {
+        if ((cardProfile != this.iccSigningEngineCardProfile) || 
+            ((cardProfile != null) && (this.iccSigningEngine == null))) {
+            this.iccSigningEngine = null;
+            this.iccSigningEngineCardProfile = cardProfile;
+            if ((cardProfile == null) || (cardProfile.getIccPrivKeyPrimeP() == null)) {
+                return null;
             }
 
             try {
-                Thread.sleep(sleepInterval);
+                BigInteger primeP = new BigInteger(1, cardProfile.getIccPrivKeyPrimeP());
+                BigInteger primeQ = new BigInteger(1, cardProfile.getIccPrivKeyPrimeQ());
+                BigInteger primeExponentP = new BigInteger(1, cardProfile.getIccPrivKeyPrimeExponentP());
+                BigInteger primeExponentQ = new BigInteger(1, cardProfile.getIccPrivKeyPrimeExponentQ());
+                BigInteger crtCoefficient = new BigInteger(1, cardProfile.getIccPrivKeyCrtCoefficient());
+                BigInteger modulus = primeP.multiply(primeQ);
+                RSAPrivateCrtKeySpec iccPrivKeySpec = new RSAPrivateCrtKeySpec(modulus, 
+                                                                               null, 
+                                                                               null, 
+                                                                               primeP, 
+                                                                               primeQ, 
+                                                                               primeExponentP, 
+                                                                               primeExponentQ, 
+                                                                               crtCoefficient);
+                // Note: Need to use "BC" provider.
+                RSAPrivateCrtKey iccPrivKey = (RSAPrivateCrtKey) KeyFactory.getInstance("RSA", "BC").generatePrivate(iccPrivKeySpec);
+
+                RsaSigningEngine iccSigningEngine = new RsaSigningEngine(iccPrivKey);
+                iccSigningEngine.warmUp();
+                this.iccSigningEngine = iccSigningEngine;
             }
-            catch (InterruptedException e) {
+            catch (Exception e) {
+                Log.e(LOG_TAG, "Failed to Initialize ICC Signing Engine Exception Log", e);
             }
         }
+
+        return this.iccSigningEngine;
     }
 
-    private void getCardProfile() {
-        if (this.tGetCardProfile != null) {
-            Log.i(LOG_TAG, "getCardProfile, tGetCardProfile is still accessing remote card applet.");
-            return;
+    /**
+     * Returns the coordinator running jobs that access the remote card applet, created on first use.
+     */
+    private synchronized RemoteTaskCoordinator getRemoteTasks() {
+        if (this.remoteTasks == null) {
+            this.remoteTasks = new RemoteTaskCoordinator(LOG_TAG);
         }
 
-        // Block until 'tGetPtpSuk' thread has stopped before continuing.
-        blockCondition(false, true, 200, "getCardProfile");
+        return this.remoteTasks;
+    }
+
+    /**
+     * Returns the session holding the connection to the remote card applet between jobs, created on first use.
+     */
+    private synchronized RemoteSession getRemoteSession() {
+        if (this.remoteSession == null) {
+            this.remoteSession = new RemoteSession(new RemoteSession.Link() {
+                public void connect() throws IOException {
+                    CardAgent.this.connect();
+                }
+
+                public void disconnect() throws IOException {
+                    CardAgent.this.disconnect();
+                }
 
-        // NOTE: This thread calls 'setBusy' method when it starts and 'clearBusy' when it stops to 
-        //       block agent from processing contactless transaction while the thread is running.
-        this.tGetCardProfile = new Thread(new Runnable() {
+                public void transceive(TransceiveData transceiveData) throws IOException {
+                    CardAgent.this.transceive(transceiveData);
+                }
+            }, APDU_SELECT_CARDAPPLET, LOG_TAG);
+        }
+
+        return this.remoteSession;
+    }
+
+    private void getCardProfile() {
+        // NOTE: This job calls 'setBusy' method when it starts and 'clearBusy' when it stops to 
+        //       block agent from processing contactless transaction while the job is running.
+        getRemoteTasks().submit(TASK_GET_CARD_PROFILE, new Runnable() {
             public void run() {
                 try {
                     setBusy();
                 }
                 catch (IOException e) {
-                    Log.e(LOG_TAG, "tGetCardProfile setBusy IOException Log", e);
+                    Log.e(LOG_TAG, "getCardProfile setBusy IOException Log", e);
 
                     try {
                         postMessage("Card Agent Not Available to\n" + 
@@ -1834,21 +1912,16 @@ public final class CardAgent extends Agent {
                     catch (IOException e1) {
                     }
 
-                    tGetCardProfile = null;
                     return;
                 }
 
                 try {
-                    connect();
+                    getRemoteSession().open();
                 }
                 catch (IOException e) {
-                    Log.e(LOG_TAG, "tGetCardProfile connect IOException Log", e);
+                    Log.e(LOG_TAG, "getCardProfile connect IOException Log", e);
 
-                    try {
-                        disconnect();
-                    }
-                    catch (IOException e1) {
-                    }
+                    getRemoteSession().release();
 
                     if (getNonNullMessage(e).equalsIgnoreCase("SOCKET_ERR")) {
                         if (connectRetryCounter < MAX_CONNECT_RETRY) {
@@ -1860,8 +1933,6 @@ public final class CardAgent extends Agent {
                             catch (IOException e1) {
                             }
 
-                            tGetCardProfile = null;
-
                             // Retry getCardProfile.
                             getCardProfile();
 
@@ -1883,26 +1954,35 @@ public final class CardAgent extends Agent {
                     catch (IOException e1) {
                     }
 
-                    tGetCardProfile = null;
                     return;
                 }
 
-                TransceiveData getCardData = new TransceiveData(TransceiveData.SOFT_CHANNEL);
-                getCardData.packCardReset(false);
-                getCardData.packApdu(APDU_SELECT_CARDAPPLET, true);
+                // Card Profile and PTP_SUK held when the job starts, kept if Card Profile is not modified.
+                final CardProfile currentCardProfile = cardProfile;
+                final byte[] currentCardProfileHash = cardProfileHash;
+                final ArrayDeque<PaymentTokenPayloadSingleUseKey> currentArrayPtpSuk = arrayPtpSuk;
+                boolean ifModified = (currentCardProfile != null) && (currentCardProfileHash != null);
+
+                TransceiveData getCardData = getRemoteSession().newTransceiveData();
                 getCardData.packApdu(APDU_GET_MOBILE_KEY, true);
-                getCardData.packApdu(APDU_GET_CARDPROFILE, true);
+                if (ifModified) {
+                    ByteBuffer getCardProfileIfModified = ByteBuffer.allocate(APDU_HEADER_GET_CARDPROFILE_IF_MODIFIED.length + 
+                                                                              currentCardProfileHash.length + 
+                                                                              2);
+                    getCardProfileIfModified.put(APDU_HEADER_GET_CARDPROFILE_IF_MODIFIED);
+                    getCardProfileIfModified.put(currentCardProfileHash);
+                    getCardData.packApdu(getCardProfileIfModified.array(), true);
+                }
+                else {
+                    getCardData.packApdu(APDU_GET_CARDPROFILE, true);
+                }
                 try {
-                    transceive(getCardData);
+                    getRemoteSession().transceive(getCardData);
                 }
                 catch (IOException e) {
-                    Log.e(LOG_TAG, "tGetCardProfile transceive(getCardData) IOException Log", e);
+                    Log.e(LOG_TAG, "getCardProfile transceive(getCardData) IOException Log", e);
 
-                    try {
-                        disconnect();
-                    }
-                    catch (IOException e1) {
-                    }
+                    getRemoteSession().release();
 
                     try {
                         postMessage("Get Card Profile Error\n" + 
@@ -1917,11 +1997,10 @@ public final class CardAgent extends Agent {
                     catch (IOException e1) {
                     }
 
-                    tGetCardProfile = null;
                     return;
                 }
 
-                byte[] selectResponse = getCardData.getNextResponse();
+                byte[] selectResponse = getRemoteSession().getSelectResponse(getCardData);
                 boolean selectError = false;
                 Short selectSw = null;
                 if ((selectResponse == null) || 
@@ -1958,11 +2037,7 @@ public final class CardAgent extends Agent {
                         Log.e(LOG_TAG, "Invalid selectResponse: " + DataUtil.byteArrayToHexString(selectResponse));
                     }
 
-                    try {
-                        disconnect();
-                    }
-                    catch (IOException e) {
-                    }
+                    getRemoteSession().release();
 
                     try {
                         if (((selectSw != null) && (selectSw == ISO7816.SW_FUNC_NOT_SUPPORTED)) || 
@@ -1993,7 +2068,6 @@ public final class CardAgent extends Agent {
                     catch (IOException e) {
                     }
 
-                    tGetCardProfile = null;
                     return;
                 }
 
@@ -2007,11 +2081,7 @@ public final class CardAgent extends Agent {
                 else {
                     Log.e(LOG_TAG, "Invalid mobileKey: " + DataUtil.byteArrayToHexString(mobileKey));
 
-                    try {
-                        disconnect();
-                    }
-                    catch (IOException e) {
-                    }
+                    getRemoteSession().release();
 
                     try {
                         postMessage("Invalid Mobile Key", false, null);
@@ -2025,7 +2095,6 @@ public final class CardAgent extends Agent {
                     catch (IOException e) {
                     }
 
-                    tGetCardProfile = null;
                     return;
                 }
                 // DEBUG
@@ -2035,11 +2104,62 @@ public final class CardAgent extends Agent {
                 }
 
                 byte[] cardProfileData = getCardData.getNextResponse();
-                if ((cardProfileData != null) && 
-                    (cardProfileData.length > 2) && 
-                    (ByteBuffer.wrap(cardProfileData).getShort(cardProfileData.length - 2) == ISO7816.SW_NO_ERROR)) {
+                boolean cardProfileModified = true;
+                if (ifModified) {
+                    if ((cardProfileData != null) && 
+                        (cardProfileData.length == 2) && 
+                        (ByteBuffer.wrap(cardProfileData).getShort() == ISO7816.SW_NO_ERROR)) {
+                        Log.i(LOG_TAG, "Card Profile not modified.");
+
+                        cardProfileModified = false;
+                    }
+                    else if ((cardProfileData != null) && 
+                             (cardProfileData.length == 2) && 
+                             (ByteBuffer.wrap(cardProfileData).getShort() == ISO7816.SW_INCORRECT_P1P2)) {
+                        // Card applet does not support P1=0x01, retrieve Card Profile.
+                        TransceiveData getCardProfileData = getRemoteSession().newTransceiveData();
+                        getCardProfileData.packApdu(APDU_GET_CARDPROFILE, true);
+                        try {
+                            getRemoteSession().transceive(getCardProfileData);
+                        }
+                        catch (IOException e) {
+                            Log.e(LOG_TAG, "getCardProfile transceive(getCardProfileData) IOException Log", e);
+
+                            getRemoteSession().release();
+
+                            try {
+                                postMessage("Get Card Profile Error\n" + 
+                                            "Exception: " + getNonNullMessage(e), false, null);
+                            }
+                            catch (IOException e1) {
+                            }
+
+                            try {
+                                clearBusy();
+                            }
+                            catch (IOException e1) {
+                            }
+
+                            return;
+                        }
+
+                        cardProfileData = getCardProfileData.getNextResponse();
+                    }
+                    // Otherwise the response holds the modified Card Profile.
+                }
+
+                if (!cardProfileModified) {
                     // Reset 'disabled' in case agent was in disabled state.
                     disabled = false;
+                }
+                else if ((cardProfileData != null) && 
+                         (cardProfileData.length > 2) && 
+                         (ByteBuffer.wrap(cardProfileData).getShort(cardProfileData.length - 2) == ISO7816.SW_NO_ERROR)) {
+                    // Reset 'disabled' in case agent was in disabled state.
+                    disabled = false;
+
+                    cardProfile = null;
+                    cardProfileHash = null;
 
                     // Extract Card Profile data without SW.
                     cardProfileData = Arrays.copyOf(cardProfileData, cardProfileData.length - 2);
@@ -2086,6 +2206,9 @@ public final class CardAgent extends Agent {
                     String invalidResponse = DataUtil.byteArrayToHexString(cardProfileData);
                     Log.e(LOG_TAG, "Invalid cardProfileData: " + invalidResponse);
 
+                    cardProfile = null;
+                    arrayPtpSuk = null;
+
                     try {
                         if ((invalidResponse.length() == 4) && 
                             invalidResponse.equalsIgnoreCase(String.format("%04X", ISO7816.SW_COMMAND_NOT_ALLOWED))) {
@@ -2104,11 +2227,9 @@ public final class CardAgent extends Agent {
                     }
                 }
                 if (cardProfile == null) {
-                    try {
-                        disconnect();
-                    }
-                    catch (IOException e) {
-                    }
+                    arrayPtpSuk = null;
+
+                    getRemoteSession().release();
 
                     try {
                         clearBusy();
@@ -2116,10 +2237,9 @@ public final class CardAgent extends Agent {
                     catch (IOException e) {
                     }
 
-                    tGetCardProfile = null;
                     return;
                 }
-                else {
+                else if (cardProfileModified) {
                     // DEBUG
                     try {
                         Log.v(LOG_TAG, "cardProfile Aid: " + DataUtil.byteArrayToHexString(cardProfile.getAid()));
@@ -2160,18 +2280,37 @@ public final class CardAgent extends Agent {
                     }
                 }
 
+                if (cardProfileModified) {
+                    try {
+                        MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+                        cardProfileHash = sha256.digest(cardProfileData);
+                    }
+                    catch (Exception e) {
+                    }
+                }
+
+                // Warm up CDA signing ahead of the first transaction.
+                getIccSigningEngine(cardProfile);
+
+                // Keep PTP_SUK generated for the Card Profile.
                 final int maxNumberPtpSuk = cardProfile.getMaxNumberPtpSuk();
-                arrayPtpSuk = new ArrayDeque<PaymentTokenPayloadSingleUseKey>(maxNumberPtpSuk);
+                ArrayDeque<PaymentTokenPayloadSingleUseKey> keptArrayPtpSuk = new ArrayDeque<PaymentTokenPayloadSingleUseKey>(maxNumberPtpSuk);
+                if ((currentArrayPtpSuk != null) && (cardProfileHash != null)) {
+                    byte[] ptpCpTruncatedHash = Arrays.copyOf(cardProfileHash, 24);
+                    for (PaymentTokenPayloadSingleUseKey ptpSuk : currentArrayPtpSuk) {
+                        if ((keptArrayPtpSuk.size() < maxNumberPtpSuk) && 
+                            Arrays.equals(ptpCpTruncatedHash, ptpSuk.getPtpCpTruncatedHash())) {
+                            keptArrayPtpSuk.add(ptpSuk);
+                        }
+                    }
+                }
+                arrayPtpSuk = keptArrayPtpSuk;
 
                 final int addNumberPtpSuk = maxNumberPtpSuk - arrayPtpSuk.size();
                 // DEBUG
                 //Log.i(LOG_TAG, "addNumberPtpSuk=" + addNumberPtpSuk);
                 if (addNumberPtpSuk <= 0) {
-                    try {
-                        disconnect();
-                    }
-                    catch (IOException e) {
-                    }
+                    getRemoteSession().release();
 
                     try {
                         clearBusy();
@@ -2179,18 +2318,9 @@ public final class CardAgent extends Agent {
                     catch (IOException e) {
                     }
 
-                    tGetCardProfile = null;
                     return;
                 }
 
-                byte[] cardProfileHash = null;
-                try {
-                    MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
-                    cardProfileHash = sha256.digest(cardProfileData);
-                }
-                catch (Exception e) {
-                }
-
                 TransceiveData tranceiveDataGetPtpSuk = new TransceiveData(TransceiveData.SOFT_CHANNEL);
                 int numberPtpSuk = 0;
                 while (numberPtpSuk < addNumberPtpSuk) {
@@ -2198,10 +2328,10 @@ public final class CardAgent extends Agent {
                     numberPtpSuk++;
                 }
                 try {
-                    transceive(tranceiveDataGetPtpSuk);
+                    getRemoteSession().transceive(tranceiveDataGetPtpSuk);
                 }
                 catch (IOException e) {
-                    Log.e(LOG_TAG, "tGetCardProfile transceive(tranceiveDataGetPtpSuk) IOException Log", e);
+                    Log.e(LOG_TAG, "getCardProfile transceive(tranceiveDataGetPtpSuk) IOException Log", e);
 
                     try {
                         postMessage("Get PTP_SUK Error\n" + 
@@ -2211,11 +2341,7 @@ public final class CardAgent extends Agent {
                     }
                 }
 
-                try {
-                    disconnect();
-                }
-                catch (IOException e) {
-                }
+                getRemoteSession().release();
 
                 numberPtpSuk = 0;
                 while (numberPtpSuk < addNumberPtpSuk) {
@@ -2228,12 +2354,8 @@ public final class CardAgent extends Agent {
                 }
                 catch (IOException e) {
                 }
-
-                tGetCardProfile = null;
             }
         });
-
-        this.tGetCardProfile.start();
     }
 
     private void getPtpSuk(final boolean checkMinThreshold) {
@@ -2244,55 +2366,45 @@ public final class CardAgent extends Agent {
             return;
         }
 
-        // Block until 'tGetPtpSuk' thread has stopped before continuing.
-        blockCondition(false, true, 200, "getPtpSuk");
-
-        if ((this.cardProfile == null) && !this.disabled) {
-            try {
-                postMessage("Missing Card Data\nPlease Check Connection is Available and Refresh Card", false, null);
-            }
-            catch (IOException e) {
-            }
-            return;
-        }
-
-        if (checkMinThreshold && 
-            (this.arrayPtpSuk.size() > this.cardProfile.getMinThresholdNumberPtpSuk())) {
-            //Log.i(LOG_TAG, "Not yet minimum threshold number of PTP_SUK.");
-            return;
-        }
+        // NOTE: This job does not call 'setBusy' method so agent is not blocked from processing 
+        //       contactless transaction while the job is running.
+        //       Thresholds are checked when the job runs, after any queued 'getCardProfile' job.
+        getRemoteTasks().submit(checkMinThreshold ? TASK_GET_PTP_SUK : TASK_REPLENISH_PTP_SUK, 
+                                new Runnable() {
+            public void run() {
+                if ((cardProfile == null) && !disabled) {
+                    try {
+                        postMessage("Missing Card Data\nPlease Check Connection is Available and Refresh Card", false, null);
+                    }
+                    catch (IOException e) {
+                    }
+                    return;
+                }
 
-        final int addNumberPtpSuk = this.cardProfile.getMaxNumberPtpSuk() - this.arrayPtpSuk.size();
-        if (addNumberPtpSuk <= 0) {
-            Log.i(LOG_TAG, "Already maximum number of PTP_SUK.");
-            return;
-        }
+                if (checkMinThreshold && 
+                    (arrayPtpSuk.size() > cardProfile.getMinThresholdNumberPtpSuk())) {
+                    //Log.i(LOG_TAG, "Not yet minimum threshold number of PTP_SUK.");
+                    return;
+                }
 
-        // Block until 'tGetCardProfile' thread has stopped before continuing.
-        blockCondition(true, false, 200, "getPtpSuk");
+                final int addNumberPtpSuk = cardProfile.getMaxNumberPtpSuk() - arrayPtpSuk.size();
+                if (addNumberPtpSuk <= 0) {
+                    Log.i(LOG_TAG, "Already maximum number of PTP_SUK.");
+                    return;
+                }
 
-        // NOTE: This thread does not call 'setBusy' method so agent is not blocked from processing 
-        //       contactless transaction while the thread is running.
-        this.tGetPtpSuk = new Thread(new Runnable() {
-            public void run() {
                 try {
-                    connect();
+                    getRemoteSession().open();
                 }
                 catch (IOException e) {
-                    Log.e(LOG_TAG, "tGetPtpSuk connect IOException Log", e);
+                    Log.e(LOG_TAG, "getPtpSuk connect IOException Log", e);
 
-                    try {
-                        disconnect();
-                    }
-                    catch (IOException e1) {
-                    }
+                    getRemoteSession().release();
 
                     if (getNonNullMessage(e).equalsIgnoreCase("SOCKET_ERR")) {
                         if (connectRetryCounter < MAX_CONNECT_RETRY) {
                             connectRetryCounter++;
 
-                            tGetPtpSuk = null;
-
                             // Retry getPtpSuk.
                             getPtpSuk(checkMinThreshold);
 
@@ -2309,23 +2421,20 @@ public final class CardAgent extends Agent {
                     catch (IOException e1) {
                     }
 
-                    tGetPtpSuk = null;
                     return;
                 }
 
-                TransceiveData tranceiveDataGetPtpSuk = new TransceiveData(TransceiveData.SOFT_CHANNEL);
-                tranceiveDataGetPtpSuk.packCardReset(false);
-                tranceiveDataGetPtpSuk.packApdu(APDU_SELECT_CARDAPPLET, true);
+                TransceiveData tranceiveDataGetPtpSuk = getRemoteSession().newTransceiveData();
                 int numberPtpSuk = 0;
                 while (numberPtpSuk < addNumberPtpSuk) {
                     tranceiveDataGetPtpSuk.packApdu(APDU_GET_PTPSUK, true);
                     numberPtpSuk++;
                 }
                 try {
-                    transceive(tranceiveDataGetPtpSuk);
+                    getRemoteSession().transceive(tranceiveDataGetPtpSuk);
                 }
                 catch (IOException e) {
-                    Log.e(LOG_TAG, "tGetPtpSuk transceive IOException Log", e);
+                    Log.e(LOG_TAG, "getPtpSuk transceive IOException Log", e);
 
                     // Indicate exception occurred.
                     numberPtpSuk = -1;
@@ -2338,15 +2447,11 @@ public final class CardAgent extends Agent {
                     }
                 }
 
-                try {
-                    disconnect();
-                }
-                catch (IOException e) {
-                }
+                getRemoteSession().release();
 
                 // Check if error already occurred.
                 if (numberPtpSuk != -1) {
-                    byte[] selectResponse = tranceiveDataGetPtpSuk.getNextResponse();
+                    byte[] selectResponse = getRemoteSession().getSelectResponse(tranceiveDataGetPtpSuk);
                     if ((selectResponse == null) || 
                         (selectResponse.length <= 2) || 
                         (ByteBuffer.wrap(selectResponse).getShort(selectResponse.length - 2) != ISO7816.SW_NO_ERROR)) {
@@ -2371,7 +2476,6 @@ public final class CardAgent extends Agent {
                         catch (IOException e) {
                         }
 
-                        tGetPtpSuk = null;
                         return;
                     }
 
@@ -2411,12 +2515,8 @@ public final class CardAgent extends Agent {
                         numberPtpSuk++;
                     }
                 }
-
-                tGetPtpSuk = null;
             }
         });
-
-        this.tGetPtpSuk.start();
     }
 
     private synchronized void syncGetPtpSuk(byte[] ptpSukData, byte[] cardProfileHash) {
@@ -0,0 +1,204 @@
+/**
+ * This file is part of CardAgent-RemoteMPP-NoDB which is card agent implementation 
+ * of M Remote-SE Mobile PayP for SimplyTapp mobile platform.
+ * Copyright 2014 SimplyTapp, Inc.
+ * 
+ * CardAgent-RemoteMPP-NoDB is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, either version 3 of the License, or 
+ * (at your option) any later version.
+ * 
+ * CardAgent-RemoteMPP-NoDB is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with CardAgent-RemoteMPP-NoDB.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.simplytapp.cardagent;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+
+/**
+ * Runs jobs accessing the remote card applet one at a time on a single worker thread.
+ * <p>
+ * Jobs run in submission order, so a job submitted after another one that it 
+ * depends on (e.g. Dynamic Account Parameters after Static Account Parameters) 
+ * always sees its result, and jobs never access the remote card applet at the 
+ * same time. A job submitted while a job with the same key is still queued is 
+ * coalesced with it. Callers wait on the returned future instead of polling.
+ * <p>
+ * The worker thread is started on demand and stops after being idle for 
+ * {@link #KEEP_ALIVE} seconds.
+ * 
+ * @author SimplyTapp, Inc.
+ * @version 1.0
+ */
+final class RemoteTaskCoordinator {
+
+    /**
+     * Seconds the idle worker thread is kept before it stops.
+     */
+    static final long KEEP_ALIVE = 60;
+
+    private final String logTag;
+    private final ThreadPoolExecutor executor;
+
+    // Latest job submitted for each key, until it completes.
+    private final Map<String, Task> tasks = new HashMap<String, Task>();
+
+    private volatile Thread worker;
+
+    private final class Task extends FutureTask<Void> {
+        private final String key;
+        private final long submitTime = System.currentTimeMillis();
+        private volatile boolean started;
+
+        Task(String key, Runnable job) {
+            super(job, null);
+            this.key = key;
+        }
+
+        @Override
+        public void run() {
+            this.started = true;
+            super.run();
+        }
+
+        @Override
+        protected void done() {
+            synchronized (RemoteTaskCoordinator.this) {
+                if (RemoteTaskCoordinator.this.tasks.get(this.key) == this) {
+                    RemoteTaskCoordinator.this.tasks.remove(this.key);
+                }
+            }
+
+            try {
+                get();
+                Log.i(RemoteTaskCoordinator.this.logTag, this.key + " completed in " + (System.currentTimeMillis() - this.submitTime) + " ms");
+            }
+            catch (CancellationException e) {
+                Log.i(RemoteTaskCoordinator.this.logTag, this.key + " cancelled");
+            }
+            catch (ExecutionException e) {
+                Log.e(RemoteTaskCoordinator.this.logTag, this.key + " Exception Log", e.getCause());
+            }
+            catch (InterruptedException e) {
+            }
+        }
+    }
+
+    /**
+     * Creates a coordinator.
+     * 
+     * @param logTag
+     *            tag to log job completion with
+     */
+    RemoteTaskCoordinator(String logTag) {
+        this.logTag = logTag;
+        this.executor = new ThreadPoolExecutor(1, 1, 
+                                               KEEP_ALIVE, TimeUnit.SECONDS, 
+                                               new LinkedBlockingQueue<Runnable>(), 
+                                               new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, RemoteTaskCoordinator.this.logTag + "-remote");
+                thread.setDaemon(true);
+                RemoteTaskCoordinator.this.worker = thread;
+                return thread;
+            }
+        });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Submits a job, or returns the job with the same key if it is still queued.
+     * <p>
+     * A job submitted while the job with the same key is running is queued to 
+     * run after it, e.g. to retry.
+     * 
+     * @param key
+     *            identifies duplicate submissions of the same job
+     * @param job
+     *            the job to run on the worker thread
+     * @return future completed when the job has run
+     */
+    synchronized Future<?> submit(String key, Runnable job) {
+        Task task = this.tasks.get(key);
+        if ((task != null) && !task.started) {
+            return task;
+        }
+
+        task = new Task(key, job);
+        this.tasks.put(key, task);
+        this.executor.execute(task);
+        return task;
+    }
+
+    /**
+     * Returns <code>true</code> if a job with the specified key is queued or running.
+     */
+    synchronized boolean isPending(String key) {
+        Task task = this.tasks.get(key);
+        return (task != null) && !task.isDone();
+    }
+
+    /**
+     * Blocks until the job with the specified key, if any, has completed.
+     * <p>
+     * Returns immediately when called from the worker thread itself, since 
+     * jobs run one at a time.
+     */
+    void await(String key) {
+        Task task;
+        synchronized (this) {
+            task = this.tasks.get(key);
+        }
+
+        await(task);
+    }
+
+    /**
+     * Blocks until all jobs submitted so far have completed.
+     */
+    void awaitAll() {
+        List<Task> pendingTasks;
+        synchronized (this) {
+            pendingTasks = new ArrayList<Task>(this.tasks.values());
+        }
+
+        for (Task task : pendingTasks) {
+            await(task);
+        }
+    }
+
+    private void await(Task task) {
+        if ((task == null) || (Thread.currentThread() == this.worker)) {
+            return;
+        }
+
+        try {
+            task.get();
+        }
+        catch (CancellationException e) {
+        }
+        catch (ExecutionException e) {
+            // Logged when the job completed.
+        }
+        catch (InterruptedException e) {
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/**
+ * This file is part of CardAgent-RemoteMPP-NoDB which is card agent implementation 
+ * of M Remote-SE Mobile PayP for SimplyTapp mobile platform.
+ * Copyright 2014 SimplyTapp, Inc.
+ * 
+ * CardAgent-RemoteMPP-NoDB is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, either version 3 of the License, or 
+ * (at your option) any later version.
+ * 
+ * CardAgent-RemoteMPP-NoDB is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with CardAgent-RemoteMPP-NoDB.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.simplytapp.cardagent.remotempp.crypto;
+
+import android.util.Log;
+
+import com.simplytapp.cardagent.CardAgent;
+import com.st.crypto.CryptoProviders;
+import com.st.mmpp.data.PaymentTokenPayloadSingleUseKey;
+
+/**
+ * M CVC3 and CVN 14 cryptogram generation with the Single Use Key of the 
+ * Payment Token Payload, on top of the {@link com.st.crypto.CryptoProvider} 
+ * in use.
+ * 
+ * @author SimplyTapp, Inc.
+ * @version 1.0
+ */
+public final class CryptogramGeneration {
+
+    private static final String LOG_TAG = CardAgent.class.getSimpleName();
+
+    private CryptogramGeneration() {
+    }
+
+    /**
+     * Generates a CVC3.
+     * 
+     * @param ptpSuk
+     *            the Payment Token Payload Single Use Key
+     * @param ivCvc3
+     *            the IVCVC3
+     * @param unpredictableNumber
+     *            the Unpredictable Number
+     * @param pin
+     *            the Mobile PIN the Single Use Key is combined with, or null
+     * @return the 8 byte CVC3, or null if generation failed
+     */
+    public static byte[] generateCvc3(PaymentTokenPayloadSingleUseKey ptpSuk, 
+                                      byte[] ivCvc3, 
+                                      byte[] unpredictableNumber, 
+                                      byte[] pin) {
+        try {
+            return CryptoProviders.getProvider().generateCvc3(ptpSuk.getSuk(), 
+                                                              ivCvc3, 
+                                                              unpredictableNumber, 
+                                                              ptpSuk.getAtc(), 
+                                                              pin);
+        }
+        catch (Exception e) {
+            Log.e(LOG_TAG, "generateCvc3 Exception", e);
+            return null;
+        }
+    }
+
+    /**
+     * Generates the Application Cryptogram.
+     * 
+     * @param ptpSuk
+     *            the Payment Token Payload Single Use Key
+     * @param data
+     *            the buffer holding the cryptogram input
+     * @param offset
+     *            offset of the cryptogram input
+     * @param length
+     *            length of the cryptogram input
+     * @param pin
+     *            the Mobile PIN the Single Use Key is combined with, or null
+     * @return the 8 byte Application Cryptogram, or null if generation failed
+     */
+    public static byte[] generateCvn14Cryptogram(PaymentTokenPayloadSingleUseKey ptpSuk, 
+                                                 byte[] data, int offset, int length, 
+                                                 byte[] pin) {
+        try {
+            return CryptoProviders.getProvider().generateCvn14Cryptogram(ptpSuk.getSuk(), 
+                                                                         data, offset, length, 
+                                                                         pin);
+        }
+        catch (Exception e) {
+            Log.e(LOG_TAG, "generateCvn14Cryptogram Exception", e);
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,90 @@
+/**
+ * This file is part of CardAgent-RemoteMPP-NoDB which is card agent implementation 
+ * of M Remote-SE Mobile PayP for SimplyTapp mobile platform.
+ * Copyright 2014 SimplyTapp, Inc.
+ * 
+ * CardAgent-RemoteMPP-NoDB is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, either version 3 of the License, or 
+ * (at your option) any later version.
+ * 
+ * CardAgent-RemoteMPP-NoDB is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with CardAgent-RemoteMPP-NoDB.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.simplytapp.cardagent.remotempp.crypto;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import android.util.Log;
+
+import com.simplytapp.cardagent.CardAgent;
+
+/**
+ * Decryption of remote messages with the Mobile Key.
+ * 
+ * @author SimplyTapp, Inc.
+ * @version 1.0
+ */
+public final class DataCipher {
+
+    private static final String LOG_TAG = CardAgent.class.getSimpleName();
+
+    private static final byte[] IV = { (byte) 0x80, (byte) 0x00, (byte) 0x00, (byte) 0x00, 
+                                       (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00, 
+                                       (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00, 
+                                       (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00 };
+
+    private static volatile SecretKeySpec mobileKey;
+
+    private DataCipher() {
+    }
+
+    /**
+     * Sets the Mobile Key.
+     * 
+     * @param mobileKey
+     *            the AES Mobile Key
+     * @return true if the Mobile Key is set
+     */
+    public static boolean setMobileKey(byte[] mobileKey) {
+        try {
+            DataCipher.mobileKey = new SecretKeySpec(mobileKey, "AES");
+            return true;
+        }
+        catch (Exception e) {
+            Log.e(LOG_TAG, "setMobileKey Exception", e);
+            return false;
+        }
+    }
+
+    public static boolean isMobileKeySet() {
+        return (mobileKey != null);
+    }
+
+    /**
+     * Decrypts a remote message with AES in CBC mode.
+     * 
+     * @param message
+     *            the encrypted message
+     * @return the decrypted message, or null if decryption failed
+     */
+    public static byte[] decryptRemoteMessage(byte[] message) {
+        try {
+            Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+            cipher.init(Cipher.DECRYPT_MODE, mobileKey, new IvParameterSpec(IV));
+            return cipher.doFinal(message);
+        }
+        catch (Exception e) {
+            Log.e(LOG_TAG, "decryptRemoteMessage Exception", e);
+            return null;
+        }
+    }
+
+}
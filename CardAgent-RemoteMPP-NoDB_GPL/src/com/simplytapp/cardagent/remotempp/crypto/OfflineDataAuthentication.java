@@ -0,0 +1,139 @@
+/**
+ * This file is part of CardAgent-RemoteMPP-NoDB which is card agent implementation 
+ * of M Remote-SE Mobile PayP for SimplyTapp mobile platform.
+ * Copyright 2014 SimplyTapp, Inc.
+ * 
+ * CardAgent-RemoteMPP-NoDB is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, either version 3 of the License, or 
+ * (at your option) any later version.
+ * 
+ * CardAgent-RemoteMPP-NoDB is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with CardAgent-RemoteMPP-NoDB.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.simplytapp.cardagent.remotempp.crypto;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import android.util.Log;
+
+import com.simplytapp.cardagent.CardAgent;
+import com.st.crypto.CryptoProvider;
+import com.st.crypto.CryptoProviders;
+import com.st.crypto.RsaSigningEngine;
+import com.st.mmpp.data.PaymentTokenPayloadSingleUseKey;
+
+/**
+ * CDA Signed Dynamic Application Data generation, on top of the 
+ * {@link CryptoProvider} in use.
+ * 
+ * @author SimplyTapp, Inc.
+ * @version 1.0
+ */
+public final class OfflineDataAuthentication {
+
+    private static final String LOG_TAG = CardAgent.class.getSimpleName();
+
+    private static final int LENGTH_HASH = 20;
+
+    private OfflineDataAuthentication() {
+    }
+
+    /**
+     * Builds and signs Signed Dynamic Application Data.
+     * 
+     * @param ptpSuk
+     *            the Payment Token Payload Single Use Key
+     * @param buffer
+     *            the output buffer
+     * @param offset
+     *            offset in the output buffer
+     * @param pdolData
+     *            the PDOL Related Data
+     * @param cdol1RelatedData
+     *            the CDOL1 Related Data
+     * @param cid
+     *            the Cryptogram Information Data
+     * @param issuerAppData
+     *            the Issuer Application Data
+     * @param ac
+     *            the Application Cryptogram
+     * @param unpredictableNumber
+     *            the Unpredictable Number
+     * @param modulusLength
+     *            length of the ICC Public Key Modulus
+     * @param signingEngine
+     *            the signing engine for the ICC Private Key
+     * @return the length of the Signed Dynamic Application Data, or -1 if 
+     *         generation failed
+     */
+    public static int generateSdad(PaymentTokenPayloadSingleUseKey ptpSuk, 
+                                   byte[] buffer, int offset, 
+                                   byte[] pdolData, 
+                                   byte[] cdol1RelatedData, 
+                                   byte cid, 
+                                   byte[] issuerAppData, 
+                                   byte[] ac, 
+                                   byte[] unpredictableNumber, 
+                                   int modulusLength, 
+                                   RsaSigningEngine signingEngine) {
+        CryptoProvider cryptoProvider = CryptoProviders.getProvider();
+
+        // Transaction Data Hash Code input.
+        ByteBuffer sdadByteBuffer = ByteBuffer.wrap(buffer, offset, modulusLength);
+        sdadByteBuffer.put(pdolData);
+        sdadByteBuffer.put(cdol1RelatedData);
+        sdadByteBuffer.putShort((short) 0x9F27);
+        sdadByteBuffer.put((byte) 0x01);
+        sdadByteBuffer.put(cid);
+        sdadByteBuffer.putShort((short) 0x9F36);
+        sdadByteBuffer.put((byte) 0x02);
+        sdadByteBuffer.putShort(ptpSuk.getAtc());
+        sdadByteBuffer.putShort((short) 0x9F10);
+        sdadByteBuffer.put((byte) issuerAppData.length);
+        sdadByteBuffer.put(issuerAppData);
+        byte[] transactionDataHashCode = new byte[LENGTH_HASH];
+        try {
+            cryptoProvider.generateHash(buffer, offset, sdadByteBuffer.position() - offset, transactionDataHashCode, 0);
+        }
+        catch (Exception e) {
+            Log.e(LOG_TAG, "Failed to generate hash for ICC Dynamic Data.");
+            return -1;
+        }
+
+        // Header, Signed Data Format, Hash Algorithm Indicator, ICC Dynamic Data Length, ICC Dynamic Number Length.
+        sdadByteBuffer.position(offset);
+        sdadByteBuffer.put((byte) 0x6A);
+        sdadByteBuffer.putInt(0x05012608);
+        // ICC Dynamic Data.
+        sdadByteBuffer.put(ptpSuk.getIdn());
+        sdadByteBuffer.put(cid);
+        sdadByteBuffer.put(ac);
+        sdadByteBuffer.put(transactionDataHashCode);
+        // Pad Pattern.
+        final int hashOffset = offset + modulusLength - LENGTH_HASH - 1;
+        Arrays.fill(buffer, sdadByteBuffer.position(), hashOffset, (byte) 0xBB);
+        // Unpredictable Number, hashed but not recovered.
+        sdadByteBuffer.position(hashOffset);
+        sdadByteBuffer.put(unpredictableNumber);
+
+        try {
+            return cryptoProvider.generateSdad(signingEngine, 
+                                               buffer, 
+                                               offset, 
+                                               modulusLength, 
+                                               sdadByteBuffer.position() - offset - 1);
+        }
+        catch (Exception e) {
+            Log.e(LOG_TAG, "generateSdad Exception", e);
+            return -1;
+        }
+    }
+
+}
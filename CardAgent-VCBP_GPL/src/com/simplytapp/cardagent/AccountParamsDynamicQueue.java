@@ -0,0 +1,357 @@
+/**
+ * This file is part of CardAgent-VCBP which is card agent implementation 
+ * of V Cloud-Based Payments for SimplyTapp mobile platform.
+ * Copyright 2014 SimplyTapp, Inc.
+ * 
+ * CardAgent-VCBP is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, either version 3 of the License, or 
+ * (at your option) any later version.
+ * 
+ * CardAgent-VCBP is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with CardAgent-VCBP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.simplytapp.cardagent;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.st.vcbp.data.AccountParamsDynamic;
+
+/**
+ * Bounded ring buffer of Dynamic Account Parameters.
+ * <p>
+ * A single producer (the thread retrieving Dynamic Account Parameters) adds 
+ * to the tail while any number of consumers (transactions and expiry checks) 
+ * remove from the head, without locking. Dynamic Account Parameters are added 
+ * in the order they were generated and the card applet stamps each of them 
+ * with its generation time plus the card's time to live, so they normally 
+ * also expire in queue order and the head is the next to expire, which makes 
+ * the queue its own expiry index.
+ * <p>
+ * The order is checked on every offer. If the time to live was shortened 
+ * between batches, a later element expires before an earlier one; until the 
+ * head has moved past it, expiry checks sweep the whole queue and rebuild it 
+ * without the expired elements, in the same order.
+ * 
+ * @author SimplyTapp, Inc.
+ * @version 1.0
+ */
+final class AccountParamsDynamicQueue {
+
+    private final int capacity;
+
+    // Replaced when an expiry sweep rebuilds the queue.
+    private volatile Ring ring;
+
+    // Expiry time of the last element added, used by the producer only.
+    private long tailExpirationTimestamp = 0;
+
+    /**
+     * Creates an empty queue.
+     * 
+     * @param capacity
+     *            maximum number of Dynamic Account Parameters held
+     */
+    AccountParamsDynamicQueue(int capacity) {
+        this.capacity = Math.max(capacity, 1);
+        this.ring = new Ring(this.capacity);
+    }
+
+    /**
+     * Creates a queue holding the specified Dynamic Account Parameters, e.g. restored from the serialized agent.
+     */
+    static AccountParamsDynamicQueue fromArrayDeque(ArrayDeque<AccountParamsDynamic> arrayAccountParamsDynamic, int capacity) {
+        AccountParamsDynamicQueue queue = new AccountParamsDynamicQueue(Math.max(capacity, arrayAccountParamsDynamic.size()));
+        for (AccountParamsDynamic accountParamsDynamic : arrayAccountParamsDynamic) {
+            queue.offer(accountParamsDynamic);
+        }
+
+        return queue;
+    }
+
+    /**
+     * Returns a snapshot of the queue, e.g. to serialize the agent.
+     */
+    ArrayDeque<AccountParamsDynamic> toArrayDeque() {
+        final Ring ring = this.ring;
+        ArrayDeque<AccountParamsDynamic> arrayAccountParamsDynamic = new ArrayDeque<AccountParamsDynamic>(this.capacity);
+        final long t = ring.tail.get();
+        for (long h = ring.head.get(); h < t; h++) {
+            AccountParamsDynamic accountParamsDynamic = ring.get(h);
+            if (accountParamsDynamic != null) {
+                arrayAccountParamsDynamic.add(accountParamsDynamic);
+            }
+        }
+
+        return arrayAccountParamsDynamic;
+    }
+
+    /**
+     * Returns the maximum number of Dynamic Account Parameters held.
+     */
+    int capacity() {
+        return this.capacity;
+    }
+
+    /**
+     * Returns the number of Dynamic Account Parameters held.
+     */
+    int size() {
+        final Ring ring = this.ring;
+        final long h = ring.head.get();
+        final long size = ring.tail.get() - h;
+        if (size < 0) {
+            return 0;
+        }
+
+        return (int) Math.min(size, this.capacity);
+    }
+
+    boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Returns <code>true</code> if the queue is in expiry order from the head.
+     */
+    boolean isOrdered() {
+        return this.ring.isOrdered();
+    }
+
+    /**
+     * Returns the expiry time of the Dynamic Account Parameters held that expire first.
+     * 
+     * @return expiry time in milliseconds, or 0 if the queue is empty or nothing held ever expires
+     */
+    long nextExpirationTimestamp() {
+        final Ring ring = this.ring;
+        final boolean ordered = ring.isOrdered();
+        long nextExpirationTimestamp = 0;
+
+        final long t = ring.tail.get();
+        for (long h = ring.head.get(); h < t; h++) {
+            AccountParamsDynamic accountParamsDynamic = ring.get(h);
+            if (accountParamsDynamic == null) {
+                // Removed by a consumer.
+                continue;
+            }
+
+            final long expirationTimestamp = accountParamsDynamic.getExpirationTimestamp();
+            if (ordered) {
+                // Head is the next to expire.
+                return expirationTimestamp;
+            }
+            if ((expirationTimestamp != 0) && 
+                ((nextExpirationTimestamp == 0) || (expirationTimestamp < nextExpirationTimestamp))) {
+                nextExpirationTimestamp = expirationTimestamp;
+            }
+        }
+
+        return nextExpirationTimestamp;
+    }
+
+    /**
+     * Adds Dynamic Account Parameters to the tail. Must only be called by the single producer.
+     * 
+     * @return <code>false</code> if the queue is full
+     */
+    synchronized boolean offer(AccountParamsDynamic accountParamsDynamic) {
+        return add(this.ring, accountParamsDynamic);
+    }
+
+    private boolean add(Ring ring, AccountParamsDynamic accountParamsDynamic) {
+        final long t = ring.tail.get();
+        if ((t - ring.head.get()) >= this.capacity) {
+            return false;
+        }
+
+        // Never expiring Dynamic Account Parameters order after all others.
+        long expirationTimestamp = accountParamsDynamic.getExpirationTimestamp();
+        if (expirationTimestamp == 0) {
+            expirationTimestamp = Long.MAX_VALUE;
+        }
+        if ((expirationTimestamp < this.tailExpirationTimestamp) && 
+            (t > ring.head.get())) {
+            // Out of order until the head reaches this element.
+            ring.unorderedTail = t;
+        }
+        this.tailExpirationTimestamp = expirationTimestamp;
+
+        ring.set(t, accountParamsDynamic);
+        ring.tail.set(t + 1);
+        return true;
+    }
+
+    /**
+     * Removes Dynamic Account Parameters from the head.
+     * 
+     * @return oldest Dynamic Account Parameters, or <code>null</code> if the queue is empty
+     */
+    AccountParamsDynamic poll() {
+        while (true) {
+            final Ring ring = this.ring;
+            AccountParamsDynamic accountParamsDynamic = ring.poll();
+            if ((accountParamsDynamic != null) || !ring.retired) {
+                return accountParamsDynamic;
+            }
+
+            // Being rebuilt by an expiry sweep, retry with the new ring.
+            Thread.yield();
+        }
+    }
+
+    /**
+     * Removes Dynamic Account Parameters that expire at or before the specified time.
+     * 
+     * @param timestamp
+     *            expiry time in milliseconds
+     * @return number of Dynamic Account Parameters removed
+     */
+    int removeExpired(long timestamp) {
+        final Ring ring = this.ring;
+        if (ring.isOrdered()) {
+            return ring.removeExpired(timestamp);
+        }
+
+        return sweepExpired(timestamp);
+    }
+
+    /**
+     * Removes expired Dynamic Account Parameters anywhere in the queue by rebuilding it.
+     * <p>
+     * Holds the producer lock, transactions keep polling and wait for the new ring if 
+     * they find the old one drained.
+     */
+    private synchronized int sweepExpired(long timestamp) {
+        final Ring ring = this.ring;
+        if (ring.isOrdered()) {
+            // Already rebuilt, or the head moved past the out of order elements.
+            return ring.removeExpired(timestamp);
+        }
+
+        boolean expired = false;
+        final long t = ring.tail.get();
+        for (long h = ring.head.get(); (h < t) && !expired; h++) {
+            AccountParamsDynamic accountParamsDynamic = ring.get(h);
+            expired = (accountParamsDynamic != null) && isExpired(accountParamsDynamic, timestamp);
+        }
+        if (!expired) {
+            return 0;
+        }
+
+        int removed = 0;
+        final Ring rebuilt = new Ring(this.capacity);
+        this.tailExpirationTimestamp = 0;
+        ring.retired = true;
+
+        // NOTE: Transactions may still poll from the old ring, whoever polls an element owns it.
+        AccountParamsDynamic accountParamsDynamic;
+        while ((accountParamsDynamic = ring.poll()) != null) {
+            if (isExpired(accountParamsDynamic, timestamp)) {
+                removed++;
+            }
+            else {
+                add(rebuilt, accountParamsDynamic);
+            }
+        }
+        this.ring = rebuilt;
+
+        return removed;
+    }
+
+    private static boolean isExpired(AccountParamsDynamic accountParamsDynamic, long timestamp) {
+        final long expirationTimestamp = accountParamsDynamic.getExpirationTimestamp();
+        return (expirationTimestamp != 0) && 
+               (expirationTimestamp <= timestamp);
+    }
+
+    /**
+     * Slots and indexes of the queue, replaced as a whole when the queue is rebuilt.
+     */
+    private static final class Ring {
+
+        private final AtomicReferenceArray<AccountParamsDynamic> slots;
+        private final int mask;
+
+        // Index of the next element to remove, advanced by consumers.
+        final AtomicLong head = new AtomicLong();
+        // Index of the next element to add, advanced by the producer only.
+        final AtomicLong tail = new AtomicLong();
+
+        // Index of the last element added out of expiry order, set by the producer only.
+        volatile long unorderedTail = 0;
+        // Set once an expiry sweep has started to drain this ring.
+        volatile boolean retired = false;
+
+        Ring(int capacity) {
+            int size = 1;
+            while (size < capacity) {
+                size <<= 1;
+            }
+            this.slots = new AtomicReferenceArray<AccountParamsDynamic>(size);
+            this.mask = size - 1;
+        }
+
+        AccountParamsDynamic get(long index) {
+            return this.slots.get((int) index & this.mask);
+        }
+
+        void set(long index, AccountParamsDynamic accountParamsDynamic) {
+            this.slots.set((int) index & this.mask, accountParamsDynamic);
+        }
+
+        boolean isOrdered() {
+            return this.head.get() >= this.unorderedTail;
+        }
+
+        AccountParamsDynamic poll() {
+            while (true) {
+                final long h = this.head.get();
+                if (h >= this.tail.get()) {
+                    return null;
+                }
+
+                final int index = (int) h & this.mask;
+                AccountParamsDynamic accountParamsDynamic = this.slots.get(index);
+                if (this.head.compareAndSet(h, h + 1)) {
+                    // Slot may already be refilled by the producer.
+                    this.slots.compareAndSet(index, accountParamsDynamic, null);
+                    return accountParamsDynamic;
+                }
+            }
+        }
+
+        int removeExpired(long timestamp) {
+            int removed = 0;
+            while (true) {
+                final long h = this.head.get();
+                if (h >= this.tail.get()) {
+                    return removed;
+                }
+
+                final int index = (int) h & this.mask;
+                AccountParamsDynamic accountParamsDynamic = this.slots.get(index);
+                if (accountParamsDynamic == null) {
+                    // Removed by another consumer.
+                    continue;
+                }
+
+                if (!isExpired(accountParamsDynamic, timestamp)) {
+                    return removed;
+                }
+
+                if (this.head.compareAndSet(h, h + 1)) {
+                    this.slots.compareAndSet(index, accountParamsDynamic, null);
+                    removed++;
+                }
+            }
+        }
+    }
+}
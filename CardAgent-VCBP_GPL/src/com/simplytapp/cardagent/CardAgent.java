@@ -18,12 +18,8 @@
  */
 package com.simplytapp.cardagent;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.ObjectInput;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutput;
 import java.io.ObjectOutputStream;
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
@@ -32,8 +28,6 @@ import java.security.interfaces.RSAPrivateCrtKey;
 import java.security.spec.RSAPrivateCrtKeySpec;
 import java.util.ArrayDeque;
 import java.util.Arrays;
-import java.util.Iterator;
-import java.util.Map;
 
 import javacard.framework.APDU;
 import javacard.framework.ISO7816;
@@ -48,10 +42,14 @@ import com.simplytapp.virtualcard.Agent;
 import com.simplytapp.virtualcard.ApprovalData;
 import com.simplytapp.virtualcard.CardAgentConnector;
 import com.simplytapp.virtualcard.TransceiveData;
+import com.st.crypto.RsaSigningEngine;
+import com.st.vcbp.data.AccountParamsCodec;
 import com.st.vcbp.data.AccountParamsDynamic;
+import com.st.vcbp.data.AccountParamsIndex;
 import com.st.vcbp.data.AccountParamsStatic;
 import com.st.vcbp.data.LinkedHashMapFixedSize;
 import com.st.vcbp.data.TransactionVerificationLog;
+import com.st.vcbp.data.TransactionVerificationLogStore;
 
 /**
  * Implementation of Card Agent based on V Cloud-Based Payments Contactless
@@ -103,25 +101,33 @@ public final class CardAgent extends Agent {
         (byte) 0x00
     };
 
-    // NOTE: Use extended APDU format.
+    // NOTE: Use extended APDU format. P2 requests binary format (AccountParamsCodec.VERSION).
     private static final byte[] APDU_GET_STATIC_ACCOUNT_PARAMETERS = {
-        (byte) 0x80, (byte) 0x30, (byte) 0x00, (byte) 0x00, 
+        (byte) 0x80, (byte) 0x30, (byte) 0x00, AccountParamsCodec.VERSION, 
         (byte) 0x00, (byte) 0x00, (byte) 0x00
     };
 
-    // NOTE: Use extended APDU format.
+    // NOTE: Use extended APDU format. P2 requests binary format (AccountParamsCodec.VERSION).
+    //       P1 is set to the number of sets requested in a batch, see 'getDynamicAccountParamsApdu'.
     private static final byte[] APDU_GET_DYNAMIC_ACCOUNT_PARAMETERS = {
-        (byte) 0x80, (byte) 0x32, (byte) 0x00, (byte) 0x00, 
+        (byte) 0x80, (byte) 0x32, (byte) 0x00, AccountParamsCodec.VERSION, 
         (byte) 0x00, (byte) 0x00, (byte) 0x00
     };
 
-    // NOTE: Use extended APDU format. APDU header does not include 2-byte Lc. 
-    private static final byte[] APDU_HEADER_PUT_TRANSACTION_VERIFICATION_LOG = {
-        (byte) 0x80, (byte) 0x34, (byte) 0x00, (byte) 0x00, (byte) 0x00
+    // NOTE: Use extended APDU format. Java serialization, one set per command, 
+    //       for card applets that reject P1P2 of the commands above with SW_INCORRECT_P1P2.
+    private static final byte[] APDU_GET_STATIC_ACCOUNT_PARAMETERS_LEGACY = {
+        (byte) 0x80, (byte) 0x30, (byte) 0x00, (byte) 0x00, 
+        (byte) 0x00, (byte) 0x00, (byte) 0x00
+    };
+    private static final byte[] APDU_GET_DYNAMIC_ACCOUNT_PARAMETERS_LEGACY = {
+        (byte) 0x80, (byte) 0x32, (byte) 0x00, (byte) 0x00, 
+        (byte) 0x00, (byte) 0x00, (byte) 0x00
     };
     //================================================================
 
     private transient byte apduState = APDU_SENT;
+    private transient volatile ApduSequencer apduSequencer = null;
 
     private transient byte transactionState = TRANSACTION_START;
 
@@ -131,26 +137,41 @@ public final class CardAgent extends Agent {
     private transient boolean disabled = false;
     private transient boolean terminated = false;
     private transient boolean invalidVersion = false;
+    // Set once the card applet rejects binary format and batch commands, checked again after restore.
+    private transient volatile boolean legacyAccountParams = false;
 
-    // Threads to access remote card applet.
-    private transient Thread tGetAccountParams;
-    private transient Thread tGetDynamicAccountParams;
-    private transient Thread tPutTransactionVerificationLog;
+    // Jobs to access remote card applet.
+    private static final String TASK_GET_ACCOUNT_PARAMS               = "getAccountParams";
+    private static final String TASK_GET_DYNAMIC_ACCOUNT_PARAMS       = "getDynamicAccountParams";
+    private static final String TASK_REPLENISH_DYNAMIC_ACCOUNT_PARAMS = "replenishDynamicAccountParams";
+    private static final String TASK_PUT_TRANSACTION_VERIFICATION_LOG = "putTransactionVerificationLog";
+    private transient RemoteTaskCoordinator remoteTasks;
+    private transient RemoteSession remoteSession;
 
     private static final int MAX_CONNECT_RETRY = 3;
     private transient int connectRetryCounter;
 
     private static final int MAX_TRANSCEIVE_RETRY = 3;
+
+    // Dynamic Account Parameters expiring this close together are removed in one check.
+    private static final long EXPIRY_COALESCE_WINDOW = 1000;
     private transient int transceiveRetryCounter;
 
     // Card data.
     private AccountParamsStatic accountParamsStatic;
+    // Added to only from 'syncGetDynamicAccountParams', removed from without locking.
+    private transient volatile AccountParamsDynamicQueue queueAccountParamsDynamic;
+    // Serialized form of 'queueAccountParamsDynamic'.
     private ArrayDeque<AccountParamsDynamic> arrayAccountParamsDynamic;
 
     // Card data for ODA.
     private RSAPrivateCrtKey iccPrivKey;
 
-    private LinkedHashMapFixedSize<String, TransactionVerificationLog> transactionVerificationLogs;
+    // Transaction Verification Logs not acknowledged by remote card applet yet.
+    private TransactionVerificationLogStore transactionVerificationLogStore;
+
+    // Transaction Verification Logs saved by earlier versions, only read to move them into the store.
+    private LinkedHashMapFixedSize<?, TransactionVerificationLog> transactionVerificationLogs;
 
     private boolean readyToPay;
 
@@ -159,11 +180,14 @@ public final class CardAgent extends Agent {
     private transient int aflRecords;
     private transient int readRecordCounter;
     private transient byte[] dynamicSfi2Record4;  // For ODA.
+    private transient volatile GpoResponseTemplate gpoResponseTemplate;
+    private transient volatile RsaSigningEngine iccSigningEngine;
+    private transient volatile RSAPrivateCrtKey iccSigningEngineFailedKey;
 
     // Transaction data to save in Transaction Verification Log.
-    private transient String accountParametersIndex;
+    private transient int accountParametersIndex = AccountParamsIndex.NONE;
     private transient byte transactionType;
-    private transient String unpredictableNumber;
+    private transient int unpredictableNumber;
 
     private transient int checkInternalTimeToExpire = 0;
     private transient long startTime;  // DEBUG
@@ -220,7 +244,7 @@ public final class CardAgent extends Agent {
                     // Check if Dynamic Account Parameters are expired.
                     checkTimeToLive();
 
-                    handlerTimeToExpire.postDelayed(this, checkInternalTimeToExpire);
+                    scheduleTimeToLive();
                 }
             };
         }
@@ -243,27 +267,18 @@ public final class CardAgent extends Agent {
         Log.i(LOG_TAG, "checkTimeToLive Timestamp=" + System.currentTimeMillis() + 
                        String.format(" %d:%02d since provision", minutes, seconds));
 
+        final AccountParamsDynamicQueue queueAccountParamsDynamic = this.queueAccountParamsDynamic;
         if ((this.accountParamsStatic != null) && 
-            (this.arrayAccountParamsDynamic != null) && 
-            !this.arrayAccountParamsDynamic.isEmpty()) {
-            final long nextCheckTimestamp = System.currentTimeMillis() + this.checkInternalTimeToExpire;
-            boolean removedAccountParamsDynamic = false;
-            Iterator<AccountParamsDynamic> iteratorAccountParamsDynamic = this.arrayAccountParamsDynamic.iterator();
-            while (iteratorAccountParamsDynamic.hasNext()) {
-                final long expirationTimestamp = iteratorAccountParamsDynamic.next().getExpirationTimestamp();
-                // Check if Dynamic Account Parameters will expire before the next check. 
-                if ((expirationTimestamp != 0) && 
-                    (nextCheckTimestamp >= expirationTimestamp)) {
-                    this.arrayAccountParamsDynamic.remove();
-
-                    removedAccountParamsDynamic = true;
+            (queueAccountParamsDynamic != null) && 
+            !queueAccountParamsDynamic.isEmpty()) {
+            final long nextCheckTimestamp = System.currentTimeMillis() + this.checkInternalTimeToExpire + EXPIRY_COALESCE_WINDOW;
+            // Remove Dynamic Account Parameters that will expire within the check interval.
+            final int removedAccountParamsDynamic = queueAccountParamsDynamic.removeExpired(nextCheckTimestamp);
 
-                    // DEBUG
-                    Log.v(LOG_TAG, "Removed soon to expire dynamic account parameters, ExpirationTimestamp=" + expirationTimestamp);
-                }
-            }
+            if (removedAccountParamsDynamic > 0) {
+                // DEBUG
+                Log.v(LOG_TAG, "Removed " + removedAccountParamsDynamic + " soon to expire dynamic account parameters");
 
-            if (removedAccountParamsDynamic) {
                 // Provision additional Dynamic Account Parameters.
                 this.connectRetryCounter = 0;
                 this.transceiveRetryCounter = 0;
@@ -272,16 +287,45 @@ public final class CardAgent extends Agent {
         }
     }
 
+    /**
+     * Schedules the next expiry check for when the next Dynamic Account Parameters will expire 
+     * within the check interval.
+     * <p>
+     * 'queueAccountParamsDynamic' knows which of its Dynamic Account Parameters expire first, so 
+     * the check only runs when there is something to remove and not at all while the queue is empty.
+     */
+    private synchronized void scheduleTimeToLive() {
+        final Handler handler = this.handlerTimeToExpire;
+        if ((handler == null) || (this.runnableTimeToExpire == null)) {
+            return;
+        }
+
+        handler.removeCallbacks(this.runnableTimeToExpire);
+
+        final AccountParamsDynamicQueue queueAccountParamsDynamic = this.queueAccountParamsDynamic;
+        if ((this.checkInternalTimeToExpire <= 0) || (queueAccountParamsDynamic == null)) {
+            return;
+        }
+
+        final long expirationTimestamp = queueAccountParamsDynamic.nextExpirationTimestamp();
+        if (expirationTimestamp == 0) {
+            return;
+        }
+
+        final long delay = expirationTimestamp - this.checkInternalTimeToExpire - System.currentTimeMillis();
+        handler.postDelayed(this.runnableTimeToExpire, Math.max(delay, 0));
+    }
+
     // Called when press "Pay" button (for Activate On Touch) or when selecting Card Always Activated setting.
     @Override
     public void activated() {
         //Log.i(LOG_TAG, "activated");
 
-        if (this.tGetAccountParams != null) {
-            // Block until 'tGetAccountParams' thread has stopped before performing transaction checks.
-            blockCondition(true, false, false, 100, "activated");
+        if (getRemoteTasks().isPending(TASK_GET_ACCOUNT_PARAMS)) {
+            // Block until 'getAccountParams' job has completed before performing transaction checks.
+            getRemoteTasks().await(TASK_GET_ACCOUNT_PARAMS);
 
-            // Provide enough time for message generated in 'tGetAccountParams' thread to be displayed on screen. 
+            // Provide enough time for message generated in 'getAccountParams' job to be displayed on screen. 
             try {
                 Thread.sleep(3000);
             }
@@ -289,14 +333,17 @@ public final class CardAgent extends Agent {
             }
         }
 
+        // Warm up ODA signing, e.g. after the agent is restored.
+        getIccSigningEngine();
+
         performTransactionChecks(true);
     }
 
     // Perform transaction initialization checks.
     private void performTransactionChecks(boolean activating) {
         if ((this.accountParamsStatic == null) || 
-            (this.arrayAccountParamsDynamic == null) || 
-            (this.arrayAccountParamsDynamic.size() == 0)) {
+            (this.queueAccountParamsDynamic == null) || 
+            (this.queueAccountParamsDynamic.size() == 0)) {
             // If transaction started, set flag immediately so 'process' method can check flag in time.  
             if (!activating) {
                 this.transactionStartFailed = true;
@@ -321,7 +368,7 @@ public final class CardAgent extends Agent {
                 else if (this.disabled) {
                     postMessage("Account is Disabled", false, null);
                 }
-                else if ((this.accountParamsStatic == null) || (this.arrayAccountParamsDynamic == null)) {
+                else if ((this.accountParamsStatic == null) || (this.queueAccountParamsDynamic == null)) {
                     postMessage("Missing Account Parameters\n" + 
                                 "Please Check Connection is Available and Refresh Card", 
                                 false, null);
@@ -365,13 +412,12 @@ public final class CardAgent extends Agent {
                 Log.i(LOG_TAG, "Transaction Timestamp=" + transactionStopTime + 
                                " Elapsed=" + (transactionStopTime - this.transactionStartTime) + "ms");
 
-                if (this.transactionVerificationLogs != null) {
+                if (this.transactionVerificationLogStore != null) {
                     // Save transaction data in Transaction Verification Log.
-                    TransactionVerificationLog transactionVerificationLog = new TransactionVerificationLog(this.accountParametersIndex, 
-                                                                                                           this.transactionType, 
-                                                                                                           this.unpredictableNumber);
-                    this.transactionVerificationLogs.put(String.valueOf(transactionVerificationLog.getUtcTimestamp()),
-                                                         transactionVerificationLog);
+                    this.transactionVerificationLogStore.add(System.currentTimeMillis(), 
+                                                             this.accountParametersIndex, 
+                                                             this.transactionType, 
+                                                             this.unpredictableNumber);
 
                     // Attempt to save Transaction Verification Log in remote card applet.
                     putTransactionVerificationLog();
@@ -380,6 +426,7 @@ public final class CardAgent extends Agent {
         }
 
         this.apduState = APDU_SENT;
+        getApduSequencer().signal();
     }
 
     /* 
@@ -402,9 +449,9 @@ public final class CardAgent extends Agent {
         this.aflRecords = 0;
         this.readRecordCounter = 0;
         this.dynamicSfi2Record4 = null;
-        this.accountParametersIndex = null;
+        this.accountParametersIndex = AccountParamsIndex.NONE;
         this.transactionType = (byte) 0;
-        this.unpredictableNumber = null;
+        this.unpredictableNumber = 0;
 
         // NOTE: Workaround for non-VCP specific apps.
         this.readyToPay = true;
@@ -431,14 +478,16 @@ public final class CardAgent extends Agent {
         this.aflRecords = 0;
         this.readRecordCounter = 0;
         this.dynamicSfi2Record4 = null;
-        this.accountParametersIndex = null;
+        this.accountParametersIndex = AccountParamsIndex.NONE;
         this.transactionType = (byte) 0;
-        this.unpredictableNumber = null;
+        this.unpredictableNumber = 0;
 
         // NOTE: Workaround for non-VCP specific apps.
         this.readyToPay = false;
 
         this.apduState = APDU_SENT;
+        // Release a C-APDU waiting on the previous R-APDU.
+        getApduSequencer().cancel();
 
         // Provision additional Dynamic Account Parameters if minimum threshold is reached.
         this.connectRetryCounter = 0;
@@ -453,35 +502,38 @@ public final class CardAgent extends Agent {
         }
     }
 
-    private void blockCondition(boolean waitGetAccountParams, 
-                                boolean waitGetDynamicAccountParams, 
-                                boolean waitPutTransactionVerificationLog, 
-                                int sleepInterval, 
-                                String caller) {
-        if (caller == null) {
-            caller = "blockCondition";
-        }
-
-        // Block until the specified thread(s) has stopped and no longer accessing remote card applet.
-        while (((this.tGetAccountParams != null) && waitGetAccountParams) || 
-               ((this.tGetDynamicAccountParams != null) && waitGetDynamicAccountParams) || 
-               ((this.tPutTransactionVerificationLog != null) && waitPutTransactionVerificationLog)) {
-            if ((this.tGetAccountParams != null) && waitGetAccountParams) {
-                Log.i(LOG_TAG, caller + ", tGetAccountParams is still accessing remote card applet, waiting...");
-            }
-            if ((this.tGetDynamicAccountParams != null) && waitGetDynamicAccountParams) {
-                Log.i(LOG_TAG, caller + ", tGetDynamicAccountParams is still accessing remote card applet, waiting...");
-            }
-            if ((this.tPutTransactionVerificationLog != null) && waitPutTransactionVerificationLog) {
-                Log.i(LOG_TAG, caller + ", tPutTransactionVerificationLog is still accessing remote card applet, waiting...");
-            }
+    /**
+     * Returns the coordinator running jobs that access the remote card applet, created on first use.
+     */
+    private synchronized RemoteTaskCoordinator getRemoteTasks() {
+        if (this.remoteTasks == null) {
+            this.remoteTasks = new RemoteTaskCoordinator(LOG_TAG);
+        }
 
-            try {
-                Thread.sleep(sleepInterval);
-            }
-            catch (InterruptedException e) {
-            }
+        return this.remoteTasks;
+    }
+
+    /**
+     * Returns the session holding the connection to the remote card applet between jobs, created on first use.
+     */
+    private synchronized RemoteSession getRemoteSession() {
+        if (this.remoteSession == null) {
+            this.remoteSession = new RemoteSession(new RemoteSession.Link() {
+                public void connect() throws IOException {
+                    CardAgent.this.connect();
+                }
+
+                public void disconnect() throws IOException {
+                    CardAgent.this.disconnect();
+                }
+
+                public void transceive(TransceiveData transceiveData) throws IOException {
+                    CardAgent.this.transceive(transceiveData);
+                }
+            }, APDU_SELECT_CARDAPPLET, LOG_TAG);
         }
+
+        return this.remoteSession;
     }
 
     @Override
@@ -498,13 +550,13 @@ public final class CardAgent extends Agent {
     public void messageFromRemoteCard(String msg) {
         Log.i(LOG_TAG, "messageFromRemoteCard: " + msg);
 
-        // Block until there is no thread accessing remote card applet before processing remote message.
-        blockCondition(true, true, true, 50, "messageFromRemoteCard");
+        // Block until there is no job accessing remote card applet before processing remote message.
+        getRemoteTasks().awaitAll();
 
         if (msg.equalsIgnoreCase(GCM_MSG_ACCOUNT_PARAMETERS_UPDATE)) {
             // Delete existing card data.
             this.accountParamsStatic = null;
-            this.arrayAccountParamsDynamic = null;
+            this.queueAccountParamsDynamic = null;
             this.iccPrivKey = null;
 
             // NOTE: Kludge to delay processing in case there is STBridge connection.
@@ -534,7 +586,7 @@ public final class CardAgent extends Agent {
 
             // Delete existing card data.
             this.accountParamsStatic = null;
-            this.arrayAccountParamsDynamic = null;
+            this.queueAccountParamsDynamic = null;
             this.iccPrivKey = null;
 
             this.handlerTimeToExpire.removeCallbacks(this.runnableTimeToExpire);
@@ -551,7 +603,7 @@ public final class CardAgent extends Agent {
 
             // Delete existing card data.
             this.accountParamsStatic = null;
-            this.arrayAccountParamsDynamic = null;
+            this.queueAccountParamsDynamic = null;
             this.iccPrivKey = null;
 
             this.handlerTimeToExpire.removeCallbacks(this.runnableTimeToExpire);
@@ -567,6 +619,30 @@ public final class CardAgent extends Agent {
         }
     }
 
+    /**
+     * Returns the sequencer used by <code>process</code> to wait for the previous R-APDU.
+     * Created lazily as transient state is not restored on deserialization.
+     */
+    private ApduSequencer getApduSequencer() {
+        ApduSequencer sequencer = this.apduSequencer;
+        if (sequencer == null) {
+            synchronized (this) {
+                sequencer = this.apduSequencer;
+                if (sequencer == null) {
+                    sequencer = new ApduSequencer(new ApduSequencer.Idle() {
+                        @Override
+                        public boolean isIdle() {
+                            return CardAgent.this.apduState == APDU_SENT;
+                        }
+                    });
+                    this.apduSequencer = sequencer;
+                }
+            }
+        }
+
+        return sequencer;
+    }
+
     /*
      * Used to send a C-APDU to the payment component.
      * Returns R-APDU + SW or SW.
@@ -576,20 +652,24 @@ public final class CardAgent extends Agent {
      */
     @Override
     public void process(APDU apdu) throws ISOException {
-        while (this.apduState != APDU_SENT) {  // wait for previous one to complete (thread safe)
-            try {
-                Thread.sleep(1);
-            }
-            catch (InterruptedException e) {
-            }
-
-            try {
-                if (getTransactionFinished()) {
-                    this.apduState = APDU_SENDING_LAST;
-                    throw new ISOException(ISO7816.SW_UNKNOWN);
+        if (this.apduState != APDU_SENT) {  // wait for previous one to complete (thread safe)
+            ApduSequencer sequencer = getApduSequencer();
+            int ticket = sequencer.ticket();
+            while (!sequencer.await(ticket, ApduSequencer.POLL_INTERVAL)) {
+                try {
+                    if (getTransactionFinished()) {
+                        this.apduState = APDU_SENDING_LAST;
+                        throw new ISOException(ISO7816.SW_UNKNOWN);
+                    }
+                }
+                catch (IOException e) {
                 }
             }
-            catch (IOException e) {
+
+            // Check if transaction has finished while waiting.
+            if (sequencer.isCancelled(ticket)) {
+                this.apduState = APDU_SENDING_LAST;
+                throw new ISOException(ISO7816.SW_UNKNOWN);
             }
         }
 
@@ -750,6 +830,51 @@ public final class CardAgent extends Agent {
         }
     }
 
+    /**
+     * Get the Get Processing Options responses compiled from the specified 
+     * Static Account Parameters, compiling them if needed.
+     * 
+     * @param accountParamsStatic
+     *            the Static Account Parameters
+     * @return the compiled responses
+     */
+    private GpoResponseTemplate getGpoResponseTemplate(AccountParamsStatic accountParamsStatic) {
+        GpoResponseTemplate gpoResponseTemplate = this.gpoResponseTemplate;
+        if ((gpoResponseTemplate == null) || !gpoResponseTemplate.isFor(accountParamsStatic)) {
+            gpoResponseTemplate = new GpoResponseTemplate(accountParamsStatic);
+            this.gpoResponseTemplate = gpoResponseTemplate;
+        }
+        return gpoResponseTemplate;
+    }
+
+    /**
+     * Returns the signing engine for the ICC Private Key, or null if not available.
+     * Created and warmed up on first use as transient state is not restored on deserialization.
+     * A failed creation is remembered for the ICC Private Key of the current Card Profile, so 
+     * it is not retried on every GPO.
+     */
+    private RsaSigningEngine getIccSigningEngine() {
+        final RSAPrivateCrtKey iccPrivKey = this.iccPrivKey;
+        if ((iccPrivKey == null) || (iccPrivKey == this.iccSigningEngineFailedKey)) {
+            return null;
+        }
+
+        RsaSigningEngine iccSigningEngine = this.iccSigningEngine;
+        if ((iccSigningEngine == null) || (iccSigningEngine.getPrivateKey() != iccPrivKey)) {
+            try {
+                iccSigningEngine = new RsaSigningEngine(iccPrivKey);
+                iccSigningEngine.warmUp();
+            }
+            catch (Exception e) {
+                Log.e(LOG_TAG, "Failed to Initialize ICC Signing Engine Exception Log", e);
+                this.iccSigningEngineFailedKey = iccPrivKey;
+                return null;
+            }
+            this.iccSigningEngine = iccSigningEngine;
+        }
+        return iccSigningEngine;
+    }
+
     /**
      * Handle Get Processing Options command.
      * 
@@ -757,9 +882,19 @@ public final class CardAgent extends Agent {
      *            the incoming <code>APDU</code> object
      * @throws ISOException
      */
-    private synchronized void getProcessingOptions(APDU apdu) throws ISOException {
+    private void getProcessingOptions(APDU apdu) throws ISOException {
         byte[] apduBuffer = apdu.getBuffer();
 
+        // NOTE: Not synchronized so a refill in progress does not block the transaction.
+        //       Card data may be deleted concurrently, so only use local references.
+        final AccountParamsStatic accountParamsStatic = this.accountParamsStatic;
+        final AccountParamsDynamicQueue queueAccountParamsDynamic = this.queueAccountParamsDynamic;
+        final RsaSigningEngine iccSigningEngine = getIccSigningEngine();
+        if ((accountParamsStatic == null) || (queueAccountParamsDynamic == null)) {
+            Log.e(LOG_TAG, "Transaction Failure: Account Parameters not available.");
+            ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+        }
+
         ByteBuffer apduByteBuffer = ByteBuffer.wrap(apduBuffer);
 
         // Check if P1=0x00 and P2=0x00.
@@ -791,8 +926,10 @@ public final class CardAgent extends Agent {
         byte ttqByte2 = apduByteBuffer.get();
         byte ttqByte3 = apduByteBuffer.get();
 
+        final GpoResponseTemplate gpoResponseTemplate = getGpoResponseTemplate(accountParamsStatic);
+
         // Determine CVN from IAD.
-        byte[] issuerApplicationData = this.accountParamsStatic.getIssuerApplicationData().clone();
+        byte[] issuerApplicationData = accountParamsStatic.getIssuerApplicationData();
         byte cvn = (byte) 0xFF;
         if (issuerApplicationData[AccountParamsStatic.IAD_VALUE_OFFSET] == (byte) 0x1F) {
             cvn = issuerApplicationData[AccountParamsStatic.IAD_VALUE_OFFSET + 1];
@@ -811,6 +948,11 @@ public final class CardAgent extends Agent {
             // Terminal supports qVSDC.
             msd = false;
 
+            if (!gpoResponseTemplate.supportsQvsdc()) {
+                Log.e(LOG_TAG, "Transaction Failure: Card does not support qVSDC.");
+                ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+            }
+
             // Set transaction type to save in Transaction Verification Log.
             this.transactionType = TransactionVerificationLog.TRANSACTION_TYPE_QVSDC;
 
@@ -829,7 +971,7 @@ public final class CardAgent extends Agent {
             apduByteBuffer.position(29);
 
             // Set unpredictable number to later save in Transaction Verification Log.
-            this.unpredictableNumber = DataUtil.byteArrayToHexString(apduBuffer, apduByteBuffer.position() - 4, 4);
+            this.unpredictableNumber = apduByteBuffer.getInt(apduByteBuffer.position() - 4);
         }
         else if ((ttqByte1 & (byte) 0x80) != (byte) 0x80) {
             // Terminal does not support MSD.
@@ -838,8 +980,8 @@ public final class CardAgent extends Agent {
         }
         else {
             // Check if card supports MSD.
-            if ((this.accountParamsStatic.getSfiRecord((short) 0x0101) == null) || 
-                (this.accountParamsStatic.getGpoResponseMsd() == null)) {
+            if ((accountParamsStatic.getSfiRecord((short) 0x0101) == null) || 
+                !gpoResponseTemplate.supportsMsd()) {
                 Log.e(LOG_TAG, "Transaction Failure: Card does not support MSD.");
                 ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
             }
@@ -848,30 +990,30 @@ public final class CardAgent extends Agent {
             this.transactionType = TransactionVerificationLog.TRANSACTION_TYPE_MSD;
 
             // Set unpredictable number to later save in Transaction Verification Log.
-            this.unpredictableNumber = "00000000";
+            this.unpredictableNumber = 0;
         }
 
         // Check if Dynamic Account Parameters are available.
-        if (this.arrayAccountParamsDynamic.isEmpty()) {
+        AccountParamsDynamic accountParamsDynamic = queueAccountParamsDynamic.poll();
+        if (accountParamsDynamic == null) {
             Log.e(LOG_TAG, "Transaction Failure: Dynamic Account Parameters not available.");
             ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
         }
-        AccountParamsDynamic accountParamsDynamic = this.arrayAccountParamsDynamic.remove();
         long expirationTimestamp = accountParamsDynamic.getExpirationTimestamp();
         final long currentTimestamp = System.currentTimeMillis();
         // Check if Dynamic Account Parameters are expired.
         while ((expirationTimestamp != 0) && 
                (currentTimestamp > expirationTimestamp)) {
             // Check if additional Dynamic Account Parameters are available.
-            if (this.arrayAccountParamsDynamic.isEmpty()) {
+            accountParamsDynamic = queueAccountParamsDynamic.poll();
+            if (accountParamsDynamic == null) {
                 Log.e(LOG_TAG, "Transaction Failure: Dynamic Account Parameters not available.");
                 ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
             }
 
-            accountParamsDynamic = this.arrayAccountParamsDynamic.remove();
             expirationTimestamp = accountParamsDynamic.getExpirationTimestamp();
         }
-        this.accountParametersIndex = accountParamsDynamic.getAccountParamtersIndex();
+        this.accountParametersIndex = accountParamsDynamic.getPackedAccountParametersIndex();
 
         // Generate MSD cryptogram.
         String msdCryptogram = CryptogramGeneration.generateCvn43MsdCryptogram(accountParamsDynamic);
@@ -880,30 +1022,19 @@ public final class CardAgent extends Agent {
         }
 
         // Inject Account Parameters Index and MSD Cryptogram into Track 2 Equivalent Data after the Service Code. 
-        byte[] track2EquivalentData = this.accountParamsStatic.getTrack2EquivalentData().clone();
-        String derivationDataString = this.accountParametersIndex + msdCryptogram + "F";
-        byte[] derivationData = DataUtil.stringToCompressedByteArray(derivationDataString);
-        System.arraycopy(derivationData, 0, 
-                         track2EquivalentData, AccountParamsStatic.TRACK2_OFFSET_DD, derivationData.length);
+        gpoResponseTemplate.setTrack2DerivationData(this.accountParametersIndex, msdCryptogram);
 
         boolean transactionSuccess = false;
         if (msd) {
             // NOTE: TTQ Byte 2 Bit 8, Online Cryptogram Required is ignored.
 
             // Overwrite Track 2 Equivalent Data in record.
-            byte[] sfi1Record1 = this.accountParamsStatic.getSfiRecord((short) 0x0101);
-            System.arraycopy(track2EquivalentData, 0, sfi1Record1, 2, track2EquivalentData.length);
+            byte[] sfi1Record1 = accountParamsStatic.getSfiRecord((short) 0x0101);
+            gpoResponseTemplate.copyTrack2EquivalentData(sfi1Record1, 2);
 
             // MSD Transaction: Format 1 response.
-            apduByteBuffer.rewind();
-            // Build response.
-            apduByteBuffer.put(PayWConstants.TAG_RESPONSE_MESSAGE_TEMPLATE_FORMAT_1);
-            byte[] gpoResponseMsd = this.accountParamsStatic.getGpoResponseMsd();
-            apduByteBuffer.put((byte) (gpoResponseMsd.length - 4));
-            apduByteBuffer.put(gpoResponseMsd, AccountParamsStatic.GPO_RESPONSE_OFFSET_AIP, 2);
-            apduByteBuffer.put(gpoResponseMsd, 
-                               AccountParamsStatic.GPO_RESPONSE_OFFSET_AFL, 
-                               (int) (gpoResponseMsd[AccountParamsStatic.GPO_RESPONSE_OFFSET_AFL_LENGTH] & 0xFF));
+            apduByteBuffer.position(gpoResponseTemplate.copyMsdResponse(apduBuffer, 0));
+            byte[] gpoResponseMsd = accountParamsStatic.getGpoResponseMsd();
 
             // Set AFL for Read Record processing.
             try {
@@ -917,99 +1048,25 @@ public final class CardAgent extends Agent {
             }
         }
         else {
-            byte[] gpoResponseQvsdc = this.accountParamsStatic.getGpoResponseQvsdc();
-            final short aip = ByteBuffer.wrap(gpoResponseQvsdc).getShort(AccountParamsStatic.GPO_RESPONSE_OFFSET_AIP);
+            byte[] gpoResponseQvsdc = accountParamsStatic.getGpoResponseQvsdc();
+            final short aip = gpoResponseTemplate.getAipQvsdc();
             // Check 'DDA is supported' bit in AIP to determine if ODA is supported.
             if ((short) (aip & (short) 0x2000) == (short) 0x2000) {
-                if (this.iccPrivKey == null) {
+                if (iccSigningEngine == null) {
                     Log.e(LOG_TAG, "Transaction Failure: Missing ICC Private Key for ODA.");
                     ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
                 }
-                if (this.accountParamsStatic.getIccKeyModulusLength() <= 0) {
+                if (accountParamsStatic.getIccKeyModulusLength() <= 0) {
                     Log.e(LOG_TAG, "Transaction Failure: Missing ICC Key Modulus Length for ODA.");
                     ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
                 }
             }
 
-            byte[] cardTransactionQualifier = this.accountParamsStatic.getCardTransactionQualifier().clone();
-
-            // Set CTQ Byte 1, bits 8-7 to 00b and Byte 2, bit 8 to 0b.
-            //byte[] cardTransactionQualifier = this.accountParamsStatic.getCardTransactionQualifier();
-            cardTransactionQualifier[AccountParamsStatic.CTQ_OFFSET_BYTE_1] &= (byte) 0x3F;
-            cardTransactionQualifier[AccountParamsStatic.CTQ_OFFSET_BYTE_2] &= (byte) 0xEF;
-
-            // Set CVR Byte 1 to 00000000b.
-            issuerApplicationData[AccountParamsStatic.IAD_OFFSET_CVR_BYTE_1] = (byte) 0x00;
-
-            // qVSDC CVM Processing.
-            if ((ttqByte2 & (byte) 0x40) == (byte) 0x40) {
-                try {
-                    ByteBuffer cvmListBuffer = ByteBuffer.wrap(this.accountParamsStatic.getCvmList());
-                    // Skip amount fields.
-                    cvmListBuffer.position(8);
-                    // Parse CVM List to determine which CVM(s) is/are supported.
-                    while (cvmListBuffer.hasRemaining()) {
-                        // Process CVM Code.
-                        byte cvmCode = cvmListBuffer.get();
-                        boolean applyNext = ((byte) (cvmCode & (byte) 0x40) == (byte) 0x40);
-                        cvmCode = (byte) (cvmCode & (byte) 0x3F);
-                        if ((cvmCode == (byte) 0x02) && 
-                            ((ttqByte1 & (byte) 0x04) == (byte) 0x04)) {
-                            // Online PIN supported by account and Online PIN supported by reader.
-                            // Set CTQ Byte 1 bit 8 to 1b.
-                            cardTransactionQualifier[AccountParamsStatic.CTQ_OFFSET_BYTE_1] |= (byte) 0x80;
-                            // Set CVR Byte 1 to 01101110b.
-                            issuerApplicationData[AccountParamsStatic.IAD_OFFSET_CVR_BYTE_1] = (byte) 0x6E;
-                        }
-                        else if ((cvmCode == (byte) 0x1E) && 
-                                 ((ttqByte1 & (byte) 0x02) == (byte) 0x02)) {
-                            // Signature supported by account and Signature supported by reader.
-                            // Set CTQ Byte 1 bit 7 to 1b.
-                            cardTransactionQualifier[AccountParamsStatic.CTQ_OFFSET_BYTE_1] |= (byte) 0x40;
-                            // Set CVR Byte 1 to 01101101b.
-                            issuerApplicationData[AccountParamsStatic.IAD_OFFSET_CVR_BYTE_1] = (byte) 0x6D;
-                        }
-                        else if ((ttqByte3 & (byte) 0x40) == (byte) 0x40) {
-                            // TODO: Consumer Device CVM option.
-                        }
-                        else if (!applyNext) {
-                            // No common CVM found.
-                            cvmListBuffer.position(cvmListBuffer.limit());
-                        }
-                        else {
-                            // Continue processing CVM List, skip CVM Condition.
-                            cvmListBuffer.get();
-                            continue;
-                        }
-
-                        break;
-                    }
-                    if (!cvmListBuffer.hasRemaining()) {
-                        // No common CVM found.
-                        // Set CTQ Byte 2 bit 8 to 1b.
-                        cardTransactionQualifier[AccountParamsStatic.CTQ_OFFSET_BYTE_2] |= (byte) 0x80;
-                        // Set CVR Byte 1 to 00000000b. [already done]
-                    }
-                }
-                catch (Exception e) {
-                    // No common CVM found due to exception.
-                    // Set CTQ Byte 2 bit 8 to 1b.
-                    cardTransactionQualifier[AccountParamsStatic.CTQ_OFFSET_BYTE_2] |= (byte) 0x80;
-                    // Set CVR Byte 1 to 00000000b. [already done]
-                }
-            }
-            else {
-                // CVM not required by reader.
-                // Set CTQ Byte 2 bit 8 to 1b.
-                cardTransactionQualifier[AccountParamsStatic.CTQ_OFFSET_BYTE_2] |= (byte) 0x80;
-                // Set CVR Byte 1 to 00000000b. [already done]
-            }
+            // qVSDC CVM Processing: set CTQ and CVR Byte 1 from the compiled CVM List.
+            byte[] cardTransactionQualifier = gpoResponseTemplate.applyCvm(ttqByte1, ttqByte2, ttqByte3);
 
             // Update IAD.
-            derivationDataString = "0" + this.accountParametersIndex;
-            derivationData = DataUtil.stringToCompressedByteArray(derivationDataString);
-            System.arraycopy(derivationData, 0, 
-                             issuerApplicationData, AccountParamsStatic.IAD_OFFSET_DERIVATION_DATA, derivationData.length);
+            gpoResponseTemplate.setIadDerivationData(this.accountParametersIndex);
 
             // Check 'DDA is supported' bit in AIP to determine if ODA is supported.
             if ((short) (aip & (short) 0x2000) == (short) 0x2000) {
@@ -1024,8 +1081,8 @@ public final class CardAgent extends Agent {
                                                                            apduBuffer, 
                                                                            cardAuthRelatedDataOffset, 
                                                                            cardTransactionQualifier, 
-                                                                           this.accountParamsStatic.getIccKeyModulusLength(), 
-                                                                           this.iccPrivKey);
+                                                                           accountParamsStatic.getIccKeyModulusLength(), 
+                                                                           iccSigningEngine);
                 if (sdadEndOffset == -1) {
                     ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
                 }
@@ -1049,8 +1106,7 @@ public final class CardAgent extends Agent {
             // Append ATC.
             apduByteBuffer.putShort(accountParamsDynamic.getAtc());
             // Append IAD.
-            apduByteBuffer.put(issuerApplicationData, AccountParamsStatic.IAD_VALUE_OFFSET, 
-                               (int) (issuerApplicationData[AccountParamsStatic.IAD_VALUE_OFFSET - 1] & 0xFF));
+            apduByteBuffer.position(gpoResponseTemplate.copyIadValue(apduBuffer, apduByteBuffer.position()));
 
             // Generate AC.
             byte[] ac = CryptogramGeneration.generateCvn43Cryptogram(accountParamsDynamic, apduBuffer, 0, apduByteBuffer.position());
@@ -1059,33 +1115,7 @@ public final class CardAgent extends Agent {
             }
 
             // qVSDC Transaction: Format 2 response.
-            apduByteBuffer.rewind();
-            // Build response.
-            apduByteBuffer.put(PayWConstants.TAG_RESPONSE_MESSAGE_TEMPLATE_FORMAT_2);
-            // Skip response message template length.
-            apduByteBuffer.put((byte) 0);
-            // Add to response: AIP and AFL.
-            apduByteBuffer.put(gpoResponseQvsdc);
-            // Add to response: IAD.
-            apduByteBuffer.put(issuerApplicationData);
-            // Add to response: Track 2 Equivalent Data.
-            apduByteBuffer.put(track2EquivalentData);
-            // Add to response: PSN.
-            apduByteBuffer.put(this.accountParamsStatic.getPanSequenceNumber());
-            // Add to response: ATC.
-            apduByteBuffer.putShort(PayWConstants.TAG_APPLICATION_TRANSACTION_COUNTER);
-            apduByteBuffer.put((byte) 0x02);
-            apduByteBuffer.putShort(accountParamsDynamic.getAtc());
-            // Add to response: Application Cryptogram.
-            apduByteBuffer.putShort(PayWConstants.TAG_APPLICATION_CRYPTOGRAM);
-            apduByteBuffer.put((byte) PayWConstants.LENGTH_AC);
-            apduByteBuffer.put(ac);
-            // Add to response: CTQ.
-            apduByteBuffer.put(cardTransactionQualifier);
-            // Add to response: Fixed CID and Form Factor Indicator.
-            apduByteBuffer.put(DataUtil.stringToCompressedByteArray("9F2701809F6E04238C0000"));
-            // Set response template message length.
-            apduByteBuffer.put(1, (byte) (apduByteBuffer.position() - 2));
+            apduByteBuffer.position(gpoResponseTemplate.copyQvsdcResponse(accountParamsDynamic.getAtc(), ac, apduBuffer, 0));
 
             // Set AFL for Read Record processing.
             try {
@@ -1263,23 +1293,15 @@ public final class CardAgent extends Agent {
     }
 
     private void getAccountParams() {
-        if (this.tGetAccountParams != null) {
-            Log.i(LOG_TAG, "getAccountParams, tGetAccountParams is still accessing remote card applet.");
-            return;
-        }
-
-        // Block until 'tGetDynamicAccountParams' and 'tPutTransactionVerificationLog' threads have stopped before continuing.
-        blockCondition(false, true, true, 200, "getAccountParams");
-
-        // NOTE: This thread calls 'setBusy' method when it starts and 'clearBusy' when it stops to 
-        //       block agent from processing contactless transaction while the thread is running.
-        this.tGetAccountParams = new Thread(new Runnable() {
+        // NOTE: This job calls 'setBusy' method when it starts and 'clearBusy' when it stops to 
+        //       block agent from processing contactless transaction while the job is running.
+        getRemoteTasks().submit(TASK_GET_ACCOUNT_PARAMS, new Runnable() {
             public void run() {
                 try {
                     setBusy();
                 }
                 catch (IOException e) {
-                    Log.e(LOG_TAG, "tGetAccountParams setBusy IOException Log", e);
+                    Log.e(LOG_TAG, "getAccountParams setBusy IOException Log", e);
 
                     try {
                         postMessage("Card Agent Not Available to\n" + 
@@ -1290,21 +1312,16 @@ public final class CardAgent extends Agent {
                     catch (IOException e1) {
                     }
 
-                    tGetAccountParams = null;
                     return;
                 }
 
                 try {
-                    connect();
+                    getRemoteSession().open();
                 }
                 catch (IOException e) {
-                    Log.e(LOG_TAG, "tGetAccountParams connect IOException Log", e);
+                    Log.e(LOG_TAG, "getAccountParams connect IOException Log", e);
 
-                    try {
-                        disconnect();
-                    }
-                    catch (IOException e1) {
-                    }
+                    getRemoteSession().release();
 
                     // Retry connect if error is not NO_CARD.
                     if (!getNonNullMessage(e).equalsIgnoreCase("NO_CARD")) {
@@ -1317,8 +1334,6 @@ public final class CardAgent extends Agent {
                             catch (IOException e1) {
                             }
 
-                            tGetAccountParams = null;
-
                             getAccountParams();
 
                             return;
@@ -1348,25 +1363,25 @@ public final class CardAgent extends Agent {
                     catch (IOException e1) {
                     }
 
-                    tGetAccountParams = null;
                     return;
                 }
 
                 TransceiveData tranceiveDataGetAccountParams = null;
                 while (true) {
-                    tranceiveDataGetAccountParams = new TransceiveData(TransceiveData.SOFT_CHANNEL);
-                    tranceiveDataGetAccountParams.packCardReset(false);
-                    tranceiveDataGetAccountParams.packApdu(APDU_SELECT_CARDAPPLET, true);
-                    tranceiveDataGetAccountParams.packApdu(APDU_GET_STATIC_ACCOUNT_PARAMETERS, true);
+                    tranceiveDataGetAccountParams = getRemoteSession().newTransceiveData();
+                    tranceiveDataGetAccountParams.packApdu(legacyAccountParams ? APDU_GET_STATIC_ACCOUNT_PARAMETERS_LEGACY : 
+                                                                                 APDU_GET_STATIC_ACCOUNT_PARAMETERS, 
+                                                           true);
                     try {
-                        transceive(tranceiveDataGetAccountParams);
+                        getRemoteSession().transceive(tranceiveDataGetAccountParams);
                     }
                     catch (IOException e) {
-                        Log.e(LOG_TAG, "tGetAccountParams transceive(tranceiveDataGetAccountParams) IOException Log", e);
+                        Log.e(LOG_TAG, "getAccountParams transceive(tranceiveDataGetAccountParams) IOException Log", e);
 
                         // Retry transceive.
                         if (transceiveRetryCounter < MAX_TRANSCEIVE_RETRY) {
                             transceiveRetryCounter++;
+                            getRemoteSession().reselect();
 
                             continue;
                         }
@@ -1384,7 +1399,7 @@ public final class CardAgent extends Agent {
                         break;
                     }
 
-                    byte[] selectResponse = tranceiveDataGetAccountParams.getNextResponse();
+                    byte[] selectResponse = getRemoteSession().getSelectResponse(tranceiveDataGetAccountParams);
                     boolean selectError = false;
                     Short selectSw = null;
                     if ((selectResponse == null) || 
@@ -1429,7 +1444,7 @@ public final class CardAgent extends Agent {
 
                                 // Delete existing card data.
                                 accountParamsStatic = null;
-                                arrayAccountParamsDynamic = null;
+                                queueAccountParamsDynamic = null;
                                 iccPrivKey = null;
 
                                 handlerTimeToExpire.removeCallbacks(runnableTimeToExpire);
@@ -1445,6 +1460,7 @@ public final class CardAgent extends Agent {
                                 // Retry transceive.
                                 if (transceiveRetryCounter < MAX_TRANSCEIVE_RETRY) {
                                     transceiveRetryCounter++;
+                                    getRemoteSession().reselect();
 
                                     continue;
                                 }
@@ -1461,6 +1477,12 @@ public final class CardAgent extends Agent {
                     }
 
                     byte[] accountParamsStaticData = tranceiveDataGetAccountParams.getNextResponse();
+                    if (!legacyAccountParams && isIncorrectP1P2(accountParamsStaticData)) {
+                        Log.i(LOG_TAG, "Card applet does not support binary Account Parameters, using Java serialization.");
+                        legacyAccountParams = true;
+
+                        continue;
+                    }
                     if ((accountParamsStaticData != null) && 
                         (accountParamsStaticData.length > 2) && 
                         (ByteBuffer.wrap(accountParamsStaticData).getShort(accountParamsStaticData.length - 2) == ISO7816.SW_NO_ERROR)) {
@@ -1470,18 +1492,18 @@ public final class CardAgent extends Agent {
                         // Extract Static Account Parameters data without SW.
                         accountParamsStaticData = Arrays.copyOf(accountParamsStaticData, accountParamsStaticData.length - 2);
 
-                        ByteArrayInputStream bis = new ByteArrayInputStream(accountParamsStaticData);
-                        ObjectInput in = null;
                         try {
-                            in = new ObjectInputStream(bis);
-                            accountParamsStatic = (AccountParamsStatic) in.readObject();
+                            accountParamsStatic = AccountParamsCodec.decodeStatic(accountParamsStaticData, 0, accountParamsStaticData.length);
+                            // Precompile Get Processing Options responses ahead of the first transaction.
+                            getGpoResponseTemplate(accountParamsStatic);
                         }
                         catch (Exception e) {
-                            Log.e(LOG_TAG, "Cannot serialize accountParamsStaticData: " + DataUtil.byteArrayToHexString(accountParamsStaticData));
+                            Log.e(LOG_TAG, "Cannot decode accountParamsStaticData: " + DataUtil.byteArrayToHexString(accountParamsStaticData));
 
                             // Retry transceive.
                             if (transceiveRetryCounter < MAX_TRANSCEIVE_RETRY) {
                                 transceiveRetryCounter++;
+                                getRemoteSession().reselect();
 
                                 continue;
                             }
@@ -1496,21 +1518,6 @@ public final class CardAgent extends Agent {
                             catch (IOException e1) {
                             }
                         }
-                        finally {
-                            try {
-                                bis.close();
-                            }
-                            catch (IOException ioe) {
-                            }
-
-                            try {
-                                if (in != null) {
-                                    in.close();
-                                }
-                            }
-                            catch (IOException ioe) {
-                            }
-                        }
                     }
                     else {
                         String invalidResponse = DataUtil.byteArrayToHexString(accountParamsStaticData);
@@ -1523,7 +1530,7 @@ public final class CardAgent extends Agent {
 
                                 // Delete existing card data.
                                 accountParamsStatic = null;
-                                arrayAccountParamsDynamic = null;
+                                queueAccountParamsDynamic = null;
                                 iccPrivKey = null;
 
                                 handlerTimeToExpire.removeCallbacks(runnableTimeToExpire);
@@ -1534,6 +1541,7 @@ public final class CardAgent extends Agent {
                                 // Retry transceive.
                                 if (transceiveRetryCounter < MAX_TRANSCEIVE_RETRY) {
                                     transceiveRetryCounter++;
+                                    getRemoteSession().reselect();
 
                                     continue;
                                 }
@@ -1550,11 +1558,7 @@ public final class CardAgent extends Agent {
                     break;
                 }  // while (true)
                 if (accountParamsStatic == null) {
-                    try {
-                        disconnect();
-                    }
-                    catch (IOException e) {
-                    }
+                    getRemoteSession().release();
 
                     try {
                         clearBusy();
@@ -1562,7 +1566,6 @@ public final class CardAgent extends Agent {
                     catch (IOException e) {
                     }
 
-                    tGetAccountParams = null;
                     return;
                 }
                 else {
@@ -1598,14 +1601,14 @@ public final class CardAgent extends Agent {
 
                 final int sizeTransactionVerificationLogs = accountParamsStatic.getMaxTransactionVerificationLogs();
                 if (sizeTransactionVerificationLogs <= 0) {
-                    transactionVerificationLogs = null;
+                    transactionVerificationLogStore = null;
                 }
                 else {
-                    if (transactionVerificationLogs == null) {
-                        transactionVerificationLogs = new LinkedHashMapFixedSize<String, TransactionVerificationLog>(sizeTransactionVerificationLogs);
+                    if (transactionVerificationLogStore == null) {
+                        transactionVerificationLogStore = new TransactionVerificationLogStore(sizeTransactionVerificationLogs);
                     }
                     else {
-                        transactionVerificationLogs.updateSize(sizeTransactionVerificationLogs);
+                        transactionVerificationLogStore.updateSize(sizeTransactionVerificationLogs);
                     }
                 }
 
@@ -1613,23 +1616,16 @@ public final class CardAgent extends Agent {
                 checkInternalTimeToExpire = accountParamsStatic.getCheckIntervalTimeToExpire() * 60000;
                 // TEST: Use seconds instead of minutes for testing.
                 //checkInternalTimeToExpire = accountParamsStatic.getCheckIntervalTimeToExpire() * 1000;
-                if (checkInternalTimeToExpire > 0) {
-                    // DEBUG
-                    startTime = System.currentTimeMillis();
-
-                    handlerTimeToExpire.postDelayed(runnableTimeToExpire, checkInternalTimeToExpire);
-                }
+                // NOTE: Expiry check is scheduled when Dynamic Account Parameters are added.
+                // DEBUG
+                startTime = System.currentTimeMillis();
 
                 final int maxNumberAccountParamsDynamic = accountParamsStatic.getMaxNumberAccountParamsDynamic();
-                arrayAccountParamsDynamic = new ArrayDeque<AccountParamsDynamic>(maxNumberAccountParamsDynamic);
+                queueAccountParamsDynamic = new AccountParamsDynamicQueue(maxNumberAccountParamsDynamic);
 
-                final int addNumberAccountParamsDynamic = maxNumberAccountParamsDynamic - arrayAccountParamsDynamic.size();
+                final int addNumberAccountParamsDynamic = maxNumberAccountParamsDynamic - queueAccountParamsDynamic.size();
                 if (addNumberAccountParamsDynamic <= 0) {
-                    try {
-                        disconnect();
-                    }
-                    catch (IOException e) {
-                    }
+                    getRemoteSession().release();
 
                     try {
                         clearBusy();
@@ -1637,7 +1633,6 @@ public final class CardAgent extends Agent {
                     catch (IOException e) {
                     }
 
-                    tGetAccountParams = null;
                     return;
                 }
 
@@ -1645,19 +1640,23 @@ public final class CardAgent extends Agent {
                 int numberAccountParamsDynamic = 0;
                 while (true) {
                     tranceiveDataGetDynamicAccountParams = new TransceiveData(TransceiveData.SOFT_CHANNEL);
-                    while (numberAccountParamsDynamic < addNumberAccountParamsDynamic) {
-                        tranceiveDataGetDynamicAccountParams.packApdu(APDU_GET_DYNAMIC_ACCOUNT_PARAMETERS, true);
-                        numberAccountParamsDynamic++;
-                    }
+                    packGetDynamicAccountParams(tranceiveDataGetDynamicAccountParams, addNumberAccountParamsDynamic);
+                    numberAccountParamsDynamic = addNumberAccountParamsDynamic;
                     try {
-                        transceive(tranceiveDataGetDynamicAccountParams);
+                        getRemoteSession().transceive(tranceiveDataGetDynamicAccountParams);
+
+                        if (!syncGetDynamicAccountParams(tranceiveDataGetDynamicAccountParams, numberAccountParamsDynamic)) {
+                            // Request again with one command per set.
+                            continue;
+                        }
                     }
                     catch (IOException e) {
-                        Log.e(LOG_TAG, "tGetAccountParams transceive(tranceiveDataGetDynamicAccountParams) IOException Log", e);
+                        Log.e(LOG_TAG, "getAccountParams transceive(tranceiveDataGetDynamicAccountParams) IOException Log", e);
 
                         // Retry transceive.
                         if (transceiveRetryCounter < MAX_TRANSCEIVE_RETRY) {
                             transceiveRetryCounter++;
+                            getRemoteSession().reselect();
 
                             numberAccountParamsDynamic = 0;
 
@@ -1676,20 +1675,11 @@ public final class CardAgent extends Agent {
                     break;
                 }
 
-                try {
-                    disconnect();
-                }
-                catch (IOException e) {
-                }
+                getRemoteSession().release();
 
-                numberAccountParamsDynamic = 0;
-                while (numberAccountParamsDynamic < addNumberAccountParamsDynamic) {
-                    syncGetDynamicAccountParams(tranceiveDataGetDynamicAccountParams.getNextResponse());
-                    numberAccountParamsDynamic++;
-                }
-                // NOTE: One or more 'syncGetDynamicAccountParams' calls could fail.
-                //       Only display error if all 'syncGetDynamicAccountParams' calls fail. 
-                if (arrayAccountParamsDynamic.size() == 0) {
+                // NOTE: One or more Dynamic Account Parameters in the batch could fail.
+                //       Only display error if all of them fail. 
+                if (queueAccountParamsDynamic.size() == 0) {
                     try {
                         postMessage("Need to Provision\n" + 
                                     "Dynamic Account Parameters\n" + 
@@ -1730,6 +1720,8 @@ public final class CardAgent extends Agent {
                                                                                        crtCoefficient);
                         // Note: Need to use "BC" provider.
                         iccPrivKey = (RSAPrivateCrtKey) KeyFactory.getInstance("RSA", "BC").generatePrivate(iccPrivKeySpec);
+                        // Warm up ODA signing ahead of the first transaction.
+                        getIccSigningEngine();
                     }
                     catch (Exception e) {
                         Log.e(LOG_TAG, "Failed to Initialize ICC Private Key Exception Log", e);
@@ -1742,12 +1734,8 @@ public final class CardAgent extends Agent {
                     accountParamsStatic.setIccPrivKeyPrimeQ(null, (short) 0, (short) 0);
                     accountParamsStatic.setIccPrivKeyPrimeP(null, (short) 0, (short) 0);
                 }
-
-                tGetAccountParams = null;
             }
         });
-
-        this.tGetAccountParams.start();
     }
 
     private void getDynamicAccountParams(final boolean checkMinThreshold) {
@@ -1758,58 +1746,48 @@ public final class CardAgent extends Agent {
             return;
         }
 
-        // Block until 'tGetDynamicAccountParams' thread has stopped before continuing.
-        blockCondition(false, true, false, 200, "getDynamicAccountParams");
-
-        if ((this.accountParamsStatic == null) && !this.disabled) {
-            try {
-                postMessage("Missing Account Parameters\n" + 
-                            "Please Check Connection is Available and Refresh Card", 
-                            false, null);
-            }
-            catch (IOException e) {
-            }
-            return;
-        }
-
-        if (checkMinThreshold && 
-            (this.arrayAccountParamsDynamic.size() > this.accountParamsStatic.getMinThresholdNumberAccountParamsDynamic())) {
-            //Log.i(LOG_TAG, "Not yet minimum threshold number of dynamic account parameters.");
-            return;
-        }
+        // NOTE: This job does not call 'setBusy' method so agent is not blocked from processing 
+        //       contactless transaction while the job is running.
+        //       Thresholds are checked when the job runs, after any queued 'getAccountParams' job.
+        getRemoteTasks().submit(checkMinThreshold ? TASK_GET_DYNAMIC_ACCOUNT_PARAMS : TASK_REPLENISH_DYNAMIC_ACCOUNT_PARAMS, 
+                                new Runnable() {
+            public void run() {
+                if ((accountParamsStatic == null) && !disabled) {
+                    try {
+                        postMessage("Missing Account Parameters\n" + 
+                                    "Please Check Connection is Available and Refresh Card", 
+                                    false, null);
+                    }
+                    catch (IOException e) {
+                    }
+                    return;
+                }
 
-        final int addNumberAccountParamsDynamic = this.accountParamsStatic.getMaxNumberAccountParamsDynamic() - this.arrayAccountParamsDynamic.size();
-        if (addNumberAccountParamsDynamic <= 0) {
-            Log.i(LOG_TAG, "Already maximum number of dynamic account parameters.");
-            return;
-        }
+                if (checkMinThreshold && 
+                    (queueAccountParamsDynamic.size() > accountParamsStatic.getMinThresholdNumberAccountParamsDynamic())) {
+                    //Log.i(LOG_TAG, "Not yet minimum threshold number of dynamic account parameters.");
+                    return;
+                }
 
-        // Block until 'tGetAccountParams' and 'tPutTransactionVerificationLog' threads have stopped before continuing.
-        blockCondition(true, false, true, 200, "getDynamicAccountParams");
+                final int addNumberAccountParamsDynamic = accountParamsStatic.getMaxNumberAccountParamsDynamic() - queueAccountParamsDynamic.size();
+                if (addNumberAccountParamsDynamic <= 0) {
+                    Log.i(LOG_TAG, "Already maximum number of dynamic account parameters.");
+                    return;
+                }
 
-        // NOTE: This thread does not call 'setBusy' method so agent is not blocked from processing 
-        //       contactless transaction while the thread is running.
-        this.tGetDynamicAccountParams = new Thread(new Runnable() {
-            public void run() {
                 try {
-                    connect();
+                    getRemoteSession().open();
                 }
                 catch (IOException e) {
-                    Log.e(LOG_TAG, "tGetDynamicAccountParams connect IOException Log", e);
+                    Log.e(LOG_TAG, "getDynamicAccountParams connect IOException Log", e);
 
-                    try {
-                        disconnect();
-                    }
-                    catch (IOException e1) {
-                    }
+                    getRemoteSession().release();
 
                     // Retry connect if error is not NO_CARD.
                     if (!getNonNullMessage(e).equalsIgnoreCase("NO_CARD")) {
                         if (connectRetryCounter < MAX_CONNECT_RETRY) {
                             connectRetryCounter++;
 
-                            tGetDynamicAccountParams = null;
-
                             getDynamicAccountParams(checkMinThreshold);
 
                             return;
@@ -1819,36 +1797,32 @@ public final class CardAgent extends Agent {
                     try {
                         postMessage("No Connection Available to\n" + 
                                     "Replenish Account Parameter\n" + 
-                                    arrayAccountParamsDynamic.size() + " Transactions Remaining\n" + 
+                                    queueAccountParamsDynamic.size() + " Transactions Remaining\n" + 
                                     "Exception: " + getNonNullMessage(e), 
                                     false, null);
                     }
                     catch (IOException e1) {
                     }
 
-                    tGetDynamicAccountParams = null;
                     return;
                 }
 
                 TransceiveData tranceiveDataGetDynamicAccountParams = null;
                 int numberAccountParamsDynamic = 0;
                 while (true) {
-                    tranceiveDataGetDynamicAccountParams = new TransceiveData(TransceiveData.SOFT_CHANNEL);
-                    tranceiveDataGetDynamicAccountParams.packCardReset(false);
-                    tranceiveDataGetDynamicAccountParams.packApdu(APDU_SELECT_CARDAPPLET, true);
-                    while (numberAccountParamsDynamic < addNumberAccountParamsDynamic) {
-                        tranceiveDataGetDynamicAccountParams.packApdu(APDU_GET_DYNAMIC_ACCOUNT_PARAMETERS, true);
-                        numberAccountParamsDynamic++;
-                    }
+                    tranceiveDataGetDynamicAccountParams = getRemoteSession().newTransceiveData();
+                    packGetDynamicAccountParams(tranceiveDataGetDynamicAccountParams, addNumberAccountParamsDynamic);
+                    numberAccountParamsDynamic = addNumberAccountParamsDynamic;
                     try {
-                        transceive(tranceiveDataGetDynamicAccountParams);
+                        getRemoteSession().transceive(tranceiveDataGetDynamicAccountParams);
                     }
                     catch (IOException e) {
-                        Log.e(LOG_TAG, "tGetDynamicAccountParams transceive IOException Log", e);
+                        Log.e(LOG_TAG, "getDynamicAccountParams transceive IOException Log", e);
 
                         // Retry transceive.
                         if (transceiveRetryCounter < MAX_TRANSCEIVE_RETRY) {
                             transceiveRetryCounter++;
+                            getRemoteSession().reselect();
 
                             numberAccountParamsDynamic = 0;
 
@@ -1870,15 +1844,11 @@ public final class CardAgent extends Agent {
                     break;
                 }
 
-                try {
-                    disconnect();
-                }
-                catch (IOException e) {
-                }
+                getRemoteSession().release();
 
                 // Check if error already occurred.
                 if (numberAccountParamsDynamic != -1) {
-                    byte[] selectResponse = tranceiveDataGetDynamicAccountParams.getNextResponse();
+                    byte[] selectResponse = getRemoteSession().getSelectResponse(tranceiveDataGetDynamicAccountParams);
                     if ((selectResponse == null) || 
                         (selectResponse.length <= 2) || 
                         (ByteBuffer.wrap(selectResponse).getShort(selectResponse.length - 2) != ISO7816.SW_NO_ERROR)) {
@@ -1893,7 +1863,7 @@ public final class CardAgent extends Agent {
 
                                 // Delete existing card data.
                                 accountParamsStatic = null;
-                                arrayAccountParamsDynamic = null;
+                                queueAccountParamsDynamic = null;
                                 iccPrivKey = null;
 
                                 handlerTimeToExpire.removeCallbacks(runnableTimeToExpire);
@@ -1907,54 +1877,112 @@ public final class CardAgent extends Agent {
                         catch (IOException e) {
                         }
 
-                        tGetDynamicAccountParams = null;
                         return;
                     }
 
-                    numberAccountParamsDynamic = 0;
-                    while (numberAccountParamsDynamic < addNumberAccountParamsDynamic) {
-                        syncGetDynamicAccountParams(tranceiveDataGetDynamicAccountParams.getNextResponse());
-                        numberAccountParamsDynamic++;
+                    if (!syncGetDynamicAccountParams(tranceiveDataGetDynamicAccountParams, numberAccountParamsDynamic)) {
+                        // Request again with one command per set.
+                        getDynamicAccountParams(checkMinThreshold);
+
+                        return;
                     }
-                    // NOTE: One or more 'syncGetDynamicAccountParams' calls could fail.
-                    //       Only display error if enough 'syncGetDynamicAccountParams' calls fail to replenish 
+                    // NOTE: One or more Dynamic Account Parameters in the batch could fail.
+                    //       Only display error if enough of them fail to replenish 
                     //       Dynamic Account Parameters above minimum threshold. 
-                    if (arrayAccountParamsDynamic.size() <= accountParamsStatic.getMinThresholdNumberAccountParamsDynamic()) {
+                    if (queueAccountParamsDynamic.size() <= accountParamsStatic.getMinThresholdNumberAccountParamsDynamic()) {
                         try {
                             postMessage("Failed to Fully Replenish\n" + 
                                         "Dynamic Account Parameter\n" + 
-                                        arrayAccountParamsDynamic.size() + " Transactions Remaining\n", 
+                                        queueAccountParamsDynamic.size() + " Transactions Remaining\n", 
                                         false, null);
                         }
                         catch (IOException e) {
                         }
                     }
                 }
-
-                tGetDynamicAccountParams = null;
             }
         });
+    }
+
+    /**
+     * Returns GET DYNAMIC ACCOUNT PARAMETERS command requesting a batch of sets in one response.
+     * 
+     * @param count
+     *            number of Dynamic Account Parameters to request, 1 to 255
+     */
+    private static byte[] getDynamicAccountParamsApdu(int count) {
+        byte[] apdu = APDU_GET_DYNAMIC_ACCOUNT_PARAMETERS.clone();
+        apdu[ISO7816.OFFSET_P1] = (byte) Math.min(count, 0xFF);
+        return apdu;
+    }
+
+    /**
+     * Packs GET DYNAMIC ACCOUNT PARAMETERS: one batch command, or one command per set 
+     * if the card applet does not support batch commands.
+     */
+    private void packGetDynamicAccountParams(TransceiveData transceiveData, int count) {
+        if (this.legacyAccountParams) {
+            for (int i = 0; i < count; i++) {
+                transceiveData.packApdu(APDU_GET_DYNAMIC_ACCOUNT_PARAMETERS_LEGACY, true);
+            }
+        }
+        else {
+            // Request all Dynamic Account Parameters in one batch command.
+            transceiveData.packApdu(getDynamicAccountParamsApdu(count), true);
+        }
+    }
 
-        this.tGetDynamicAccountParams.start();
+    /**
+     * Adds the Dynamic Account Parameters returned to the commands packed by 'packGetDynamicAccountParams'.
+     * 
+     * @return false if the card applet rejected the batch command, so the commands are to be sent 
+     *         again, one per set
+     */
+    private boolean syncGetDynamicAccountParams(TransceiveData transceiveData, int count) {
+        if (this.legacyAccountParams) {
+            for (int i = 0; i < count; i++) {
+                syncGetDynamicAccountParams(transceiveData.getNextResponse(), false);
+            }
+            return true;
+        }
+
+        byte[] accountParamsDynamicData = transceiveData.getNextResponse();
+        if (isIncorrectP1P2(accountParamsDynamicData)) {
+            Log.i(LOG_TAG, "Card applet does not support batch Dynamic Account Parameters, using one command per set.");
+            this.legacyAccountParams = true;
+            return false;
+        }
+        syncGetDynamicAccountParams(accountParamsDynamicData, true);
+        return true;
+    }
+
+    private static boolean isIncorrectP1P2(byte[] response) {
+        return (response != null) && 
+               (response.length == 2) && 
+               (ByteBuffer.wrap(response).getShort() == ISO7816.SW_INCORRECT_P1P2);
     }
 
-    private synchronized void syncGetDynamicAccountParams(byte[] accountParamsDynamicData) {
+    private synchronized void syncGetDynamicAccountParams(byte[] accountParamsDynamicData, boolean batch) {
         if ((accountParamsDynamicData != null) && 
             (accountParamsDynamicData.length > 2) && 
             (ByteBuffer.wrap(accountParamsDynamicData).getShort(accountParamsDynamicData.length - 2) == ISO7816.SW_NO_ERROR)) {
             // Extract Dynamic Account Parameters data without SW.
             accountParamsDynamicData = Arrays.copyOf(accountParamsDynamicData, accountParamsDynamicData.length - 2);
 
-            AccountParamsDynamic accountParamsDynamic = null;
+            AccountParamsDynamic[] batchAccountParamsDynamic = null;
 
-            ByteArrayInputStream bis = new ByteArrayInputStream(accountParamsDynamicData);
-            ObjectInput in = null;
             try {
-                in = new ObjectInputStream(bis);
-                accountParamsDynamic = (AccountParamsDynamic) in.readObject();
+                if (batch) {
+                    batchAccountParamsDynamic = AccountParamsCodec.decodeDynamicBatch(accountParamsDynamicData, 0, accountParamsDynamicData.length);
+                }
+                else {
+                    batchAccountParamsDynamic = new AccountParamsDynamic[] {
+                        AccountParamsCodec.decodeDynamic(accountParamsDynamicData, 0, accountParamsDynamicData.length)
+                    };
+                }
             }
             catch (Exception e) {
-                Log.e(LOG_TAG, "Cannot serialize accountParamsDynamicData: " + DataUtil.byteArrayToHexString(accountParamsDynamicData));
+                Log.e(LOG_TAG, "Cannot decode accountParamsDynamicData: " + DataUtil.byteArrayToHexString(accountParamsDynamicData));
 
                 // Ignore badly formatted Dynamic Account Parameters data.
                 /*
@@ -1967,40 +1995,40 @@ public final class CardAgent extends Agent {
                 }
                 */
             }
-            finally {
-                try {
-                    bis.close();
-                }
-                catch (IOException ioe) {
-                }
 
-                try {
-                    if (in != null) {
-                        in.close();
+            if (batchAccountParamsDynamic != null) {
+                for (AccountParamsDynamic accountParamsDynamic : batchAccountParamsDynamic) {
+                    if (accountParamsDynamic == null) {
+                        Log.e(LOG_TAG, "Cannot decode accountParamsDynamic in batch");
+
+                        // Ignore badly formatted Dynamic Account Parameters data.
+                        continue;
                     }
-                }
-                catch (IOException ioe) {
-                }
-            }
 
-            if (accountParamsDynamic != null) {
-                // Set received timestamp.
-                accountParamsDynamic.setReceivedTimestamp(System.currentTimeMillis());
+                    // Set received timestamp.
+                    accountParamsDynamic.setReceivedTimestamp(System.currentTimeMillis());
 
-                // DEBUG
-                try {
-                    Log.v(LOG_TAG, "accountParamsDynamic AccountParamtersIndex: " + accountParamsDynamic.getAccountParamtersIndex());
-                    //Log.v(LOG_TAG, "accountParamsDynamic Luk: " + DataUtil.byteArrayToHexString(accountParamsDynamic.getLuk()));
-                    Log.v(LOG_TAG, "accountParamsDynamic ExpirationTimestamp: " + accountParamsDynamic.getExpirationTimestamp());
-                    Log.v(LOG_TAG, "accountParamsDynamic ReceivedTimestamp: " + accountParamsDynamic.getReceivedTimestamp());
-                    Log.v(LOG_TAG, "accountParamsDynamic Atc: " + String.format("%04X", accountParamsDynamic.getAtc()));
-                    //Log.v(LOG_TAG, "accountParamsDynamic LukMsd: " + DataUtil.byteArrayToHexString(accountParamsDynamic.getLukMsd()));
-                }
-                catch (Exception e) {
-                    Log.e(LOG_TAG, "accountParamsDynamic Debug Exception Log", e);
+                    // DEBUG
+                    try {
+                        Log.v(LOG_TAG, "accountParamsDynamic AccountParamtersIndex: " + accountParamsDynamic.getAccountParamtersIndex());
+                        //Log.v(LOG_TAG, "accountParamsDynamic Luk: " + DataUtil.byteArrayToHexString(accountParamsDynamic.getLuk()));
+                        Log.v(LOG_TAG, "accountParamsDynamic ExpirationTimestamp: " + accountParamsDynamic.getExpirationTimestamp());
+                        Log.v(LOG_TAG, "accountParamsDynamic ReceivedTimestamp: " + accountParamsDynamic.getReceivedTimestamp());
+                        Log.v(LOG_TAG, "accountParamsDynamic Atc: " + String.format("%04X", accountParamsDynamic.getAtc()));
+                        //Log.v(LOG_TAG, "accountParamsDynamic LukMsd: " + DataUtil.byteArrayToHexString(accountParamsDynamic.getLukMsd()));
+                    }
+                    catch (Exception e) {
+                        Log.e(LOG_TAG, "accountParamsDynamic Debug Exception Log", e);
+                    }
+
+                    final AccountParamsDynamicQueue queue = queueAccountParamsDynamic;
+                    if ((queue != null) && !queue.offer(accountParamsDynamic)) {
+                        Log.i(LOG_TAG, "Already maximum number of dynamic account parameters.");
+                        break;
+                    }
                 }
 
-                arrayAccountParamsDynamic.add(accountParamsDynamic);
+                scheduleTimeToLive();
             }
         }
         else {
@@ -2014,7 +2042,7 @@ public final class CardAgent extends Agent {
 
                     // Delete existing card data.
                     accountParamsStatic = null;
-                    arrayAccountParamsDynamic = null;
+                    queueAccountParamsDynamic = null;
                     iccPrivKey = null;
 
                     handlerTimeToExpire.removeCallbacks(runnableTimeToExpire);
@@ -2034,112 +2062,61 @@ public final class CardAgent extends Agent {
     }
 
     private void putTransactionVerificationLog() {
-        // Do not block if 'tPutTransactionVerificationLog' thread is already running.
-        // It allows more than 2 transactions to be performed while 'tPutTransactionVerificationLog' thread is already running.
-        if (this.tPutTransactionVerificationLog != null) {
-            Log.i(LOG_TAG, "Do not start another 'tPutTransactionVerificationLog' thread.");
-            return;
-        }
-
-        if ((this.transactionVerificationLogs == null) || 
-            this.transactionVerificationLogs.isEmpty()) {
+        final TransactionVerificationLogStore transactionVerificationLogStore = this.transactionVerificationLogStore;
+        if ((transactionVerificationLogStore == null) || 
+            transactionVerificationLogStore.isEmpty()) {
             Log.i(LOG_TAG, "No Transaction Verification Log to save.");
             return;
         }
 
-        // Block until 'tGetAccountParams' and 'tGetDynamicAccountParams' threads have stopped before continuing.
-        blockCondition(true, true, false, 200, "putTransactionVerificationLog");
-
-        // NOTE: This thread calls 'setBusy' method when it starts and 'clearBusy' when it stops to 
-        //       block agent from processing contactless transaction while the thread is running.
-        this.tPutTransactionVerificationLog = new Thread(new Runnable() {
+        // NOTE: Does not block. A job already queued also saves the Transaction Verification Log 
+        //       of this transaction, so more transactions can be performed in the meantime.
+        getRemoteTasks().submit(TASK_PUT_TRANSACTION_VERIFICATION_LOG, new Runnable() {
             public void run() {
                 try {
-                    connect();
+                    getRemoteSession().open();
                 }
                 catch (IOException e) {
-                    Log.e(LOG_TAG, "tPutTransactionVerificationLog connect IOException Log", e);
+                    Log.e(LOG_TAG, "putTransactionVerificationLog connect IOException Log", e);
 
                     // No connect retry. Attempt again after next transaction.
 
-                    try {
-                        disconnect();
-                    }
-                    catch (IOException e1) {
-                    }
+                    getRemoteSession().release();
 
-                    tPutTransactionVerificationLog = null;
                     return;
                 }
 
-                TransceiveData tranceiveDataPutTransactionVerificationLog = new TransceiveData(TransceiveData.SOFT_CHANNEL);
-                tranceiveDataPutTransactionVerificationLog.packCardReset(false);
-                tranceiveDataPutTransactionVerificationLog.packApdu(APDU_SELECT_CARDAPPLET, true);
+                TransceiveData tranceiveDataPutTransactionVerificationLog = getRemoteSession().newTransceiveData();
                 boolean tranceiveTransactionVerificationLog = false;
-                Iterator<Map.Entry<String, TransactionVerificationLog>> iteratorTransactionVerificationLog = transactionVerificationLogs.entrySet().iterator();
-                while (iteratorTransactionVerificationLog.hasNext()) {
-                    final Map.Entry<String, TransactionVerificationLog> entry = iteratorTransactionVerificationLog.next();
-                    TransactionVerificationLog transactionVerificationLog = entry.getValue();
+                final boolean legacy = legacyAccountParams;
+                TransactionVerificationLogUpload upload = null;
+                try {
+                    // Send all Transaction Verification Logs not acknowledged yet, a batch of 
+                    // binary records per APDU unless the card applet only supports one log per APDU.
+                    upload = new TransactionVerificationLogUpload(transactionVerificationLogStore, legacy);
 
                     // DEBUG
                     Log.v(LOG_TAG, "Save Transaction Verification Log - " 
-                                   + "\n  UtcTimestamp: " + transactionVerificationLog.getUtcTimestamp() 
-                                   //+ "\n  AccountParametersIndex: " + transactionVerificationLog.getAccountParametersIndex() 
-                                   //+ "\n  TransactionType: " + transactionVerificationLog.getTransactionType() 
-                                   //+ "\n  UnpredictableNumber: " + transactionVerificationLog.getUnpredictableNumber()
+                                   + "\n  Records: " + transactionVerificationLogStore.size() 
+                                   + "\n  APDUs: " + upload.getApdus().size() 
                          );
 
-                    ByteArrayOutputStream bos = new ByteArrayOutputStream();
-                    ObjectOutput out = null;
-                    byte[] transactionVerificationLogBytes = null;
-                    try {
-                        out = new ObjectOutputStream(bos);
-                        out.writeObject(transactionVerificationLog);
-                        transactionVerificationLogBytes = bos.toByteArray();
-                    }
-                    catch (Exception e) {
-                        Log.e(LOG_TAG, "Cannot serialize transactionVerificationLog.");
-
-                        // Remove Transaction Verification Log that fails to serialize.
-                        iteratorTransactionVerificationLog.remove();
-                    }
-                    finally {
-                        try {
-                            if (out != null) {
-                                out.close();
-                            }
-                        }
-                        catch (IOException ioe) {
-                        }
-
-                        try {
-                            bos.close();
-                        }
-                        catch (IOException ioe) {
-                        }
-                    }
-
-                    if (transactionVerificationLogBytes != null) {
-                        // NOTE: Including Le in C-APDU causes Lc to be processed incorrectly in remote card applet.
-                        ByteBuffer transactionVerificationLogBuffer = ByteBuffer.allocate(APDU_HEADER_PUT_TRANSACTION_VERIFICATION_LOG.length + 
-                                                                                          2 + 
-                                                                                          transactionVerificationLogBytes.length);
-                        transactionVerificationLogBuffer.put(APDU_HEADER_PUT_TRANSACTION_VERIFICATION_LOG);
-                        transactionVerificationLogBuffer.putShort((short) transactionVerificationLogBytes.length);
-                        transactionVerificationLogBuffer.put(transactionVerificationLogBytes);
-
-                        tranceiveDataPutTransactionVerificationLog.packApdu(transactionVerificationLogBuffer.array(), true);
+                    for (byte[] transactionVerificationLogApdu : upload.getApdus()) {
+                        tranceiveDataPutTransactionVerificationLog.packApdu(transactionVerificationLogApdu, true);
 
                         // Indicate tranceive needs to be performed.
                         tranceiveTransactionVerificationLog = true;
                     }
                 }
+                catch (IOException e) {
+                    Log.e(LOG_TAG, "Cannot serialize transactionVerificationLog.", e);
+                }
                 if (tranceiveTransactionVerificationLog) {
                     try {
-                        transceive(tranceiveDataPutTransactionVerificationLog);
+                        getRemoteSession().transceive(tranceiveDataPutTransactionVerificationLog);
                     }
                     catch (IOException e) {
-                        Log.e(LOG_TAG, "tPutTransactionVerificationLog transceive IOException Log", e);
+                        Log.e(LOG_TAG, "putTransactionVerificationLog transceive IOException Log", e);
 
                         // Indicate exception occurred.
                         tranceiveTransactionVerificationLog = false;
@@ -2157,14 +2134,10 @@ public final class CardAgent extends Agent {
                     }
                 }
 
-                try {
-                    disconnect();
-                }
-                catch (IOException e) {
-                }
+                getRemoteSession().release();
 
                 if (tranceiveTransactionVerificationLog) {
-                    byte[] selectResponse = tranceiveDataPutTransactionVerificationLog.getNextResponse();
+                    byte[] selectResponse = getRemoteSession().getSelectResponse(tranceiveDataPutTransactionVerificationLog);
                     if ((selectResponse == null) || 
                         (selectResponse.length <= 2) || 
                         (ByteBuffer.wrap(selectResponse).getShort(selectResponse.length - 2) != ISO7816.SW_NO_ERROR)) {
@@ -2179,7 +2152,7 @@ public final class CardAgent extends Agent {
 
                                 // Delete existing card data.
                                 accountParamsStatic = null;
-                                arrayAccountParamsDynamic = null;
+                                queueAccountParamsDynamic = null;
                                 iccPrivKey = null;
 
                                 handlerTimeToExpire.removeCallbacks(runnableTimeToExpire);
@@ -2196,39 +2169,74 @@ public final class CardAgent extends Agent {
                         catch (IOException e) {
                         }
 
-                        tPutTransactionVerificationLog = null;
                         return;
                     }
 
                     byte[] putTransactionVerificationResponse = tranceiveDataPutTransactionVerificationLog.getNextResponse();
+                    if (!legacy && isIncorrectP1P2(putTransactionVerificationResponse)) {
+                        Log.i(LOG_TAG, "Card applet does not support batch Transaction Verification Logs, using one command per log.");
+                        legacyAccountParams = true;
+
+                        // Queued to run after this job.
+                        putTransactionVerificationLog();
+                        return;
+                    }
                     while (putTransactionVerificationResponse != null) {
                         // DEBUG
                         Log.i(LOG_TAG, "putTransactionVerificationResponse=" + DataUtil.byteArrayToHexString(putTransactionVerificationResponse));
 
-                        if ((putTransactionVerificationResponse.length > 2) && 
-                            (ByteBuffer.wrap(putTransactionVerificationResponse).getShort(putTransactionVerificationResponse.length - 2) == ISO7816.SW_NO_ERROR)) {
-                            // Extract transaction timestamp for Transaction Verification Log successfully saved in remote card applet without SW.
-                            String transactionTimestamp = DataUtil.byteArrayToHexString(putTransactionVerificationResponse, 
-                                                                                        0, 
-                                                                                        putTransactionVerificationResponse.length - 2);
-                            if (transactionTimestamp.endsWith("F")) {
-                                // Remove padding.
-                                transactionTimestamp = transactionTimestamp.substring(0,transactionTimestamp.length() - 1);
-                            }
-
-                            // Remove Transaction Verification Log successfully saved in remote card applet.
-                            transactionVerificationLogs.remove(transactionTimestamp);
-                        }
+                        // Remove Transaction Verification Logs successfully saved in remote card applet.
+                        upload.acknowledge(putTransactionVerificationResponse);
 
                         putTransactionVerificationResponse = tranceiveDataPutTransactionVerificationLog.getNextResponse();
                     }
                 }
-
-                tPutTransactionVerificationLog = null;
             }
         });
+    }
 
-        this.tPutTransactionVerificationLog.start();
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        // Keep serialized form of the original 'ArrayDeque' based queue.
+        final AccountParamsDynamicQueue queueAccountParamsDynamic = this.queueAccountParamsDynamic;
+        this.arrayAccountParamsDynamic = (queueAccountParamsDynamic != null) ? queueAccountParamsDynamic.toArrayDeque() : null;
+        try {
+            out.defaultWriteObject();
+        }
+        finally {
+            this.arrayAccountParamsDynamic = null;
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+
+        if (this.arrayAccountParamsDynamic != null) {
+            int capacity = 0;
+            if (this.accountParamsStatic != null) {
+                capacity = this.accountParamsStatic.getMaxNumberAccountParamsDynamic();
+            }
+            this.queueAccountParamsDynamic = AccountParamsDynamicQueue.fromArrayDeque(this.arrayAccountParamsDynamic, capacity);
+            this.arrayAccountParamsDynamic = null;
+        }
+
+        if (this.transactionVerificationLogs != null) {
+            int capacity = 0;
+            if (this.accountParamsStatic != null) {
+                capacity = this.accountParamsStatic.getMaxTransactionVerificationLogs();
+            }
+            if (capacity > 0) {
+                this.transactionVerificationLogStore = new TransactionVerificationLogStore(capacity);
+                for (TransactionVerificationLog transactionVerificationLog : this.transactionVerificationLogs.values()) {
+                    try {
+                        this.transactionVerificationLogStore.add(transactionVerificationLog);
+                    }
+                    catch (ISOException e) {
+                        Log.e(LOG_TAG, "Invalid Transaction Verification Log dropped.");
+                    }
+                }
+            }
+            this.transactionVerificationLogs = null;
+        }
     }
 
 }
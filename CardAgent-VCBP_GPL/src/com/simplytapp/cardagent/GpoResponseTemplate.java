@@ -0,0 +1,380 @@
+/**
+ * This file is part of CardAgent-VCBP which is card agent implementation 
+ * of V Cloud-Based Payments for SimplyTapp mobile platform.
+ * Copyright 2014 SimplyTapp, Inc.
+ * 
+ * CardAgent-VCBP is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, either version 3 of the License, or 
+ * (at your option) any later version.
+ * 
+ * CardAgent-VCBP is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with CardAgent-VCBP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.simplytapp.cardagent;
+
+import java.nio.ByteBuffer;
+
+import com.st.crypto.HexCodec;
+import com.st.vcbp.data.AccountParamsIndex;
+import com.st.vcbp.data.AccountParamsStatic;
+
+/**
+ * Precompiled Get Processing Options responses for one set of Static Account 
+ * Parameters.
+ * <p>
+ * The MSD Format 1 response does not change between transactions and is 
+ * built once. The qVSDC Format 2 response is kept as an image with all 
+ * static data objects and the template length already in place; a 
+ * transaction only patches the CVR, derivation data, Track 2 Equivalent 
+ * Data, ATC, AC and CTQ at fixed offsets before the image is copied out.
+ * <p>
+ * The CVM List is evaluated once for every combination of the TTQ bits it 
+ * depends on, so qVSDC CVM processing is a table lookup.
+ * <p>
+ * The image is reused by every transaction, so it must only be used from 
+ * the thread processing APDUs.
+ * 
+ * @author SimplyTapp, Inc.
+ * @version 1.0
+ */
+final class GpoResponseTemplate {
+
+    // Fixed CID '80' and Form Factor Indicator '238C0000'.
+    private static final byte[] CID_AND_FFI = {
+        (byte) 0x9F, (byte) 0x27, (byte) 0x01, (byte) 0x80, 
+        (byte) 0x9F, (byte) 0x6E, (byte) 0x04, (byte) 0x23, (byte) 0x8C, (byte) 0x00, (byte) 0x00
+    };
+
+    // Index bits of the CVM table.
+    private static final int CVM_ONLINE_PIN      = 0x01;  // TTQ Byte 1 bit 3
+    private static final int CVM_SIGNATURE       = 0x02;  // TTQ Byte 1 bit 2
+    private static final int CVM_CONSUMER_DEVICE = 0x04;  // TTQ Byte 3 bit 7
+    // Entry used when the reader does not require a CVM (TTQ Byte 2 bit 7 not set).
+    private static final int CVM_NOT_REQUIRED    = 0x08;
+
+    private final AccountParamsStatic accountParamsStatic;
+
+    // CTQ bits and CVR Byte 1 resulting from CVM processing, indexed by TTQ bits.
+    private final byte[] cvmCtqByte1 = new byte[CVM_NOT_REQUIRED + 1];
+    private final byte[] cvmCtqByte2 = new byte[CVM_NOT_REQUIRED + 1];
+    private final byte[] cvmCvrByte1 = new byte[CVM_NOT_REQUIRED + 1];
+
+    // MSD Format 1 response, null if MSD is not supported.
+    private final byte[] msdResponse;
+
+    // Track 2 Equivalent Data updated per transaction.
+    private final byte[] track2EquivalentData;
+
+    // qVSDC Format 2 response image, null if qVSDC is not supported, and offsets of the 
+    // data objects patched per transaction.
+    private final byte[] qvsdcResponse;
+    private final short aip;
+    private final int offsetIad;
+    private final int offsetTrack2;
+    private final int offsetAtc;
+    private final int offsetAc;
+    private final int offsetCtq;
+
+    // CTQ with Byte 1, bits 8-7 and Byte 2, bit 8 cleared, and the copy updated per transaction.
+    private final byte[] ctqBase;
+    private final byte[] ctq;
+
+    /**
+     * Compiles the responses for the specified Static Account Parameters.
+     * 
+     * @param accountParamsStatic
+     *            the Static Account Parameters
+     */
+    GpoResponseTemplate(AccountParamsStatic accountParamsStatic) {
+        this.accountParamsStatic = accountParamsStatic;
+
+        byte[] gpoResponseMsd = accountParamsStatic.getGpoResponseMsd();
+        if (gpoResponseMsd != null) {
+            int aflLength = (int) (gpoResponseMsd[AccountParamsStatic.GPO_RESPONSE_OFFSET_AFL_LENGTH] & 0xFF);
+            this.msdResponse = new byte[4 + aflLength];
+            this.msdResponse[0] = PayWConstants.TAG_RESPONSE_MESSAGE_TEMPLATE_FORMAT_1;
+            this.msdResponse[1] = (byte) (gpoResponseMsd.length - 4);
+            System.arraycopy(gpoResponseMsd, AccountParamsStatic.GPO_RESPONSE_OFFSET_AIP, this.msdResponse, 2, 2);
+            System.arraycopy(gpoResponseMsd, AccountParamsStatic.GPO_RESPONSE_OFFSET_AFL, this.msdResponse, 4, aflLength);
+        }
+        else {
+            this.msdResponse = null;
+        }
+
+        this.track2EquivalentData = accountParamsStatic.getTrack2EquivalentData().clone();
+
+        byte[] cvmList = accountParamsStatic.getCvmList();
+        for (int index = 0; index < CVM_NOT_REQUIRED; index++) {
+            compileCvm(cvmList, index);
+        }
+        // CVM not required by reader: set CTQ Byte 2 bit 8 to 1b and CVR Byte 1 to 00000000b.
+        this.cvmCtqByte2[CVM_NOT_REQUIRED] = (byte) 0x80;
+
+        byte[] gpoResponseQvsdc = accountParamsStatic.getGpoResponseQvsdc();
+        byte[] issuerApplicationData = accountParamsStatic.getIssuerApplicationData();
+        byte[] panSequenceNumber = accountParamsStatic.getPanSequenceNumber();
+        byte[] cardTransactionQualifier = accountParamsStatic.getCardTransactionQualifier();
+        if ((gpoResponseQvsdc == null) || (issuerApplicationData == null) || 
+            (panSequenceNumber == null) || (cardTransactionQualifier == null)) {
+            this.qvsdcResponse = null;
+            this.aip = 0;
+            this.offsetIad = this.offsetTrack2 = this.offsetAtc = this.offsetAc = this.offsetCtq = 0;
+            this.ctqBase = this.ctq = null;
+            return;
+        }
+
+        this.ctqBase = cardTransactionQualifier.clone();
+        this.ctqBase[AccountParamsStatic.CTQ_OFFSET_BYTE_1] &= (byte) 0x3F;
+        this.ctqBase[AccountParamsStatic.CTQ_OFFSET_BYTE_2] &= (byte) 0xEF;
+        this.ctq = this.ctqBase.clone();
+        this.aip = (short) (((gpoResponseQvsdc[AccountParamsStatic.GPO_RESPONSE_OFFSET_AIP] & 0xFF) << 8) | 
+                            (gpoResponseQvsdc[AccountParamsStatic.GPO_RESPONSE_OFFSET_AIP + 1] & 0xFF));
+
+        int length = 2 + gpoResponseQvsdc.length + issuerApplicationData.length + this.track2EquivalentData.length + 
+                     panSequenceNumber.length + 5 + 3 + PayWConstants.LENGTH_AC + this.ctqBase.length + CID_AND_FFI.length;
+        this.qvsdcResponse = new byte[length];
+        this.qvsdcResponse[0] = PayWConstants.TAG_RESPONSE_MESSAGE_TEMPLATE_FORMAT_2;
+        this.qvsdcResponse[1] = (byte) (length - 2);
+        int offset = 2;
+        // AIP and AFL.
+        offset = put(gpoResponseQvsdc, offset);
+        // IAD.
+        this.offsetIad = offset;
+        offset = put(issuerApplicationData, offset);
+        // Track 2 Equivalent Data.
+        this.offsetTrack2 = offset;
+        offset += this.track2EquivalentData.length;
+        // PSN.
+        offset = put(panSequenceNumber, offset);
+        // ATC.
+        this.qvsdcResponse[offset++] = (byte) (PayWConstants.TAG_APPLICATION_TRANSACTION_COUNTER >> 8);
+        this.qvsdcResponse[offset++] = (byte) PayWConstants.TAG_APPLICATION_TRANSACTION_COUNTER;
+        this.qvsdcResponse[offset++] = (byte) 0x02;
+        this.offsetAtc = offset;
+        offset += 2;
+        // Application Cryptogram.
+        this.qvsdcResponse[offset++] = (byte) (PayWConstants.TAG_APPLICATION_CRYPTOGRAM >> 8);
+        this.qvsdcResponse[offset++] = (byte) PayWConstants.TAG_APPLICATION_CRYPTOGRAM;
+        this.qvsdcResponse[offset++] = (byte) PayWConstants.LENGTH_AC;
+        this.offsetAc = offset;
+        offset += PayWConstants.LENGTH_AC;
+        // CTQ.
+        this.offsetCtq = offset;
+        offset += this.ctqBase.length;
+        // Fixed CID and Form Factor Indicator.
+        put(CID_AND_FFI, offset);
+    }
+
+    /**
+     * Runs qVSDC CVM processing against the CVM List for the TTQ bits 
+     * encoded in the index and stores the result in the CVM table.
+     */
+    private void compileCvm(byte[] cvmList, int index) {
+        byte ttqByte1 = (byte) (((index & CVM_ONLINE_PIN) << 2) | (index & CVM_SIGNATURE));
+        byte ttqByte3 = (byte) ((index & CVM_CONSUMER_DEVICE) << 4);
+        byte ctqByte1 = (byte) 0x00;
+        byte ctqByte2 = (byte) 0x00;
+        byte cvrByte1 = (byte) 0x00;
+
+        try {
+            ByteBuffer cvmListBuffer = ByteBuffer.wrap(cvmList);
+            // Skip amount fields.
+            cvmListBuffer.position(8);
+            // Parse CVM List to determine which CVM(s) is/are supported.
+            while (cvmListBuffer.hasRemaining()) {
+                // Process CVM Code.
+                byte cvmCode = cvmListBuffer.get();
+                boolean applyNext = ((byte) (cvmCode & (byte) 0x40) == (byte) 0x40);
+                cvmCode = (byte) (cvmCode & (byte) 0x3F);
+                if ((cvmCode == (byte) 0x02) && 
+                    ((ttqByte1 & (byte) 0x04) == (byte) 0x04)) {
+                    // Online PIN supported by account and Online PIN supported by reader.
+                    // Set CTQ Byte 1 bit 8 to 1b.
+                    ctqByte1 |= (byte) 0x80;
+                    // Set CVR Byte 1 to 01101110b.
+                    cvrByte1 = (byte) 0x6E;
+                }
+                else if ((cvmCode == (byte) 0x1E) && 
+                         ((ttqByte1 & (byte) 0x02) == (byte) 0x02)) {
+                    // Signature supported by account and Signature supported by reader.
+                    // Set CTQ Byte 1 bit 7 to 1b.
+                    ctqByte1 |= (byte) 0x40;
+                    // Set CVR Byte 1 to 01101101b.
+                    cvrByte1 = (byte) 0x6D;
+                }
+                else if ((ttqByte3 & (byte) 0x40) == (byte) 0x40) {
+                    // TODO: Consumer Device CVM option.
+                }
+                else if (!applyNext) {
+                    // No common CVM found.
+                    cvmListBuffer.position(cvmListBuffer.limit());
+                }
+                else {
+                    // Continue processing CVM List, skip CVM Condition.
+                    cvmListBuffer.get();
+                    continue;
+                }
+
+                break;
+            }
+            if (!cvmListBuffer.hasRemaining()) {
+                // No common CVM found.
+                // Set CTQ Byte 2 bit 8 to 1b.
+                ctqByte2 |= (byte) 0x80;
+                // Set CVR Byte 1 to 00000000b. [already done]
+            }
+        }
+        catch (Exception e) {
+            // No common CVM found due to exception.
+            // Set CTQ Byte 2 bit 8 to 1b.
+            ctqByte2 |= (byte) 0x80;
+            // Set CVR Byte 1 to 00000000b. [already done]
+        }
+
+        this.cvmCtqByte1[index] = ctqByte1;
+        this.cvmCtqByte2[index] = ctqByte2;
+        this.cvmCvrByte1[index] = cvrByte1;
+    }
+
+    private int put(byte[] data, int offset) {
+        System.arraycopy(data, 0, this.qvsdcResponse, offset, data.length);
+        return offset + data.length;
+    }
+
+    /**
+     * Returns true if the template was compiled from the specified Static 
+     * Account Parameters.
+     */
+    boolean isFor(AccountParamsStatic accountParamsStatic) {
+        return this.accountParamsStatic == accountParamsStatic;
+    }
+
+    /**
+     * Returns true if the Static Account Parameters support MSD.
+     */
+    boolean supportsMsd() {
+        return this.msdResponse != null;
+    }
+
+    /**
+     * Returns true if the Static Account Parameters support qVSDC.
+     */
+    boolean supportsQvsdc() {
+        return this.qvsdcResponse != null;
+    }
+
+    /**
+     * Returns the Application Interchange Profile of the qVSDC response.
+     */
+    short getAipQvsdc() {
+        return this.aip;
+    }
+
+    /**
+     * Injects Account Parameters Index and MSD Cryptogram into Track 2 
+     * Equivalent Data after the Service Code.
+     * 
+     * @param accountParametersIndex
+     *            the Account Parameters Index as packed digits
+     * @param msdCryptogram
+     *            the MSD Cryptogram
+     */
+    void setTrack2DerivationData(int accountParametersIndex, String msdCryptogram) {
+        int nibbleOffset = AccountParamsStatic.TRACK2_OFFSET_DD << 1;
+        nibbleOffset = HexCodec.putNibbles(accountParametersIndex, AccountParamsIndex.LENGTH, this.track2EquivalentData, nibbleOffset);
+        nibbleOffset = HexCodec.putDigits(msdCryptogram, this.track2EquivalentData, nibbleOffset);
+        nibbleOffset = HexCodec.putNibbles(0x0F, 1, this.track2EquivalentData, nibbleOffset);
+        HexCodec.padDigits(this.track2EquivalentData, nibbleOffset);
+    }
+
+    /**
+     * Copies the Track 2 Equivalent Data data object, including the 
+     * injected derivation data.
+     */
+    void copyTrack2EquivalentData(byte[] buffer, int offset) {
+        System.arraycopy(this.track2EquivalentData, 0, buffer, offset, this.track2EquivalentData.length);
+    }
+
+    /**
+     * Copies the MSD Format 1 response.
+     * 
+     * @return the length of the response
+     */
+    int copyMsdResponse(byte[] buffer, int offset) {
+        System.arraycopy(this.msdResponse, 0, buffer, offset, this.msdResponse.length);
+        return this.msdResponse.length;
+    }
+
+    /**
+     * Performs qVSDC CVM processing: sets the CTQ and CVR Byte 1 in the IAD 
+     * for the CVM selected by the reader capabilities.
+     * 
+     * @param ttqByte1
+     *            TTQ Byte 1
+     * @param ttqByte2
+     *            TTQ Byte 2
+     * @param ttqByte3
+     *            TTQ Byte 3
+     * @return the CTQ data object
+     */
+    byte[] applyCvm(byte ttqByte1, byte ttqByte2, byte ttqByte3) {
+        int index = CVM_NOT_REQUIRED;
+        if ((ttqByte2 & (byte) 0x40) == (byte) 0x40) {
+            index = ((ttqByte1 >> 2) & CVM_ONLINE_PIN) | 
+                    (ttqByte1 & CVM_SIGNATURE) | 
+                    ((ttqByte3 >> 4) & CVM_CONSUMER_DEVICE);
+        }
+
+        System.arraycopy(this.ctqBase, 0, this.ctq, 0, this.ctq.length);
+        this.ctq[AccountParamsStatic.CTQ_OFFSET_BYTE_1] |= this.cvmCtqByte1[index];
+        this.ctq[AccountParamsStatic.CTQ_OFFSET_BYTE_2] |= this.cvmCtqByte2[index];
+        this.qvsdcResponse[this.offsetIad + AccountParamsStatic.IAD_OFFSET_CVR_BYTE_1] = this.cvmCvrByte1[index];
+        return this.ctq;
+    }
+
+    /**
+     * Sets the derivation data in the IAD to the Account Parameters Index, 
+     * given as packed digits.
+     */
+    void setIadDerivationData(int accountParametersIndex) {
+        int nibbleOffset = (this.offsetIad + AccountParamsStatic.IAD_OFFSET_DERIVATION_DATA) << 1;
+        // '0' || YHHHHCC is all 8 nibbles of the packed index.
+        HexCodec.putNibbles(accountParametersIndex, AccountParamsIndex.LENGTH + 1, this.qvsdcResponse, nibbleOffset);
+    }
+
+    /**
+     * Copies the IAD value, used as input to the cryptogram.
+     * 
+     * @return the offset following the copied value
+     */
+    int copyIadValue(byte[] buffer, int offset) {
+        int length = (int) (this.qvsdcResponse[this.offsetIad + AccountParamsStatic.IAD_VALUE_OFFSET - 1] & 0xFF);
+        System.arraycopy(this.qvsdcResponse, this.offsetIad + AccountParamsStatic.IAD_VALUE_OFFSET, 
+                         buffer, offset, length);
+        return offset + length;
+    }
+
+    /**
+     * Completes the qVSDC Format 2 response with ATC, AC and the CTQ 
+     * returned by {@link #applyCvm(byte, byte, byte)} and copies it.
+     * 
+     * @return the length of the response
+     */
+    int copyQvsdcResponse(short atc, byte[] ac, byte[] buffer, int offset) {
+        this.qvsdcResponse[this.offsetAtc] = (byte) (atc >> 8);
+        this.qvsdcResponse[this.offsetAtc + 1] = (byte) atc;
+        System.arraycopy(ac, 0, this.qvsdcResponse, this.offsetAc, PayWConstants.LENGTH_AC);
+        System.arraycopy(this.track2EquivalentData, 0, 
+                         this.qvsdcResponse, this.offsetTrack2, this.track2EquivalentData.length);
+        System.arraycopy(this.ctq, 0, this.qvsdcResponse, this.offsetCtq, this.ctq.length);
+        System.arraycopy(this.qvsdcResponse, 0, buffer, offset, this.qvsdcResponse.length);
+        return this.qvsdcResponse.length;
+    }
+
+}
@@ -0,0 +1,313 @@
+/**
+ * This file is part of CardAgent-VCBP which is card agent implementation 
+ * of V Cloud-Based Payments for SimplyTapp mobile platform.
+ * Copyright 2014 SimplyTapp, Inc.
+ * 
+ * CardAgent-VCBP is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, either version 3 of the License, or 
+ * (at your option) any later version.
+ * 
+ * CardAgent-VCBP is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with CardAgent-VCBP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.simplytapp.cardagent;
+
+import java.io.IOException;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import javacard.framework.ISO7816;
+
+import com.simplytapp.virtualcard.TransceiveData;
+
+import android.util.Log;
+
+/**
+ * Keeps the soft channel connection to the remote card applet open between jobs.
+ * <p>
+ * The connection is opened by the first job and closed after it has been 
+ * idle for {@link #IDLE_TIMEOUT} milliseconds by default. While the remote card applet 
+ * stays selected, later jobs skip the card reset and SELECT command. Each 
+ * transceive is timed so the round trip time to the remote card can be 
+ * monitored.
+ * <p>
+ * Only used from jobs run by {@link RemoteTaskCoordinator}, one at a time.
+ * 
+ * @author SimplyTapp, Inc.
+ * @version 1.0
+ */
+class RemoteSession {
+
+    /**
+     * Milliseconds an idle connection is kept open.
+     */
+    static final long IDLE_TIMEOUT = 120000;
+
+    /**
+     * Connection to the remote card, i.e. the agent.
+     */
+    interface Link {
+        void connect() throws IOException;
+        void disconnect() throws IOException;
+        void transceive(TransceiveData transceiveData) throws IOException;
+    }
+
+    private final Link link;
+    private final byte[] selectApdu;
+    private final String logTag;
+    private final long idleTimeout;
+
+    private boolean connected;
+    private boolean failed;
+    private boolean selected;
+    private byte[] selectResponse;
+    // Set if the last packed transceive data starts with card reset and SELECT command.
+    private boolean selectPacked;
+
+    private Timer idleTimer;
+    private TimerTask idleTask;
+
+    // Statistics.
+    private long connectCount;
+    private long selectCount;
+    private long roundTripCount;
+    private long lastRoundTripTime;
+    private long totalRoundTripTime;
+    private long maxRoundTripTime;
+
+    /**
+     * Creates a closed session.
+     * 
+     * @param link
+     *            connection to the remote card
+     * @param selectApdu
+     *            SELECT command for the remote card applet
+     * @param logTag
+     *            tag to log round trip times with
+     */
+    RemoteSession(Link link, byte[] selectApdu, String logTag) {
+        this(link, selectApdu, logTag, IDLE_TIMEOUT);
+    }
+
+    /**
+     * Creates a closed session with the specified idle timeout.
+     * 
+     * @param idleTimeout
+     *            milliseconds an idle connection is kept open
+     */
+    RemoteSession(Link link, byte[] selectApdu, String logTag, long idleTimeout) {
+        this.link = link;
+        this.selectApdu = selectApdu;
+        this.logTag = logTag;
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Connects to the remote card if not connected yet.
+     * 
+     * @throws IOException
+     *             if connection fails
+     */
+    synchronized void open() throws IOException {
+        cancelIdleTask();
+
+        if (!this.connected) {
+            this.selected = false;
+            this.failed = false;
+            try {
+                this.link.connect();
+            }
+            catch (IOException e) {
+                try {
+                    this.link.disconnect();
+                }
+                catch (IOException e1) {
+                }
+                throw e;
+            }
+            this.connected = true;
+            this.connectCount++;
+        }
+    }
+
+    /**
+     * Keeps the connection open for the next job, and closes it once idle.
+     * <p>
+     * Closes the connection right away if a transceive failed on it.
+     */
+    synchronized void release() {
+        if (!this.connected) {
+            return;
+        }
+        if (this.failed) {
+            close();
+            return;
+        }
+
+        cancelIdleTask();
+        if (this.idleTimer == null) {
+            this.idleTimer = new Timer(this.logTag + "-session", true);
+        }
+        this.idleTask = new TimerTask() {
+            public void run() {
+                synchronized (RemoteSession.this) {
+                    if (RemoteSession.this.idleTask == this) {
+                        close();
+                    }
+                }
+            }
+        };
+        this.idleTimer.schedule(this.idleTask, this.idleTimeout);
+    }
+
+    /**
+     * Disconnects from the remote card.
+     */
+    synchronized void close() {
+        cancelIdleTask();
+        if (this.idleTimer != null) {
+            this.idleTimer.cancel();
+            this.idleTimer = null;
+        }
+
+        this.selected = false;
+        this.selectResponse = null;
+        if (this.connected) {
+            this.connected = false;
+            try {
+                this.link.disconnect();
+            }
+            catch (IOException e) {
+            }
+        }
+    }
+
+    /**
+     * Forces card reset and SELECT command before the next command, e.g. to retry after an unexpected response.
+     */
+    synchronized void reselect() {
+        this.selected = false;
+    }
+
+    /**
+     * Creates soft channel transceive data, starting with card reset and SELECT command 
+     * unless the remote card applet is still selected.
+     */
+    synchronized TransceiveData newTransceiveData() {
+        TransceiveData transceiveData = createTransceiveData();
+        this.selectPacked = !this.selected;
+        if (this.selectPacked) {
+            transceiveData.packCardReset(false);
+            transceiveData.packApdu(this.selectApdu, true);
+            this.selectCount++;
+        }
+
+        return transceiveData;
+    }
+
+    /**
+     * Creates empty soft channel transceive data.
+     */
+    TransceiveData createTransceiveData() {
+        return new TransceiveData(TransceiveData.SOFT_CHANNEL);
+    }
+
+    /**
+     * Sends transceive data to the remote card and times the round trip.
+     * <p>
+     * On failure, the next transceive data starts with card reset and SELECT command 
+     * again and the connection is closed when released.
+     * 
+     * @throws IOException
+     *             if transceive fails
+     */
+    void transceive(TransceiveData transceiveData) throws IOException {
+        final long start = System.currentTimeMillis();
+        try {
+            this.link.transceive(transceiveData);
+        }
+        catch (IOException e) {
+            synchronized (this) {
+                this.selected = false;
+                this.failed = true;
+            }
+            throw e;
+        }
+
+        final long roundTripTime = System.currentTimeMillis() - start;
+        synchronized (this) {
+            this.roundTripCount++;
+            this.lastRoundTripTime = roundTripTime;
+            this.totalRoundTripTime += roundTripTime;
+            this.maxRoundTripTime = Math.max(this.maxRoundTripTime, roundTripTime);
+        }
+
+        Log.v(this.logTag, "Remote round trip " + roundTripTime + " ms" + (this.selectPacked ? " (with SELECT)" : ""));
+    }
+
+    /**
+     * Returns the SELECT response for transceive data created by {@link #newTransceiveData()}.
+     * <p>
+     * Reads the SELECT response from the transceive data if the SELECT command was 
+     * packed, otherwise returns the response of the SELECT command that selected the 
+     * remote card applet in this session.
+     */
+    synchronized byte[] getSelectResponse(TransceiveData transceiveData) {
+        if (!this.selectPacked) {
+            return this.selectResponse;
+        }
+
+        byte[] response = transceiveData.getNextResponse();
+        this.selected = (response != null) && 
+                        (response.length >= 2) && 
+                        ((short) (((response[response.length - 2] & 0xFF) << 8) | (response[response.length - 1] & 0xFF)) == ISO7816.SW_NO_ERROR);
+        this.selectResponse = this.selected ? response : null;
+        return response;
+    }
+
+    synchronized long getConnectCount() {
+        return this.connectCount;
+    }
+
+    synchronized long getSelectCount() {
+        return this.selectCount;
+    }
+
+    synchronized long getRoundTripCount() {
+        return this.roundTripCount;
+    }
+
+    /**
+     * Returns milliseconds taken by the last round trip.
+     */
+    synchronized long getLastRoundTripTime() {
+        return this.lastRoundTripTime;
+    }
+
+    /**
+     * Returns average milliseconds taken by a round trip.
+     */
+    synchronized long getAverageRoundTripTime() {
+        return (this.roundTripCount == 0) ? 0 : this.totalRoundTripTime / this.roundTripCount;
+    }
+
+    /**
+     * Returns milliseconds taken by the slowest round trip.
+     */
+    synchronized long getMaxRoundTripTime() {
+        return this.maxRoundTripTime;
+    }
+
+    private void cancelIdleTask() {
+        if (this.idleTask != null) {
+            this.idleTask.cancel();
+            this.idleTask = null;
+        }
+    }
+}
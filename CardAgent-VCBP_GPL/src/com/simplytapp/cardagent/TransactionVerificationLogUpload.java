@@ -0,0 +1,163 @@
+/**
+ * This file is part of CardAgent-VCBP which is card agent implementation 
+ * of V Cloud-Based Payments for SimplyTapp mobile platform.
+ * Copyright 2014 SimplyTapp, Inc.
+ * 
+ * CardAgent-VCBP is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, either version 3 of the License, or 
+ * (at your option) any later version.
+ * 
+ * CardAgent-VCBP is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with CardAgent-VCBP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.simplytapp.cardagent;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import javacard.framework.ISO7816;
+
+import com.st.vcbp.data.AccountParamsCodec;
+import com.st.vcbp.data.TransactionVerificationLogStore;
+
+/**
+ * PUT TRANSACTION VERIFICATION LOG C-APDUs saving the Transaction Verification Logs of a store 
+ * in remote card applet.
+ * <p>
+ * Logs are sent as binary records, up to {@link #MAX_BATCH} per C-APDU, or as one Java 
+ * serialized log per C-APDU to card applets that do not support batch commands. Each C-APDU 
+ * covers a range of store sequence numbers, so logs acknowledged by remote card applet are 
+ * removed by sequence number and not by timestamp, which may go backwards with the device clock.
+ * 
+ * @author SimplyTapp, Inc.
+ * @version 1.0
+ */
+final class TransactionVerificationLogUpload {
+
+    /**
+     * Maximum number of binary records in one C-APDU, as counted by P1.
+     */
+    static final int MAX_BATCH = 255;
+
+    // NOTE: Use extended APDU format. APDU header does not include 2-byte Lc. 
+    //       P2 sends binary records (AccountParamsCodec.VERSION), P1 is set to the number of records.
+    private static final byte[] APDU_HEADER = {
+        (byte) 0x80, (byte) 0x34, (byte) 0x00, AccountParamsCodec.VERSION, (byte) 0x00
+    };
+    private static final byte[] APDU_HEADER_LEGACY = {
+        (byte) 0x80, (byte) 0x34, (byte) 0x00, (byte) 0x00, (byte) 0x00
+    };
+
+    private final TransactionVerificationLogStore store;
+    private final List<byte[]> apdus = new ArrayList<byte[]>();
+    // Sequence number following the last log of each C-APDU.
+    private final List<Long> endSequences = new ArrayList<Long>();
+
+    // Number of C-APDUs acknowledged, in order.
+    private int acknowledged;
+    private boolean failed;
+
+    /**
+     * Packs C-APDUs for all logs in the store.
+     * 
+     * @param store
+     *            the store to save and remove acknowledged logs from
+     * @param legacy
+     *            true to send one Java serialized log per C-APDU
+     * @throws IOException
+     *             if a log cannot be serialized
+     */
+    TransactionVerificationLogUpload(TransactionVerificationLogStore store, boolean legacy) throws IOException {
+        this.store = store;
+
+        synchronized (store) {
+            int size = store.size();
+            int position = 0;
+            while (position < size) {
+                int count = legacy ? 1 : Math.min(size - position, MAX_BATCH);
+                this.apdus.add(legacy ? getLegacyApdu(store, position) : getApdu(store, position, count));
+                position += count;
+                this.endSequences.add(Long.valueOf(store.getSequence(position - 1) + 1));
+            }
+        }
+    }
+
+    private static byte[] getApdu(TransactionVerificationLogStore store, int position, int count) {
+        int length = count * TransactionVerificationLogStore.RECORD_LENGTH;
+
+        // NOTE: Including Le in C-APDU causes Lc to be processed incorrectly in remote card applet.
+        byte[] apdu = new byte[APDU_HEADER.length + 2 + length];
+        ByteBuffer buffer = ByteBuffer.wrap(apdu);
+        buffer.put(APDU_HEADER);
+        buffer.put(ISO7816.OFFSET_P1, (byte) count);
+        buffer.putShort((short) length);
+        store.getRecords(position, count, apdu, buffer.position());
+        return apdu;
+    }
+
+    private static byte[] getLegacyApdu(TransactionVerificationLogStore store, int position) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bos);
+        try {
+            out.writeObject(store.get(position));
+        }
+        finally {
+            out.close();
+        }
+        byte[] transactionVerificationLogBytes = bos.toByteArray();
+
+        // NOTE: Including Le in C-APDU causes Lc to be processed incorrectly in remote card applet.
+        ByteBuffer buffer = ByteBuffer.allocate(APDU_HEADER_LEGACY.length + 2 + transactionVerificationLogBytes.length);
+        buffer.put(APDU_HEADER_LEGACY);
+        buffer.putShort((short) transactionVerificationLogBytes.length);
+        buffer.put(transactionVerificationLogBytes);
+        return buffer.array();
+    }
+
+    /**
+     * Returns the C-APDUs, oldest logs first.
+     */
+    List<byte[]> getApdus() {
+        return this.apdus;
+    }
+
+    /**
+     * Removes the logs of the next C-APDU from the store if remote card applet saved them.
+     * <p>
+     * Responses are expected in C-APDU order. After a failed response, later responses are 
+     * ignored so that logs not saved are never removed.
+     * 
+     * @param response
+     *            R-APDU of the next C-APDU, null if none
+     * @return true if the logs were saved
+     */
+    boolean acknowledge(byte[] response) {
+        if (this.failed || (this.acknowledged >= this.apdus.size())) {
+            return false;
+        }
+
+        if ((response == null) || 
+            (response.length <= 2) || 
+            (ByteBuffer.wrap(response).getShort(response.length - 2) != ISO7816.SW_NO_ERROR)) {
+            this.failed = true;
+            return false;
+        }
+
+        long endSequence = this.endSequences.get(this.acknowledged++).longValue();
+        synchronized (this.store) {
+            this.store.removeOldest(this.store.positionOf(endSequence));
+        }
+        return true;
+    }
+
+}
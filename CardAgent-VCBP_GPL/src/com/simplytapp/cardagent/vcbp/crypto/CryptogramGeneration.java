@@ -0,0 +1,87 @@
+/**
+ * This file is part of CardAgent-VCBP which is card agent implementation 
+ * of V Cloud-Based Payments for SimplyTapp mobile platform.
+ * Copyright 2014 SimplyTapp, Inc.
+ * 
+ * CardAgent-VCBP is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, either version 3 of the License, or 
+ * (at your option) any later version.
+ * 
+ * CardAgent-VCBP is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with CardAgent-VCBP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.simplytapp.cardagent.vcbp.crypto;
+
+import android.util.Log;
+
+import com.simplytapp.cardagent.CardAgent;
+import com.st.crypto.CryptoProviders;
+import com.st.vcbp.data.AccountParamsDynamic;
+
+/**
+ * V CVN 43 cryptogram generation with the Limited Use Keys of the account 
+ * parameters, on top of the {@link com.st.crypto.CryptoProvider} in use.
+ * 
+ * @author SimplyTapp, Inc.
+ * @version 1.0
+ */
+public final class CryptogramGeneration {
+
+    private static final String LOG_TAG = CardAgent.class.getSimpleName();
+
+    private CryptogramGeneration() {
+    }
+
+    /**
+     * Generates the MSD Cryptogram, with the LUK for MSD if available.
+     * 
+     * @param accountParamsDynamic
+     *            the dynamic account parameters
+     * @return the 6 digit MSD Cryptogram, or null if generation failed
+     */
+    public static String generateCvn43MsdCryptogram(AccountParamsDynamic accountParamsDynamic) {
+        try {
+            byte[] lukMsd = accountParamsDynamic.getLukMsd();
+            if (lukMsd == null) {
+                lukMsd = accountParamsDynamic.getLuk();
+            }
+            return CryptoProviders.getProvider().generateCvn43MsdCryptogram(lukMsd);
+        }
+        catch (Exception e) {
+            Log.e(LOG_TAG, "generateCvn43MsdCryptogram Exception", e);
+            return null;
+        }
+    }
+
+    /**
+     * Generates the Application Cryptogram.
+     * 
+     * @param accountParamsDynamic
+     *            the dynamic account parameters
+     * @param data
+     *            the buffer holding the cryptogram input
+     * @param offset
+     *            offset of the cryptogram input
+     * @param length
+     *            length of the cryptogram input
+     * @return the 8 byte Application Cryptogram, or null if generation failed
+     */
+    public static byte[] generateCvn43Cryptogram(AccountParamsDynamic accountParamsDynamic, 
+                                                 byte[] data, int offset, int length) {
+        try {
+            return CryptoProviders.getProvider().generateCvn43Cryptogram(accountParamsDynamic.getLuk(), 
+                                                                         data, offset, length);
+        }
+        catch (Exception e) {
+            Log.e(LOG_TAG, "generateCvn43Cryptogram Exception", e);
+            return null;
+        }
+    }
+
+}
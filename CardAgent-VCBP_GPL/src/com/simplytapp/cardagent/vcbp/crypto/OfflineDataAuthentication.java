@@ -0,0 +1,125 @@
+/**
+ * This file is part of CardAgent-VCBP which is card agent implementation 
+ * of V Cloud-Based Payments for SimplyTapp mobile platform.
+ * Copyright 2014 SimplyTapp, Inc.
+ * 
+ * CardAgent-VCBP is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, either version 3 of the License, or 
+ * (at your option) any later version.
+ * 
+ * CardAgent-VCBP is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with CardAgent-VCBP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.simplytapp.cardagent.vcbp.crypto;
+
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import android.util.Log;
+
+import com.simplytapp.cardagent.CardAgent;
+import com.st.crypto.CryptoProviders;
+import com.st.crypto.RsaSigningEngine;
+import com.st.vcbp.data.AccountParamsDynamic;
+
+/**
+ * fDDA Signed Dynamic Application Data generation, on top of the 
+ * {@link com.st.crypto.CryptoProvider} in use.
+ * 
+ * @author SimplyTapp, Inc.
+ * @version 1.0
+ */
+public final class OfflineDataAuthentication {
+
+    private static final String LOG_TAG = CardAgent.class.getSimpleName();
+
+    private static final SecureRandom SECURE_RANDOM = new SecureRandom();
+
+    private OfflineDataAuthentication() {
+    }
+
+    /**
+     * Builds Card Authentication Related Data followed by Signed Dynamic 
+     * Application Data.
+     * 
+     * @param accountParamsDynamic
+     *            the dynamic account parameters
+     * @param buffer
+     *            the buffer holding the terminal dynamic data: Unpredictable 
+     *            Number at offset 25, Amount, Authorized at offset 0 and 
+     *            Transaction Currency Code at offset 19
+     * @param offset
+     *            offset for the Card Authentication Related Data
+     * @param cardTransactionQualifier
+     *            the Card Transaction Qualifiers
+     * @param modulusLength
+     *            length of the ICC Public Key Modulus
+     * @param signingEngine
+     *            the signing engine for the ICC Private Key
+     * @return the offset following the Signed Dynamic Application Data, or -1 
+     *         if generation failed
+     */
+    public static int generateSdad(AccountParamsDynamic accountParamsDynamic, 
+                                   byte[] buffer, int offset, 
+                                   byte[] cardTransactionQualifier, 
+                                   int modulusLength, 
+                                   RsaSigningEngine signingEngine) {
+        // '9F69'    7 bytes    Card Authentication Related Data
+        ByteBuffer cardAuthByteBuffer = ByteBuffer.wrap(buffer, offset, 10);
+        cardAuthByteBuffer.putShort((short) 0x9F69);
+        cardAuthByteBuffer.put((byte) 0x07);
+        final int cardAuthOffset = cardAuthByteBuffer.position();
+        // fDDA Version Number.
+        cardAuthByteBuffer.put((byte) 0x01);
+        // Card Unpredictable Number.
+        cardAuthByteBuffer.putInt(SECURE_RANDOM.nextInt());
+        // Card Transaction Qualifiers.
+        cardAuthByteBuffer.put(cardTransactionQualifier, 3, 2);
+
+        // '9F4B'    Signed Dynamic Application Data
+        int sdadOffset = cardAuthByteBuffer.position();
+        buffer[sdadOffset++] = (byte) 0x9F;
+        buffer[sdadOffset++] = (byte) 0x4B;
+        if (modulusLength >= 128) {
+            buffer[sdadOffset++] = (byte) 0x81;
+        }
+        buffer[sdadOffset++] = (byte) modulusLength;
+
+        // Header, Signed Data Format, Hash Algorithm Indicator, ICC Dynamic Data Length, ATC.
+        ByteBuffer sdadByteBuffer = ByteBuffer.wrap(buffer, sdadOffset, modulusLength);
+        sdadByteBuffer.putInt(0x6A950102);
+        sdadByteBuffer.putShort(accountParamsDynamic.getAtc());
+        // Pad Pattern.
+        final int hashOffset = sdadOffset + modulusLength - 21;
+        Arrays.fill(buffer, sdadByteBuffer.position(), hashOffset, (byte) 0xBB);
+        // Terminal dynamic data, hashed but not recovered: 
+        // Unpredictable Number, Amount, Authorized, Transaction Currency Code, 
+        // Card Authentication Related Data.
+        sdadByteBuffer.position(hashOffset);
+        sdadByteBuffer.put(buffer, 25, 4);
+        sdadByteBuffer.put(buffer, 0, 6);
+        sdadByteBuffer.put(buffer, 19, 2);
+        sdadByteBuffer.put(buffer, cardAuthOffset, 7);
+
+        try {
+            CryptoProviders.getProvider().generateSdad(signingEngine, 
+                                                       buffer, 
+                                                       sdadOffset, 
+                                                       modulusLength, 
+                                                       sdadByteBuffer.position() - sdadOffset - 1);
+        }
+        catch (Exception e) {
+            Log.e(LOG_TAG, "generateSdad Exception", e);
+            return -1;
+        }
+        return sdadOffset + modulusLength;
+    }
+
+}
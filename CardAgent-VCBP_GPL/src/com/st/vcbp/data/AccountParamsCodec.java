@@ -0,0 +1,491 @@
+/**
+ * This file is part of CardAgent-VCBP which is card agent implementation 
+ * of V Cloud-Based Payments for SimplyTapp mobile platform.
+ * Copyright 2014 SimplyTapp, Inc.
+ * 
+ * CardAgent-VCBP is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, either version 3 of the License, or 
+ * (at your option) any later version.
+ * 
+ * CardAgent-VCBP is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with CardAgent-VCBP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.st.vcbp.data;
+
+import java.io.ByteArrayInputStream;
+import java.io.ObjectInputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import javacard.framework.ISO7816;
+import javacard.framework.ISOException;
+
+/**
+ * Binary codec for AccountParamsStatic and AccountParamsDynamic objects exchanged 
+ * between Card Applet and Card Agent.
+ * <p>
+ * Encoded data starts with a version byte followed by the fields in a fixed order. 
+ * Variable length fields are prefixed with a 2-byte length, 0xFFFF for null. 
+ * Data in the old Java serialization format is recognized by its stream magic 
+ * and still accepted when decoding.
+ * 
+ * @author SimplyTapp, Inc.
+ * @version 1.0
+ */
+final public class AccountParamsCodec {
+
+    /**
+     * P2 of the GET ACCOUNT PARAMETERS commands requesting Java serialization.
+     */
+    public static final byte FORMAT_SERIALIZED = (byte) 0x00;
+
+    /**
+     * Version byte of the binary format, also used as P2 of the GET ACCOUNT PARAMETERS 
+     * commands to request it. Version 2 encodes the Maximum Number of Transaction 
+     * Verification Logs in 2 bytes instead of 1.
+     */
+    public static final byte VERSION = (byte) 0x02;
+
+    /**
+     * Maximum length of encoded Dynamic Account Parameters with a 7 digit Account Parameters 
+     * Index (YHHHHCC) and both Limited Use Keys.
+     */
+    public static final short MAX_LENGTH_DYNAMIC = (short) 61;
+
+    // First byte of Java serialization stream magic (0xACED).
+    private static final byte STREAM_MAGIC_BYTE_1 = (byte) 0xAC;
+
+    private static final short NULL_LENGTH = (short) 0xFFFF;
+
+    private static final byte FLAG_LUK_MSD = (byte) 0x01;
+
+    private static final short LUK_LENGTH = (short) 16;
+
+    private AccountParamsCodec() {
+    }
+
+    /**
+     * Encodes Static Account Parameters.
+     * 
+     * @param accountParamsStatic
+     *            Static Account Parameters to encode
+     * @param buffer
+     *            output buffer, e.g. APDU buffer
+     * @param offset
+     *            offset in output buffer
+     * @return offset in output buffer after encoded data
+     */
+    public static short encode(AccountParamsStatic accountParamsStatic, byte[] buffer, short offset) {
+        buffer[offset++] = VERSION;
+
+        offset = putBytes(buffer, offset, accountParamsStatic.getAid());
+        offset = putBytes(buffer, offset, accountParamsStatic.getTagA5Data());
+        offset = putBytes(buffer, offset, accountParamsStatic.getGpoResponseMsd());
+        offset = putBytes(buffer, offset, accountParamsStatic.getGpoResponseQvsdc());
+        offset = putBytes(buffer, offset, accountParamsStatic.getIssuerApplicationData());
+        offset = putBytes(buffer, offset, accountParamsStatic.getPanSequenceNumber());
+        offset = putBytes(buffer, offset, accountParamsStatic.getCardTransactionQualifier());
+        offset = putBytes(buffer, offset, accountParamsStatic.getTrack2EquivalentData());
+        offset = putBytes(buffer, offset, accountParamsStatic.getCardholderName());
+        offset = putBytes(buffer, offset, accountParamsStatic.getCvmList());
+        offset = putBytes(buffer, offset, accountParamsStatic.getIccPrivKeyCrtCoefficient());
+        offset = putBytes(buffer, offset, accountParamsStatic.getIccPrivKeyPrimeExponentQ());
+        offset = putBytes(buffer, offset, accountParamsStatic.getIccPrivKeyPrimeExponentP());
+        offset = putBytes(buffer, offset, accountParamsStatic.getIccPrivKeyPrimeQ());
+        offset = putBytes(buffer, offset, accountParamsStatic.getIccPrivKeyPrimeP());
+
+        offset = putShort(buffer, offset, (short) accountParamsStatic.getIccKeyModulusLength());
+        buffer[offset++] = (byte) accountParamsStatic.getMaxNumberAccountParamsDynamic();
+        buffer[offset++] = (byte) accountParamsStatic.getMinThresholdNumberAccountParamsDynamic();
+        buffer[offset++] = (byte) accountParamsStatic.getCheckIntervalTimeToExpire();
+        offset = putShort(buffer, offset, (short) accountParamsStatic.getMaxTransactionVerificationLogs());
+
+        HashMap<Short, byte[]> records = accountParamsStatic.getSfiRecords();
+        if (records == null) {
+            return putShort(buffer, offset, NULL_LENGTH);
+        }
+
+        offset = putShort(buffer, offset, (short) records.size());
+        for (Map.Entry<Short, byte[]> record : records.entrySet()) {
+            offset = putShort(buffer, offset, record.getKey().shortValue());
+            offset = putBytes(buffer, offset, record.getValue());
+        }
+
+        return offset;
+    }
+
+    /**
+     * Encodes Dynamic Account Parameters.
+     * 
+     * @param accountParamsDynamic
+     *            Dynamic Account Parameters to encode
+     * @param buffer
+     *            output buffer, e.g. APDU buffer
+     * @param offset
+     *            offset in output buffer
+     * @return offset in output buffer after encoded data
+     */
+    public static short encode(AccountParamsDynamic accountParamsDynamic, byte[] buffer, short offset) {
+        byte[] lukMsd = accountParamsDynamic.getLukMsd();
+
+        buffer[offset++] = VERSION;
+        buffer[offset++] = (lukMsd != null) ? FLAG_LUK_MSD : (byte) 0x00;
+
+        // Account Parameters Index (YHHHHCC) is ASCII digits.
+        int accountParametersIndex = accountParamsDynamic.getPackedAccountParametersIndex();
+        if (accountParametersIndex != AccountParamsIndex.NONE) {
+            offset = putShort(buffer, offset, (short) AccountParamsIndex.LENGTH);
+            offset = (short) AccountParamsIndex.putAscii(accountParametersIndex, buffer, offset);
+        }
+        else {
+            offset = putShort(buffer, offset, NULL_LENGTH);
+        }
+
+        System.arraycopy(accountParamsDynamic.getLuk(), 0, buffer, offset, LUK_LENGTH);
+        offset += LUK_LENGTH;
+        offset = putLong(buffer, offset, accountParamsDynamic.getExpirationTimestamp());
+        offset = putLong(buffer, offset, accountParamsDynamic.getReceivedTimestamp());
+        offset = putShort(buffer, offset, accountParamsDynamic.getAtc());
+
+        if (lukMsd != null) {
+            System.arraycopy(lukMsd, 0, buffer, offset, LUK_LENGTH);
+            offset += LUK_LENGTH;
+        }
+
+        return offset;
+    }
+
+    /**
+     * Decodes Static Account Parameters in binary or Java serialization format.
+     * 
+     * @param buffer
+     *            input buffer
+     * @param offset
+     *            offset of encoded data in input buffer
+     * @param length
+     *            length of encoded data
+     * @return decoded Static Account Parameters
+     * @throws ISOException
+     *             with SW_DATA_INVALID if data is malformed or has unknown version
+     */
+    public static AccountParamsStatic decodeStatic(byte[] buffer, int offset, int length) throws ISOException {
+        if ((length > 0) && (buffer[offset] == STREAM_MAGIC_BYTE_1)) {
+            return (AccountParamsStatic) deserialize(buffer, offset, length);
+        }
+
+        Reader reader = new Reader(buffer, offset, length);
+        AccountParamsStatic accountParamsStatic = new AccountParamsStatic();
+        try {
+            if (reader.getByte() != VERSION) {
+                ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+            }
+
+            short fieldLength = reader.nextField();
+            accountParamsStatic.setAid(reader.field(), reader.fieldOffset(), (byte) fieldLength);
+            fieldLength = reader.nextField();
+            accountParamsStatic.setTagA5Data(reader.field(), reader.fieldOffset(), fieldLength);
+            fieldLength = reader.nextField();
+            accountParamsStatic.setGpoResponseMsd(reader.field(), reader.fieldOffset(), fieldLength);
+            fieldLength = reader.nextField();
+            accountParamsStatic.setGpoResponseQvsdc(reader.field(), reader.fieldOffset(), fieldLength);
+            fieldLength = reader.nextField();
+            accountParamsStatic.setIssuerApplicationData(reader.field(), reader.fieldOffset(), fieldLength);
+            fieldLength = reader.nextField();
+            accountParamsStatic.setPanSequenceNumber(reader.field(), reader.fieldOffset(), fieldLength);
+            fieldLength = reader.nextField();
+            accountParamsStatic.setCardTransactionQualifier(reader.field(), reader.fieldOffset(), fieldLength);
+            fieldLength = reader.nextField();
+            accountParamsStatic.setTrack2EquivalentData(reader.field(), reader.fieldOffset(), fieldLength);
+            fieldLength = reader.nextField();
+            accountParamsStatic.setCardholderName(reader.field(), reader.fieldOffset(), fieldLength);
+            fieldLength = reader.nextField();
+            accountParamsStatic.setCvmList(reader.field(), reader.fieldOffset(), fieldLength);
+            fieldLength = reader.nextField();
+            accountParamsStatic.setIccPrivKeyCrtCoefficient(reader.field(), reader.fieldOffset(), fieldLength);
+            fieldLength = reader.nextField();
+            accountParamsStatic.setIccPrivKeyPrimeExponentQ(reader.field(), reader.fieldOffset(), fieldLength);
+            fieldLength = reader.nextField();
+            accountParamsStatic.setIccPrivKeyPrimeExponentP(reader.field(), reader.fieldOffset(), fieldLength);
+            fieldLength = reader.nextField();
+            accountParamsStatic.setIccPrivKeyPrimeQ(reader.field(), reader.fieldOffset(), fieldLength);
+            fieldLength = reader.nextField();
+            accountParamsStatic.setIccPrivKeyPrimeP(reader.field(), reader.fieldOffset(), fieldLength);
+
+            accountParamsStatic.setIccKeyModulusLength(reader.getShort() & 0xFFFF);
+            accountParamsStatic.setMaxNumberAccountParamsDynamic(reader.getByte());
+            accountParamsStatic.setMinThresholdNumberAccountParamsDynamic(reader.getByte());
+            accountParamsStatic.setCheckIntervalTimeToExpire(reader.getByte());
+            accountParamsStatic.setMaxTransactionVerificationLogs(reader.getShort());
+
+            short numberRecords = reader.getLength();
+            if (numberRecords != NULL_LENGTH) {
+                HashMap<Short, byte[]> records = new HashMap<Short, byte[]>();
+                for (short i = 0; i < numberRecords; i++) {
+                    short sfiRecord = reader.getShort();
+                    fieldLength = reader.nextField();
+                    byte[] record = null;
+                    if (reader.field() != null) {
+                        record = new byte[fieldLength];
+                        System.arraycopy(buffer, reader.fieldOffset(), record, 0, fieldLength);
+                    }
+                    records.put(sfiRecord, record);
+                }
+                accountParamsStatic.setSfiRecords(records);
+            }
+            else {
+                accountParamsStatic.setSfiRecords(null);
+            }
+        }
+        catch (ArrayIndexOutOfBoundsException e) {
+            ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+        }
+
+        return accountParamsStatic;
+    }
+
+    /**
+     * Decodes Dynamic Account Parameters in binary or Java serialization format.
+     * 
+     * @param buffer
+     *            input buffer
+     * @param offset
+     *            offset of encoded data in input buffer
+     * @param length
+     *            length of encoded data
+     * @return decoded Dynamic Account Parameters
+     * @throws ISOException
+     *             with SW_DATA_INVALID if data is malformed or has unknown version
+     */
+    public static AccountParamsDynamic decodeDynamic(byte[] buffer, int offset, int length) throws ISOException {
+        if ((length > 0) && (buffer[offset] == STREAM_MAGIC_BYTE_1)) {
+            return (AccountParamsDynamic) deserialize(buffer, offset, length);
+        }
+
+        Reader reader = new Reader(buffer, offset, length);
+        AccountParamsDynamic accountParamsDynamic = null;
+        try {
+            if (reader.getByte() != VERSION) {
+                ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+            }
+
+            byte flags = reader.getByte();
+
+            int accountParametersIndex = AccountParamsIndex.NONE;
+            short indexLength = reader.getLength();
+            if (indexLength != NULL_LENGTH) {
+                accountParametersIndex = AccountParamsIndex.parse(buffer, reader.skip(indexLength), indexLength);
+                if (accountParametersIndex == AccountParamsIndex.NONE) {
+                    ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+                }
+            }
+
+            int lukOffset = reader.skip(LUK_LENGTH);
+            long expirationTimestamp = reader.getLong();
+            long receivedTimestamp = reader.getLong();
+            short atc = reader.getShort();
+
+            if ((flags & FLAG_LUK_MSD) != 0) {
+                int lukMsdOffset = reader.skip(LUK_LENGTH);
+                accountParamsDynamic = new AccountParamsDynamic(accountParametersIndex, 
+                                                                buffer, (short) lukOffset, 
+                                                                expirationTimestamp, 
+                                                                atc, 
+                                                                buffer, (short) lukMsdOffset);
+            }
+            else {
+                accountParamsDynamic = new AccountParamsDynamic(accountParametersIndex, 
+                                                                buffer, (short) lukOffset, 
+                                                                expirationTimestamp, 
+                                                                atc);
+            }
+            accountParamsDynamic.setReceivedTimestamp(receivedTimestamp);
+        }
+        catch (ArrayIndexOutOfBoundsException e) {
+            ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+        }
+
+        return accountParamsDynamic;
+    }
+
+    /**
+     * Decodes the response to a batch GET DYNAMIC ACCOUNT PARAMETERS command: a count byte 
+     * followed by Dynamic Account Parameters in binary format, each prefixed with a 2-byte length.
+     * 
+     * @param buffer
+     *            input buffer
+     * @param offset
+     *            offset of batch in input buffer
+     * @param length
+     *            length of batch
+     * @return decoded Dynamic Account Parameters, <code>null</code> for each set that could not be decoded
+     * @throws ISOException
+     *             with SW_DATA_INVALID if batch framing is malformed
+     */
+    public static AccountParamsDynamic[] decodeDynamicBatch(byte[] buffer, int offset, int length) throws ISOException {
+        Reader reader = new Reader(buffer, offset, length);
+        AccountParamsDynamic[] batch = null;
+        try {
+            batch = new AccountParamsDynamic[reader.getByte() & 0xFF];
+            for (int i = 0; i < batch.length; i++) {
+                short entryLength = reader.getShort();
+                int entryOffset = reader.skip(entryLength);
+                try {
+                    batch[i] = decodeDynamic(buffer, entryOffset, entryLength);
+                }
+                catch (ISOException e) {
+                    batch[i] = null;
+                }
+            }
+        }
+        catch (ArrayIndexOutOfBoundsException e) {
+            ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+        }
+
+        return batch;
+    }
+
+    private static Object deserialize(byte[] buffer, int offset, int length) throws ISOException {
+        ObjectInputStream in = null;
+        try {
+            in = new ObjectInputStream(new ByteArrayInputStream(buffer, offset, length));
+            return in.readObject();
+        }
+        catch (Exception e) {
+            ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+            return null;
+        }
+        finally {
+            try {
+                if (in != null) {
+                    in.close();
+                }
+            }
+            catch (Exception e) {
+            }
+        }
+    }
+
+    private static short putBytes(byte[] buffer, short offset, byte[] data) {
+        if (data == null) {
+            return putShort(buffer, offset, NULL_LENGTH);
+        }
+
+        offset = putShort(buffer, offset, (short) data.length);
+        System.arraycopy(data, 0, buffer, offset, data.length);
+        return (short) (offset + data.length);
+    }
+
+    private static short putShort(byte[] buffer, short offset, short value) {
+        buffer[offset++] = (byte) (value >> 8);
+        buffer[offset++] = (byte) value;
+        return offset;
+    }
+
+    private static short putLong(byte[] buffer, short offset, long value) {
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            buffer[offset++] = (byte) (value >> shift);
+        }
+        return offset;
+    }
+
+    /**
+     * Bounds checked sequential reader over encoded data.
+     */
+    private static final class Reader {
+
+        private final byte[] buffer;
+        private int offset;
+        private final int end;
+
+        private boolean fieldNull;
+        private int fieldOffset;
+
+        Reader(byte[] buffer, int offset, int length) {
+            if ((offset < 0) || (length < 0) || ((offset + length) > buffer.length)) {
+                ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+            }
+
+            this.buffer = buffer;
+            this.offset = offset;
+            this.end = offset + length;
+        }
+
+        /**
+         * Advances past <code>length</code> bytes, returning the offset of the first one.
+         */
+        int skip(int length) {
+            if ((length < 0) || ((this.offset + length) > this.end)) {
+                throw new ArrayIndexOutOfBoundsException();
+            }
+
+            int start = this.offset;
+            this.offset += length;
+            return start;
+        }
+
+        byte getByte() {
+            return this.buffer[skip(1)];
+        }
+
+        short getShort() {
+            int start = skip(2);
+            return (short) (((this.buffer[start] & 0xFF) << 8) | (this.buffer[start + 1] & 0xFF));
+        }
+
+        /**
+         * Reads a 2-byte length, either NULL_LENGTH or 0 to 0x7FFF.
+         */
+        short getLength() {
+            short length = getShort();
+            if ((length < 0) && (length != NULL_LENGTH)) {
+                throw new ArrayIndexOutOfBoundsException();
+            }
+            return length;
+        }
+
+        /**
+         * Advances past the next length prefixed field and returns its length, 0 for null.
+         * The field data is then available from {@link #field} and {@link #fieldOffset}.
+         */
+        short nextField() {
+            short length = getLength();
+            if (length == NULL_LENGTH) {
+                this.fieldNull = true;
+                this.fieldOffset = 0;
+                return (short) 0;
+            }
+
+            this.fieldNull = false;
+            this.fieldOffset = skip(length);
+            return length;
+        }
+
+        /**
+         * Returns the buffer holding the last field or <code>null</code> if the field was null.
+         */
+        byte[] field() {
+            return this.fieldNull ? null : this.buffer;
+        }
+
+        short fieldOffset() {
+            return (short) this.fieldOffset;
+        }
+
+        long getLong() {
+            int start = skip(8);
+            long value = 0;
+            for (int i = 0; i < 8; i++) {
+                value = (value << 8) | (this.buffer[start + i] & 0xFF);
+            }
+            return value;
+        }
+
+    }
+
+}
@@ -18,6 +18,10 @@
  */
 package com.st.vcbp.data;
 
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 
 import javacard.framework.ISO7816;
@@ -33,9 +37,12 @@ final public class AccountParamsDynamic implements Serializable {
 
     private static final long serialVersionUID = 1L;
 
-    // Account Parameters Index (YHHHHCC)
+    // Account Parameters Index (YHHHHCC), string form kept for the serialized form.
     private String acctParamIndex;
 
+    // Account Parameters Index as packed digits.
+    private transient int acctParamIndexPacked;
+
     // Limited Use Key
     private byte[] luk;
 
@@ -67,6 +74,35 @@ final public class AccountParamsDynamic implements Serializable {
                                 long expirationTimestamp, 
                                 short atc, 
                                 byte[] lukMsdBuffer, short lukMsdOffset) throws ISOException {
+        this(AccountParamsIndex.parse(accountParametersIndex), 
+             lukBuffer, lukOffset, 
+             expirationTimestamp, 
+             atc, 
+             lukMsdBuffer, lukMsdOffset);
+
+        if ((accountParametersIndex != null) && 
+            (this.acctParamIndexPacked == AccountParamsIndex.NONE)) {
+            ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+        }
+        this.acctParamIndex = accountParametersIndex;
+    }
+
+    public AccountParamsDynamic(int accountParametersIndex, 
+                                byte[] lukBuffer, short lukOffset, 
+                                long expirationTimestamp, 
+                                short atc) throws ISOException {
+        this(accountParametersIndex, 
+             lukBuffer, lukOffset, 
+             expirationTimestamp, 
+             atc, 
+             null, (short) 0);
+    }
+
+    public AccountParamsDynamic(int accountParametersIndex, 
+                                byte[] lukBuffer, short lukOffset, 
+                                long expirationTimestamp, 
+                                short atc, 
+                                byte[] lukMsdBuffer, short lukMsdOffset) throws ISOException {
         try {
             this.luk = new byte[16];
             System.arraycopy(lukBuffer, lukOffset, this.luk, 0, this.luk.length);
@@ -76,7 +112,7 @@ final public class AccountParamsDynamic implements Serializable {
                 System.arraycopy(lukMsdBuffer, lukMsdOffset, this.lukMsd, 0, this.lukMsd.length);
             }
 
-            this.acctParamIndex = accountParametersIndex;
+            this.acctParamIndexPacked = accountParametersIndex;
             this.expTimestamp = expirationTimestamp;
             this.atc = atc;
         }
@@ -88,10 +124,25 @@ final public class AccountParamsDynamic implements Serializable {
         }
     }
 
+    /**
+     * Returns the Account Parameters Index (YHHHHCC) string, for display and the shared forms.
+     */
     public String getAccountParamtersIndex() {
+        if ((this.acctParamIndex == null) && 
+            (this.acctParamIndexPacked != AccountParamsIndex.NONE)) {
+            this.acctParamIndex = AccountParamsIndex.toString(this.acctParamIndexPacked);
+        }
+
         return this.acctParamIndex;
     }
 
+    /**
+     * Returns the Account Parameters Index as packed digits, AccountParamsIndex.NONE if not set.
+     */
+    public int getPackedAccountParametersIndex() {
+        return this.acctParamIndexPacked;
+    }
+
     public byte[] getLuk() {
         return this.luk;
     }
@@ -116,4 +167,19 @@ final public class AccountParamsDynamic implements Serializable {
         return this.lukMsd;
     }
 
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        getAccountParamtersIndex();
+        out.defaultWriteObject();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+
+        this.acctParamIndexPacked = AccountParamsIndex.parse(this.acctParamIndex);
+        if ((this.acctParamIndex != null) && 
+            (this.acctParamIndexPacked == AccountParamsIndex.NONE)) {
+            throw new InvalidObjectException("Invalid Account Parameters Index: " + this.acctParamIndex);
+        }
+    }
+
 }
@@ -18,6 +18,10 @@
  */
 package com.st.vcbp.data;
 
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.Calendar;
 
@@ -40,9 +44,12 @@ final public class TransactionVerificationLog implements Serializable {
     // UTC timestamp at the time of transaction.
     private long utcTimestamp;
 
-    // Account Parameters Index (YHHHHCC) used in transaction.
+    // Account Parameters Index (YHHHHCC) used in transaction, string form kept for the serialized form.
     private String acctParamIndex;
 
+    // Account Parameters Index as packed digits.
+    private transient int acctParamIndexPacked;
+
     // Transaction type, MSD or qVSDC.
     private byte transactionType;
 
@@ -52,12 +59,27 @@ final public class TransactionVerificationLog implements Serializable {
     public TransactionVerificationLog(String accountParametersIndex, 
                                       byte transactionType, 
                                       String unpredictableNumber) throws ISOException {
-        if ((accountParametersIndex != null) && 
+        this(AccountParamsIndex.parse(accountParametersIndex), transactionType, unpredictableNumber);
+
+        this.acctParamIndex = accountParametersIndex;
+    }
+
+    public TransactionVerificationLog(int accountParametersIndex, 
+                                      byte transactionType, 
+                                      String unpredictableNumber) throws ISOException {
+        this(Calendar.getInstance().getTimeInMillis(), accountParametersIndex, transactionType, unpredictableNumber);
+    }
+
+    TransactionVerificationLog(long utcTimestamp, 
+                               int accountParametersIndex, 
+                               byte transactionType, 
+                               String unpredictableNumber) throws ISOException {
+        if ((accountParametersIndex != AccountParamsIndex.NONE) && 
             ((transactionType == TRANSACTION_TYPE_MSD) || 
              ((transactionType == TRANSACTION_TYPE_QVSDC) && (unpredictableNumber != null)))) {
-            this.utcTimestamp = Calendar.getInstance().getTimeInMillis();
+            this.utcTimestamp = utcTimestamp;
 
-            this.acctParamIndex = accountParametersIndex;
+            this.acctParamIndexPacked = accountParametersIndex;
             this.transactionType = transactionType;
             this.un = unpredictableNumber;
         }
@@ -71,9 +93,20 @@ final public class TransactionVerificationLog implements Serializable {
     }
 
     public String getAccountParametersIndex() {
+        if (this.acctParamIndex == null) {
+            this.acctParamIndex = AccountParamsIndex.toString(this.acctParamIndexPacked);
+        }
+
         return this.acctParamIndex;
     }
 
+    /**
+     * Returns the Account Parameters Index as packed digits.
+     */
+    public int getPackedAccountParametersIndex() {
+        return this.acctParamIndexPacked;
+    }
+
     public byte getTransactionType() {
         return this.transactionType;
     }
@@ -82,4 +115,18 @@ final public class TransactionVerificationLog implements Serializable {
         return this.un;
     }
 
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        getAccountParametersIndex();
+        out.defaultWriteObject();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+
+        this.acctParamIndexPacked = AccountParamsIndex.parse(this.acctParamIndex);
+        if (this.acctParamIndexPacked == AccountParamsIndex.NONE) {
+            throw new InvalidObjectException("Invalid Account Parameters Index: " + this.acctParamIndex);
+        }
+    }
+
 }
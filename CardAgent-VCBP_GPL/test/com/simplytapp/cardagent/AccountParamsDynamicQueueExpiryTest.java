@@ -0,0 +1,193 @@
+/**
+ * This file is part of CardAgent-VCBP which is card agent implementation 
+ * of V Cloud-Based Payments for SimplyTapp mobile platform.
+ * Copyright 2014 SimplyTapp, Inc.
+ * 
+ * CardAgent-VCBP is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, either version 3 of the License, or 
+ * (at your option) any later version.
+ * 
+ * CardAgent-VCBP is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with CardAgent-VCBP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.simplytapp.cardagent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.st.vcbp.data.AccountParamsDynamic;
+
+/**
+ * Expiry of {@link AccountParamsDynamicQueue} on a simulated clock, including 
+ * a time to live that changes between batches of Dynamic Account Parameters.
+ * 
+ * @author SimplyTapp, Inc.
+ * @version 1.0
+ */
+public class AccountParamsDynamicQueueExpiryTest {
+
+    private static final byte[] LUK = new byte[16];
+
+    private static final long MINUTE = 60L * 1000L;
+    // Same role as 'checkInternalTimeToExpire' of the card agent.
+    private static final long CHECK_INTERVAL = 5 * MINUTE;
+
+    private int nextIndex = 0;
+
+    private AccountParamsDynamic newAccountParamsDynamic(long expirationTimestamp) {
+        final int index = this.nextIndex++;
+        return new AccountParamsDynamic(index, LUK, (short) 0, expirationTimestamp, (short) index);
+    }
+
+    @Test
+    public void constantTimeToLiveStaysOrdered() {
+        AccountParamsDynamicQueue queue = new AccountParamsDynamicQueue(10);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(queue.offer(newAccountParamsDynamic(1000 + i)));
+        }
+        assertTrue(queue.isOrdered());
+        assertEquals(1000, queue.nextExpirationTimestamp());
+        assertEquals(3, queue.removeExpired(1002));
+        assertEquals(7, queue.size());
+    }
+
+    @Test
+    public void shorterTimeToLiveRemovesBehindHead() {
+        AccountParamsDynamicQueue queue = new AccountParamsDynamicQueue(10);
+        AccountParamsDynamic[] longLived = new AccountParamsDynamic[5];
+        for (int i = 0; i < longLived.length; i++) {
+            longLived[i] = newAccountParamsDynamic(60 * MINUTE);
+            assertTrue(queue.offer(longLived[i]));
+        }
+        // Time to live shortened for the next batch.
+        for (int i = 0; i < 5; i++) {
+            assertTrue(queue.offer(newAccountParamsDynamic(10 * MINUTE)));
+        }
+        assertFalse(queue.isOrdered());
+        assertEquals(10 * MINUTE, queue.nextExpirationTimestamp());
+
+        assertEquals(5, queue.removeExpired(10 * MINUTE));
+        assertEquals(5, queue.size());
+        assertEquals(60 * MINUTE, queue.nextExpirationTimestamp());
+
+        // Rebuilt without the expired elements, room for a full batch.
+        for (int i = 0; i < 5; i++) {
+            assertTrue(queue.offer(newAccountParamsDynamic(20 * MINUTE)));
+        }
+        assertFalse(queue.offer(newAccountParamsDynamic(20 * MINUTE)));
+        assertEquals(10, queue.size());
+
+        // Transactions still use the oldest first and skip the holes.
+        for (int i = 0; i < longLived.length; i++) {
+            assertSame(longLived[i], queue.poll());
+        }
+        assertTrue(queue.isOrdered());
+        assertEquals(20 * MINUTE, queue.nextExpirationTimestamp());
+        assertEquals(5, queue.removeExpired(20 * MINUTE));
+        assertTrue(queue.isEmpty());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void neverExpiringOrdersLast() {
+        AccountParamsDynamicQueue queue = new AccountParamsDynamicQueue(4);
+        assertTrue(queue.offer(newAccountParamsDynamic(0)));
+        assertTrue(queue.offer(newAccountParamsDynamic(100)));
+        assertFalse(queue.isOrdered());
+        assertEquals(100, queue.nextExpirationTimestamp());
+        assertEquals(1, queue.removeExpired(Long.MAX_VALUE));
+        assertEquals(0, queue.nextExpirationTimestamp());
+        assertEquals(1, queue.size());
+    }
+
+    @Test
+    public void simulatedClockWithChangingTimeToLive() {
+        simulate(new Random(1), 16, 5000);
+        simulate(new Random(2), 64, 20000);
+        simulate(new Random(3), 1, 2000);
+    }
+
+    /**
+     * Runs the card agent's refill, expiry check and transaction cycle against a simulated clock.
+     */
+    private void simulate(Random random, int capacity, int total) {
+        AccountParamsDynamicQueue queue = new AccountParamsDynamicQueue(capacity);
+        this.nextIndex = 0;
+
+        long now = 0;
+        long timeToLive = 60 * MINUTE;
+        int polled = 0;
+        int removed = 0;
+        int lastPolledIndex = -1;
+
+        while (this.nextIndex < total) {
+            // Refill, the card applet may change the time to live between batches.
+            if (random.nextInt(3) == 0) {
+                timeToLive = (1 + random.nextInt(24)) * 10 * MINUTE;
+            }
+            final int batch = capacity - queue.size();
+            for (int i = 0; (i < batch) && (this.nextIndex < total); i++) {
+                assertTrue(queue.offer(newAccountParamsDynamic(now + timeToLive)));
+            }
+            assertTrue(queue.size() <= capacity);
+            assertEquals(expectedNextExpirationTimestamp(queue), queue.nextExpirationTimestamp());
+
+            // Next event is either the scheduled expiry check or a transaction.
+            final long nextExpirationTimestamp = queue.nextExpirationTimestamp();
+            final long tap = now + random.nextInt((int) (30 * MINUTE));
+            if ((nextExpirationTimestamp != 0) && 
+                ((nextExpirationTimestamp - CHECK_INTERVAL) <= tap)) {
+                now = Math.max(now, nextExpirationTimestamp - CHECK_INTERVAL);
+                final int sizeBefore = queue.size();
+                final int removedNow = queue.removeExpired(now + CHECK_INTERVAL);
+                assertTrue(removedNow > 0);
+                assertEquals(sizeBefore - removedNow, queue.size());
+                removed += removedNow;
+
+                // Nothing held expires within the check interval.
+                for (AccountParamsDynamic accountParamsDynamic : queue.toArrayDeque()) {
+                    assertTrue(accountParamsDynamic.getExpirationTimestamp() > (now + CHECK_INTERVAL));
+                }
+            }
+            else {
+                now = tap;
+                AccountParamsDynamic accountParamsDynamic = queue.poll();
+                assertNotNull(accountParamsDynamic);
+                assertTrue(accountParamsDynamic.getExpirationTimestamp() > now);
+                // Transactions use Dynamic Account Parameters in the order they were generated.
+                assertTrue(accountParamsDynamic.getPackedAccountParametersIndex() > lastPolledIndex);
+                lastPolledIndex = accountParamsDynamic.getPackedAccountParametersIndex();
+                polled++;
+            }
+        }
+
+        assertEquals(total, polled + removed + queue.size());
+        assertEquals(queue.size(), queue.toArrayDeque().size());
+    }
+
+    private static long expectedNextExpirationTimestamp(AccountParamsDynamicQueue queue) {
+        long expected = 0;
+        for (AccountParamsDynamic accountParamsDynamic : queue.toArrayDeque()) {
+            final long expirationTimestamp = accountParamsDynamic.getExpirationTimestamp();
+            if ((expected == 0) || (expirationTimestamp < expected)) {
+                expected = expirationTimestamp;
+            }
+        }
+
+        return expected;
+    }
+}
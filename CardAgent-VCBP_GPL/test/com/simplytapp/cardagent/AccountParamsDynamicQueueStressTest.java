@@ -0,0 +1,205 @@
+/**
+ * This file is part of CardAgent-VCBP which is card agent implementation 
+ * of V Cloud-Based Payments for SimplyTapp mobile platform.
+ * Copyright 2014 SimplyTapp, Inc.
+ * 
+ * CardAgent-VCBP is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, either version 3 of the License, or 
+ * (at your option) any later version.
+ * 
+ * CardAgent-VCBP is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with CardAgent-VCBP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.simplytapp.cardagent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import com.st.vcbp.data.AccountParamsDynamic;
+
+/**
+ * Stress test of {@link AccountParamsDynamicQueue}: one producer offers while 
+ * several consumers poll and remove expired Dynamic Account Parameters, and 
+ * every element offered must leave the queue exactly once.
+ * 
+ * @author SimplyTapp, Inc.
+ * @version 1.0
+ */
+public class AccountParamsDynamicQueueStressTest {
+
+    private static final byte[] LUK = new byte[16];
+
+    private static final int COUNT = 200000;
+    private static final int POLLERS = 3;
+    private static final int SWEEPERS = 2;
+
+    // Elements are polled or expired while the producer is at most this far ahead.
+    private static final long EXPIRY_LAG = 64;
+
+    @Test
+    public void offerPollRemoveExpiredSmallCapacity() throws Exception {
+        run(8);
+    }
+
+    @Test
+    public void offerPollRemoveExpiredCapacityNotPowerOfTwo() throws Exception {
+        run(100);
+    }
+
+    @Test
+    public void offerPollRemoveExpiredLargeCapacity() throws Exception {
+        run(4096);
+    }
+
+    @Test
+    public void offerPollRemoveExpiredOutOfOrder() throws Exception {
+        run(16, true);
+    }
+
+    @Test
+    public void emptyQueue() {
+        AccountParamsDynamicQueue queue = new AccountParamsDynamicQueue(4);
+        assertNull(queue.poll());
+        assertEquals(0, queue.removeExpired(Long.MAX_VALUE));
+        assertEquals(0, queue.nextExpirationTimestamp());
+        assertTrue(queue.isEmpty());
+    }
+
+    private void run(int capacity) throws Exception {
+        run(capacity, false);
+    }
+
+    private void run(final int capacity, boolean outOfOrder) throws Exception {
+        final AccountParamsDynamicQueue queue = new AccountParamsDynamicQueue(capacity);
+
+        // Element i expires at i + 1, the producer publishes the expiry clock as it goes.
+        // Out of order, every other batch of 32 expires later to force expiry sweeps.
+        final AccountParamsDynamic[] elements = new AccountParamsDynamic[COUNT];
+        for (int i = 0; i < COUNT; i++) {
+            final long expirationTimestamp = (outOfOrder && (((i / 32) % 2) == 0)) ? (i + 1 + (EXPIRY_LAG / 2)) : (i + 1);
+            elements[i] = new AccountParamsDynamic(i, LUK, (short) 0, expirationTimestamp, (short) i);
+        }
+
+        final AtomicIntegerArray polled = new AtomicIntegerArray(COUNT);
+        final AtomicLong expired = new AtomicLong();
+        final AtomicLong clock = new AtomicLong();
+        final AtomicBoolean produced = new AtomicBoolean();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final CyclicBarrier start = new CyclicBarrier(1 + POLLERS + SWEEPERS);
+        final CountDownLatch done = new CountDownLatch(1 + POLLERS + SWEEPERS);
+
+        List<Thread> threads = new ArrayList<Thread>();
+        threads.add(new Worker(start, done, failure) {
+            @Override
+            void work() {
+                for (int i = 0; i < COUNT; i++) {
+                    while (!queue.offer(elements[i])) {
+                        Thread.yield();
+                    }
+                    assertTrue(queue.size() <= capacity);
+                    clock.set(Math.max(0, i - EXPIRY_LAG));
+                }
+                produced.set(true);
+            }
+        });
+        for (int p = 0; p < POLLERS; p++) {
+            threads.add(new Worker(start, done, failure) {
+                @Override
+                void work() {
+                    while (!produced.get() || !queue.isEmpty()) {
+                        AccountParamsDynamic accountParamsDynamic = queue.poll();
+                        if (accountParamsDynamic != null) {
+                            polled.incrementAndGet(accountParamsDynamic.getPackedAccountParametersIndex());
+                        }
+                        else {
+                            Thread.yield();
+                        }
+                    }
+                }
+            });
+        }
+        for (int s = 0; s < SWEEPERS; s++) {
+            threads.add(new Worker(start, done, failure) {
+                @Override
+                void work() {
+                    while (!produced.get() || !queue.isEmpty()) {
+                        final int removed = queue.removeExpired(clock.get());
+                        if (removed > 0) {
+                            expired.addAndGet(removed);
+                        }
+                        else {
+                            Thread.yield();
+                        }
+                    }
+                }
+            });
+        }
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        assertTrue("Timed out", done.await(120, TimeUnit.SECONDS));
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+
+        int polledCount = 0;
+        for (int i = 0; i < COUNT; i++) {
+            final int times = polled.get(i);
+            assertTrue("Element " + i + " polled " + times + " times", times <= 1);
+            polledCount += times;
+        }
+        assertEquals(COUNT, polledCount + expired.get());
+        assertTrue(queue.isEmpty());
+        assertNull(queue.poll());
+    }
+
+    private abstract static class Worker extends Thread {
+
+        private final CyclicBarrier start;
+        private final CountDownLatch done;
+        private final AtomicReference<Throwable> failure;
+
+        Worker(CyclicBarrier start, CountDownLatch done, AtomicReference<Throwable> failure) {
+            this.start = start;
+            this.done = done;
+            this.failure = failure;
+            setDaemon(true);
+        }
+
+        abstract void work() throws Exception;
+
+        @Override
+        public void run() {
+            try {
+                this.start.await();
+                work();
+            }
+            catch (Throwable t) {
+                this.failure.compareAndSet(null, t);
+            }
+            finally {
+                this.done.countDown();
+            }
+        }
+    }
+}
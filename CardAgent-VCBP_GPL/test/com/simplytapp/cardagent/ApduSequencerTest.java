@@ -0,0 +1,159 @@
+/**
+ * This file is part of CardAgent-VCBP which is card agent implementation 
+ * of V Cloud-Based Payments for SimplyTapp mobile platform.
+ * Copyright 2014 SimplyTapp, Inc.
+ * 
+ * CardAgent-VCBP is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, either version 3 of the License, or 
+ * (at your option) any later version.
+ * 
+ * CardAgent-VCBP is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with CardAgent-VCBP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.simplytapp.cardagent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * {@link ApduSequencer} waking <code>process</code> when the previous R-APDU 
+ * has been sent or the transaction finished.
+ * 
+ * @author SimplyTapp, Inc.
+ * @version 1.0
+ */
+public class ApduSequencerTest {
+
+    // Long enough that a test only passes within it if the waiter was woken up.
+    private static final long LONG_TIMEOUT = 10000;
+
+    private final AtomicBoolean idle = new AtomicBoolean();
+    private final ApduSequencer sequencer = new ApduSequencer(new ApduSequencer.Idle() {
+        public boolean isIdle() {
+            return ApduSequencerTest.this.idle.get();
+        }
+    });
+
+    @Test
+    public void returnsRightAwayWhenIdle() {
+        this.idle.set(true);
+        final long start = System.currentTimeMillis();
+        assertTrue(this.sequencer.await(this.sequencer.ticket(), LONG_TIMEOUT));
+        assertTrue((System.currentTimeMillis() - start) < 1000);
+    }
+
+    @Test
+    public void timesOutWhileBusy() {
+        final long start = System.currentTimeMillis();
+        assertFalse(this.sequencer.await(this.sequencer.ticket(), ApduSequencer.POLL_INTERVAL));
+        assertTrue((System.currentTimeMillis() - start) >= (ApduSequencer.POLL_INTERVAL - 5));
+    }
+
+    @Test
+    public void signalWakesWaiterOnceIdle() throws Exception {
+        Waiter waiter = new Waiter(this.sequencer.ticket());
+        waiter.start();
+        waiter.awaitWaiting();
+
+        // Signal without a state change keeps the waiter waiting.
+        this.sequencer.signal();
+        Thread.sleep(50);
+        assertTrue(waiter.isAlive());
+
+        // R-APDU sent.
+        this.idle.set(true);
+        this.sequencer.signal();
+        waiter.join(LONG_TIMEOUT / 2);
+        assertFalse(waiter.isAlive());
+        assertEquals(1, waiter.result.get());
+        assertFalse(this.sequencer.isCancelled(waiter.ticket));
+    }
+
+    @Test
+    public void cancelWakesWaiter() throws Exception {
+        Waiter waiter = new Waiter(this.sequencer.ticket());
+        waiter.start();
+        waiter.awaitWaiting();
+
+        // Transaction finished while still busy.
+        this.sequencer.cancel();
+        waiter.join(LONG_TIMEOUT / 2);
+        assertFalse(waiter.isAlive());
+        assertEquals(1, waiter.result.get());
+        assertTrue(this.sequencer.isCancelled(waiter.ticket));
+
+        // The next transaction is not cancelled and waits again.
+        final int ticket = this.sequencer.ticket();
+        assertFalse(this.sequencer.isCancelled(ticket));
+        assertFalse(this.sequencer.await(ticket, 10));
+    }
+
+    @Test
+    public void interruptStopsWaiting() throws Exception {
+        Waiter waiter = new Waiter(this.sequencer.ticket());
+        waiter.start();
+        waiter.awaitWaiting();
+
+        waiter.interrupt();
+        waiter.join(LONG_TIMEOUT / 2);
+        assertFalse(waiter.isAlive());
+        assertEquals(0, waiter.result.get());
+    }
+
+    @Test
+    public void manyWaitersAllWoken() throws Exception {
+        Waiter[] waiters = new Waiter[8];
+        for (int i = 0; i < waiters.length; i++) {
+            waiters[i] = new Waiter(this.sequencer.ticket());
+            waiters[i].start();
+            waiters[i].awaitWaiting();
+        }
+
+        this.idle.set(true);
+        this.sequencer.signal();
+        for (Waiter waiter : waiters) {
+            waiter.join(LONG_TIMEOUT / 2);
+            assertEquals(1, waiter.result.get());
+        }
+    }
+
+    private final class Waiter extends Thread {
+
+        final int ticket;
+        // -1 while waiting, 1 if await returned true, 0 if false.
+        final AtomicInteger result = new AtomicInteger(-1);
+        private final CountDownLatch started = new CountDownLatch(1);
+
+        Waiter(int ticket) {
+            this.ticket = ticket;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            this.started.countDown();
+            this.result.set(ApduSequencerTest.this.sequencer.await(this.ticket, LONG_TIMEOUT) ? 1 : 0);
+        }
+
+        void awaitWaiting() throws InterruptedException {
+            assertTrue(this.started.await(LONG_TIMEOUT, TimeUnit.MILLISECONDS));
+            // Give the waiter time to block on the condition.
+            Thread.sleep(20);
+            assertEquals(-1, this.result.get());
+        }
+    }
+}
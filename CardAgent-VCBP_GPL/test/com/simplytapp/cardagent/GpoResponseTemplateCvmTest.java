@@ -0,0 +1,234 @@
+/**
+ * This file is part of CardAgent-VCBP which is card agent implementation 
+ * of V Cloud-Based Payments for SimplyTapp mobile platform.
+ * Copyright 2014 SimplyTapp, Inc.
+ * 
+ * CardAgent-VCBP is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, either version 3 of the License, or 
+ * (at your option) any later version.
+ * 
+ * CardAgent-VCBP is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with CardAgent-VCBP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.simplytapp.cardagent;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.st.vcbp.data.AccountParamsStatic;
+
+/**
+ * Randomized comparison of the CVM table of {@link GpoResponseTemplate} 
+ * against the qVSDC CVM processing loop it replaced, which is kept here as 
+ * the oracle.
+ * 
+ * @author SimplyTapp, Inc.
+ * @version 1.0
+ */
+public class GpoResponseTemplateCvmTest {
+
+    // CVM Codes handled by the loop, with and without 'apply succeeding CV Rule' bit.
+    private static final byte[] CVM_CODES = {
+        (byte) 0x02, (byte) 0x42, (byte) 0x1E, (byte) 0x5E, (byte) 0x1F, (byte) 0x5F, 
+        (byte) 0x01, (byte) 0x41, (byte) 0x3F, (byte) 0x00
+    };
+
+    @Test
+    public void randomCvmListsMatchLoop() {
+        Random random = new Random(15);
+        for (int list = 0; list < 2000; list++) {
+            AccountParamsStatic accountParamsStatic = newAccountParamsStatic(random, randomCvmList(random));
+            GpoResponseTemplate gpoResponseTemplate = new GpoResponseTemplate(accountParamsStatic);
+            for (int transaction = 0; transaction < 64; transaction++) {
+                byte ttqByte1 = (byte) random.nextInt(256);
+                byte ttqByte2 = (byte) random.nextInt(256);
+                byte ttqByte3 = (byte) random.nextInt(256);
+                check(accountParamsStatic, gpoResponseTemplate, ttqByte1, ttqByte2, ttqByte3);
+            }
+        }
+    }
+
+    @Test
+    public void everyTtqCombinationMatchesLoop() {
+        Random random = new Random(16);
+        for (int list = 0; list < 200; list++) {
+            AccountParamsStatic accountParamsStatic = newAccountParamsStatic(random, randomCvmList(random));
+            GpoResponseTemplate gpoResponseTemplate = new GpoResponseTemplate(accountParamsStatic);
+            // All values of the TTQ bits CVM processing depends on.
+            for (int bits = 0; bits < 16; bits++) {
+                byte ttqByte1 = (byte) (((bits & 0x01) << 2) | (bits & 0x02));
+                byte ttqByte2 = (byte) ((bits & 0x04) << 4);
+                byte ttqByte3 = (byte) ((bits & 0x08) << 3);
+                check(accountParamsStatic, gpoResponseTemplate, ttqByte1, ttqByte2, ttqByte3);
+            }
+        }
+    }
+
+    @Test
+    public void malformedCvmListsMatchLoop() {
+        Random random = new Random(17);
+        byte[][] cvmLists = {
+            null, 
+            new byte[0], 
+            new byte[7], 
+            new byte[8], 
+            // Odd number of bytes after the amount fields.
+            { 0, 0, 0, 0, 0, 0, 0, 0, (byte) 0x42 }, 
+            { 0, 0, 0, 0, 0, 0, 0, 0, (byte) 0x5E, (byte) 0x03, (byte) 0x42 }
+        };
+        for (byte[] cvmList : cvmLists) {
+            AccountParamsStatic accountParamsStatic = newAccountParamsStatic(random, cvmList);
+            GpoResponseTemplate gpoResponseTemplate = new GpoResponseTemplate(accountParamsStatic);
+            for (int ttq = 0; ttq < 4096; ttq++) {
+                check(accountParamsStatic, gpoResponseTemplate, 
+                      (byte) random.nextInt(256), (byte) random.nextInt(256), (byte) random.nextInt(256));
+            }
+        }
+    }
+
+    private static void check(AccountParamsStatic accountParamsStatic, GpoResponseTemplate gpoResponseTemplate, 
+                              byte ttqByte1, byte ttqByte2, byte ttqByte3) {
+        byte[] expectedCtq = accountParamsStatic.getCardTransactionQualifier().clone();
+        byte[] expectedIad = accountParamsStatic.getIssuerApplicationData().clone();
+        applyCvmLoop(accountParamsStatic.getCvmList(), expectedCtq, expectedIad, ttqByte1, ttqByte2, ttqByte3);
+
+        byte[] ctq = gpoResponseTemplate.applyCvm(ttqByte1, ttqByte2, ttqByte3);
+        byte[] iadValue = new byte[expectedIad.length];
+        gpoResponseTemplate.copyIadValue(iadValue, 0);
+
+        final String context = "TTQ=" + String.format("%02X%02X%02X", ttqByte1, ttqByte2, ttqByte3);
+        assertArrayEquals(context, expectedCtq, ctq);
+        assertEquals(context, 
+                     expectedIad[AccountParamsStatic.IAD_OFFSET_CVR_BYTE_1], 
+                     iadValue[AccountParamsStatic.IAD_OFFSET_CVR_BYTE_1 - AccountParamsStatic.IAD_VALUE_OFFSET]);
+    }
+
+    /**
+     * qVSDC CVM processing as done per transaction before the CVM List was compiled.
+     */
+    static void applyCvmLoop(byte[] cvmList, byte[] cardTransactionQualifier, byte[] issuerApplicationData, 
+                             byte ttqByte1, byte ttqByte2, byte ttqByte3) {
+        // Set CTQ Byte 1, bits 8-7 to 00b and Byte 2, bit 8 to 0b.
+        cardTransactionQualifier[AccountParamsStatic.CTQ_OFFSET_BYTE_1] &= (byte) 0x3F;
+        cardTransactionQualifier[AccountParamsStatic.CTQ_OFFSET_BYTE_2] &= (byte) 0xEF;
+
+        // Set CVR Byte 1 to 00000000b.
+        issuerApplicationData[AccountParamsStatic.IAD_OFFSET_CVR_BYTE_1] = (byte) 0x00;
+
+        // qVSDC CVM Processing.
+        if ((ttqByte2 & (byte) 0x40) == (byte) 0x40) {
+            try {
+                ByteBuffer cvmListBuffer = ByteBuffer.wrap(cvmList);
+                // Skip amount fields.
+                cvmListBuffer.position(8);
+                // Parse CVM List to determine which CVM(s) is/are supported.
+                while (cvmListBuffer.hasRemaining()) {
+                    // Process CVM Code.
+                    byte cvmCode = cvmListBuffer.get();
+                    boolean applyNext = ((byte) (cvmCode & (byte) 0x40) == (byte) 0x40);
+                    cvmCode = (byte) (cvmCode & (byte) 0x3F);
+                    if ((cvmCode == (byte) 0x02) && 
+                        ((ttqByte1 & (byte) 0x04) == (byte) 0x04)) {
+                        // Online PIN supported by account and Online PIN supported by reader.
+                        cardTransactionQualifier[AccountParamsStatic.CTQ_OFFSET_BYTE_1] |= (byte) 0x80;
+                        issuerApplicationData[AccountParamsStatic.IAD_OFFSET_CVR_BYTE_1] = (byte) 0x6E;
+                    }
+                    else if ((cvmCode == (byte) 0x1E) && 
+                             ((ttqByte1 & (byte) 0x02) == (byte) 0x02)) {
+                        // Signature supported by account and Signature supported by reader.
+                        cardTransactionQualifier[AccountParamsStatic.CTQ_OFFSET_BYTE_1] |= (byte) 0x40;
+                        issuerApplicationData[AccountParamsStatic.IAD_OFFSET_CVR_BYTE_1] = (byte) 0x6D;
+                    }
+                    else if ((ttqByte3 & (byte) 0x40) == (byte) 0x40) {
+                        // TODO: Consumer Device CVM option.
+                    }
+                    else if (!applyNext) {
+                        // No common CVM found.
+                        cvmListBuffer.position(cvmListBuffer.limit());
+                    }
+                    else {
+                        // Continue processing CVM List, skip CVM Condition.
+                        cvmListBuffer.get();
+                        continue;
+                    }
+
+                    break;
+                }
+                if (!cvmListBuffer.hasRemaining()) {
+                    // No common CVM found.
+                    cardTransactionQualifier[AccountParamsStatic.CTQ_OFFSET_BYTE_2] |= (byte) 0x80;
+                }
+            }
+            catch (Exception e) {
+                // No common CVM found due to exception.
+                cardTransactionQualifier[AccountParamsStatic.CTQ_OFFSET_BYTE_2] |= (byte) 0x80;
+            }
+        }
+        else {
+            // CVM not required by reader.
+            cardTransactionQualifier[AccountParamsStatic.CTQ_OFFSET_BYTE_2] |= (byte) 0x80;
+        }
+    }
+
+    static byte[] randomCvmList(Random random) {
+        // Amount fields followed by up to 6 CV Rules.
+        byte[] cvmList = new byte[8 + (2 * random.nextInt(7))];
+        random.nextBytes(cvmList);
+        for (int offset = 8; offset < cvmList.length; offset += 2) {
+            if (random.nextInt(4) != 0) {
+                cvmList[offset] = CVM_CODES[random.nextInt(CVM_CODES.length)];
+            }
+        }
+
+        return cvmList;
+    }
+
+    static AccountParamsStatic newAccountParamsStatic(Random random, byte[] cvmList) {
+        AccountParamsStatic accountParamsStatic = new AccountParamsStatic();
+
+        byte[] gpoResponseQvsdc = {
+            (byte) 0x82, (byte) 0x02, (byte) 0x00, (byte) 0x80, 
+            (byte) 0x94, (byte) 0x04, (byte) 0x08, (byte) 0x01, (byte) 0x01, (byte) 0x00
+        };
+        accountParamsStatic.setGpoResponseQvsdc(gpoResponseQvsdc, (short) 0, (short) gpoResponseQvsdc.length);
+
+        // CVN 43 IAD, random CVR.
+        byte[] iad = new byte[3 + 0x1F];
+        random.nextBytes(iad);
+        iad[0] = (byte) 0x9F;
+        iad[1] = (byte) 0x10;
+        iad[2] = (byte) 0x1F;
+        iad[AccountParamsStatic.IAD_VALUE_OFFSET] = (byte) 0x1F;
+        iad[AccountParamsStatic.IAD_VALUE_OFFSET + 1] = (byte) 0x43;
+        accountParamsStatic.setIssuerApplicationData(iad, (short) 0, (short) iad.length);
+
+        byte[] psn = { (byte) 0x5F, (byte) 0x34, (byte) 0x01, (byte) 0x01 };
+        accountParamsStatic.setPanSequenceNumber(psn, (short) 0, (short) psn.length);
+
+        // Random CTQ so untouched bits are checked too.
+        byte[] ctq = { (byte) 0x9F, (byte) 0x6C, (byte) 0x02, (byte) random.nextInt(256), (byte) random.nextInt(256) };
+        accountParamsStatic.setCardTransactionQualifier(ctq, (short) 0, (short) ctq.length);
+
+        byte[] track2 = new byte[2 + 19];
+        track2[0] = (byte) 0x57;
+        track2[1] = (byte) 19;
+        accountParamsStatic.setTrack2EquivalentData(track2, (short) 0, (short) track2.length);
+
+        if (cvmList != null) {
+            accountParamsStatic.setCvmList(cvmList, (short) 0, (short) cvmList.length);
+        }
+
+        return accountParamsStatic;
+    }
+}
@@ -0,0 +1,256 @@
+/**
+ * This file is part of CardAgent-VCBP which is card agent implementation 
+ * of V Cloud-Based Payments for SimplyTapp mobile platform.
+ * Copyright 2014 SimplyTapp, Inc.
+ * 
+ * CardAgent-VCBP is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, either version 3 of the License, or 
+ * (at your option) any later version.
+ * 
+ * CardAgent-VCBP is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with CardAgent-VCBP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.simplytapp.cardagent;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.st.vcbp.data.AccountParamsIndex;
+import com.st.vcbp.data.AccountParamsStatic;
+
+/**
+ * Compares the Get Processing Options responses copied out of
+ * {@link GpoResponseTemplate} with the responses built per transaction
+ * before the template was introduced, which are kept here as the oracle.
+ *
+ * @author SimplyTapp, Inc.
+ * @version 1.0
+ */
+public class GpoResponseTemplateTest {
+
+    @Test
+    public void msdResponseMatchesBuild() {
+        Random random = new Random(14);
+        for (int card = 0; card < 500; card++) {
+            AccountParamsStatic accountParamsStatic = newAccountParamsStatic(random);
+            GpoResponseTemplate gpoResponseTemplate = new GpoResponseTemplate(accountParamsStatic);
+            assertTrue(gpoResponseTemplate.supportsMsd());
+
+            byte[] expected = buildMsdResponse(accountParamsStatic);
+            for (int transaction = 0; transaction < 8; transaction++) {
+                byte[] buffer = new byte[261];
+                random.nextBytes(buffer);
+                int length = gpoResponseTemplate.copyMsdResponse(buffer, 0);
+                assertArrayEquals(expected, Arrays.copyOf(buffer, length));
+            }
+        }
+    }
+
+    @Test
+    public void track2EquivalentDataMatchesBuild() {
+        Random random = new Random(15);
+        for (int card = 0; card < 200; card++) {
+            AccountParamsStatic accountParamsStatic = newAccountParamsStatic(random);
+            GpoResponseTemplate gpoResponseTemplate = new GpoResponseTemplate(accountParamsStatic);
+            // Consecutive transactions reuse the template, so nothing may be left over from the last one.
+            for (int transaction = 0; transaction < 64; transaction++) {
+                int accountParametersIndex = randomAccountParametersIndex(random);
+                String msdCryptogram = randomDigits(random, 6);
+                gpoResponseTemplate.setTrack2DerivationData(accountParametersIndex, msdCryptogram);
+
+                byte[] track2EquivalentData = new byte[accountParamsStatic.getTrack2EquivalentData().length];
+                gpoResponseTemplate.copyTrack2EquivalentData(track2EquivalentData, 0);
+                assertArrayEquals(buildTrack2EquivalentData(accountParamsStatic, accountParametersIndex, msdCryptogram),
+                                  track2EquivalentData);
+            }
+        }
+    }
+
+    @Test
+    public void qvsdcResponseMatchesBuild() {
+        Random random = new Random(16);
+        for (int card = 0; card < 500; card++) {
+            AccountParamsStatic accountParamsStatic = newAccountParamsStatic(random);
+            GpoResponseTemplate gpoResponseTemplate = new GpoResponseTemplate(accountParamsStatic);
+            assertTrue(gpoResponseTemplate.supportsQvsdc());
+            assertEquals(ByteBuffer.wrap(accountParamsStatic.getGpoResponseQvsdc()).getShort(AccountParamsStatic.GPO_RESPONSE_OFFSET_AIP),
+                         gpoResponseTemplate.getAipQvsdc());
+
+            for (int transaction = 0; transaction < 64; transaction++) {
+                int accountParametersIndex = randomAccountParametersIndex(random);
+                String msdCryptogram = randomDigits(random, 6);
+                short atc = (short) random.nextInt(0x10000);
+                byte[] ac = new byte[PayWConstants.LENGTH_AC];
+                random.nextBytes(ac);
+                byte ttqByte1 = (byte) random.nextInt(256);
+                byte ttqByte2 = (byte) random.nextInt(256);
+                byte ttqByte3 = (byte) random.nextInt(256);
+
+                // Same order of calls as CardAgent Get Processing Options.
+                gpoResponseTemplate.setTrack2DerivationData(accountParametersIndex, msdCryptogram);
+                byte[] ctq = gpoResponseTemplate.applyCvm(ttqByte1, ttqByte2, ttqByte3);
+                gpoResponseTemplate.setIadDerivationData(accountParametersIndex);
+                byte[] iadValue = new byte[64];
+                int iadValueLength = gpoResponseTemplate.copyIadValue(iadValue, 0);
+                byte[] buffer = new byte[261];
+                random.nextBytes(buffer);
+                int length = gpoResponseTemplate.copyQvsdcResponse(atc, ac, buffer, 0);
+
+                byte[] expectedCtq = accountParamsStatic.getCardTransactionQualifier().clone();
+                byte[] expectedIad = accountParamsStatic.getIssuerApplicationData().clone();
+                byte[] expected = buildQvsdcResponse(accountParamsStatic, expectedCtq, expectedIad,
+                                                     accountParametersIndex, msdCryptogram, atc, ac,
+                                                     ttqByte1, ttqByte2, ttqByte3);
+                assertArrayEquals(expected, Arrays.copyOf(buffer, length));
+                assertArrayEquals(expectedCtq, ctq);
+                assertArrayEquals(Arrays.copyOfRange(expectedIad, AccountParamsStatic.IAD_VALUE_OFFSET, expectedIad.length),
+                                  Arrays.copyOf(iadValue, iadValueLength));
+            }
+        }
+    }
+
+    @Test
+    public void missingDataObjectsDisableResponses() {
+        Random random = new Random(17);
+        AccountParamsStatic accountParamsStatic = GpoResponseTemplateCvmTest.newAccountParamsStatic(random, null);
+        accountParamsStatic.setPanSequenceNumber(null, (short) 0, (short) 0);
+        GpoResponseTemplate gpoResponseTemplate = new GpoResponseTemplate(accountParamsStatic);
+        assertFalse(gpoResponseTemplate.supportsMsd());
+        assertFalse(gpoResponseTemplate.supportsQvsdc());
+        assertTrue(gpoResponseTemplate.isFor(accountParamsStatic));
+        assertFalse(gpoResponseTemplate.isFor(new AccountParamsStatic()));
+    }
+
+    /**
+     * MSD Format 1 response as built per transaction before the template.
+     */
+    private static byte[] buildMsdResponse(AccountParamsStatic accountParamsStatic) {
+        ByteBuffer apduByteBuffer = ByteBuffer.allocate(261);
+        apduByteBuffer.put(PayWConstants.TAG_RESPONSE_MESSAGE_TEMPLATE_FORMAT_1);
+        byte[] gpoResponseMsd = accountParamsStatic.getGpoResponseMsd();
+        apduByteBuffer.put((byte) (gpoResponseMsd.length - 4));
+        apduByteBuffer.put(gpoResponseMsd, AccountParamsStatic.GPO_RESPONSE_OFFSET_AIP, 2);
+        apduByteBuffer.put(gpoResponseMsd,
+                           AccountParamsStatic.GPO_RESPONSE_OFFSET_AFL,
+                           (int) (gpoResponseMsd[AccountParamsStatic.GPO_RESPONSE_OFFSET_AFL_LENGTH] & 0xFF));
+        return Arrays.copyOf(apduByteBuffer.array(), apduByteBuffer.position());
+    }
+
+    /**
+     * Track 2 Equivalent Data as built per transaction before the template.
+     */
+    private static byte[] buildTrack2EquivalentData(AccountParamsStatic accountParamsStatic,
+                                                    int accountParametersIndex, String msdCryptogram) {
+        byte[] track2EquivalentData = accountParamsStatic.getTrack2EquivalentData().clone();
+        String derivationDataString = AccountParamsIndex.toString(accountParametersIndex) + msdCryptogram + "F";
+        byte[] derivationData = toCompressed(derivationDataString);
+        System.arraycopy(derivationData, 0,
+                         track2EquivalentData, AccountParamsStatic.TRACK2_OFFSET_DD, derivationData.length);
+        return track2EquivalentData;
+    }
+
+    /**
+     * qVSDC Format 2 response as built per transaction before the template.
+     */
+    private static byte[] buildQvsdcResponse(AccountParamsStatic accountParamsStatic,
+                                             byte[] cardTransactionQualifier, byte[] issuerApplicationData,
+                                             int accountParametersIndex, String msdCryptogram, short atc, byte[] ac,
+                                             byte ttqByte1, byte ttqByte2, byte ttqByte3) {
+        GpoResponseTemplateCvmTest.applyCvmLoop(accountParamsStatic.getCvmList(),
+                                                cardTransactionQualifier, issuerApplicationData,
+                                                ttqByte1, ttqByte2, ttqByte3);
+
+        // Update IAD.
+        byte[] derivationData = toCompressed("0" + AccountParamsIndex.toString(accountParametersIndex));
+        System.arraycopy(derivationData, 0,
+                         issuerApplicationData, AccountParamsStatic.IAD_OFFSET_DERIVATION_DATA, derivationData.length);
+
+        ByteBuffer apduByteBuffer = ByteBuffer.allocate(261);
+        apduByteBuffer.put(PayWConstants.TAG_RESPONSE_MESSAGE_TEMPLATE_FORMAT_2);
+        apduByteBuffer.put((byte) 0);
+        apduByteBuffer.put(accountParamsStatic.getGpoResponseQvsdc());
+        apduByteBuffer.put(issuerApplicationData);
+        apduByteBuffer.put(buildTrack2EquivalentData(accountParamsStatic, accountParametersIndex, msdCryptogram));
+        apduByteBuffer.put(accountParamsStatic.getPanSequenceNumber());
+        apduByteBuffer.putShort(PayWConstants.TAG_APPLICATION_TRANSACTION_COUNTER);
+        apduByteBuffer.put((byte) 0x02);
+        apduByteBuffer.putShort(atc);
+        apduByteBuffer.putShort(PayWConstants.TAG_APPLICATION_CRYPTOGRAM);
+        apduByteBuffer.put((byte) PayWConstants.LENGTH_AC);
+        apduByteBuffer.put(ac);
+        apduByteBuffer.put(cardTransactionQualifier);
+        apduByteBuffer.put(toCompressed("9F2701809F6E04238C0000"));
+        apduByteBuffer.put(1, (byte) (apduByteBuffer.position() - 2));
+        return Arrays.copyOf(apduByteBuffer.array(), apduByteBuffer.position());
+    }
+
+    private static AccountParamsStatic newAccountParamsStatic(Random random) {
+        AccountParamsStatic accountParamsStatic =
+                GpoResponseTemplateCvmTest.newAccountParamsStatic(random, GpoResponseTemplateCvmTest.randomCvmList(random));
+
+        // Random AIP and AFL of 1 to 4 entries.
+        byte[] gpoResponseQvsdc = randomGpoResponse(random);
+        accountParamsStatic.setGpoResponseQvsdc(gpoResponseQvsdc, (short) 0, (short) gpoResponseQvsdc.length);
+        byte[] gpoResponseMsd = randomGpoResponse(random);
+        accountParamsStatic.setGpoResponseMsd(gpoResponseMsd, (short) 0, (short) gpoResponseMsd.length);
+
+        // Random PAN and expiry/service code before the derivation data.
+        byte[] track2 = new byte[2 + 19];
+        random.nextBytes(track2);
+        track2[0] = (byte) 0x57;
+        track2[1] = (byte) 19;
+        accountParamsStatic.setTrack2EquivalentData(track2, (short) 0, (short) track2.length);
+
+        return accountParamsStatic;
+    }
+
+    private static byte[] randomGpoResponse(Random random) {
+        int aflLength = 4 * (1 + random.nextInt(4));
+        byte[] gpoResponse = new byte[6 + aflLength];
+        random.nextBytes(gpoResponse);
+        gpoResponse[0] = (byte) 0x82;
+        gpoResponse[1] = (byte) 0x02;
+        gpoResponse[4] = (byte) 0x94;
+        gpoResponse[5] = (byte) aflLength;
+        return gpoResponse;
+    }
+
+    private static int randomAccountParametersIndex(Random random) {
+        return AccountParamsIndex.pack(random.nextInt(10), random.nextInt(8784), random.nextInt(100));
+    }
+
+    private static String randomDigits(Random random, int length) {
+        StringBuilder digits = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            digits.append((char) ('0' + random.nextInt(10)));
+        }
+
+        return digits.toString();
+    }
+
+    /**
+     * Packs an even number of hex digits, independently of the codec under test.
+     */
+    private static byte[] toCompressed(String digits) {
+        byte[] data = new byte[digits.length() / 2];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) Integer.parseInt(digits.substring(2 * i, (2 * i) + 2), 16);
+        }
+
+        return data;
+    }
+}
@@ -0,0 +1,317 @@
+/**
+ * This file is part of CardAgent-VCBP which is card agent implementation 
+ * of V Cloud-Based Payments for SimplyTapp mobile platform.
+ * Copyright 2014 SimplyTapp, Inc.
+ * 
+ * CardAgent-VCBP is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, either version 3 of the License, or 
+ * (at your option) any later version.
+ * 
+ * CardAgent-VCBP is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with CardAgent-VCBP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.simplytapp.cardagent;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.simplytapp.virtualcard.TransceiveData;
+
+/**
+ * {@link RemoteSession} against a fake connection to the remote card.
+ * 
+ * @author SimplyTapp, Inc.
+ * @version 1.0
+ */
+public class RemoteSessionTest {
+
+    private static final byte[] SELECT = {
+        (byte) 0x00, (byte) 0xA4, (byte) 0x04, (byte) 0x00, (byte) 0x07, 
+        (byte) 0xA0, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x03, (byte) 0x10, (byte) 0x10, (byte) 0x00
+    };
+    private static final byte[] SELECT_RESPONSE = {
+        (byte) 0x6F, (byte) 0x00, (byte) 0x90, (byte) 0x00
+    };
+    private static final byte[] FILE_NOT_FOUND = {
+        (byte) 0x6A, (byte) 0x82
+    };
+    private static final byte[] COMMAND = {
+        (byte) 0x80, (byte) 0x30, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00
+    };
+
+    private final FakeLink link = new FakeLink();
+    private RemoteSession session;
+
+    @After
+    public void tearDown() {
+        if (this.session != null) {
+            this.session.close();
+        }
+    }
+
+    @Test
+    public void noSelectWhenAlreadySelected() throws IOException {
+        this.session = new FakeSession(this.link, RemoteSession.IDLE_TIMEOUT);
+
+        // First job: card reset and SELECT command.
+        this.session.open();
+        FakeTransceiveData transceiveData = runJob(SELECT_RESPONSE);
+        assertTrue(transceiveData.cardReset);
+        assertEquals(2, transceiveData.apdus.size());
+        assertArrayEquals(SELECT, transceiveData.apdus.get(0));
+        assertArrayEquals(SELECT_RESPONSE, this.session.getSelectResponse(transceiveData));
+        this.session.release();
+
+        // Later jobs reuse the connection and the selected card applet.
+        for (int job = 0; job < 3; job++) {
+            this.session.open();
+            transceiveData = runJob();
+            assertFalse(transceiveData.cardReset);
+            assertEquals(1, transceiveData.apdus.size());
+            assertArrayEquals(COMMAND, transceiveData.apdus.get(0));
+            assertArrayEquals(SELECT_RESPONSE, this.session.getSelectResponse(transceiveData));
+            this.session.release();
+        }
+
+        assertEquals(1, this.link.connects);
+        assertEquals(0, this.link.getDisconnects());
+        assertEquals(1, this.session.getConnectCount());
+        assertEquals(1, this.session.getSelectCount());
+        assertEquals(4, this.session.getRoundTripCount());
+    }
+
+    @Test
+    public void reselectAfterFailedTransceive() throws IOException {
+        this.session = new FakeSession(this.link, RemoteSession.IDLE_TIMEOUT);
+
+        this.session.open();
+        FakeTransceiveData transceiveData = runJob(SELECT_RESPONSE);
+        this.session.getSelectResponse(transceiveData);
+        this.session.release();
+
+        // Transceive fails, the connection is closed on release.
+        this.session.open();
+        transceiveData = (FakeTransceiveData) this.session.newTransceiveData();
+        transceiveData.packApdu(COMMAND, true);
+        this.link.failures = 1;
+        try {
+            this.session.transceive(transceiveData);
+            fail("Transceive failure not reported");
+        }
+        catch (IOException e) {
+        }
+        this.session.release();
+        assertEquals(1, this.link.getDisconnects());
+
+        // Next job connects again, resets the card and selects the card applet again.
+        this.session.open();
+        transceiveData = runJob(SELECT_RESPONSE);
+        assertTrue(transceiveData.cardReset);
+        assertArrayEquals(SELECT, transceiveData.apdus.get(0));
+        assertArrayEquals(SELECT_RESPONSE, this.session.getSelectResponse(transceiveData));
+        this.session.release();
+
+        assertEquals(2, this.link.connects);
+        assertEquals(2, this.session.getSelectCount());
+    }
+
+    @Test
+    public void reselectOnRequestAndFailedSelect() throws IOException {
+        this.session = new FakeSession(this.link, RemoteSession.IDLE_TIMEOUT);
+
+        this.session.open();
+        FakeTransceiveData transceiveData = runJob(SELECT_RESPONSE);
+        this.session.getSelectResponse(transceiveData);
+
+        // Unexpected response, the job asks for card reset and SELECT command again.
+        this.session.reselect();
+        transceiveData = runJob(FILE_NOT_FOUND);
+        assertTrue(transceiveData.cardReset);
+        assertArrayEquals(FILE_NOT_FOUND, this.session.getSelectResponse(transceiveData));
+
+        // SELECT command failed, so the next job selects again.
+        transceiveData = runJob(SELECT_RESPONSE);
+        assertTrue(transceiveData.cardReset);
+        assertArrayEquals(SELECT_RESPONSE, this.session.getSelectResponse(transceiveData));
+        this.session.release();
+
+        assertEquals(1, this.link.connects);
+        assertEquals(3, this.session.getSelectCount());
+    }
+
+    @Test
+    public void idleClose() throws Exception {
+        this.session = new FakeSession(this.link, 50);
+
+        this.session.open();
+        FakeTransceiveData transceiveData = runJob(SELECT_RESPONSE);
+        this.session.getSelectResponse(transceiveData);
+        this.session.release();
+
+        // Closed once idle.
+        final long deadline = System.currentTimeMillis() + 5000;
+        while ((this.link.getDisconnects() == 0) && (System.currentTimeMillis() < deadline)) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, this.link.getDisconnects());
+
+        // Next job connects and selects again.
+        this.session.open();
+        transceiveData = runJob(SELECT_RESPONSE);
+        assertTrue(transceiveData.cardReset);
+        this.session.release();
+        assertEquals(2, this.link.connects);
+    }
+
+    @Test
+    public void openBeforeIdleTimeoutKeepsConnection() throws Exception {
+        this.session = new FakeSession(this.link, 200);
+
+        for (int job = 0; job < 5; job++) {
+            this.session.open();
+            // Longer than the idle timeout in total, but never idle that long.
+            Thread.sleep(100);
+            this.session.release();
+        }
+        assertEquals(0, this.link.getDisconnects());
+        assertEquals(1, this.link.connects);
+    }
+
+    @Test
+    public void failedConnectDisconnects() {
+        this.session = new FakeSession(this.link, RemoteSession.IDLE_TIMEOUT);
+
+        this.link.connectFailures = 1;
+        try {
+            this.session.open();
+            fail("Connect failure not reported");
+        }
+        catch (IOException e) {
+        }
+        assertEquals(1, this.link.getDisconnects());
+        assertEquals(0, this.session.getConnectCount());
+    }
+
+    @Test
+    public void closeForgetsSelectResponse() throws IOException {
+        this.session = new FakeSession(this.link, RemoteSession.IDLE_TIMEOUT);
+
+        this.session.open();
+        FakeTransceiveData transceiveData = runJob(SELECT_RESPONSE);
+        this.session.getSelectResponse(transceiveData);
+        this.session.close();
+        assertEquals(1, this.link.getDisconnects());
+
+        this.session.open();
+        transceiveData = (FakeTransceiveData) this.session.newTransceiveData();
+        assertTrue(transceiveData.cardReset);
+        this.session.close();
+
+        transceiveData = (FakeTransceiveData) this.session.newTransceiveData();
+        assertNull(this.session.getSelectResponse(transceiveData));
+    }
+
+    /**
+     * Runs a job sending one command, answering the SELECT command with the specified response if packed.
+     */
+    private FakeTransceiveData runJob(byte[]... selectResponse) throws IOException {
+        FakeTransceiveData transceiveData = (FakeTransceiveData) this.session.newTransceiveData();
+        transceiveData.packApdu(COMMAND, true);
+        for (byte[] response : selectResponse) {
+            transceiveData.responses.add(response);
+        }
+        this.session.transceive(transceiveData);
+        assertSame(transceiveData, this.link.lastTransceiveData);
+        return transceiveData;
+    }
+
+    private static final class FakeSession extends RemoteSession {
+
+        FakeSession(Link link, long idleTimeout) {
+            super(link, SELECT, "RemoteSessionTest", idleTimeout);
+        }
+
+        @Override
+        TransceiveData createTransceiveData() {
+            return new FakeTransceiveData();
+        }
+    }
+
+    private static final class FakeTransceiveData extends TransceiveData {
+
+        boolean cardReset;
+        final List<byte[]> apdus = new ArrayList<byte[]>();
+        final ArrayDeque<byte[]> responses = new ArrayDeque<byte[]>();
+
+        FakeTransceiveData() {
+            super(TransceiveData.SOFT_CHANNEL);
+        }
+
+        @Override
+        public void packCardReset(boolean response) {
+            this.cardReset = true;
+        }
+
+        @Override
+        public void packApdu(byte[] apdu, boolean response) {
+            this.apdus.add(apdu.clone());
+        }
+
+        @Override
+        public byte[] getNextResponse() {
+            return this.responses.poll();
+        }
+    }
+
+    private static final class FakeLink implements RemoteSession.Link {
+
+        int connects;
+        int connectFailures;
+        int failures;
+        TransceiveData lastTransceiveData;
+        private int disconnects;
+
+        public void connect() throws IOException {
+            if (this.connectFailures > 0) {
+                this.connectFailures--;
+                throw new IOException("connect");
+            }
+            this.connects++;
+        }
+
+        public synchronized void disconnect() {
+            this.disconnects++;
+        }
+
+        public void transceive(TransceiveData transceiveData) throws IOException {
+            this.lastTransceiveData = transceiveData;
+            if (this.failures > 0) {
+                this.failures--;
+                throw new IOException("transceive");
+            }
+        }
+
+        synchronized int getDisconnects() {
+            return this.disconnects;
+        }
+    }
+}
@@ -0,0 +1,201 @@
+/**
+ * This file is part of CardAgent-VCBP which is card agent implementation 
+ * of V Cloud-Based Payments for SimplyTapp mobile platform.
+ * Copyright 2014 SimplyTapp, Inc.
+ * 
+ * CardAgent-VCBP is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, either version 3 of the License, or 
+ * (at your option) any later version.
+ * 
+ * CardAgent-VCBP is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with CardAgent-VCBP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.simplytapp.cardagent;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ObjectInputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.st.vcbp.data.AccountParamsCodec;
+import com.st.vcbp.data.AccountParamsIndex;
+import com.st.vcbp.data.TransactionVerificationLog;
+import com.st.vcbp.data.TransactionVerificationLogStore;
+
+/**
+ * {@link TransactionVerificationLogUpload} C-APDU bytes and round trips against 
+ * one Java serialized log per C-APDU, and removal of acknowledged logs by 
+ * sequence number.
+ * 
+ * @author SimplyTapp, Inc.
+ * @version 1.0
+ */
+public class TransactionVerificationLogUploadTest {
+
+    private static final int LOGS = 600;
+
+    // CLA INS P1 P2, 3-byte extended Lc.
+    private static final int HEADER_LENGTH = 7;
+
+    private static final byte[] OK = { (byte) 0x90, (byte) 0x00 };
+    private static final byte[] ERROR = { (byte) 0x6A, (byte) 0x80 };
+
+    @Test
+    public void batchesOfBinaryRecords() throws Exception {
+        TransactionVerificationLogStore store = newStore(LOGS, LOGS);
+        List<byte[]> apdus = new TransactionVerificationLogUpload(store, false).getApdus();
+
+        // One round trip per 255 logs.
+        assertEquals((LOGS + TransactionVerificationLogUpload.MAX_BATCH - 1) / TransactionVerificationLogUpload.MAX_BATCH, apdus.size());
+        int position = 0;
+        for (byte[] apdu : apdus) {
+            int count = apdu[2] & 0xFF;
+            int length = count * TransactionVerificationLogStore.RECORD_LENGTH;
+            assertEquals(Math.min(LOGS - position, TransactionVerificationLogUpload.MAX_BATCH), count);
+            assertEquals((byte) 0x80, apdu[0]);
+            assertEquals((byte) 0x34, apdu[1]);
+            assertEquals(AccountParamsCodec.VERSION, apdu[3]);
+            assertEquals(0, apdu[4]);
+            assertEquals(length, ((apdu[5] & 0xFF) << 8) | (apdu[6] & 0xFF));
+            assertEquals(HEADER_LENGTH + length, apdu.length);
+
+            byte[] records = new byte[length];
+            store.getRecords(position, count, records, 0);
+            assertArrayEquals(records, Arrays.copyOfRange(apdu, HEADER_LENGTH, apdu.length));
+            position += count;
+        }
+        assertEquals(LOGS, position);
+    }
+
+    @Test
+    public void batchesSendFewerBytesThanSerializedLogs() throws Exception {
+        TransactionVerificationLogStore store = newStore(LOGS, LOGS);
+        List<byte[]> batch = new TransactionVerificationLogUpload(store, false).getApdus();
+        List<byte[]> legacy = new TransactionVerificationLogUpload(store, true).getApdus();
+
+        assertEquals(LOGS, legacy.size());
+        int position = 0;
+        for (byte[] apdu : legacy) {
+            assertEquals(0, apdu[2]);
+            assertEquals(0, apdu[3]);
+            ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(apdu, HEADER_LENGTH, apdu.length - HEADER_LENGTH));
+            TransactionVerificationLog transactionVerificationLog = (TransactionVerificationLog) in.readObject();
+            assertEquals(store.getUtcTimestamp(position), transactionVerificationLog.getUtcTimestamp());
+            assertEquals(store.getAccountParametersIndex(position), transactionVerificationLog.getPackedAccountParametersIndex());
+            position++;
+        }
+
+        long batchBytes = totalLength(batch);
+        long legacyBytes = totalLength(legacy);
+        // Records and one header per 255 logs.
+        assertEquals((LOGS * TransactionVerificationLogStore.RECORD_LENGTH) + (batch.size() * HEADER_LENGTH), batchBytes);
+        String bytes = "batch " + batchBytes + " B in " + batch.size() + " APDUs, serialized " + legacyBytes + " B in " + legacy.size() + " APDUs";
+        assertTrue(bytes, batchBytes * 8 < legacyBytes);
+    }
+
+    @Test
+    public void acknowledgesBySequenceWhenClockGoesBack() throws Exception {
+        TransactionVerificationLogStore store = new TransactionVerificationLogStore(LOGS);
+        // Clock set back by an hour after the first 300 logs.
+        long utcTimestamp = 1400000000000L;
+        for (int i = 0; i < LOGS; i++) {
+            if (i == 300) {
+                utcTimestamp -= 3600000L;
+            }
+            store.add(utcTimestamp + i, AccountParamsIndex.pack(4, i / 100, i % 100), 
+                      TransactionVerificationLog.TRANSACTION_TYPE_QVSDC, i);
+        }
+
+        TransactionVerificationLogUpload upload = new TransactionVerificationLogUpload(store, false);
+        assertEquals(3, upload.getApdus().size());
+        // Logs of later transactions, older than the logs sent.
+        store.add(utcTimestamp - 7200000L, AccountParamsIndex.pack(4, 99, 0), TransactionVerificationLog.TRANSACTION_TYPE_MSD, 0);
+
+        assertTrue(upload.acknowledge(response()));
+        assertEquals(LOGS + 1 - 255, store.size());
+        assertEquals(255, store.getSequence(0));
+        assertTrue(upload.acknowledge(response()));
+        assertTrue(upload.acknowledge(response()));
+        assertFalse(upload.acknowledge(response()));
+
+        // Only the log added in the meantime is left.
+        assertEquals(1, store.size());
+        assertEquals(LOGS, store.getSequence(0));
+        assertEquals(TransactionVerificationLog.TRANSACTION_TYPE_MSD, store.getTransactionType(0));
+    }
+
+    @Test
+    public void keepsLogsAfterFailedResponse() throws Exception {
+        TransactionVerificationLogStore store = newStore(LOGS, LOGS);
+        TransactionVerificationLogUpload upload = new TransactionVerificationLogUpload(store, false);
+
+        assertTrue(upload.acknowledge(response()));
+        assertFalse(upload.acknowledge(ERROR));
+        // Saved, but a batch before it was not.
+        assertFalse(upload.acknowledge(response()));
+
+        assertEquals(LOGS - 255, store.size());
+        assertEquals(255, store.getSequence(0));
+
+        // Sent again in the next upload.
+        assertEquals(2, new TransactionVerificationLogUpload(store, false).getApdus().size());
+    }
+
+    @Test
+    public void ignoresLogsDroppedInTheMeantime() throws Exception {
+        TransactionVerificationLogStore store = newStore(300, 300);
+        TransactionVerificationLogUpload upload = new TransactionVerificationLogUpload(store, true);
+
+        // Full store drops the oldest logs while the upload is in progress.
+        for (int i = 0; i < 100; i++) {
+            store.add(1500000000000L + i, AccountParamsIndex.pack(5, i, 0), TransactionVerificationLog.TRANSACTION_TYPE_MSD, 0);
+        }
+        for (int i = 0; i < 150; i++) {
+            assertTrue(upload.acknowledge(response()));
+        }
+
+        // 100 dropped, 50 acknowledged, 100 not acknowledged and 100 added.
+        assertEquals(250, store.size());
+        assertEquals(150, store.getSequence(0));
+    }
+
+    private static TransactionVerificationLogStore newStore(int capacity, int logs) {
+        Random random = new Random(21);
+        TransactionVerificationLogStore store = new TransactionVerificationLogStore(capacity);
+        for (int i = 0; i < logs; i++) {
+            store.add(1400000000000L + (i * 60000L), AccountParamsIndex.pack(4, i / 100, i % 100), 
+                      TransactionVerificationLog.TRANSACTION_TYPE_QVSDC, random.nextInt());
+        }
+        return store;
+    }
+
+    private static byte[] response() {
+        // Packed timestamp, ignored, and SW.
+        byte[] response = new byte[9];
+        System.arraycopy(OK, 0, response, response.length - OK.length, OK.length);
+        return response;
+    }
+
+    private static long totalLength(List<byte[]> apdus) {
+        long length = 0;
+        for (byte[] apdu : apdus) {
+            length += apdu.length;
+        }
+        return length;
+    }
+
+}
@@ -0,0 +1,100 @@
+package com.simplytapp.cardagent;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Sequences C-APDUs handed to Agent.process.
+ * <p>
+ * process must not start on a new C-APDU until the R-APDU of the previous
+ * one has been sent.  Instead of polling, the waiting thread blocks on a
+ * condition that is signalled from sentApdu and cancelled from
+ * transactionFinished.
+ */
+final class ApduSequencer {
+	//fallback interval to check the transaction state with the platform while waiting
+	static final long POLL_INTERVAL = 50;
+
+	//reports whether the previous R-APDU has been sent
+	interface Idle {
+		boolean isIdle();
+	}
+
+	private final Idle idle;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition stateChanged = lock.newCondition();
+	//incremented every time waiters are cancelled
+	private int cancelCount = 0;
+
+	ApduSequencer(Idle idle)
+	{
+		this.idle = idle;
+	}
+
+	//ticket identifying the current transaction for await and isCancelled
+	int ticket()
+	{
+		lock.lock();
+		try {
+			return cancelCount;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	//returns true once idle or cancelled, false if the timeout elapsed first
+	boolean await(int ticket, long timeoutMillis)
+	{
+		lock.lock();
+		try {
+			long nanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+			while(!idle.isIdle() && cancelCount==ticket)
+			{
+				if(nanos<=0)
+					return false;
+				try {
+					nanos = stateChanged.awaitNanos(nanos);
+				} catch (InterruptedException e) {
+					return false;
+				}
+			}
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	boolean isCancelled(int ticket)
+	{
+		lock.lock();
+		try {
+			return cancelCount!=ticket;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	//wake up waiters after the idle state has changed
+	void signal()
+	{
+		lock.lock();
+		try {
+			stateChanged.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	//cancel all current waiters
+	void cancel()
+	{
+		lock.lock();
+		try {
+			cancelCount++;
+			stateChanged.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+}
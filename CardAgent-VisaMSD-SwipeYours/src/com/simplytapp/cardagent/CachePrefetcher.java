@@ -0,0 +1,173 @@
+package com.simplytapp.cardagent;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.LinkedList;
+
+/**
+ * Bounded queue of ready to use cache generations.
+ * <p>
+ * Each generation holds one set of PPSE/SELECT/GPO/READ RECORD responses and
+ * is consumed by a single transaction.  A single persistent worker thread
+ * keeps the queue filled from the remote card, backing off exponentially
+ * while the remote card cannot be reached, so a tap that follows right after
+ * another one still finds a generation waiting.
+ */
+class CachePrefetcher implements Serializable {
+	private static final long serialVersionUID = 1L;
+	static final int DEFAULT_DEPTH = 3;
+	//retry delays when a refill fails
+	static final long MIN_BACKOFF = 500;
+	static final long MAX_BACKOFF = 60000;
+
+	//fetches one generation from the remote card
+	interface Source {
+		Cache fetch() throws IOException;
+		//called on the worker thread after a generation has been queued
+		void refilled();
+	}
+
+	private final int depth;
+	private final LinkedList<Cache> ready = new LinkedList<Cache>();
+
+	private transient Source source = null;
+	private transient Thread worker = null;
+	private transient boolean stopped = false;
+
+	//metrics
+	private transient long refills = 0;
+	private transient long failures = 0;
+	private transient long lastRefillLatency = 0;
+	private transient long totalRefillLatency = 0;
+
+	CachePrefetcher(int depth)
+	{
+		this.depth = depth<1 ? 1 : depth;
+	}
+
+	//start the worker if it is not running yet
+	synchronized void start(Source source)
+	{
+		this.source = source;
+		stopped = false;
+		if(worker!=null && worker.isAlive())
+			return;
+		worker = new Thread(new Runnable(){
+			public void run()
+			{
+				refillLoop();
+			}
+		}, "CachePrefetcher");
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	synchronized void stop()
+	{
+		stopped = true;
+		notifyAll();
+	}
+
+	//next ready generation or null if none is queued, never blocks
+	synchronized Cache take()
+	{
+		Cache cache = ready.poll();
+		if(cache!=null)
+			notifyAll();  //wake the worker to refill
+		return cache;
+	}
+
+	synchronized int getQueueDepth()
+	{
+		return ready.size();
+	}
+
+	synchronized long getRefillCount()
+	{
+		return refills;
+	}
+
+	synchronized long getFailureCount()
+	{
+		return failures;
+	}
+
+	//milliseconds taken by the last successful refill
+	synchronized long getLastRefillLatency()
+	{
+		return lastRefillLatency;
+	}
+
+	//average milliseconds taken by successful refills
+	synchronized long getAverageRefillLatency()
+	{
+		return refills==0 ? 0 : totalRefillLatency/refills;
+	}
+
+	private void refillLoop()
+	{
+		long backoff = MIN_BACKOFF;
+		while(true)
+		{
+			Source src;
+			synchronized(this)
+			{
+				while(!stopped && ready.size()>=depth)
+				{
+					try {
+						wait();
+					} catch (InterruptedException e) {
+					}
+				}
+				if(stopped)
+				{
+					worker = null;
+					return;
+				}
+				src = source;
+			}
+
+			long start = System.currentTimeMillis();
+			Cache cache = null;
+			try {
+				cache = src.fetch();
+			} catch (IOException e) {
+			}
+
+			if(cache!=null)
+			{
+				long latency = System.currentTimeMillis()-start;
+				synchronized(this)
+				{
+					ready.addLast(cache);
+					refills++;
+					lastRefillLatency = latency;
+					totalRefillLatency += latency;
+				}
+				backoff = MIN_BACKOFF;
+				src.refilled();
+			}
+			else
+			{
+				synchronized(this)
+				{
+					failures++;
+					if(!stopped)
+					{
+						try {
+							wait(backoff);
+						} catch (InterruptedException e) {
+						}
+					}
+				}
+				backoff = Math.min(backoff*2, MAX_BACKOFF);
+			}
+		}
+	}
+
+	private synchronized void writeObject(ObjectOutputStream out) throws IOException
+	{
+		out.defaultWriteObject();
+	}
+}
@@ -6,7 +6,13 @@ class CmdRsp implements Serializable {
 	private static final long serialVersionUID = 1L;
 	byte[] cmd = null;
 	byte[] rsp = null;
-	
+
+	//index data, rebuilt by the cache
+	transient short keyLen = 0;
+	transient int hash = 0;
+	transient long seq = 0;
+	transient CmdRsp next = null;
+
 	CmdRsp(byte[] cmd, byte[] rsp)
 	{
 		this.cmd = cmd;
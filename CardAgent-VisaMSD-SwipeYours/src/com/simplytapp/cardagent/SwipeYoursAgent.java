@@ -5,6 +5,7 @@ import java.io.IOException;
 import javacard.framework.APDU;
 import javacard.framework.ISO7816;
 import javacard.framework.ISOException;
+import android.util.Log;
 import com.simplytapp.virtualcard.Agent;
 import com.simplytapp.virtualcard.CardAgentConnector;
 import com.simplytapp.virtualcard.TransceiveData;
@@ -12,6 +13,7 @@ import com.simplytapp.virtualcard.TransceiveData;
 public class SwipeYoursAgent extends Agent {
 
 	private static final long serialVersionUID = 1L;
+	private static final String LOG_TAG = SwipeYoursAgent.class.getSimpleName();
 	private final static byte sentApdu = 0x00;
 	private final static byte sendingRrApdu = 0x01;
 	private final static byte sendingGpoApdu = 0x02;
@@ -20,10 +22,12 @@ public class SwipeYoursAgent extends Agent {
 	transient boolean selected = false;
 	transient boolean transactionFailed = false;
 	transient byte state = sentApdu;
-	transient Thread tLoadCache = null;
+	private transient volatile ApduSequencer apduSequencer = null;
 
 	boolean newCache = false;
 	Cache cache = null;
+	CachePrefetcher prefetcher = null;
+	private transient CachePrefetcher.Source prefetchSource = null;
 	
 	public SwipeYoursAgent() {
 		allowSoftTransactions();
@@ -36,109 +40,158 @@ public class SwipeYoursAgent extends Agent {
 	}
 
 	
-	private void loadCache()
+	private synchronized CachePrefetcher getPrefetcher()
 	{
-		
-		if(tLoadCache!=null)
-			return;
-		
-		tLoadCache = new Thread(new Runnable(){
-			
-			public void run()
-			{
-				boolean busy = false;
-				boolean connected = false;
-				boolean doTransaction = false;
-				try {
-					doTransaction = getDoTransactionFlag();
-				} catch (IOException e) {
+		if(prefetcher==null)
+			prefetcher = new CachePrefetcher(CachePrefetcher.DEFAULT_DEPTH);
+		return prefetcher;
+	}
+	
+	//the worker keeps the source it was started with, so it is only created once
+	private synchronized CachePrefetcher.Source getPrefetchSource()
+	{
+		if(prefetchSource==null)
+		{
+			prefetchSource = new CachePrefetcher.Source(){
+				
+				public Cache fetch() throws IOException
+				{
+					return fetchCache();
 				}
-					
-				if(doTransaction || cache==null)
+				
+				public void refilled()
 				{
-					cache = new Cache();
-					//create a cache from data
-					TransceiveData apdus = new TransceiveData(TransceiveData.NFC_CHANNEL);
-					apdus.setTimeout((short)15000);
-					apdus.packApdu(new byte[]{0x00,(byte)0xA4,0x04,0x00,0x0E,0x32,0x50,0x41,0x59,0x2E,0x53,0x59,0x53,0x2E,0x44,0x44,0x46,0x30,0x31,0x00}, true);
-					apdus.packApdu(new byte[]{0x00,(byte)0xA4,0x04,0x00,0x07,(byte)0xA0,0x00,0x00,0x00,0x03,0x10,0x10,0x00}, true);
-					apdus.packApdu(new byte[]{(byte)0x80,(byte)0xA8,0x00,0x00,0x04,(byte)0x83,0x02,(byte)0x80,0x00,0x00}, true);
-					apdus.packApdu(new byte[]{0x00,(byte)0xB2,0x01,0x0C,0x00}, true);
-					try {
-						setBusy();
-						busy = true;
-						connect();
-						connected = true;
-						transceive(apdus);
-						disconnect();
-						connected = false;
-						clearBusy();
-						busy = false;
-					} catch (IOException e) {
-						if(connected)
-						{
-							try {
-								disconnect();
-								connected = false;
-							} catch (IOException e1) {
-							}
-						}
-						if(busy)
-						{
-							try {
-								clearBusy();
-								busy = false;
-							} catch (IOException e1) {
-							}
-						}
-						tLoadCache = null;
-						try {Thread.sleep(2000);} catch (InterruptedException e1) {}
-						cache=null;
-						loadCache();
-						return;
-					}
-		
-					for(short i=0;i<4;i++)
-					{
-						byte[] rsp = apdus.getNextResponse();
-						if(rsp==null || rsp.length<2)
-							continue;
-						else if(rsp[rsp.length-2]!=0x90 && rsp[rsp.length-1]!=0x00)
-							continue;
-									
-						//don't store the SW in the cache
-						byte[] tmp = new byte[rsp.length-2];
-						for(short j=0;j<tmp.length;j++)
-							tmp[j] = rsp[j];
-						rsp = tmp;
-							
-						byte[] cmd = null;
-						if(i==0)
-							cmd = new byte[]{0x00,(byte)0xA4,0x04,0x00,0x05,0x32,0x50,0x41,0x59,0x2E};
-						else if(i==1)
-							cmd = new byte[]{0x00,(byte)0xA4,0x04,0x00,0x05,(byte)0xA0,0x00,0x00,0x00,0x03};
-						else if(i==2)
-							cmd = new byte[]{(byte)0x80,(byte)0xA8,0x00,0x00,0x00};
-						else if(i==3)
-							cmd = new byte[]{0x00,(byte)0xB2,0x01,0x0C,0x00};
-						cache.addCmd(cmd, rsp);
-					}
-					try {
-						if(getDoTransactionFlag())
-							clearDoTransactionFlag();
-					} catch (IOException e) {
-					}
+					logPrefetcher("refilled");
+					fillCache();
 					//save the state of the class now
 					try {
 						saveState();
 					} catch (IOException e1) {
 					}
 				}
-				tLoadCache=null;
+			};
+		}
+		return prefetchSource;
+	}
+	
+	private void loadCache()
+	{
+		getPrefetcher().start(getPrefetchSource());
+		fillCache();
+	}
+	
+	//queue depth and refill metrics of the prefetcher
+	private void logPrefetcher(String event)
+	{
+		CachePrefetcher p = getPrefetcher();
+		Log.i(LOG_TAG, "cache "+event+": queued="+p.getQueueDepth()
+				+" refills="+p.getRefillCount()
+				+" failures="+p.getFailureCount()
+				+" lastRefillMs="+p.getLastRefillLatency()
+				+" averageRefillMs="+p.getAverageRefillLatency());
+	}
+	
+	//swap in the next prefetched cache generation after a tap, the tap stays
+	//pending on the do transaction flag until a generation is ready
+	private synchronized void nextCache()
+	{
+		cache = getPrefetcher().take();
+		logPrefetcher(cache!=null ? "taken" : "empty");
+		if(cache==null)
+		{
+			try {
+				setDoTransactionFlag();
+			} catch (IOException e) {
 			}
-		});
-		
-		tLoadCache.start();
+		}
+	}
+	
+	//install a prefetched generation if none is in use, completing a pending tap
+	private synchronized void fillCache()
+	{
+		if(cache!=null)
+			return;
+		cache = getPrefetcher().take();
+		if(cache!=null)
+		{
+			logPrefetcher("taken");
+			try {
+				if(getDoTransactionFlag())
+					clearDoTransactionFlag();
+			} catch (IOException e) {
+			}
+		}
+	}
+	
+	//get one cache generation from the remote card
+	private Cache fetchCache() throws IOException
+	{
+		boolean busy = false;
+		boolean connected = false;
+		//create a cache from data
+		TransceiveData apdus = new TransceiveData(TransceiveData.NFC_CHANNEL);
+		apdus.setTimeout((short)15000);
+		apdus.packApdu(new byte[]{0x00,(byte)0xA4,0x04,0x00,0x0E,0x32,0x50,0x41,0x59,0x2E,0x53,0x59,0x53,0x2E,0x44,0x44,0x46,0x30,0x31,0x00}, true);
+		apdus.packApdu(new byte[]{0x00,(byte)0xA4,0x04,0x00,0x07,(byte)0xA0,0x00,0x00,0x00,0x03,0x10,0x10,0x00}, true);
+		apdus.packApdu(new byte[]{(byte)0x80,(byte)0xA8,0x00,0x00,0x04,(byte)0x83,0x02,(byte)0x80,0x00,0x00}, true);
+		apdus.packApdu(new byte[]{0x00,(byte)0xB2,0x01,0x0C,0x00}, true);
+		try {
+			setBusy();
+			busy = true;
+			connect();
+			connected = true;
+			transceive(apdus);
+			disconnect();
+			connected = false;
+			clearBusy();
+			busy = false;
+		} catch (IOException e) {
+			if(connected)
+			{
+				try {
+					disconnect();
+					connected = false;
+				} catch (IOException e1) {
+				}
+			}
+			if(busy)
+			{
+				try {
+					clearBusy();
+					busy = false;
+				} catch (IOException e1) {
+				}
+			}
+			throw e;
+		}
+
+		Cache generation = new Cache();
+		for(short i=0;i<4;i++)
+		{
+			byte[] rsp = apdus.getNextResponse();
+			if(rsp==null || rsp.length<2)
+				continue;
+			else if(rsp[rsp.length-2]!=0x90 && rsp[rsp.length-1]!=0x00)
+				continue;
+						
+			//don't store the SW in the cache
+			byte[] tmp = new byte[rsp.length-2];
+			for(short j=0;j<tmp.length;j++)
+				tmp[j] = rsp[j];
+			rsp = tmp;
+				
+			byte[] cmd = null;
+			if(i==0)
+				cmd = new byte[]{0x00,(byte)0xA4,0x04,0x00,0x05,0x32,0x50,0x41,0x59,0x2E};
+			else if(i==1)
+				cmd = new byte[]{0x00,(byte)0xA4,0x04,0x00,0x05,(byte)0xA0,0x00,0x00,0x00,0x03};
+			else if(i==2)
+				cmd = new byte[]{(byte)0x80,(byte)0xA8,0x00,0x00,0x00};
+			else if(i==3)
+				cmd = new byte[]{0x00,(byte)0xB2,0x01,0x0C,0x00};
+			generation.addCmd(cmd, rsp);
+		}
+		return generation;
 	}
 	
 	@Override
@@ -148,12 +201,13 @@ public class SwipeYoursAgent extends Agent {
 
 	@Override
 	public void activated(){ //this happens when the card is activated
-		if(cache==null)
-			loadCache();
+		loadCache();
 	}
 
 	@Override
 	public void deactivated(){ //this happens when the card is deactivated
+		//stop refilling from the remote card, activated() restarts the worker
+		getPrefetcher().stop();
 	}
 	
 	@Override
@@ -165,28 +219,47 @@ public class SwipeYoursAgent extends Agent {
 	{
 	}
 	
+	private ApduSequencer getApduSequencer()
+	{
+		ApduSequencer sequencer = apduSequencer;
+		if(sequencer==null)
+		{
+			synchronized(this)
+			{
+				sequencer = apduSequencer;
+				if(sequencer==null)
+				{
+					sequencer = new ApduSequencer(new ApduSequencer.Idle() {
+						public boolean isIdle()
+						{
+							return state==sentApdu;
+						}
+					});
+					apduSequencer = sequencer;
+				}
+			}
+		}
+		return sequencer;
+	}
+	
 	@Override
 	public void transactionFinished()
 	{
 		selected = false;
 		state = sentApdu;
+		getApduSequencer().cancel();
 		transactionFailed = false;
 		if(newCache)
 		{
 			newCache = false;
-			cache = null;
+			nextCache();
 			//update the state of the class
 			try {
 				saveState();
 			} catch (IOException e1) {
 			}
-			try {
-				setDoTransactionFlag();
-			} catch (IOException e) {
-			}
 		}
-		if(cache==null)
-			loadCache();
+		loadCache();
 	}
 	
 	@Override
@@ -199,15 +272,11 @@ public class SwipeYoursAgent extends Agent {
 			if(newCache)
 			{
 				newCache = false;
-				cache = null;
+				nextCache();
 				try {
 					saveState();
 				} catch (IOException e1) {
 				}
-				try {
-					setDoTransactionFlag();
-				} catch (IOException e) {
-				}
 			}
 			break;
 		case sendingGpoApdu:
@@ -217,6 +286,7 @@ public class SwipeYoursAgent extends Agent {
 			break;
 		}
 		state = sentApdu;
+		getApduSequencer().signal();
 	}
 	
 	void sendApduCFailure() throws ISOException
@@ -230,19 +300,25 @@ public class SwipeYoursAgent extends Agent {
 	@Override
 	public void process(APDU apdu) throws ISOException {
 		
-		while(state!=sentApdu)  //wait for previous one to complete (thread safe)
+		if(state!=sentApdu)  //wait for previous one to complete (thread safe)
 		{
-			try {
-				Thread.sleep(1);
-			} catch (InterruptedException e) {
-			}
-			try {
-				if(getTransactionFinished())
-				{
-					state = sendingApdu;
-					throw new ISOException(ISO7816.SW_UNKNOWN);
+			ApduSequencer sequencer = getApduSequencer();
+			int ticket = sequencer.ticket();
+			while(!sequencer.await(ticket, ApduSequencer.POLL_INTERVAL))
+			{
+				try {
+					if(getTransactionFinished())
+					{
+						state = sendingApdu;
+						throw new ISOException(ISO7816.SW_UNKNOWN);
+					}
+				} catch (IOException e) {
 				}
-			} catch (IOException e) {
+			}
+			if(sequencer.isCancelled(ticket))  //transaction finished while waiting
+			{
+				state = sendingApdu;
+				throw new ISOException(ISO7816.SW_UNKNOWN);
 			}
 		}
 		
@@ -266,13 +342,11 @@ public class SwipeYoursAgent extends Agent {
 			throw new ISOException(ISO7816.SW_WRONG_LENGTH);
 
 		//check the cache for a response
-		byte[] cmd = new byte[len];
-		for(short i=0;i<len;i++)
-			cmd[i] = apdu.getBuffer()[i];
+		byte[] buf = apdu.getBuffer();
 		byte[] rsp = null;
 		if(cache!=null)
 		{
-			rsp = cache.getRsp(cmd);
+			rsp = cache.getRsp(buf, (short)0, len);
 			if(rsp==null)
 				sendApduCFailure();
 		}
@@ -280,25 +354,23 @@ public class SwipeYoursAgent extends Agent {
 			sendApduCFailure();
 
 		//respond to this APDU-C
-		switch(apdu.getBuffer()[ISO7816.OFFSET_INS])
+		switch(buf[ISO7816.OFFSET_INS])
 		{
 		case (byte) 0xA4:  //select
-			if(apdu.getBuffer()[ISO7816.OFFSET_LC]>4 && apdu.getBuffer()[ISO7816.OFFSET_LC+1]==(byte)0xA0 &&
-					apdu.getBuffer()[ISO7816.OFFSET_LC+2]==(byte)0x00 && apdu.getBuffer()[ISO7816.OFFSET_LC+3]==(byte)0x00 && 
-					apdu.getBuffer()[ISO7816.OFFSET_LC+4]==(byte)0x00 && apdu.getBuffer()[ISO7816.OFFSET_LC+5]==(byte)0x03)
+			if(buf[ISO7816.OFFSET_LC]>4 && buf[ISO7816.OFFSET_LC+1]==(byte)0xA0 &&
+					buf[ISO7816.OFFSET_LC+2]==(byte)0x00 && buf[ISO7816.OFFSET_LC+3]==(byte)0x00 && 
+					buf[ISO7816.OFFSET_LC+4]==(byte)0x00 && buf[ISO7816.OFFSET_LC+5]==(byte)0x03)
 				selected = true;
 			else
 				selected = false;
-			for(short i=0;i<rsp.length;i++)
-				apdu.getBuffer()[i] = rsp[i];
+			System.arraycopy(rsp, 0, buf, 0, rsp.length);
 			state = sendingSelectApdu;
 			apdu.setOutgoingAndSend((short)0, (short)rsp.length);
 			break;
 		case (byte) 0xA8:  //gpo
 			if(selected)
 			{
-				for(short i=0;i<rsp.length;i++)
-					apdu.getBuffer()[i] = rsp[i];
+				System.arraycopy(rsp, 0, buf, 0, rsp.length);
 				state = sendingGpoApdu;  //success triggers cache clearing and get new cache after transaction is over
 				apdu.setOutgoingAndSend((short)0, (short)rsp.length);
 			}
@@ -308,8 +380,7 @@ public class SwipeYoursAgent extends Agent {
 		case (byte) 0xB2:  //read record
 			if(selected)
 			{
-				for(short i=0;i<rsp.length;i++)
-					apdu.getBuffer()[i] = rsp[i];
+				System.arraycopy(rsp, 0, buf, 0, rsp.length);
 				state = sendingRrApdu;  //success triggers a successful transaction
 				apdu.setTransactionSuccess();
 				apdu.setOutgoingAndSend((short)0, (short)rsp.length);
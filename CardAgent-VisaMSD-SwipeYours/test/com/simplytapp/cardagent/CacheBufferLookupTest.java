@@ -0,0 +1,112 @@
+package com.simplytapp.cardagent;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Lookup of cached responses directly against the command in the APDU
+ * buffer, as done by SwipeYoursAgent.process.
+ */
+public class CacheBufferLookupTest {
+	private static final byte[] SELECT = {
+		(byte)0x00, (byte)0xA4, (byte)0x04, (byte)0x00, (byte)0x07,
+		(byte)0xA0, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x03, (byte)0x10, (byte)0x10, (byte)0x00
+	};
+	private static final byte[] GPO = {
+		(byte)0x80, (byte)0xA8, (byte)0x00, (byte)0x00, (byte)0x02, (byte)0x83, (byte)0x00, (byte)0x00
+	};
+	private static final byte[] READ_RECORD = {
+		(byte)0x00, (byte)0xB2, (byte)0x01, (byte)0x0C, (byte)0x00
+	};
+
+	private static Cache newCache()
+	{
+		Cache cache = new Cache();
+		cache.addCmd(SELECT, new byte[]{(byte)0x6F, (byte)0x00, (byte)0x90, (byte)0x00});
+		cache.addCmd(GPO, new byte[]{(byte)0x80, (byte)0x06, (byte)0x00, (byte)0x80, (byte)0x08, (byte)0x01, (byte)0x01, (byte)0x00, (byte)0x90, (byte)0x00});
+		cache.addCmd(READ_RECORD, new byte[]{(byte)0x70, (byte)0x00, (byte)0x90, (byte)0x00});
+		return cache;
+	}
+
+	//command placed in an APDU sized buffer with stale bytes after it
+	private static byte[] apduBuffer(byte[] cmd, int off, Random random)
+	{
+		byte[] buf = new byte[261];
+		random.nextBytes(buf);
+		System.arraycopy(cmd, 0, buf, off, cmd.length);
+		return buf;
+	}
+
+	@Test
+	public void bufferLookupMatchesArrayLookup()
+	{
+		Cache cache = newCache();
+		Random random = new Random(2);
+		byte[][] cmds = {SELECT, GPO, READ_RECORD};
+		for(int i=0;i<1000;i++)
+		{
+			byte[] cmd = cmds[random.nextInt(cmds.length)].clone();
+			//sometimes change a byte so the command is not cached
+			if(random.nextBoolean())
+				cmd[random.nextInt(cmd.length)] ^= (byte)(1+random.nextInt(255));
+			int off = random.nextInt(8);
+			byte[] buf = apduBuffer(cmd, off, random);
+			assertSame(cache.getRsp(cmd), cache.getRsp(buf, (short)off, (short)cmd.length));
+		}
+	}
+
+	@Test
+	public void bufferLookupIgnoresBytesAfterCommand()
+	{
+		Cache cache = newCache();
+		byte[] buf = apduBuffer(SELECT, 0, new Random(3));
+		assertArrayEquals(cache.getRsp(SELECT), cache.getRsp(buf, (short)0, (short)SELECT.length));
+		//a command shorter than its Lc does not match
+		assertNull(cache.getRsp(buf, (short)0, (short)(SELECT.length-3)));
+	}
+
+	@Test
+	public void bufferLookupDoesNotAllocate()
+	{
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+		com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean)threads;
+		assumeTrue(allocations.isThreadAllocatedMemorySupported());
+		allocations.setThreadAllocatedMemoryEnabled(true);
+
+		Cache cache = newCache();
+		Random random = new Random(4);
+		byte[][] bufs = {apduBuffer(SELECT, 0, random), apduBuffer(GPO, 0, random), apduBuffer(READ_RECORD, 0, random)};
+		short[] lens = {(short)SELECT.length, (short)GPO.length, (short)READ_RECORD.length};
+
+		//warm up, then count the bytes allocated by the transaction path lookups
+		int found = lookup(cache, bufs, lens, 20000);
+		final long id = Thread.currentThread().getId();
+		final long before = allocations.getThreadAllocatedBytes(id);
+		found += lookup(cache, bufs, lens, 100000);
+		final long allocated = allocations.getThreadAllocatedBytes(id)-before;
+
+		assertEquals(3*120000, found);
+		//allow for the allocation counter itself
+		assertEquals("bytes allocated by 300000 lookups: "+allocated, 0, allocated/1024);
+	}
+
+	private static int lookup(Cache cache, byte[][] bufs, short[] lens, int rounds)
+	{
+		int found = 0;
+		for(int i=0;i<rounds;i++)
+			for(int j=0;j<bufs.length;j++)
+				if(cache.getRsp(bufs[j], (short)0, lens[j])!=null)
+					found++;
+		return found;
+	}
+}
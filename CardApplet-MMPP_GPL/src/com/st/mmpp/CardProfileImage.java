@@ -0,0 +1,125 @@
+/**
+ * This file is part of CardApplet-MMPP which is card applet implementation 
+ * of M Remote-SE Mobile PayP for SimplyTapp cloud platform.
+ * Copyright 2014 SimplyTapp, Inc.
+ * 
+ * CardApplet-MMPP is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, either version 3 of the License, or 
+ * (at your option) any later version.
+ * 
+ * CardApplet-MMPP is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with CardApplet-MMPP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.st.mmpp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutput;
+import java.io.ObjectOutputStream;
+
+import javacard.security.MessageDigest;
+
+import com.st.mmpp.data.CardProfile;
+
+/**
+ * Serialized Card Profile returned by Get Card Profile.
+ * <p>
+ * The Card Profile is serialized and its hash calculated on first use 
+ * only, and again after {@link #clear()}. The applet clears the image 
+ * before it changes the Card Profile, so the image is never stale.
+ * 
+ * @author SimplyTapp, Inc.
+ * @version 1.0
+ */
+final class CardProfileImage {
+
+    private final CardProfile cardProfile;
+    private final MessageDigest sha256;
+    private final byte[] cardProfileHash;
+
+    private byte[] cardProfileBytes;
+
+    /**
+     * Creates an empty image.
+     * 
+     * @param cardProfile
+     *            the Card Profile
+     * @param sha256
+     *            the SHA-256 message digest
+     * @param cardProfileHash
+     *            the 32-byte array receiving the Card Profile hash
+     */
+    CardProfileImage(CardProfile cardProfile, MessageDigest sha256, byte[] cardProfileHash) {
+        this.cardProfile = cardProfile;
+        this.sha256 = sha256;
+        this.cardProfileHash = cardProfileHash;
+    }
+
+    /**
+     * Returns serialized Card Profile, serializing it and calculating its hash only after it changed.
+     * 
+     * @return serialized Card Profile or <code>null</code> on failure
+     */
+    byte[] getBytes() {
+        byte[] cardProfileBytes = this.cardProfileBytes;
+        if (cardProfileBytes == null) {
+            cardProfileBytes = serialize();
+            this.cardProfileBytes = cardProfileBytes;
+        }
+        return cardProfileBytes;
+    }
+
+    /**
+     * Discards the serialized Card Profile.
+     */
+    void clear() {
+        this.cardProfileBytes = null;
+    }
+
+    /**
+     * Serializes Card Profile and calculates its hash.
+     * 
+     * @return serialized Card Profile or <code>null</code> on failure
+     */
+    private byte[] serialize() {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ObjectOutput out = null;
+        byte[] cardProfileBytes = null;
+        try {
+            out = new ObjectOutputStream(bos);
+            out.writeObject(this.cardProfile);
+            cardProfileBytes = bos.toByteArray();
+
+            // Calculate Card Profile hash.
+            this.sha256.reset();
+            this.sha256.doFinal(cardProfileBytes, (short) 0, (short) cardProfileBytes.length, 
+                                this.cardProfileHash, (short) 0);
+        }
+        catch (IOException e) {
+        }
+        finally {
+            try {
+                if (out != null) {
+                    out.close();
+                }
+            }
+            catch (IOException ex) {
+            }
+
+            try {
+                bos.close();
+            }
+            catch (IOException ex) {
+            }
+        }
+
+        return cardProfileBytes;
+    }
+
+}
@@ -18,12 +18,9 @@
  */
 package com.st.mmpp;
 
-public final class DataUtil {
+import com.st.crypto.HexCodec;
 
-	private final static char NIBBLE_TO_CHAR[] = { 
-		'0', '1', '2', '3', '4', '5', '6', '7', 
-		'8', '9', 'A', 'B', 'C', 'D', 'E', 'F' 
-	};
+public final class DataUtil {
 
 	private DataUtil() {
 	}
@@ -61,24 +58,17 @@ public final class DataUtil {
 	 * @return hex string value
 	 */
 	public static String byteArrayToHexString(byte[] data, int offset, int length) {
-		StringBuffer buff = new StringBuffer();
-
-		if (data != null) {
-			for (int i = offset; i < (int) (offset + length); i++) {
-				byte b = data[i];
-				int I = ((char) b) & 0xFF;
-				buff.append(NIBBLE_TO_CHAR[I >>> 4]);
-				buff.append(NIBBLE_TO_CHAR[I & 0x0F]);
-			}
+		if (data == null) {
+			return "";
 		}
 
-		return buff.toString();
+		return HexCodec.toHexString(data, offset, length);
 	}
 
 	/**
 	 * Returns a single hex string value converted to byte values.
 	 * <p>
-	 * Accepts string values whose hex values are from 0x30 to 0x46.
+	 * Accepts hex digits '0' to '9', 'A' to 'F' and 'a' to 'f'.
 	 * <p>
 	 * For example, string value "123456789A" converts to byte values 0x01 0x02
 	 * 0x03 0x04 0x05 0x06 0x07 0x08 0x09 0x0A.
@@ -88,20 +78,14 @@ public final class DataUtil {
 	 * @return byte values, <code>null</code> if conversion error
 	 */
 	public static byte[] stringToByteArray(String data) {
-		StringBuffer buff = new StringBuffer(data.toUpperCase());
-		byte[] convertedString = new byte[buff.length()];
+		byte[] convertedString = new byte[data.length()];
 
 		for (int i = 0; i < convertedString.length; i++) {
-			byte currentByte = (byte) buff.charAt(i);
-			if ((currentByte >= 0x30) && (currentByte <= 0x40)) {
-				convertedString[i] = (byte) (currentByte - 0x30);
-			} 
-			else if ((currentByte >= 0x41) && (currentByte <= 0x46)) {
-				convertedString[i] = (byte) (currentByte - 0x37);
-			}
-			else {
+			int value = HexCodec.decodeNibble(data.charAt(i));
+			if (value < 0) {
 				return null;
 			}
+			convertedString[i] = (byte) value;
 		}
 
 		return convertedString;
@@ -111,7 +95,7 @@ public final class DataUtil {
 	 * Returns a single hex string value converted to compressed byte values.
 	 * Odd number of characters is padded with 'F'.
 	 * <p>
-	 * Accepts string values whose hex values are from 0x30 to 0x46.
+	 * Accepts hex digits '0' to '9', 'A' to 'F' and 'a' to 'f'.
 	 * <p>
 	 * For example, string value "123456789AB" converts to byte values 0x12 0x34
 	 * 0x56 0x78 0x9A 0xBF.
@@ -121,47 +105,7 @@ public final class DataUtil {
 	 * @return byte values, <code>null</code> if conversion error
 	 */
 	public static byte[] stringToCompressedByteArray(String data) {
-		StringBuffer buff = new StringBuffer(data.toUpperCase());
-		byte[] convertedString;
-		if ((buff.length() % 2) == 0) {
-			convertedString = new byte[buff.length() / 2];
-		} 
-		else {
-			convertedString = new byte[(buff.length() / 2) + 1];
-		}
-
-		int convertedStringOffset = 0;
-		for (int i = 0; i < buff.length(); i++) {
-			byte currentByte = (byte) buff.charAt(i);
-			if ((currentByte >= 0x30) && (currentByte <= 0x40)) {
-				convertedString[convertedStringOffset] = (byte) ((currentByte - 0x30) << 4);
-			}
-			else if ((currentByte >= 0x41) && (currentByte <= 0x46)) {
-				convertedString[convertedStringOffset] = (byte) ((currentByte - 0x37) << 4);
-			}
-			else {
-				return null;
-			}
-
-			i++;
-			if (i < buff.length()) {
-				currentByte = (byte) buff.charAt(i);
-				if ((currentByte >= 0x30) && (currentByte <= 0x40)) {
-					convertedString[convertedStringOffset++] |= (byte) (currentByte - 0x30);
-				}
-				else if ((currentByte >= 0x41) && (currentByte <= 0x46)) {
-					convertedString[convertedStringOffset++] |= (byte) (currentByte - 0x37);
-				}
-				else {
-					return null;
-				}
-			}
-			else {
-				convertedString[convertedStringOffset++] |= (byte) 0x0F;
-			}
-		}
-
-		return convertedString;
+		return HexCodec.toPackedBytes(data);
 	}
 
 }
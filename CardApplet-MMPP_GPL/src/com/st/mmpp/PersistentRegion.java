@@ -0,0 +1,205 @@
+/**
+ * This file is part of CardApplet-MMPP which is card applet implementation 
+ * of M Remote-SE Mobile PayP for SimplyTapp cloud platform.
+ * Copyright 2014 SimplyTapp, Inc.
+ * 
+ * CardApplet-MMPP is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, either version 3 of the License, or 
+ * (at your option) any later version.
+ * 
+ * CardApplet-MMPP is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with CardApplet-MMPP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.st.mmpp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Fixed-layout, memory-mapped copy of persistent applet fields.
+ * <p>
+ * Each applet instance owns one small file, named after its instance AID, 
+ * that is mapped into memory once. Updating a counter writes only the 
+ * changed bytes into the mapping instead of waiting for the whole applet 
+ * object to be serialized. The operating system keeps the written pages 
+ * even if the process dies, so the region is authoritative over the 
+ * serialized applet state when the instance is reloaded.
+ * <p>
+ * Layout: magic (4) | data length (2) | data. The magic is written last 
+ * when a region is created, so a region torn during creation is ignored 
+ * and recreated.
+ * <p>
+ * Regions are only used when the {@link #PROPERTY_DIRECTORY} system property 
+ * names a writable directory.
+ * 
+ * @author SimplyTapp, Inc.
+ * @version 1.0
+ */
+final class PersistentRegion {
+
+    /**
+     * System property naming the directory that holds region files.
+     */
+    static final String PROPERTY_DIRECTORY = "com.st.mmpp.storeDir";
+
+    private static final int MAGIC = 0x53545052; // "STPR"
+
+    private static final int OFFSET_MAGIC  = 0;
+    private static final int OFFSET_LENGTH = 4;
+    private static final int OFFSET_DATA   = 6;
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer map;
+    private final short length;
+    private final boolean restored;
+
+    private PersistentRegion(RandomAccessFile file, MappedByteBuffer map, short length, boolean restored) {
+        this.file = file;
+        this.map = map;
+        this.length = length;
+        this.restored = restored;
+    }
+
+    /**
+     * Maps the region of an applet instance, creating the file if needed.
+     * 
+     * @param aid
+     *            the byte array containing the instance AID
+     * @param aidOffset
+     *            the start of AID bytes in array
+     * @param aidLength
+     *            the length of the AID bytes in array
+     * @param length
+     *            the number of data bytes in the region
+     * @return mapped region, or <code>null</code> if no directory is configured
+     * @throws IOException
+     *             if the region file cannot be opened or mapped
+     */
+    static PersistentRegion open(byte[] aid, short aidOffset, byte aidLength, short length) throws IOException {
+        String directory = System.getProperty(PROPERTY_DIRECTORY);
+        if (directory == null) {
+            return null;
+        }
+
+        File path = new File(directory, DataUtil.byteArrayToHexString(aid, aidOffset, aidLength) + ".dat");
+        RandomAccessFile file = new RandomAccessFile(path, "rw");
+        try {
+            int size = OFFSET_DATA + length;
+            boolean restored = (file.length() == size);
+            if (file.length() < size) {
+                file.setLength(size);
+            }
+
+            MappedByteBuffer map = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            restored = restored && 
+                       (map.getInt(OFFSET_MAGIC) == MAGIC) && 
+                       (map.getShort(OFFSET_LENGTH) == length);
+
+            return new PersistentRegion(file, map, length, restored);
+        }
+        catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns <code>true</code> if the region held valid data when it was mapped.
+     */
+    boolean isRestored() {
+        return this.restored;
+    }
+
+    /**
+     * Copies the whole region into the specified buffer.
+     * 
+     * @param buffer
+     *            destination buffer
+     * @param offset
+     *            offset in destination buffer
+     */
+    void restore(byte[] buffer, short offset) {
+        for (short i = 0; i < this.length; i++) {
+            buffer[offset + i] = this.map.get(OFFSET_DATA + i);
+        }
+    }
+
+    /**
+     * Fills the whole region from the specified buffer and marks it valid.
+     * 
+     * @param buffer
+     *            source buffer
+     * @param offset
+     *            offset in source buffer
+     */
+    void initialize(byte[] buffer, short offset) {
+        this.map.putInt(OFFSET_MAGIC, 0);
+        write((short) 0, buffer, offset, this.length);
+        this.map.putShort(OFFSET_LENGTH, this.length);
+        this.map.force();
+        this.map.putInt(OFFSET_MAGIC, MAGIC);
+        this.map.force();
+    }
+
+    /**
+     * Writes changed bytes of a field into the region.
+     * 
+     * @param fieldOffset
+     *            offset of the field in the region, e.g. a 'persistentByteBuffer' offset
+     * @param buffer
+     *            source buffer
+     * @param offset
+     *            offset of the changed bytes in source buffer
+     * @param length
+     *            number of changed bytes
+     */
+    void write(short fieldOffset, byte[] buffer, short offset, short length) {
+        if ((fieldOffset < 0) || (length < 0) || ((fieldOffset + length) > this.length)) {
+            throw new IndexOutOfBoundsException();
+        }
+
+        for (short i = 0; i < length; i++) {
+            this.map.put(OFFSET_DATA + fieldOffset + i, buffer[offset + i]);
+        }
+    }
+
+    /**
+     * Reads a big-endian short field from the region.
+     */
+    short getShort(short fieldOffset) {
+        return this.map.getShort(OFFSET_DATA + fieldOffset);
+    }
+
+    /**
+     * Writes a big-endian short field into the region.
+     */
+    void setShort(short fieldOffset, short value) {
+        if ((fieldOffset < 0) || ((fieldOffset + 2) > this.length)) {
+            throw new IndexOutOfBoundsException();
+        }
+
+        this.map.putShort(OFFSET_DATA + fieldOffset, value);
+    }
+
+    /**
+     * Flushes the region to the storage device and closes the region file.
+     */
+    void close() {
+        try {
+            this.map.force();
+            this.file.close();
+        }
+        catch (IOException e) {
+            // Mapping stays valid until garbage collected.
+        }
+    }
+}
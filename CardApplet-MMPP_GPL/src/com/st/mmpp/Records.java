@@ -18,12 +18,17 @@
  */
 package com.st.mmpp;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 
 import javacard.framework.Util;
 
 /**
  * Define data objects for SFI records and Transaction Log records.
+ * <p>
+ * Records are looked up in a table indexed by SFI and record number. Each record 
+ * holds its Read Record response, the record data framed in tag '70'.
  * 
  * @author SimplyTapp, Inc.
  * @version 1.0
@@ -40,10 +45,14 @@ final class Records implements Serializable {
     private static final short MAX_SFI_RECORD_LENGTH = (short) 247;
     //private static final short MAX_SFI_RECORD_LENGTH = (short) 254;
 
+    private static final byte MAX_SFI = (byte) 30;
+
+    // Records in the order added, the serialized form.
     private Record[] sfiRecords;
     private short sfiRecordCounter;
 
-    private Record foundRecord;
+    // Records by SFI and record number, a row is allocated for each SFI with records.
+    private transient Record[][] sfiTable;
 
     /**
      * Constructor for records.
@@ -53,6 +62,7 @@ final class Records implements Serializable {
     Records(short maxSFIRecords) {
         this.sfiRecords = new Record[maxSFIRecords];
         this.sfiRecordCounter = (short) 0;
+        this.sfiTable = new Record[MAX_SFI + 1][];
     }
 
     // DEBUG
@@ -65,62 +75,52 @@ final class Records implements Serializable {
      * 
      * @param sfi
      * @param recordNumber
-     * @param record
      * @return
      */
     byte findSFIRecord(byte sfi, short recordNumber) {
-        this.foundRecord = null;
-        byte result = SFI_NOT_FOUND;
-
-        // Search SFI records.
-        short recordOffset = (short) 0;
-        while (recordOffset < this.sfiRecordCounter) {
-            Record record = this.sfiRecords[recordOffset++];
-            if (record.sfi == sfi) {
-                result = SFI_FOUND;
-
-                if (record.recordNumber == recordNumber) {
-                    this.foundRecord = record;
-                    result = RECORD_FOUND;
-
-                    break;
-                }
-            }
+        if ((sfi < (byte) 1) || (sfi > MAX_SFI) || (this.sfiTable[sfi] == null)) {
+            return SFI_NOT_FOUND;
         }
 
         // result = 0x00 if SFI not found.
         // result = 0x01 if SFI found, record number not found.
         // result = 0x02 if SFI found, record number found.
-        return result;
+        return (getSFIRecord(sfi, recordNumber) != null) ? RECORD_FOUND : SFI_FOUND;
     }
 
     /**
-     * Return maximum data length for found record.
+     * Return maximum data length for record.
      * 
+     * @param sfi
+     * @param recordNumber
      * @return
      */
-    short getFoundRecordMaxLength() {
-        if (this.foundRecord == null) {
+    short getRecordMaxLength(byte sfi, short recordNumber) {
+        Record record = getSFIRecord(sfi, recordNumber);
+        if (record == null) {
             return (short) 0;
         }
 
-        return (short) this.foundRecord.data.length;
+        return (short) record.data.length;
     }
 
     /**
      * Update SFI record.
      * 
+     * @param sfi
+     * @param recordNumber
      * @param data
      * @param dataOffset
      * @param dataLength
      */
-    void updateRecord(byte[] data, short dataOffset, short dataLength) {
-        if (this.foundRecord == null) {
+    void updateRecord(byte sfi, short recordNumber, byte[] data, short dataOffset, short dataLength) {
+        Record record = getSFIRecord(sfi, recordNumber);
+        if (record == null) {
             return;
         }
 
-        Util.arrayCopyNonAtomic(data, dataOffset, this.foundRecord.data, (short) 0, dataLength);
-        this.foundRecord.dataLength = dataLength;
+        Util.arrayCopyNonAtomic(data, dataOffset, record.data, (short) 0, dataLength);
+        record.dataLength = dataLength;
     }
 
     /**
@@ -136,21 +136,26 @@ final class Records implements Serializable {
         // Check if record length is longer than maximum supported length.
         // Check if number of records has already reached maximum number.
         // Check if SFI is not the same as SFI reserved for Transaction Log File.
+        // Check if SFI and record number are in range.
         if ((dataLength >= MAX_SFI_RECORD_LENGTH) || 
             (this.sfiRecordCounter >= this.sfiRecords.length) || 
-            (sfi == Constants.SFI_TRANSACTION_LOG_FILE)) {
+            (sfi == Constants.SFI_TRANSACTION_LOG_FILE) || 
+            (sfi < (byte) 1) || (sfi > MAX_SFI) || 
+            (recordNumber == (byte) 0)) {
             return;
         }
 
         // Check for duplicate record.
-        if (findSFIRecord(sfi, recordNumber) == RECORD_FOUND) {
+        if (getSFIRecord(sfi, recordNumber) != null) {
             // Found duplicate record, do not add record.
             return;
         }
 
-        this.sfiRecords[this.sfiRecordCounter] = new Record(sfi, recordNumber, data, dataOffset, dataLength);
-
+        Record record = new Record(sfi, recordNumber, data, dataOffset, dataLength);
+        this.sfiRecords[this.sfiRecordCounter] = record;
         this.sfiRecordCounter++;
+
+        putSFIRecord(record);
     }
 
     /**
@@ -162,13 +167,13 @@ final class Records implements Serializable {
      * @return
      */
     short getRecordData(byte sfi, short recordNumber, byte[] dataBuffer) {
-        byte result = findSFIRecord(sfi, recordNumber);
-        if (result == RECORD_FOUND) {
-            return Util.arrayCopyNonAtomic(this.foundRecord.data, (short) 0, dataBuffer, (short) 0, this.foundRecord.dataLength);
+        Record record = getSFIRecord(sfi, recordNumber);
+        if (record != null) {
+            return Util.arrayCopyNonAtomic(record.data, (short) 0, dataBuffer, (short) 0, record.dataLength);
         }
 
         // Use offset 1 to indicate error type.
-        dataBuffer[(byte) 1] = result;
+        dataBuffer[(byte) 1] = findSFIRecord(sfi, recordNumber);
 
         // Record not found.
         // dataBuffer[1] = 0x00 if SFI not found.
@@ -184,15 +189,43 @@ final class Records implements Serializable {
      * @return
      */
     byte[] getRecord(byte sfi, short recordNumber) {
-        byte result = findSFIRecord(sfi, recordNumber);
-        if (result == RECORD_FOUND) {
-            return this.foundRecord.data;
+        Record record = getSFIRecord(sfi, recordNumber);
+        if (record != null) {
+            return record.data;
         }
         else {
             return null;
         }
     }
 
+    private Record getSFIRecord(byte sfi, short recordNumber) {
+        if ((sfi < (byte) 1) || (sfi > MAX_SFI) || 
+            (recordNumber < (short) 1) || (recordNumber > (short) 0xFF)) {
+            return null;
+        }
+
+        Record[] sfiRow = this.sfiTable[sfi];
+        return (sfiRow != null) ? sfiRow[recordNumber] : null;
+    }
+
+    private void putSFIRecord(Record record) {
+        Record[] sfiRow = this.sfiTable[record.sfi];
+        if (sfiRow == null) {
+            sfiRow = new Record[0x100];
+            this.sfiTable[record.sfi] = sfiRow;
+        }
+        sfiRow[record.recordNumber & 0xFF] = record;
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+
+        this.sfiTable = new Record[MAX_SFI + 1][];
+        for (short i = (short) 0; i < this.sfiRecordCounter; i++) {
+            putSFIRecord(this.sfiRecords[i]);
+        }
+    }
+
 
     /**
      * SFI Record object.
@@ -97,6 +97,10 @@ public final class STPayP extends Applet implements ExtendedLength {
 
     private transient SecureChannel secureChannel;
 
+    // Memory-mapped copy of 'persistentByteBuffer', opened on first use.
+    private transient PersistentRegion persistentRegion;
+    private transient boolean persistentRegionOpened;
+
     // NOTE: Use 'gpState' instead of using GPSystem.getCardContentState() and GPSystem.setCardContentState().
     // Supported States:
     // - GPSystem.APPLICATION_SELECTABLE (7)
@@ -109,6 +113,8 @@ public final class STPayP extends Applet implements ExtendedLength {
     private CardProfile cardProfile;
     private PaymentTokenPayloadSingleUseKey ptpSuk;
     private byte[] cardProfileHash;
+    // Serialized Card Profile returned by Get Card Profile, cleared when Card Profile or Mobile PIN changes.
+    private transient CardProfileImage cardProfileImage;
     private byte[] mobilePin;
     private MessageDigest sha256;
     private RandomData random;
@@ -378,6 +384,7 @@ public final class STPayP extends Applet implements ExtendedLength {
 
             this.mobilePin = new byte[cdataLength];
             Util.arrayCopyNonAtomic(apduBuffer, ISO7816.OFFSET_CDATA, this.mobilePin, (short) 0, cdataLength);
+            getCardProfileImage().clear();
 
             // Send message to card agent to trigger Get PTP_SUK command.
             try {
@@ -702,11 +709,18 @@ public final class STPayP extends Applet implements ExtendedLength {
     private void getCardProfile(APDU apdu) throws ISOException {
         byte[] apduBuffer = apdu.getBuffer();
 
-        // Check if P1=0x00 and P2=0x00.
-        if (Util.getShort(apduBuffer, ISO7816.OFFSET_P1) != (short) 0x0000) {
+        // Check if P1=0x00 (Card Profile) or P1=0x01 (Card Profile if hash in command data does not match), and P2=0x00.
+        short p1p2 = Util.getShort(apduBuffer, ISO7816.OFFSET_P1);
+        if ((p1p2 != (short) 0x0000) && 
+            (p1p2 != (short) 0x0100)) {
             ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
         }
 
+        if (p1p2 == (short) 0x0100) {
+            getCardProfileIfModified(apdu);
+            return;
+        }
+
         short dataLength = apdu.setOutgoing();
         // Check if Le=0x00 or 0x0000.
         if ((dataLength != (short) 256) && 
@@ -753,37 +767,51 @@ public final class STPayP extends Applet implements ExtendedLength {
         }
         */
 
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        ObjectOutput out = null;
-        byte[] cardProfileBytes = null;
-        try {
-            out = new ObjectOutputStream(bos);
-            out.writeObject(this.cardProfile);
-            cardProfileBytes = bos.toByteArray();
+        sendCardProfile(apdu, dataLength);
+    }
+
+    /**
+     * Returns no data if the Card Profile hash in command data matches, i.e. Card Profile 
+     * held by card agent is not modified, otherwise returns the Card Profile as with P1=0x00.
+     */
+    private void getCardProfileIfModified(APDU apdu) throws ISOException {
+        byte[] apduBuffer = apdu.getBuffer();
 
-            // Calculate Card Profile hash.
-            this.sha256.reset();
-            this.sha256.doFinal(cardProfileBytes, (short) 0, (short) cardProfileBytes.length, 
-                                this.cardProfileHash, (short) 0);
+        short cdataLength = apdu.setIncomingAndReceive();
+        short offsetCdata = apdu.getOffsetCdata();
+
+        // Retrieve Le.
+        short dataLength = apdu.setOutgoing();
+        // Check if Lc=[Card Profile hash length].
+        // Check if Le=0x00 or 0x0000.
+        if ((cdataLength != (short) this.cardProfileHash.length) || 
+            ((dataLength != (short) 256) && 
+             (dataLength != (short) 32767))) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
         }
-        catch (IOException e) {
+
+        if (getCardProfileBytes() == null) {
+            ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
         }
-        finally {
-            try {
-                if (out != null) {
-                    out.close();
-                }
-            }
-            catch (IOException ex) {
-            }
 
-            try {
-                bos.close();
-            }
-            catch (IOException ex) {
-            }
+        if (Util.arrayCompare(apduBuffer, offsetCdata, 
+                              this.cardProfileHash, (short) 0, (short) this.cardProfileHash.length) == (byte) 0) {
+            // Card Profile not modified.
+            apdu.setOutgoingLength((short) 0);
+            return;
         }
 
+        sendCardProfile(apdu, dataLength);
+    }
+
+    /**
+     * Sends serialized Card Profile, prefixed with 'FF FF FF FF' if Mobile PIN is not initialized.
+     */
+    private void sendCardProfile(APDU apdu, short dataLength) throws ISOException {
+        byte[] apduBuffer = apdu.getBuffer();
+
+        byte[] cardProfileBytes = getCardProfileBytes();
+
         if (cardProfileBytes != null) {
             short responseOffset = (short) 0;
             // Check if Mobile PIN is initialized.
@@ -814,6 +842,75 @@ public final class STPayP extends Applet implements ExtendedLength {
         }
     }
 
+    /**
+     * Returns serialized Card Profile, serializing it and calculating its hash only after it changed.
+     * 
+     * @return serialized Card Profile or <code>null</code> on failure
+     */
+    private byte[] getCardProfileBytes() {
+        return getCardProfileImage().getBytes();
+    }
+
+    /**
+     * Returns the serialized Card Profile image, created on first use as transient state is not 
+     * restored on deserialization.
+     */
+    private CardProfileImage getCardProfileImage() {
+        if (this.cardProfileImage == null) {
+            this.cardProfileImage = new CardProfileImage(this.cardProfile, this.sha256, this.cardProfileHash);
+        }
+        return this.cardProfileImage;
+    }
+
+    /**
+     * Closes the memory-mapped region backing 'persistentByteBuffer' when the applet is deselected. 
+     * It is mapped again on next use, every update having already been written to it.
+     * 
+     * @see javacard.framework.Applet.deselect
+     */
+    public void deselect() {
+        if (this.persistentRegion != null) {
+            this.persistentRegion.close();
+            this.persistentRegion = null;
+        }
+        this.persistentRegionOpened = false;
+    }
+
+    /**
+     * Returns the memory-mapped region backing 'persistentByteBuffer', opened on first use.
+     * <p>
+     * A region left by a previous run is newer than the serialized applet state 
+     * and is restored into 'persistentByteBuffer'. Otherwise the region is 
+     * created from the current buffer contents.
+     * 
+     * @return mapped region, or <code>null</code> if not configured or not available
+     */
+    private PersistentRegion getPersistentRegion() {
+        if (!this.persistentRegionOpened) {
+            this.persistentRegionOpened = true;
+
+            byte[] aid = new byte[16];
+            byte aidLength = JCSystem.getAID().getBytes(aid, (short) 0);
+            try {
+                this.persistentRegion = PersistentRegion.open(aid, (short) 0, aidLength, Constants.SIZE_PBB);
+            }
+            catch (IOException e) {
+                System.out.println("Error: Persistent region not available, " + e.getMessage());
+            }
+
+            if (this.persistentRegion != null) {
+                if (this.persistentRegion.isRestored()) {
+                    this.persistentRegion.restore(this.persistentByteBuffer, (short) 0);
+                }
+                else {
+                    this.persistentRegion.initialize(this.persistentByteBuffer, (short) 0);
+                }
+            }
+        }
+
+        return this.persistentRegion;
+    }
+
     // NOTE: This method contains non-standard Java Card methods.
     private void getPtpSuk(APDU apdu) throws ISOException {
         byte[] apduBuffer = apdu.getBuffer();
@@ -841,9 +938,14 @@ public final class STPayP extends Applet implements ExtendedLength {
         }
 
         // Increment ATC.
+        PersistentRegion region = getPersistentRegion();
         short atc = Util.getShort(this.persistentByteBuffer, Constants.PBB_OFFSET_APPLICATION_TRANSACTION_COUNTER);
         atc++;
         Util.setShort(this.persistentByteBuffer, Constants.PBB_OFFSET_APPLICATION_TRANSACTION_COUNTER, atc);
+        if (region != null) {
+            // Only the 2 ATC bytes are written.
+            region.setShort(Constants.PBB_OFFSET_APPLICATION_TRANSACTION_COUNTER, atc);
+        }
 
         short keyLength = 0;
         final short keyOffset = (short) 128;
@@ -960,6 +1062,9 @@ public final class STPayP extends Applet implements ExtendedLength {
      *            the incoming <code>APDU</code> object
      */
     private void storeData(APDU apdu) {
+        // Card Profile may change.
+        getCardProfileImage().clear();
+
         byte[] apduBuffer = apdu.getBuffer();
         byte p1 = apduBuffer[ISO7816.OFFSET_P1];
 
@@ -0,0 +1,136 @@
+/**
+ * This file is part of CardApplet-MMPP which is card applet implementation 
+ * of M Remote-SE Mobile PayP for SimplyTapp cloud platform.
+ * Copyright 2014 SimplyTapp, Inc.
+ * 
+ * CardApplet-MMPP is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, either version 3 of the License, or 
+ * (at your option) any later version.
+ * 
+ * CardApplet-MMPP is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with CardApplet-MMPP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.st.mmpp.crypto;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
+import java.io.Serializable;
+import java.util.Calendar;
+
+import javacard.security.AESKey;
+import javacard.security.KeyBuilder;
+import javacard.security.RandomData;
+import javacardx.crypto.Cipher;
+
+import com.st.mmpp.DataUtil;
+
+/**
+ * Encryption of remote messages with the Mobile Key.
+ * 
+ * @author SimplyTapp, Inc.
+ * @version 1.0
+ */
+public final class DataEncryption implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    // Serialized form of the previous binary release.
+    private static final ObjectStreamField[] serialPersistentFields = {
+        new ObjectStreamField("b", AESKey.class)
+    };
+
+    private static final byte[] IV = { (byte) 0x80, (byte) 0x00, (byte) 0x00, (byte) 0x00, 
+                                       (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00, 
+                                       (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00, 
+                                       (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00 };
+
+    private AESKey mobileKey;
+
+    /**
+     * Generates a random 256-bit AES Mobile Key.
+     * 
+     * @return true if the Mobile Key is initialized
+     */
+    public boolean initMobileKey() {
+        try {
+            RandomData randomData = RandomData.getInstance(RandomData.ALG_PSEUDO_RANDOM);
+            byte[] seed = DataUtil.stringToCompressedByteArray(String.valueOf(Calendar.getInstance().getTimeInMillis()));
+            randomData.setSeed(seed, (short) 0, (short) seed.length);
+            byte[] keyBytes = new byte[32];
+            randomData.generateData(keyBytes, (short) 0, (short) keyBytes.length);
+
+            this.mobileKey = (AESKey) KeyBuilder.buildKey(KeyBuilder.TYPE_AES, KeyBuilder.LENGTH_AES_256, false);
+            this.mobileKey.setKey(keyBytes, (short) 0);
+            return true;
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Copies the Mobile Key.
+     * 
+     * @param buffer
+     *            the output buffer
+     * @param offset
+     *            offset in the output buffer
+     * @return the number of bytes written, or -1 if not available
+     */
+    public byte getMobileKey(byte[] buffer, short offset) {
+        try {
+            return this.mobileKey.getKey(buffer, offset);
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            return (byte) -1;
+        }
+    }
+
+    public boolean isMobileKeyInit() {
+        return (this.mobileKey != null) && this.mobileKey.isInitialized();
+    }
+
+    /**
+     * Encrypts a remote message in place with AES in CBC mode.
+     * 
+     * @param buffer
+     *            the buffer holding the message
+     * @param offset
+     *            offset of the message
+     * @param length
+     *            length of the message
+     * @return the length of the encrypted message, or -1 if encryption failed
+     */
+    public short encryptRemoteMessage(byte[] buffer, short offset, short length) {
+        try {
+            Cipher cipher = Cipher.getInstance(Cipher.ALG_AES_CBC_PKCS5, false);
+            cipher.init(this.mobileKey, Cipher.MODE_ENCRYPT, IV, (short) 0, (short) IV.length);
+            return cipher.doFinal(buffer, offset, length, buffer, offset);
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            return (short) -1;
+        }
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("b", this.mobileKey);
+        out.writeFields();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        this.mobileKey = (AESKey) in.readFields().get("b", null);
+    }
+
+}
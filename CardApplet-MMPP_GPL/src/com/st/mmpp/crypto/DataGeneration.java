@@ -0,0 +1,94 @@
+/**
+ * This file is part of CardApplet-MMPP which is card applet implementation 
+ * of M Remote-SE Mobile PayP for SimplyTapp cloud platform.
+ * Copyright 2014 SimplyTapp, Inc.
+ * 
+ * CardApplet-MMPP is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, either version 3 of the License, or 
+ * (at your option) any later version.
+ * 
+ * CardApplet-MMPP is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with CardApplet-MMPP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.st.mmpp.crypto;
+
+import javacard.security.DESKey;
+
+import com.st.crypto.CryptoProvider;
+import com.st.crypto.CryptoProviders;
+
+/**
+ * M Single Use Key and ICC Dynamic Number generation with the ICC Master 
+ * Keys, on top of the {@link CryptoProvider} in use.
+ * 
+ * @author SimplyTapp, Inc.
+ * @version 1.0
+ */
+public final class DataGeneration {
+
+    public static final short BYTE_LENGTH_DES3_2KEY = (short) CryptoProvider.LENGTH_DES3_2KEY;
+
+    private DataGeneration() {
+    }
+
+    /**
+     * Generates the Single Use Key.
+     * 
+     * @param mkAc
+     *            the ICC Master Key for AC
+     * @param atc
+     *            the Application Transaction Counter
+     * @param pin
+     *            the Mobile PIN to combine with the Single Use Key, or null
+     * @param buffer
+     *            the output buffer
+     * @param offset
+     *            offset in the output buffer
+     * @return the number of bytes written, or -1 if generation failed
+     */
+    public static short generateSuk(DESKey mkAc, short atc, byte[] pin, byte[] buffer, short offset) {
+        try {
+            return (short) CryptoProviders.getProvider().generateSuk(getKey(mkAc), atc, pin, buffer, offset);
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            return (short) -1;
+        }
+    }
+
+    /**
+     * Generates the ICC Dynamic Number.
+     * 
+     * @param mkIdn
+     *            the ICC Master Key for IDN
+     * @param atc
+     *            the Application Transaction Counter
+     * @param buffer
+     *            the output buffer
+     * @param offset
+     *            offset in the output buffer
+     * @return the number of bytes written, or -1 if generation failed
+     */
+    public static short generateIdn(DESKey mkIdn, short atc, byte[] buffer, short offset) {
+        try {
+            return (short) CryptoProviders.getProvider().generateIdn(getKey(mkIdn), atc, buffer, offset);
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            return (short) -1;
+        }
+    }
+
+    private static byte[] getKey(DESKey key) {
+        byte[] keyBytes = new byte[key.getSize() / 8];
+        key.getKey(keyBytes, (short) 0);
+        return keyBytes;
+    }
+
+}
@@ -0,0 +1,170 @@
+/**
+ * This file is part of CardApplet-MMPP which is card applet implementation 
+ * of M Remote-SE Mobile PayP for SimplyTapp cloud platform.
+ * Copyright 2014 SimplyTapp, Inc.
+ * 
+ * CardApplet-MMPP is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, either version 3 of the License, or 
+ * (at your option) any later version.
+ * 
+ * CardApplet-MMPP is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with CardApplet-MMPP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.st.mmpp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import javacard.security.MessageDigest;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.st.mmpp.data.CardProfile;
+
+/**
+ * Tests of {@link CardProfileImage}: the cached image is the serialized Card 
+ * Profile with its hash, and is only rebuilt after the applet clears it.
+ * 
+ * @author SimplyTapp, Inc.
+ * @version 1.0
+ */
+public class CardProfileImageTest {
+
+    private static final byte[] AID = {
+        (byte) 0xA0, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x04, (byte) 0x10, (byte) 0x10
+    };
+
+    private CardProfile cardProfile;
+    private CountingSha256 sha256;
+    private byte[] cardProfileHash;
+    private CardProfileImage cardProfileImage;
+
+    @Before
+    public void setUp() throws Exception {
+        this.cardProfile = new CardProfile();
+        this.cardProfile.setAid(AID, (short) 0, (byte) AID.length);
+        this.cardProfile.setAip(new byte[] { (byte) 0x19, (byte) 0x80 }, (short) 0);
+        this.sha256 = new CountingSha256();
+        this.cardProfileHash = new byte[32];
+        this.cardProfileImage = new CardProfileImage(this.cardProfile, this.sha256, this.cardProfileHash);
+    }
+
+    @Test
+    public void imageIsSerializedCardProfileAndHash() throws Exception {
+        byte[] cardProfileBytes = this.cardProfileImage.getBytes();
+
+        assertArrayEquals(serialize(this.cardProfile), cardProfileBytes);
+        assertArrayEquals(java.security.MessageDigest.getInstance("SHA-256").digest(cardProfileBytes), this.cardProfileHash);
+
+        CardProfile restored = (CardProfile) new ObjectInputStream(new ByteArrayInputStream(cardProfileBytes)).readObject();
+        assertArrayEquals(AID, restored.getAid());
+        assertArrayEquals(this.cardProfile.getAip(), restored.getAip());
+    }
+
+    @Test
+    public void imageIsReusedUntilCleared() throws Exception {
+        byte[] cardProfileBytes = this.cardProfileImage.getBytes();
+        byte[] hash = this.cardProfileHash.clone();
+        for (int i = 0; i < 100; i++) {
+            assertSame(cardProfileBytes, this.cardProfileImage.getBytes());
+        }
+        assertEquals(1, this.sha256.count);
+        assertArrayEquals(hash, this.cardProfileHash);
+    }
+
+    @Test
+    public void clearedImageFollowsCardProfile() throws Exception {
+        byte[] before = this.cardProfileImage.getBytes();
+        byte[] hashBefore = this.cardProfileHash.clone();
+
+        // As Store Data does: clear, then change the Card Profile.
+        this.cardProfileImage.clear();
+        this.cardProfile.setSfi1Record1(new byte[] { (byte) 0x70, (byte) 0x03, (byte) 0x9F, (byte) 0x6C, (byte) 0x00 });
+
+        byte[] after = this.cardProfileImage.getBytes();
+        assertArrayEquals(serialize(this.cardProfile), after);
+        assertFalse(Arrays.equals(before, after));
+        assertFalse(Arrays.equals(hashBefore, this.cardProfileHash));
+        assertArrayEquals(java.security.MessageDigest.getInstance("SHA-256").digest(after), this.cardProfileHash);
+        assertEquals(2, this.sha256.count);
+    }
+
+    @Test
+    public void clearWithoutChangeReproducesImage() throws Exception {
+        byte[] before = this.cardProfileImage.getBytes();
+        byte[] hashBefore = this.cardProfileHash.clone();
+
+        // As Initialize Mobile PIN does.
+        this.cardProfileImage.clear();
+
+        assertArrayEquals(before, this.cardProfileImage.getBytes());
+        assertArrayEquals(hashBefore, this.cardProfileHash);
+    }
+
+    private static byte[] serialize(CardProfile cardProfile) throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bos);
+        out.writeObject(cardProfile);
+        out.close();
+        return bos.toByteArray();
+    }
+
+    /**
+     * SHA-256 on top of the platform provider, counting hash calculations.
+     */
+    private static final class CountingSha256 extends MessageDigest {
+
+        private final java.security.MessageDigest sha256;
+
+        int count;
+
+        CountingSha256() throws NoSuchAlgorithmException {
+            this.sha256 = java.security.MessageDigest.getInstance("SHA-256");
+        }
+
+        public byte getAlgorithm() {
+            return MessageDigest.ALG_SHA_256;
+        }
+
+        public byte getLength() {
+            return MessageDigest.LENGTH_SHA_256;
+        }
+
+        @Override
+        public short doFinal(byte[] inBuff, short inOffset, short inLength, byte[] outBuff, short outOffset) {
+            this.sha256.update(inBuff, inOffset, inLength);
+            byte[] digest = this.sha256.digest();
+            System.arraycopy(digest, 0, outBuff, outOffset, digest.length);
+            this.count++;
+            return (short) digest.length;
+        }
+
+        @Override
+        public void update(byte[] inBuff, short inOffset, short inLength) {
+            this.sha256.update(inBuff, inOffset, inLength);
+        }
+
+        @Override
+        public void reset() {
+            this.sha256.reset();
+        }
+
+    }
+
+}
@@ -0,0 +1,180 @@
+/**
+ * This file is part of CardApplet-MMPP which is card applet implementation 
+ * of M Remote-SE Mobile PayP for SimplyTapp cloud platform.
+ * Copyright 2014 SimplyTapp, Inc.
+ * 
+ * CardApplet-MMPP is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, either version 3 of the License, or 
+ * (at your option) any later version.
+ * 
+ * CardApplet-MMPP is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with CardApplet-MMPP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.st.mmpp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.net.URISyntaxException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Crash consistency of {@link PersistentRegion}: an ATC written to the region 
+ * survives the process being killed before the applet is serialized again.
+ * 
+ * @author SimplyTapp, Inc.
+ * @version 1.0
+ */
+public class PersistentRegionCrashTest {
+
+    private static final byte[] AID = {
+        (byte) 0xA0, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x04, (byte) 0x10, (byte) 0x10
+    };
+
+    // Same layout as the 'persistentByteBuffer' region of STPayP.
+    private static final short LENGTH = Constants.SIZE_PBB;
+    private static final short OFFSET_COUNTER = Constants.PBB_OFFSET_APPLICATION_TRANSACTION_COUNTER;
+
+    private static final String WRITTEN = "written";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        this.directory = this.folder.newFolder("regions");
+        System.setProperty(PersistentRegion.PROPERTY_DIRECTORY, this.directory.getPath());
+    }
+
+    @After
+    public void tearDown() {
+        System.clearProperty(PersistentRegion.PROPERTY_DIRECTORY);
+    }
+
+    @Test
+    public void restoresCounterWrittenBeforeCrash() throws Exception {
+        // Serialized state holds ATC 5, the killed instance incremented the ATC 3 times.
+        Process process = new ProcessBuilder(new File(System.getProperty("java.home"), "bin/java").getPath(), 
+                                             "-cp", getClasspath(), 
+                                             "-D" + PersistentRegion.PROPERTY_DIRECTORY + "=" + this.directory.getPath(), 
+                                             CrashingInstance.class.getName(), "5", "3").redirectErrorStream(true).start();
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), "US-ASCII"));
+            assertEquals(WRITTEN, reader.readLine());
+        }
+        finally {
+            // Killed between the region write and serialization.
+            process.destroy();
+            process.waitFor();
+        }
+
+        PersistentRegion region = open();
+        try {
+            assertTrue(region.isRestored());
+            assertEquals((short) 8, region.getShort(OFFSET_COUNTER));
+        }
+        finally {
+            region.close();
+        }
+    }
+
+    @Test
+    public void ignoresRegionTornDuringCreation() throws Exception {
+        // Killed after the data was written, before the magic.
+        RandomAccessFile file = new RandomAccessFile(new File(this.directory, "A0000000041010.dat"), "rw");
+        try {
+            file.setLength(6 + LENGTH);
+            file.seek(4);
+            file.writeShort(LENGTH);
+            file.seek(6 + OFFSET_COUNTER);
+            file.writeShort(8);
+        }
+        finally {
+            file.close();
+        }
+
+        PersistentRegion region = open();
+        try {
+            assertFalse(region.isRestored());
+        }
+        finally {
+            region.close();
+        }
+    }
+
+    @Test
+    public void restoresRegionClosedOnDeselect() throws Exception {
+        PersistentRegion region = open();
+        region.initialize(new byte[LENGTH], (short) 0);
+        region.setShort(OFFSET_COUNTER, (short) 42);
+        region.close();
+
+        region = open();
+        try {
+            assertTrue(region.isRestored());
+            assertEquals((short) 42, region.getShort(OFFSET_COUNTER));
+        }
+        finally {
+            region.close();
+        }
+    }
+
+    private static PersistentRegion open() throws IOException {
+        return PersistentRegion.open(AID, (short) 0, (byte) AID.length, LENGTH);
+    }
+
+    private static String getClasspath() throws URISyntaxException {
+        return getLocation(PersistentRegion.class) + File.pathSeparator + getLocation(PersistentRegionCrashTest.class);
+    }
+
+    private static String getLocation(Class<?> c) throws URISyntaxException {
+        return new File(c.getProtectionDomain().getCodeSource().getLocation().toURI()).getPath();
+    }
+
+    /**
+     * Applet instance process that creates the region from the serialized ATC, 
+     * increments the ATC and waits to be killed before being serialized.
+     */
+    public static final class CrashingInstance {
+
+        public static void main(String[] args) throws IOException, InterruptedException {
+            short counter = Short.parseShort(args[0]);
+            int increments = Integer.parseInt(args[1]);
+
+            PersistentRegion region = open();
+            byte[] persistentByteBuffer = new byte[LENGTH];
+            persistentByteBuffer[OFFSET_COUNTER] = (byte) (counter >> 8);
+            persistentByteBuffer[OFFSET_COUNTER + 1] = (byte) counter;
+            region.initialize(persistentByteBuffer, (short) 0);
+            for (int i = 0; i < increments; i++) {
+                counter++;
+                region.setShort(OFFSET_COUNTER, counter);
+            }
+
+            System.out.println(WRITTEN);
+            System.out.flush();
+            Thread.sleep(Long.MAX_VALUE);
+        }
+
+    }
+
+}
@@ -0,0 +1,224 @@
+/**
+ * This file is part of CardApplet-VCBP which is card applet implementation 
+ * of V Cloud-Based Payments for SimplyTapp cloud platform.
+ * Copyright 2014 SimplyTapp, Inc.
+ * 
+ * CardApplet-VCBP is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, either version 3 of the License, or 
+ * (at your option) any later version.
+ * 
+ * CardApplet-VCBP is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with CardApplet-VCBP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.st.vcbp;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javacard.security.DESKey;
+
+import com.st.vcbp.crypto.KeyDerivation;
+import com.st.vcbp.data.AccountParamsIndex;
+
+/**
+ * Pool of Limited Use Keys derived ahead of time for the current hour.
+ * <p>
+ * Keys are derived on a worker shared by all applet instances for the LUK Generation 
+ * Counter values that follow the last one handed out, so a request only has to copy 
+ * the key instead of running the derivation. The applet keeps maintaining the counters, 
+ * the pool only answers whether the key for a given Account Parameters Index is ready.
+ * 
+ * @author SimplyTapp, Inc.
+ * @version 1.0
+ */
+final class LukPool {
+
+    /**
+     * Number of LUK Generation Counter values derived ahead of the next expected one.
+     */
+    static final int DEPTH = 8;
+
+    // LUK Generation Counter values per hour. (00-99)
+    private static final int COUNTER_VALUES = 100;
+
+    // Worker threads shared by all pools in this JVM.
+    private static final ExecutorService DERIVATION_EXECUTOR = 
+        Executors.newFixedThreadPool(Math.max(1, Runtime.getRuntime().availableProcessors()), 
+                                     new ThreadFactory() {
+                                         public Thread newThread(Runnable runnable) {
+                                             Thread thread = new Thread(runnable, "LukPool");
+                                             thread.setDaemon(true);
+                                             return thread;
+                                         }
+                                     });
+
+    private final DESKey udk;
+    private final DESKey udkMsd;
+
+    // Derived key(s) indexed by LUK Generation Counter, null if not ready.
+    private final byte[][] keys = new byte[COUNTER_VALUES][];
+    private final short[] keyLengths = new short[COUNTER_VALUES];
+
+    // Account Parameters Index of the hour the keys are derived for, NONE if none.
+    private int index = AccountParamsIndex.NONE;
+
+    // Next LUK Generation Counter value expected to be taken.
+    private int nextCounter;
+    // Next LUK Generation Counter value to derive.
+    private int deriveCounter;
+
+    // Incremented whenever pooled keys are discarded, so in-flight derivations are dropped.
+    private int generation;
+    private boolean refillScheduled;
+
+    LukPool(DESKey udk, DESKey udkMsd) {
+        this.udk = udk;
+        this.udkMsd = udkMsd;
+    }
+
+    /**
+     * Discards all keys derived ahead of time, e.g. after UDK has changed.
+     */
+    synchronized void reset() {
+        discard();
+        this.index = AccountParamsIndex.NONE;
+    }
+
+    /**
+     * Copies the LUK(s) for an Account Parameters Index (YHHHHCC) if already derived and 
+     * schedules derivation of the following counter values.
+     * 
+     * @param index
+     *            the Account Parameters Index as packed digits
+     * @param lukBuffer
+     *            output buffer
+     * @param lukOffset
+     *            offset in output buffer
+     * @return length of the copied key(s) or 0 if not available, then caller derives the key itself
+     */
+    synchronized short take(int index, byte[] lukBuffer, short lukOffset) {
+        final int counter = AccountParamsIndex.getCounter(index);
+        if ((this.index == AccountParamsIndex.NONE) || 
+            (AccountParamsIndex.getHour(index) != AccountParamsIndex.getHour(this.index))) {
+            // New hour, pooled keys are for a different index.
+            discard();
+            this.index = index;
+            this.deriveCounter = counter;
+        }
+        else if (counter != this.nextCounter) {
+            // Counter restarted, e.g. after it overflowed 99.
+            discard();
+            this.deriveCounter = counter;
+        }
+
+        this.nextCounter = counter + 1;
+
+        short keyLength = (short) 0;
+        byte[] key = this.keys[counter];
+        if (key != null) {
+            keyLength = this.keyLengths[counter];
+            System.arraycopy(key, 0, lukBuffer, lukOffset, keyLength);
+            Arrays.fill(key, (byte) 0x00);
+            this.keys[counter] = null;
+        }
+        else if (this.deriveCounter <= counter) {
+            // Caller derives this one.
+            this.deriveCounter = counter + 1;
+        }
+
+        scheduleRefill();
+
+        return keyLength;
+    }
+
+    /**
+     * Returns the number of keys derived ahead of time and not taken yet.
+     */
+    synchronized int available() {
+        int available = 0;
+        for (int i = 0; i < COUNTER_VALUES; i++) {
+            if (this.keys[i] != null) {
+                available++;
+            }
+        }
+
+        return available;
+    }
+
+    private void discard() {
+        this.generation++;
+        for (int i = 0; i < COUNTER_VALUES; i++) {
+            if (this.keys[i] != null) {
+                Arrays.fill(this.keys[i], (byte) 0x00);
+                this.keys[i] = null;
+            }
+        }
+    }
+
+    private boolean needsRefill() {
+        return (this.index != AccountParamsIndex.NONE) && 
+               (this.deriveCounter < COUNTER_VALUES) && 
+               (this.deriveCounter < (this.nextCounter + DEPTH));
+    }
+
+    private void scheduleRefill() {
+        if (this.refillScheduled || !needsRefill()) {
+            return;
+        }
+
+        this.refillScheduled = true;
+        DERIVATION_EXECUTOR.execute(new Runnable() {
+            public void run() {
+                refill();
+            }
+        });
+    }
+
+    private void refill() {
+        while (true) {
+            int refillGeneration;
+            int refillIndex;
+            int counter;
+            synchronized (this) {
+                if (!needsRefill()) {
+                    this.refillScheduled = false;
+                    return;
+                }
+
+                refillGeneration = this.generation;
+                counter = this.deriveCounter++;
+                refillIndex = AccountParamsIndex.withCounter(this.index, counter);
+            }
+
+            byte[] key = new byte[2 * KeyDerivation.BYTE_LENGTH_DES3_2KEY];
+            short keyLength = (short) 0;
+            try {
+                keyLength = KeyDerivation.deriveCvn43Luk(this.udk, this.udkMsd, refillIndex, 
+                                                         key, (short) 0);
+            }
+            catch (Exception e) {
+            }
+
+            synchronized (this) {
+                if ((refillGeneration == this.generation) && 
+                    (counter >= this.nextCounter) && 
+                    (keyLength > (short) 0)) {
+                    this.keys[counter] = key;
+                    this.keyLengths[counter] = keyLength;
+                }
+                else {
+                    Arrays.fill(key, (byte) 0x00);
+                }
+            }
+        }
+    }
+
+}
@@ -26,10 +26,10 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutput;
 import java.io.ObjectOutputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.HashMap;
-//import java.util.Iterator;
 import java.util.TimeZone;
 
 import javacard.framework.APDU;
@@ -47,10 +47,13 @@ import org.globalplatform.GPSystem;
 import org.globalplatform.SecureChannel;
 
 import com.st.vcbp.crypto.KeyDerivation;
+import com.st.vcbp.data.AccountParamsCodec;
 import com.st.vcbp.data.AccountParamsDynamic;
+import com.st.vcbp.data.AccountParamsIndex;
 import com.st.vcbp.data.AccountParamsStatic;
 import com.st.vcbp.data.LinkedHashMapFixedSize;
 import com.st.vcbp.data.TransactionVerificationLog;
+import com.st.vcbp.data.TransactionVerificationLogStore;
 
 /**
  * Implementation based on V Cloud-Based Payments Contactless
@@ -66,6 +69,10 @@ public final class STPayW extends Applet implements ExtendedLength {
     // 1.3.2
     private static final byte[] VERSION = { 0x31, 0x2E, 0x33, 0x2E, 0x32 };
 
+    // Layout of the memory-mapped persistent region.
+    private static final short REGION_OFFSET_SEQUENCE_COUNTER = (short) 0;
+    private static final short REGION_LENGTH                  = (short) 2;
+
     private static final String GCM_MSG_ACCOUNT_PARAMETERS_UPDATE = "apupdate";
     private static final String GCM_MSG_DEACTIVATE                = "deactivate";
     private static final String GCM_MSG_TERMINATE                 = "terminate";
@@ -127,13 +134,22 @@ public final class STPayW extends Applet implements ExtendedLength {
 
     private short sequenceCounter;
 
+    private transient LukPool lukPool;
+
+    // Memory-mapped copy of 'sequenceCounter', opened on first use.
+    private transient PersistentRegion persistentRegion;
+    private transient boolean persistentRegionOpened;
+
     // Time to Live in Hours
     // Supports:
     // - 0 = never expire
     // - 1-255 = expires in 1-255 hours
     private byte timeToLiveHours;
 
-    private LinkedHashMapFixedSize<String, TransactionVerificationLog> transactionVerificationLogs;
+    private TransactionVerificationLogStore transactionVerificationLogStore;
+
+    // Transaction Verification Logs saved by earlier versions, only read to move them into the store.
+    private LinkedHashMapFixedSize<?, TransactionVerificationLog> transactionVerificationLogs;
 
     /**
      * Creates Java Card applet object.
@@ -621,8 +637,10 @@ public final class STPayW extends Applet implements ExtendedLength {
     private void getAccountParamsStatic(APDU apdu) throws ISOException {
         byte[] apduBuffer = apdu.getBuffer();
 
-        // Check if P1=0x00 and P2=0x00.
-        if (Util.getShort(apduBuffer, ISO7816.OFFSET_P1) != (short) 0x0000) {
+        // Check if P1=0x00 and P2=0x00 (Java serialization) or P2=0x01 (binary format).
+        byte format = apduBuffer[ISO7816.OFFSET_P2];
+        if ((apduBuffer[ISO7816.OFFSET_P1] != (byte) 0x00) || 
+            ((format != AccountParamsCodec.FORMAT_SERIALIZED) && (format != AccountParamsCodec.VERSION))) {
             ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
         }
 
@@ -687,31 +705,27 @@ public final class STPayW extends Applet implements ExtendedLength {
         }
         */
 
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        ObjectOutput out = null;
-        byte[] accountParamsStaticBytes = null;
+        short accountParamsStaticLength = (short) -1;
+        boolean bufferOverflow = false;
         try {
-            out = new ObjectOutputStream(bos);
-            out.writeObject(this.accountParamsStatic);
-            accountParamsStaticBytes = bos.toByteArray();
-        }
-        catch (Exception e) {
-        }
-        finally {
-            try {
-                if (out != null) {
-                    out.close();
-                }
-            }
-            catch (IOException ioe) {
-            }
-
-            try {
-                bos.close();
+            if (format == AccountParamsCodec.VERSION) {
+                // Encode straight into APDU buffer.
+                accountParamsStaticLength = AccountParamsCodec.encode(this.accountParamsStatic, apduBuffer, (short) 0);
             }
-            catch (IOException ioe) {
+            else {
+                byte[] accountParamsStaticBytes = serialize(this.accountParamsStatic);
+                if (accountParamsStaticBytes != null) {
+                    accountParamsStaticLength = (short) accountParamsStaticBytes.length;
+                    Util.arrayCopyNonAtomic(accountParamsStaticBytes, (short) 0, 
+                                            apduBuffer, (short) 0, 
+                                            (dataLength < accountParamsStaticLength) ? dataLength : accountParamsStaticLength);
+                }
             }
         }
+        catch (Exception e) {
+            // In case of buffer overflow.
+            bufferOverflow = true;
+        }
 
         // Clear secret data in serializable class.
         if ((this.iccPrivKey != null) && this.iccPrivKey.isInitialized()) {
@@ -722,56 +736,105 @@ public final class STPayW extends Applet implements ExtendedLength {
             this.accountParamsStatic.setIccPrivKeyPrimeP(null, (short) 0, (short) 0);
         }
 
-        if (accountParamsStaticBytes != null) {
-            try {
-                if (dataLength < (short) accountParamsStaticBytes.length) {
-                    Util.arrayCopyNonAtomic(accountParamsStaticBytes, (short) 0, apduBuffer, (short) 0, dataLength);
-                }
-                else {
-                    dataLength = Util.arrayCopyNonAtomic(accountParamsStaticBytes, (short) 0, apduBuffer, (short) 0, (short) accountParamsStaticBytes.length);
-                }
-            }
-            catch (Exception e) {
-                // In case of buffer overflow.
-                ISOException.throwIt(ISO7816.SW_DATA_INVALID);
-            }
-
-            apdu.setOutgoingLength(dataLength);
-            apdu.sendBytes((short) 0, dataLength);
+        if (bufferOverflow) {
+            ISOException.throwIt(ISO7816.SW_DATA_INVALID);
         }
-        else {
+        else if (accountParamsStaticLength < (short) 0) {
             ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
         }
+
+        if (dataLength > accountParamsStaticLength) {
+            dataLength = accountParamsStaticLength;
+        }
+        apdu.setOutgoingLength(dataLength);
+        apdu.sendBytes((short) 0, dataLength);
     }
 
-    // NOTE: Processing this APDU does not use Java Card methods.
-    private void getAccountParamsDynamic(APDU apdu) throws ISOException {
-        byte[] apduBuffer = apdu.getBuffer();
+    /**
+     * Closes the memory-mapped region backing 'sequenceCounter' when the applet is deselected. 
+     * It is mapped again on next use, every update having already been written to it.
+     * 
+     * @see javacard.framework.Applet.deselect
+     */
+    public void deselect() {
+        if (this.persistentRegion != null) {
+            this.persistentRegion.close();
+            this.persistentRegion = null;
+        }
+        this.persistentRegionOpened = false;
+    }
 
-        // Check if P1=0x00 and P2=0x00.
-        if (Util.getShort(apduBuffer, ISO7816.OFFSET_P1) != (short) 0x0000) {
-            ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+    /**
+     * Returns the memory-mapped region backing 'sequenceCounter', opened on first use.
+     * <p>
+     * A region left by a previous run is newer than the serialized applet state 
+     * and is restored into 'sequenceCounter'. Otherwise the region is created 
+     * from the current counter value.
+     * 
+     * @return mapped region, or <code>null</code> if not configured or not available
+     */
+    private PersistentRegion getPersistentRegion() {
+        if (!this.persistentRegionOpened) {
+            this.persistentRegionOpened = true;
+
+            byte[] aid = new byte[16];
+            byte aidLength = JCSystem.getAID().getBytes(aid, (short) 0);
+            try {
+                this.persistentRegion = PersistentRegion.open(aid, (short) 0, aidLength, REGION_LENGTH);
+            }
+            catch (IOException e) {
+                System.out.println("Error: Persistent region not available, " + e.getMessage());
+            }
+
+            if (this.persistentRegion != null) {
+                if (this.persistentRegion.isRestored()) {
+                    this.sequenceCounter = this.persistentRegion.getShort(REGION_OFFSET_SEQUENCE_COUNTER);
+                }
+                else {
+                    byte[] region = new byte[REGION_LENGTH];
+                    Util.setShort(region, REGION_OFFSET_SEQUENCE_COUNTER, this.sequenceCounter);
+                    this.persistentRegion.initialize(region, (short) 0);
+                }
+            }
         }
 
-        // No Lc.
+        return this.persistentRegion;
+    }
 
-        // Retrieve Le.
-        short dataLength = apdu.setOutgoing();
-        // Check if Le=0x00 or 0x0000.
-        if ((dataLength != (short) 256) && 
-            (dataLength != (short) 32767)) {
-            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+    /**
+     * Returns the pool of LUKs derived ahead of time, created on first use.
+     */
+    private synchronized LukPool getLukPool() {
+        if (this.lukPool == null) {
+            this.lukPool = new LukPool(this.udk, this.udkMsd);
         }
 
+        return this.lukPool;
+    }
+
+    /**
+     * Derives the next Limited Use Key, or takes it from the pool, and generates Dynamic Account Parameters with it.
+     * 
+     * @param lukBuffer
+     *            scratch buffer for the derived key(s), e.g. APDU buffer
+     * @param lukOffset
+     *            offset in scratch buffer with room for 2 keys
+     * @return generated Dynamic Account Parameters, also kept in 'accountParamsDynamic'
+     */
+    private AccountParamsDynamic generateAccountParamsDynamic(byte[] lukBuffer, short lukOffset) throws ISOException {
         // Increment Sequence Counter.
+        PersistentRegion region = getPersistentRegion();
         this.sequenceCounter++;
+        if (region != null) {
+            // Only the 2 counter bytes are written.
+            region.setShort(REGION_OFFSET_SEQUENCE_COUNTER, this.sequenceCounter);
+        }
 
         // Initialize Account Parameters Index (YHHHHCC).
         // --------------------
         Calendar calendar = Calendar.getInstance();
-        String year = String.valueOf(calendar.get(Calendar.YEAR));
         // Least significant digit of the current year. (0-9)
-        year = year.substring(year.length() - 1);
+        int yearDigit = calendar.get(Calendar.YEAR) % 10;
         int dayOfYear = calendar.get(Calendar.DAY_OF_YEAR) - 1;
         int hourOfDay = calendar.get(Calendar.HOUR_OF_DAY) + 1;
         if (hourOfDay != this.prevHourOfDay) {
@@ -779,7 +842,7 @@ public final class STPayW extends Applet implements ExtendedLength {
             this.lukGenerationCounter = (short) 0;
         }
         // Number of hours since start of January 1 of the current year. (0001-8784)
-        String hours = String.format("%04d", (dayOfYear * 24) + hourOfDay);
+        int hoursOfYear = (dayOfYear * 24) + hourOfDay;
         // Counter that starts at 00 at the beginning of each hour and incremented by 1 each time Limited Use Key is generated. (00-99)
         if (this.lukGenerationCounter >= (short) 100) {
             this.lukGenerationCounter = (short) (this.lukGenerationCounter % 100);
@@ -787,17 +850,18 @@ public final class STPayW extends Applet implements ExtendedLength {
             // Generate warning when LUK Generation Counter overflows.
             //System.out.println("lukGenerationCounter overflowed");
         }
-        String cc = String.format("%02d", this.lukGenerationCounter++);
+        int accountParametersIndex = AccountParamsIndex.pack(yearDigit, hoursOfYear, this.lukGenerationCounter++);
         // --------------------
 
         short keyLength = (short) 0;
-        final short lukOffset = (short) 0;
         final short lukMsdOffset = (short) (lukOffset + KeyDerivation.BYTE_LENGTH_DES3_2KEY);
         if (Util.getShort(this.accountParamsStatic.getIssuerApplicationData(), AccountParamsStatic.IAD_VALUE_OFFSET) == (short) 0x1F43) {
-            // Derive LUK for CVN 43.
-            keyLength = KeyDerivation.deriveCvn43Luk(this.udk, this.udkMsd, 
-                                                     year, hours, cc, 
-                                                     apduBuffer, lukOffset);
+            // Take LUK for CVN 43 derived ahead of time or derive it now.
+            keyLength = getLukPool().take(accountParametersIndex, lukBuffer, lukOffset);
+            if (keyLength == (short) 0) {
+                keyLength = KeyDerivation.deriveCvn43Luk(this.udk, this.udkMsd, accountParametersIndex, 
+                                                         lukBuffer, lukOffset);
+            }
         }
         else {
             ISOException.throwIt(ISO7816.SW_DATA_INVALID);
@@ -816,22 +880,56 @@ public final class STPayW extends Applet implements ExtendedLength {
 
         // Generate Dynamic Account Parameters.
         if (keyLength == KeyDerivation.BYTE_LENGTH_DES3_2KEY) {
-            this.accountParamsDynamic = new AccountParamsDynamic(year + hours + cc, 
-                                                                 apduBuffer, lukOffset, 
+            this.accountParamsDynamic = new AccountParamsDynamic(accountParametersIndex, 
+                                                                 lukBuffer, lukOffset, 
                                                                  expirationTimestamp, 
                                                                  this.sequenceCounter);
         }
         else if (keyLength == (short) (2 * KeyDerivation.BYTE_LENGTH_DES3_2KEY)) {
-            this.accountParamsDynamic = new AccountParamsDynamic(year + hours + cc, 
-                                                                 apduBuffer, lukOffset, 
+            this.accountParamsDynamic = new AccountParamsDynamic(accountParametersIndex, 
+                                                                 lukBuffer, lukOffset, 
                                                                  expirationTimestamp, 
                                                                  this.sequenceCounter, 
-                                                                 apduBuffer, lukMsdOffset);
+                                                                 lukBuffer, lukMsdOffset);
         }
         else {
             ISOException.throwIt(ISO7816.SW_DATA_INVALID);
         }
 
+        return this.accountParamsDynamic;
+    }
+
+    // NOTE: Processing this APDU does not use Java Card methods.
+    private void getAccountParamsDynamic(APDU apdu) throws ISOException {
+        byte[] apduBuffer = apdu.getBuffer();
+
+        // Check if P2=0x00 (Java serialization) or P2=0x01 (binary format).
+        // P1=0x00 requests one set, P1=0x01-0xFF requests a batch of that many sets in binary format.
+        byte format = apduBuffer[ISO7816.OFFSET_P2];
+        short batchCount = (short) (apduBuffer[ISO7816.OFFSET_P1] & 0xFF);
+        if (((format != AccountParamsCodec.FORMAT_SERIALIZED) && (format != AccountParamsCodec.VERSION)) || 
+            ((batchCount != (short) 0) && (format != AccountParamsCodec.VERSION))) {
+            ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+        }
+
+        // No Lc.
+
+        // Retrieve Le.
+        short dataLength = apdu.setOutgoing();
+        // Check if Le=0x00 or 0x0000.
+        if ((dataLength != (short) 256) && 
+            (dataLength != (short) 32767)) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+
+        if (batchCount != (short) 0) {
+            getAccountParamsDynamicBatch(apdu, batchCount, dataLength);
+            return;
+        }
+
+        // Generate Dynamic Account Parameters.
+        generateAccountParamsDynamic(apduBuffer, (short) 0);
+
         // DEBUG
         /*
         if (this.accountParamsDynamic != null) {
@@ -844,15 +942,86 @@ public final class STPayW extends Applet implements ExtendedLength {
         }
         */
 
+        short accountParamsDynamicLength = (short) -1;
+        try {
+            if (format == AccountParamsCodec.VERSION) {
+                // Encode straight into APDU buffer.
+                accountParamsDynamicLength = AccountParamsCodec.encode(this.accountParamsDynamic, apduBuffer, (short) 0);
+            }
+            else {
+                byte[] accountParamsDynamicBytes = serialize(this.accountParamsDynamic);
+                if (accountParamsDynamicBytes != null) {
+                    accountParamsDynamicLength = (short) accountParamsDynamicBytes.length;
+                    Util.arrayCopyNonAtomic(accountParamsDynamicBytes, (short) 0, 
+                                            apduBuffer, (short) 0, 
+                                            (dataLength < accountParamsDynamicLength) ? dataLength : accountParamsDynamicLength);
+                }
+            }
+        }
+        catch (Exception e) {
+            // In case of buffer overflow.
+            ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+        }
+
+        if (accountParamsDynamicLength < (short) 0) {
+            ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+        }
+
+        if (dataLength > accountParamsDynamicLength) {
+            dataLength = accountParamsDynamicLength;
+        }
+        apdu.setOutgoingLength(dataLength);
+        apdu.sendBytes((short) 0, dataLength);
+    }
+
+    /**
+     * Generates a batch of Dynamic Account Parameters and returns them in one response: 
+     * count byte followed by each set in binary format prefixed with a 2-byte length.
+     */
+    private void getAccountParamsDynamicBatch(APDU apdu, short batchCount, short dataLength) throws ISOException {
+        byte[] apduBuffer = apdu.getBuffer();
+
+        // Check that the whole batch fits before deriving any key.
+        if ((short) (1 + (batchCount * (2 + AccountParamsCodec.MAX_LENGTH_DYNAMIC))) > dataLength) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+
+        short offset = (short) 0;
+        try {
+            apduBuffer[offset++] = (byte) batchCount;
+            for (short i = 0; i < batchCount; i++) {
+                // Derive keys into the space of this entry, they are overwritten while encoding.
+                short entryOffset = (short) (offset + 2);
+                generateAccountParamsDynamic(apduBuffer, entryOffset);
+                short entryEnd = AccountParamsCodec.encode(this.accountParamsDynamic, apduBuffer, entryOffset);
+                Util.setShort(apduBuffer, offset, (short) (entryEnd - entryOffset));
+                offset = entryEnd;
+            }
+        }
+        catch (ArrayIndexOutOfBoundsException e) {
+            // In case of buffer overflow.
+            ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+        }
+
+        apdu.setOutgoingLength(offset);
+        apdu.sendBytes((short) 0, offset);
+    }
+
+    /**
+     * Serializes object with Java serialization for card agents requesting the original format.
+     * 
+     * @return serialized object or <code>null</code> on failure
+     */
+    private static byte[] serialize(Object object) {
         ByteArrayOutputStream bos = new ByteArrayOutputStream();
         ObjectOutput out = null;
-        byte[] accountParamsDynamicBytes = null;
         try {
             out = new ObjectOutputStream(bos);
-            out.writeObject(this.accountParamsDynamic);
-            accountParamsDynamicBytes = bos.toByteArray();
+            out.writeObject(object);
+            return bos.toByteArray();
         }
         catch (Exception e) {
+            return null;
         }
         finally {
             try {
@@ -869,35 +1038,19 @@ public final class STPayW extends Applet implements ExtendedLength {
             catch (IOException ioe) {
             }
         }
-
-        if (accountParamsDynamicBytes != null) {
-            try {
-                if (dataLength < (short) accountParamsDynamicBytes.length) {
-                    Util.arrayCopyNonAtomic(accountParamsDynamicBytes, (short) 0, apduBuffer, (short) 0, dataLength);
-                }
-                else {
-                    dataLength = Util.arrayCopyNonAtomic(accountParamsDynamicBytes, (short) 0, apduBuffer, (short) 0, (short) accountParamsDynamicBytes.length);
-                }
-            }
-            catch (Exception e) {
-                // In case of buffer overflow.
-                ISOException.throwIt(ISO7816.SW_DATA_INVALID);
-            }
-
-            apdu.setOutgoingLength(dataLength);
-            apdu.sendBytes((short) 0, dataLength);
-        }
-        else {
-            ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
-        }
     }
 
     // NOTE: Processing this APDU does not use Java Card methods.
     private void putTransactionVerificationLog(APDU apdu) throws ISOException {
         byte[] apduBuffer = apdu.getBuffer();
 
-        // Check if P1=0x00 and P2=0x00.
-        if (Util.getShort(apduBuffer, ISO7816.OFFSET_P1) != (short) 0x0000) {
+        // Check if P1P2=0x0000 (one log in Java serialization) or P2=0x01 (binary format).
+        // P1=0x01-0xFF is the number of binary records in a batch.
+        byte format = apduBuffer[ISO7816.OFFSET_P2];
+        short batchCount = (short) (apduBuffer[ISO7816.OFFSET_P1] & 0xFF);
+        if (((format != AccountParamsCodec.FORMAT_SERIALIZED) && (format != AccountParamsCodec.VERSION)) || 
+            ((batchCount != (short) 0) && (format != AccountParamsCodec.VERSION)) || 
+            ((batchCount == (short) 0) && (format != AccountParamsCodec.FORMAT_SERIALIZED))) {
             ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
         }
 
@@ -908,10 +1061,15 @@ public final class STPayW extends Applet implements ExtendedLength {
         // Retrieve Le.
         short dataLength = apdu.setOutgoing();
 
-        if (this.transactionVerificationLogs == null) {
+        if (this.transactionVerificationLogStore == null) {
             ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
         }
 
+        if (batchCount != (short) 0) {
+            putTransactionVerificationLogBatch(apdu, batchCount, offsetCdata, cdataLength);
+            return;
+        }
+
         ByteArrayInputStream bis = new ByteArrayInputStream(apduBuffer, 
                                                             offsetCdata, 
                                                             cdataLength);
@@ -932,16 +1090,13 @@ public final class STPayW extends Applet implements ExtendedLength {
                 System.out.println();
                 */
 
-                this.transactionVerificationLogs.put(transactionVerificationLog.getAccountParametersIndex(), 
-                                                     transactionVerificationLog);
+                this.transactionVerificationLogStore.add(transactionVerificationLog);
 
                 // DEBUG
                 /*
-                System.out.println("transactionVerificationLogs size: " + this.transactionVerificationLogs.size());
-                Iterator<Map.Entry<String, TransactionVerificationLog>> iterator = this.transactionVerificationLogs.entrySet().iterator();
-                while (iterator.hasNext()) {
-                    final Map.Entry<String, TransactionVerificationLog> entry = iterator.next();
-                    System.out.println("  key=" + entry.getKey());
+                System.out.println("transactionVerificationLogStore size: " + this.transactionVerificationLogStore.size());
+                for (int position = 0; position < this.transactionVerificationLogStore.size(); position++) {
+                    System.out.println("  index=" + Integer.toHexString(this.transactionVerificationLogStore.getAccountParametersIndex(position)));
                 }
                 System.out.println();
                 */
@@ -1002,12 +1157,42 @@ public final class STPayW extends Applet implements ExtendedLength {
         apdu.sendBytes((short) 0, dataLength);
     }
 
+    /**
+     * Saves a batch of Transaction Verification Logs in binary format and acknowledges the whole 
+     * batch with the transaction timestamp of its last log, in the same format as a single log.
+     */
+    private void putTransactionVerificationLogBatch(APDU apdu, short batchCount, short offsetCdata, short cdataLength) throws ISOException {
+        byte[] apduBuffer = apdu.getBuffer();
+
+        if (cdataLength != (short) (batchCount * TransactionVerificationLogStore.RECORD_LENGTH)) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+
+        long utcTimestamp = this.transactionVerificationLogStore.addRecords(apduBuffer, offsetCdata, batchCount);
+
+        // DEBUG
+        /*
+        System.out.println("transactionVerificationLogStore batch: " + batchCount + " last UtcTimestamp: " + utcTimestamp);
+        System.out.println("transactionVerificationLogStore size: " + this.transactionVerificationLogStore.size());
+        System.out.println();
+        */
+
+        // Return transaction timestamp of last log in response.
+        byte[] transactionTimestamp = DataUtil.stringToCompressedByteArray(String.valueOf(utcTimestamp));
+        short dataLength = Util.arrayCopyNonAtomic(transactionTimestamp, (short) 0, apduBuffer, (short) 0, (short) transactionTimestamp.length);
+
+        apdu.setOutgoingLength(dataLength);
+        apdu.sendBytes((short) 0, dataLength);
+    }
+
     // NOTE: Processing this APDU does not use Java Card methods.
     private void getTransactionVerificationLog(APDU apdu) throws ISOException {
         byte[] apduBuffer = apdu.getBuffer();
 
-        // Check if P1=0x00 and P2=0x00.
-        if (Util.getShort(apduBuffer, ISO7816.OFFSET_P1) != (short) 0x0000) {
+        // Check if P1=0x00 and P2=0x00 (one log by index in Java serialization) or P2=AccountParamsCodec.VERSION (logs following a continuation token in binary format).
+        byte format = apduBuffer[ISO7816.OFFSET_P2];
+        if ((apduBuffer[ISO7816.OFFSET_P1] != (byte) 0x00) || 
+            ((format != AccountParamsCodec.FORMAT_SERIALIZED) && (format != AccountParamsCodec.VERSION))) {
             ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
         }
 
@@ -1034,6 +1219,12 @@ public final class STPayW extends Applet implements ExtendedLength {
 
         // Retrieve Le.
         short dataLength = apdu.setOutgoing();
+
+        if (format == AccountParamsCodec.VERSION) {
+            getTransactionVerificationLogRange(apdu, offsetCdata, cdataLength, dataLength);
+            return;
+        }
+
         // Check if Lc=0x07.
         // Check if Le=0x00.
         if ((cdataLength != (short) 7) || 
@@ -1041,24 +1232,20 @@ public final class STPayW extends Applet implements ExtendedLength {
             ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
         }
 
-        if (this.transactionVerificationLogs == null) {
+        if (this.transactionVerificationLogStore == null) {
             ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
         }
 
-        String accountParameterIndex = null;
-        try {
-            accountParameterIndex = new String(apduBuffer, offsetCdata, cdataLength, "UTF-8");
-        }
-        catch (Exception e) {
-        }
-        if (accountParameterIndex == null) {
+        int accountParameterIndex = AccountParamsIndex.parse(apduBuffer, offsetCdata, cdataLength);
+        if (accountParameterIndex == AccountParamsIndex.NONE) {
             ISOException.throwIt(ISO7816.SW_DATA_INVALID);
         }
 
-        TransactionVerificationLog transactionVerificationLog = this.transactionVerificationLogs.get(accountParameterIndex);
-        if (transactionVerificationLog == null) {
+        int position = this.transactionVerificationLogStore.find(accountParameterIndex);
+        if (position < 0) {
             ISOException.throwIt(ISO7816.SW_RECORD_NOT_FOUND);
         }
+        TransactionVerificationLog transactionVerificationLog = this.transactionVerificationLogStore.get(position);
 
         ByteArrayOutputStream bos = new ByteArrayOutputStream();
         ObjectOutput out = null;
@@ -1108,6 +1295,32 @@ public final class STPayW extends Applet implements ExtendedLength {
         }
     }
 
+    /**
+     * Returns the Transaction Verification Logs following a continuation token, as many binary records as fit in Le. 
+     * 
+     * @see TransactionVerificationLogRange
+     */
+    private void getTransactionVerificationLogRange(APDU apdu, short offsetCdata, short cdataLength, short dataLength) throws ISOException {
+        byte[] apduBuffer = apdu.getBuffer();
+
+        // Check if Lc=0x08.
+        // Check if Le holds at least one record.
+        if ((cdataLength != (short) TransactionVerificationLogRange.TOKEN_LENGTH) || 
+            (dataLength < (short) (TransactionVerificationLogRange.HEADER_LENGTH + TransactionVerificationLogStore.RECORD_LENGTH))) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+
+        if (this.transactionVerificationLogStore == null) {
+            ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+        }
+
+        long sequence = ByteBuffer.wrap(apduBuffer, offsetCdata, cdataLength).getLong();
+        dataLength = (short) TransactionVerificationLogRange.read(this.transactionVerificationLogStore, sequence, apduBuffer, dataLength);
+
+        apdu.setOutgoingLength(dataLength);
+        apdu.sendBytes((short) 0, dataLength);
+    }
+
     private void storeData(byte[] data, short dgi, short dgiOffset, short dgiLength) {
         // Check if DGI contains record data.
         if (((short) (dgi & (short) 0xFF00) >= (short) 0x0100) && 
@@ -1130,7 +1343,10 @@ public final class STPayW extends Applet implements ExtendedLength {
                 short tag = Util.getShort(data, dgiOffset);
                 dgiOffset += (byte) 2;
 
-                if (data[dgiOffset++] != (byte) 1) {
+                // NOTE: Maximum Number of Transaction Verification Logs is 1 or 2 bytes, other values are 1 byte.
+                byte valueLength = data[dgiOffset++];
+                if ((valueLength != (byte) 1) && 
+                    ((tag != TAG_MAX_NUM_TRANSACTION_VERIFICATION_LOGS) || (valueLength != (byte) 2))) {
                     ISOException.throwIt(ISO7816.SW_DATA_INVALID);
                 }
 
@@ -1154,28 +1370,30 @@ public final class STPayW extends Applet implements ExtendedLength {
                 }
                 else if (tag == TAG_MAX_NUM_TRANSACTION_VERIFICATION_LOGS) {
                     // Maximum Number of Transaction Verification Logs
-                    this.accountParamsStatic.setMaxTransactionVerificationLogs(value);
+                    short maxTransactionVerificationLogs = (short) (value & 0xFF);
+                    if (valueLength == (byte) 2) {
+                        maxTransactionVerificationLogs = (short) ((maxTransactionVerificationLogs << 8) | (data[dgiOffset++] & 0xFF));
+                    }
+                    this.accountParamsStatic.setMaxTransactionVerificationLogs(maxTransactionVerificationLogs);
 
                     // Initialize Transaction Verification Log storage.
                     final int sizeTransactionVerificationLogs = this.accountParamsStatic.getMaxTransactionVerificationLogs();
                     if (sizeTransactionVerificationLogs <= 0) {
-                        this.transactionVerificationLogs = null;
+                        this.transactionVerificationLogStore = null;
                     }
                     else {
-                        if (this.transactionVerificationLogs == null) {
-                            this.transactionVerificationLogs = new LinkedHashMapFixedSize<String, TransactionVerificationLog>(sizeTransactionVerificationLogs);
+                        if (this.transactionVerificationLogStore == null) {
+                            this.transactionVerificationLogStore = new TransactionVerificationLogStore(sizeTransactionVerificationLogs);
                         }
                         else {
-                            this.transactionVerificationLogs.updateSize(sizeTransactionVerificationLogs);
+                            this.transactionVerificationLogStore.updateSize(sizeTransactionVerificationLogs);
                         }
 
                         // DEBUG
                         /*
-                        System.out.println("transactionVerificationLogs size: " + this.transactionVerificationLogs.size());
-                        Iterator<Map.Entry<String, TransactionVerificationLog>> iterator = this.transactionVerificationLogs.entrySet().iterator();
-                        while (iterator.hasNext()) {
-                            final Map.Entry<String, TransactionVerificationLog> entry = iterator.next();
-                            System.out.println("  key=" + entry.getKey());
+                        System.out.println("transactionVerificationLogStore size: " + this.transactionVerificationLogStore.size());
+                        for (int position = 0; position < this.transactionVerificationLogStore.size(); position++) {
+                            System.out.println("  index=" + Integer.toHexString(this.transactionVerificationLogStore.getAccountParametersIndex(position)));
                         }
                         System.out.println();
                         */
@@ -1261,6 +1479,9 @@ public final class STPayW extends Applet implements ExtendedLength {
             }
             Util.arrayFillNonAtomic(data, (short) 0, (short) 16, (byte) 0x00);
 
+            // Discard LUKs derived with the previous UDK.
+            getLukPool().reset();
+
             return;
         }
         case (short) 0x9102: {  // Required
@@ -1366,4 +1587,24 @@ public final class STPayW extends Applet implements ExtendedLength {
         }
     }
 
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+
+        if (this.transactionVerificationLogs != null) {
+            int capacity = this.accountParamsStatic.getMaxTransactionVerificationLogs();
+            if (capacity > 0) {
+                this.transactionVerificationLogStore = new TransactionVerificationLogStore(capacity);
+                for (TransactionVerificationLog transactionVerificationLog : this.transactionVerificationLogs.values()) {
+                    try {
+                        this.transactionVerificationLogStore.add(transactionVerificationLog);
+                    }
+                    catch (ISOException e) {
+                        // Drop invalid log.
+                    }
+                }
+            }
+            this.transactionVerificationLogs = null;
+        }
+    }
+
 }
@@ -0,0 +1,93 @@
+/**
+ * This file is part of CardApplet-VCBP which is card applet implementation 
+ * of V Cloud-Based Payments for SimplyTapp cloud platform.
+ * Copyright 2014 SimplyTapp, Inc.
+ * 
+ * CardApplet-VCBP is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, either version 3 of the License, or 
+ * (at your option) any later version.
+ * 
+ * CardApplet-VCBP is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with CardApplet-VCBP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.st.vcbp;
+
+import java.nio.ByteBuffer;
+
+import com.st.vcbp.data.TransactionVerificationLogStore;
+
+/**
+ * Response of range Get Transaction Verification Log commands.
+ * <p>
+ * The continuation token is the 8-byte sequence number of the next log to read, 0 for all 
+ * logs. Response data is a byte set to 0x01 if more logs remain or 0x00 otherwise, the 
+ * continuation token for the next command and the binary records, oldest first. A read 
+ * resumes at the token in constant time whatever the timestamps of the logs are.
+ * 
+ * @author SimplyTapp, Inc.
+ * @version 1.0
+ */
+final class TransactionVerificationLogRange {
+
+    /**
+     * Length of the continuation token.
+     */
+    static final int TOKEN_LENGTH = 8;
+
+    /**
+     * Length of the more flag and continuation token preceding the records in the response.
+     */
+    static final int HEADER_LENGTH = 1 + TOKEN_LENGTH;
+
+    private TransactionVerificationLogRange() {
+    }
+
+    /**
+     * Writes the response for the logs following a continuation token, as many records as fit.
+     * 
+     * @param store
+     *            the store to read
+     * @param sequence
+     *            continuation token of the command
+     * @param buffer
+     *            the buffer to write the response to at offset 0
+     * @param maxLength
+     *            maximum response length, at least one record
+     * @return the response length
+     */
+    static int read(TransactionVerificationLogStore store, long sequence, byte[] buffer, int maxLength) {
+        boolean more;
+        int count;
+        // Hold the store so a log added meanwhile does not move the positions.
+        synchronized (store) {
+            // NOTE: A token past the next sequence number was returned by a store replaced since, read all logs.
+            if (sequence > store.getNextSequence()) {
+                sequence = 0;
+            }
+
+            // Logs dropped from the full store before being read are skipped.
+            int position = store.positionOf(sequence);
+            int remaining = store.size() - position;
+            count = Math.min(remaining, (maxLength - HEADER_LENGTH) / TransactionVerificationLogStore.RECORD_LENGTH);
+            more = count < remaining;
+            if (count > 0) {
+                sequence = store.getSequence(position + count - 1) + 1;
+            }
+            else {
+                sequence = store.getNextSequence();
+            }
+            store.getRecords(position, count, buffer, HEADER_LENGTH);
+        }
+
+        buffer[0] = more ? (byte) 0x01 : (byte) 0x00;
+        ByteBuffer.wrap(buffer).putLong(1, sequence);
+        return HEADER_LENGTH + (count * TransactionVerificationLogStore.RECORD_LENGTH);
+    }
+
+}
@@ -0,0 +1,131 @@
+/**
+ * This file is part of CardApplet-VCBP which is card applet implementation 
+ * of V Cloud-Based Payments for SimplyTapp cloud platform.
+ * Copyright 2014 SimplyTapp, Inc.
+ * 
+ * CardApplet-VCBP is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, either version 3 of the License, or 
+ * (at your option) any later version.
+ * 
+ * CardApplet-VCBP is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with CardApplet-VCBP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.st.vcbp.crypto;
+
+import javacard.security.DESKey;
+
+import com.st.crypto.CryptoProvider;
+import com.st.crypto.CryptoProviders;
+import com.st.vcbp.data.AccountParamsIndex;
+
+/**
+ * V CVN 43 key derivation with the Unique Derivation Keys, on top of the 
+ * {@link CryptoProvider} in use.
+ * 
+ * @author SimplyTapp, Inc.
+ * @version 1.0
+ */
+public final class KeyDerivation {
+
+    public static final short BYTE_LENGTH_DES3_2KEY = (short) CryptoProvider.LENGTH_DES3_2KEY;
+
+    private KeyDerivation() {
+    }
+
+    /**
+     * Generates the Key Check Value of a key.
+     * 
+     * @param key
+     *            the key
+     * @param buffer
+     *            the output buffer
+     * @param offset
+     *            offset in the output buffer
+     * @return the number of bytes written, or -1 if generation failed
+     */
+    public static short generateKcv(DESKey key, byte[] buffer, short offset) {
+        try {
+            return (short) CryptoProviders.getProvider().generateKcv(getKey(key), buffer, offset);
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            return (short) -1;
+        }
+    }
+
+    /**
+     * Derives the Limited Use Key, followed by the Limited Use Key for MSD if 
+     * the Unique Derivation Key for MSD is initialized.
+     * 
+     * @param udk
+     *            the Unique Derivation Key
+     * @param udkMsd
+     *            the Unique Derivation Key for MSD, or null
+     * @param year
+     *            the year digit
+     * @param hours
+     *            the hours since the start of the year, 4 digits
+     * @param counter
+     *            the counter, 2 digits
+     * @param buffer
+     *            the output buffer
+     * @param offset
+     *            offset in the output buffer
+     * @return the number of bytes written, or -1 if derivation failed
+     */
+    public static short deriveCvn43Luk(DESKey udk, DESKey udkMsd, 
+                                       String year, String hours, String counter, 
+                                       byte[] buffer, short offset) {
+        int index = AccountParamsIndex.parse(year + hours + counter);
+        if (index == AccountParamsIndex.NONE) {
+            return (short) -1;
+        }
+
+        return deriveCvn43Luk(udk, udkMsd, index, buffer, offset);
+    }
+
+    /**
+     * Derives the Limited Use Key, followed by the Limited Use Key for MSD if 
+     * the Unique Derivation Key for MSD is initialized.
+     * 
+     * @param udk
+     *            the Unique Derivation Key
+     * @param udkMsd
+     *            the Unique Derivation Key for MSD, or null
+     * @param index
+     *            the Account Parameters Index as packed digits
+     * @param buffer
+     *            the output buffer
+     * @param offset
+     *            offset in the output buffer
+     * @return the number of bytes written, or -1 if derivation failed
+     */
+    public static short deriveCvn43Luk(DESKey udk, DESKey udkMsd, int index, 
+                                       byte[] buffer, short offset) {
+        try {
+            byte[] udkMsdBytes = null;
+            if ((udkMsd != null) && udkMsd.isInitialized()) {
+                udkMsdBytes = getKey(udkMsd);
+            }
+            return (short) CryptoProviders.getProvider().deriveCvn43Luk(getKey(udk), udkMsdBytes, index, 
+                                                                        buffer, offset);
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            return (short) -1;
+        }
+    }
+
+    private static byte[] getKey(DESKey key) {
+        byte[] keyBytes = new byte[key.getSize() / 8];
+        key.getKey(keyBytes, (short) 0);
+        return keyBytes;
+    }
+
+}
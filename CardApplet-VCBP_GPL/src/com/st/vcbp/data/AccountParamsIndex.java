@@ -0,0 +1,174 @@
+/**
+ * This file is part of CardApplet-VCBP which is card applet implementation 
+ * of V Cloud-Based Payments for SimplyTapp cloud platform.
+ * Copyright 2014 SimplyTapp, Inc.
+ * 
+ * CardApplet-VCBP is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, either version 3 of the License, or 
+ * (at your option) any later version.
+ * 
+ * CardApplet-VCBP is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with CardApplet-VCBP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.st.vcbp.data;
+
+/**
+ * Account Parameters Index (YHHHHCC) held as 7 packed digits in an int, e.g. 0x04123401 for "4123401".
+ * <p>
+ * The string form is only used for display and in the forms shared between Card Applet and Card Agent.
+ * 
+ * @author SimplyTapp, Inc.
+ * @version 1.0
+ */
+public final class AccountParamsIndex {
+
+    /**
+     * Number of digits.
+     */
+    public static final int LENGTH = 7;
+
+    /**
+     * Value for no index.
+     */
+    public static final int NONE = -1;
+
+    private AccountParamsIndex() {
+    }
+
+    /**
+     * Returns the packed index.
+     * 
+     * @param year
+     *            least significant digit of the year (Y)
+     * @param hours
+     *            hours since start of January 1 of the year (HHHH)
+     * @param counter
+     *            LUK Generation Counter (CC)
+     * @return the packed index
+     */
+    public static int pack(int year, int hours, int counter) {
+        return (toPacked(year, 1) << 24) | (toPacked(hours, 4) << 8) | toPacked(counter, 2);
+    }
+
+    /**
+     * Returns the YHHHH part of a packed index, which identifies the hour.
+     */
+    public static int getHour(int index) {
+        return index >>> 8;
+    }
+
+    /**
+     * Returns the LUK Generation Counter (CC) of a packed index as a number.
+     */
+    public static int getCounter(int index) {
+        return (10 * ((index >> 4) & 0x0F)) + (index & 0x0F);
+    }
+
+    /**
+     * Returns the packed index with its LUK Generation Counter (CC) replaced.
+     */
+    public static int withCounter(int index, int counter) {
+        return (index & 0xFFFFFF00) | toPacked(counter, 2);
+    }
+
+    /**
+     * Returns the packed index of a string of 7 decimal digits.
+     * 
+     * @param index
+     *            the index string, or null
+     * @return the packed index, NONE if null or not 7 decimal digits
+     */
+    public static int parse(CharSequence index) {
+        if ((index == null) || (index.length() != LENGTH)) {
+            return NONE;
+        }
+
+        int packed = 0;
+        for (int i = 0; i < LENGTH; i++) {
+            int digit = index.charAt(i) - '0';
+            if ((digit < 0) || (digit > 9)) {
+                return NONE;
+            }
+            packed = (packed << 4) | digit;
+        }
+
+        return packed;
+    }
+
+    /**
+     * Returns the packed index of 7 ASCII decimal digits.
+     * 
+     * @param buffer
+     *            the buffer holding the digits, e.g. APDU buffer
+     * @param offset
+     *            offset of the digits
+     * @param length
+     *            number of digits
+     * @return the packed index, NONE if not 7 decimal digits
+     */
+    public static int parse(byte[] buffer, int offset, int length) {
+        if (length != LENGTH) {
+            return NONE;
+        }
+
+        int packed = 0;
+        for (int i = offset; i < (offset + LENGTH); i++) {
+            int digit = buffer[i] - '0';
+            if ((digit < 0) || (digit > 9)) {
+                return NONE;
+            }
+            packed = (packed << 4) | digit;
+        }
+
+        return packed;
+    }
+
+    /**
+     * Writes a packed index as 7 ASCII decimal digits.
+     * 
+     * @return the offset following the digits
+     */
+    public static int putAscii(int index, byte[] buffer, int offset) {
+        for (int shift = 4 * (LENGTH - 1); shift >= 0; shift -= 4) {
+            buffer[offset++] = (byte) ('0' + ((index >>> shift) & 0x0F));
+        }
+
+        return offset;
+    }
+
+    /**
+     * Returns the string form of a packed index.
+     * 
+     * @return the index string, null if NONE
+     */
+    public static String toString(int index) {
+        if (index == NONE) {
+            return null;
+        }
+
+        char[] chars = new char[LENGTH];
+        for (int i = LENGTH - 1; i >= 0; i--) {
+            chars[i] = (char) ('0' + (index & 0x0F));
+            index >>>= 4;
+        }
+
+        return new String(chars);
+    }
+
+    private static int toPacked(int value, int digits) {
+        int packed = 0;
+        for (int shift = 0; shift < (4 * digits); shift += 4) {
+            packed |= (value % 10) << shift;
+            value /= 10;
+        }
+
+        return packed;
+    }
+
+}
@@ -223,6 +223,10 @@ final public class AccountParamsStatic implements Serializable {
         return this.records.get(sfiRecord);
     }
 
+    HashMap<Short, byte[]> getSfiRecords() {
+        return this.records;
+    }
+
     public void setSfiRecords(HashMap<Short, byte[]> records) {
         try {
             this.records = (HashMap<Short, byte[]>) records.clone();
@@ -452,8 +456,8 @@ final public class AccountParamsStatic implements Serializable {
         return this.maxTransactionVerificationLogs;
     }
 
-    public void setMaxTransactionVerificationLogs(byte maxTransactionVerificationLogs) {
-        this.maxTransactionVerificationLogs = (int) (maxTransactionVerificationLogs & 0xFF);
+    public void setMaxTransactionVerificationLogs(short maxTransactionVerificationLogs) {
+        this.maxTransactionVerificationLogs = (int) (maxTransactionVerificationLogs & 0xFFFF);
     }
 
 }
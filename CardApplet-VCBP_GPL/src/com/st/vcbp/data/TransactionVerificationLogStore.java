@@ -0,0 +1,462 @@
+/**
+ * This file is part of CardApplet-VCBP which is card applet implementation 
+ * of V Cloud-Based Payments for SimplyTapp cloud platform.
+ * Copyright 2014 SimplyTapp, Inc.
+ * 
+ * CardApplet-VCBP is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, either version 3 of the License, or 
+ * (at your option) any later version.
+ * 
+ * CardApplet-VCBP is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with CardApplet-VCBP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.st.vcbp.data;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+
+import javacard.framework.ISO7816;
+import javacard.framework.ISOException;
+
+/**
+ * Fixed capacity ring buffer of Transaction Verification Logs held as packed binary records.
+ * <p>
+ * Each record is {@value #RECORD_LENGTH} bytes: UTC timestamp (8), packed Account Parameters 
+ * Index (4), transaction type (1) and Unpredictable Number (4). Records are addressed by 
+ * position, 0 for the oldest, and by sequence number, counting up in the order records were 
+ * added regardless of their timestamps. Adding a record to a full store drops the oldest one. 
+ * Records are found by Account Parameters Index through an open addressed table of record slots.
+ * 
+ * @author SimplyTapp, Inc.
+ * @version 1.0
+ */
+public final class TransactionVerificationLogStore implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Length of a binary record.
+     */
+    public static final int RECORD_LENGTH = 17;
+
+    private static final int OFFSET_TIMESTAMP = 0;
+    private static final int OFFSET_INDEX = 8;
+    private static final int OFFSET_TYPE = 12;
+    private static final int OFFSET_UN = 13;
+
+    private int capacity;
+
+    // Records in slots, 'head' is the slot of the oldest record.
+    private byte[] records;
+    private int head;
+    private int size;
+    // Sequence number of the next record added, the oldest record has 'nextSequence - size'.
+    private long nextSequence;
+
+    // Slot + 1 of each record by Account Parameters Index hash, 0 if empty. Rebuilt after deserialization.
+    private transient int[] table;
+
+    public TransactionVerificationLogStore(int capacity) {
+        this.capacity = Math.max(capacity, 1);
+        this.records = new byte[this.capacity * RECORD_LENGTH];
+        this.table = new int[tableLength(this.capacity)];
+    }
+
+    public synchronized int getCapacity() {
+        return this.capacity;
+    }
+
+    public synchronized int size() {
+        return this.size;
+    }
+
+    public synchronized boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    /**
+     * Adds a record, dropping the oldest record if the store is full. A record with the same 
+     * timestamp and Account Parameters Index as one already stored is ignored.
+     * 
+     * @param utcTimestamp
+     *            UTC timestamp at the time of transaction
+     * @param accountParametersIndex
+     *            Account Parameters Index as packed digits
+     * @param transactionType
+     *            TRANSACTION_TYPE_MSD or TRANSACTION_TYPE_QVSDC
+     * @param unpredictableNumber
+     *            Unpredictable Number, 0 for MSD
+     * @throws ISOException
+     *             with SW_DATA_INVALID if index or transaction type is invalid
+     */
+    public synchronized void add(long utcTimestamp, 
+                                 int accountParametersIndex, 
+                                 byte transactionType, 
+                                 int unpredictableNumber) throws ISOException {
+        if ((accountParametersIndex == AccountParamsIndex.NONE) || 
+            ((transactionType != TransactionVerificationLog.TRANSACTION_TYPE_MSD) && 
+             (transactionType != TransactionVerificationLog.TRANSACTION_TYPE_QVSDC))) {
+            ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+        }
+
+        // Ignore a log sent again.
+        final int mask = this.table.length - 1;
+        for (int i = hash(accountParametersIndex) & mask; this.table[i] != 0; i = (i + 1) & mask) {
+            int offset = (this.table[i] - 1) * RECORD_LENGTH;
+            if ((getInt(this.records, offset + OFFSET_INDEX) == accountParametersIndex) && 
+                (getLong(this.records, offset + OFFSET_TIMESTAMP) == utcTimestamp)) {
+                return;
+            }
+        }
+
+        if (this.size == this.capacity) {
+            removeFromTable(this.head);
+            this.head = nextSlot(this.head);
+            this.size--;
+        }
+
+        int slot = slot(this.size);
+        int offset = slot * RECORD_LENGTH;
+        putLong(this.records, offset + OFFSET_TIMESTAMP, utcTimestamp);
+        putInt(this.records, offset + OFFSET_INDEX, accountParametersIndex);
+        this.records[offset + OFFSET_TYPE] = transactionType;
+        putInt(this.records, offset + OFFSET_UN, unpredictableNumber);
+        this.size++;
+        this.nextSequence++;
+
+        addToTable(slot);
+    }
+
+    /**
+     * Adds a Transaction Verification Log.
+     * 
+     * @throws ISOException
+     *             with SW_DATA_INVALID if the Unpredictable Number is not 4 bytes in hex
+     * @see #add(long, int, byte, int)
+     */
+    public void add(TransactionVerificationLog transactionVerificationLog) throws ISOException {
+        int unpredictableNumber = 0;
+        String un = transactionVerificationLog.getUnpredictableNumber();
+        if (un != null) {
+            if (un.length() != 8) {
+                ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+            }
+            for (int i = 0; i < un.length(); i++) {
+                int digit = Character.digit(un.charAt(i), 16);
+                if (digit < 0) {
+                    ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+                }
+                unpredictableNumber = (unpredictableNumber << 4) | digit;
+            }
+        }
+
+        add(transactionVerificationLog.getUtcTimestamp(), 
+            transactionVerificationLog.getPackedAccountParametersIndex(), 
+            transactionVerificationLog.getTransactionType(), 
+            unpredictableNumber);
+    }
+
+    /**
+     * Returns the position of the newest record with an Account Parameters Index, or -1 if none.
+     */
+    public synchronized int find(int accountParametersIndex) {
+        int position = -1;
+        final int mask = this.table.length - 1;
+        for (int i = hash(accountParametersIndex) & mask; this.table[i] != 0; i = (i + 1) & mask) {
+            int slot = this.table[i] - 1;
+            if (getInt(this.records, (slot * RECORD_LENGTH) + OFFSET_INDEX) == accountParametersIndex) {
+                position = Math.max(position, position(slot));
+            }
+        }
+
+        return position;
+    }
+
+    /**
+     * Adds binary records as copied by {@link #getRecords(int, int, byte[], int)}.
+     * 
+     * @param buffer
+     *            the buffer holding the records
+     * @param offset
+     *            offset of the first record
+     * @param count
+     *            number of records
+     * @return the timestamp of the last record
+     * @throws ISOException
+     *             with SW_DATA_INVALID if count is not positive or a record is invalid
+     */
+    public synchronized long addRecords(byte[] buffer, int offset, int count) throws ISOException {
+        if (count <= 0) {
+            ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+        }
+
+        // Check all records first so that an invalid batch is not partly added.
+        final int end = offset + (count * RECORD_LENGTH);
+        for (int i = offset; i < end; i += RECORD_LENGTH) {
+            byte transactionType = buffer[i + OFFSET_TYPE];
+            if ((getInt(buffer, i + OFFSET_INDEX) == AccountParamsIndex.NONE) || 
+                ((transactionType != TransactionVerificationLog.TRANSACTION_TYPE_MSD) && 
+                 (transactionType != TransactionVerificationLog.TRANSACTION_TYPE_QVSDC))) {
+                ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+            }
+        }
+
+        long utcTimestamp = 0;
+        for (; offset < end; offset += RECORD_LENGTH) {
+            utcTimestamp = getLong(buffer, offset + OFFSET_TIMESTAMP);
+            add(utcTimestamp, 
+                getInt(buffer, offset + OFFSET_INDEX), 
+                buffer[offset + OFFSET_TYPE], 
+                getInt(buffer, offset + OFFSET_UN));
+        }
+
+        return utcTimestamp;
+    }
+
+    /**
+     * Copies binary records, oldest first.
+     * 
+     * @param position
+     *            position of the first record
+     * @param count
+     *            number of records
+     * @param buffer
+     *            the output buffer
+     * @param offset
+     *            offset in the output buffer
+     * @return the offset following the records
+     */
+    public synchronized int getRecords(int position, int count, byte[] buffer, int offset) {
+        if ((count < 0) || (position + count > this.size)) {
+            throw new IndexOutOfBoundsException("position=" + position + " count=" + count + " size=" + this.size);
+        }
+
+        for (int end = position + count; position < end; position++) {
+            System.arraycopy(this.records, recordOffset(position), buffer, offset, RECORD_LENGTH);
+            offset += RECORD_LENGTH;
+        }
+
+        return offset;
+    }
+
+    /**
+     * Returns the sequence number of a record.
+     */
+    public synchronized long getSequence(int position) {
+        recordOffset(position);
+
+        return (this.nextSequence - this.size) + position;
+    }
+
+    /**
+     * Returns the sequence number the next record added will get.
+     */
+    public synchronized long getNextSequence() {
+        return this.nextSequence;
+    }
+
+    /**
+     * Returns the position of the record with a sequence number: 0 if the record was dropped 
+     * already, the size if the record was not added yet.
+     */
+    public synchronized int positionOf(long sequence) {
+        long position = sequence - (this.nextSequence - this.size);
+        return (int) Math.max(0, Math.min(position, this.size));
+    }
+
+    public synchronized long getUtcTimestamp(int position) {
+        return getLong(this.records, recordOffset(position) + OFFSET_TIMESTAMP);
+    }
+
+    public synchronized int getAccountParametersIndex(int position) {
+        return getInt(this.records, recordOffset(position) + OFFSET_INDEX);
+    }
+
+    public synchronized byte getTransactionType(int position) {
+        return this.records[recordOffset(position) + OFFSET_TYPE];
+    }
+
+    public synchronized int getUnpredictableNumber(int position) {
+        return getInt(this.records, recordOffset(position) + OFFSET_UN);
+    }
+
+    /**
+     * Returns a record as a Transaction Verification Log object, e.g. for the serialized form.
+     */
+    public synchronized TransactionVerificationLog get(int position) {
+        int offset = recordOffset(position);
+        int un = getInt(this.records, offset + OFFSET_UN);
+        char[] unChars = new char[8];
+        for (int i = unChars.length - 1; i >= 0; i--) {
+            unChars[i] = Character.toUpperCase(Character.forDigit(un & 0x0F, 16));
+            un >>>= 4;
+        }
+
+        return new TransactionVerificationLog(getLong(this.records, offset + OFFSET_TIMESTAMP), 
+                                              getInt(this.records, offset + OFFSET_INDEX), 
+                                              this.records[offset + OFFSET_TYPE], 
+                                              new String(unChars));
+    }
+
+    /**
+     * Returns all records as Transaction Verification Log objects, oldest first.
+     */
+    public synchronized TransactionVerificationLog[] toArray() {
+        TransactionVerificationLog[] transactionVerificationLogs = new TransactionVerificationLog[this.size];
+        for (int position = 0; position < this.size; position++) {
+            transactionVerificationLogs[position] = get(position);
+        }
+
+        return transactionVerificationLogs;
+    }
+
+    /**
+     * Removes the oldest records.
+     * 
+     * @param count
+     *            number of records, capped to the size
+     */
+    public synchronized void removeOldest(int count) {
+        for (count = Math.min(count, this.size); count > 0; count--) {
+            removeFromTable(this.head);
+            this.head = nextSlot(this.head);
+            this.size--;
+        }
+    }
+
+    /**
+     * Changes the capacity, keeping the newest records that fit.
+     */
+    public synchronized void updateSize(int newCapacity) {
+        newCapacity = Math.max(newCapacity, 1);
+        int newSize = Math.min(this.size, newCapacity);
+        byte[] newRecords = new byte[newCapacity * RECORD_LENGTH];
+        for (int i = 0; i < newSize; i++) {
+            System.arraycopy(this.records, slot(this.size - newSize + i) * RECORD_LENGTH, 
+                             newRecords, i * RECORD_LENGTH, RECORD_LENGTH);
+        }
+
+        this.capacity = newCapacity;
+        this.records = newRecords;
+        this.head = 0;
+        this.size = newSize;
+        rebuildTable();
+    }
+
+    private int slot(int position) {
+        int slot = this.head + position;
+        return (slot < this.capacity) ? slot : (slot - this.capacity);
+    }
+
+    private int position(int slot) {
+        int position = slot - this.head;
+        return (position >= 0) ? position : (position + this.capacity);
+    }
+
+    private int nextSlot(int slot) {
+        return (slot + 1 < this.capacity) ? (slot + 1) : 0;
+    }
+
+    private int recordOffset(int position) {
+        if ((position < 0) || (position >= this.size)) {
+            throw new IndexOutOfBoundsException("position=" + position + " size=" + this.size);
+        }
+
+        return slot(position) * RECORD_LENGTH;
+    }
+
+    private static int tableLength(int capacity) {
+        // Power of 2 keeping the load factor below 3/4.
+        int length = 2;
+        while (length <= ((capacity * 4) / 3)) {
+            length <<= 1;
+        }
+        return length;
+    }
+
+    private static int hash(int accountParametersIndex) {
+        int h = accountParametersIndex * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private int homeOf(int slot) {
+        return hash(getInt(this.records, (slot * RECORD_LENGTH) + OFFSET_INDEX)) & (this.table.length - 1);
+    }
+
+    private void addToTable(int slot) {
+        final int mask = this.table.length - 1;
+        int i = homeOf(slot);
+        while (this.table[i] != 0) {
+            i = (i + 1) & mask;
+        }
+        this.table[i] = slot + 1;
+    }
+
+    private int tableEntry(int slot) {
+        final int mask = this.table.length - 1;
+        int i = homeOf(slot);
+        while (this.table[i] != (slot + 1)) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    private void removeFromTable(int slot) {
+        final int mask = this.table.length - 1;
+        int i = tableEntry(slot);
+        // Shift back entries of the probe sequence that would no longer be reachable.
+        for (int j = (i + 1) & mask; this.table[j] != 0; j = (j + 1) & mask) {
+            int home = homeOf(this.table[j] - 1);
+            boolean reachable = (i <= j) ? ((i < home) && (home <= j)) : ((i < home) || (home <= j));
+            if (!reachable) {
+                this.table[i] = this.table[j];
+                i = j;
+            }
+        }
+        this.table[i] = 0;
+    }
+
+    private void rebuildTable() {
+        this.table = new int[tableLength(this.capacity)];
+        for (int position = 0; position < this.size; position++) {
+            addToTable(slot(position));
+        }
+    }
+
+    private static long getLong(byte[] buffer, int offset) {
+        return ((long) getInt(buffer, offset) << 32) | (getInt(buffer, offset + 4) & 0xFFFFFFFFL);
+    }
+
+    private static int getInt(byte[] buffer, int offset) {
+        return (buffer[offset] << 24) | 
+               ((buffer[offset + 1] & 0xFF) << 16) | 
+               ((buffer[offset + 2] & 0xFF) << 8) | 
+               (buffer[offset + 3] & 0xFF);
+    }
+
+    private static void putLong(byte[] buffer, int offset, long value) {
+        putInt(buffer, offset, (int) (value >>> 32));
+        putInt(buffer, offset + 4, (int) value);
+    }
+
+    private static void putInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+
+        rebuildTable();
+    }
+
+}
@@ -0,0 +1,196 @@
+/**
+ * This file is part of CardApplet-VCBP which is card applet implementation 
+ * of V Cloud-Based Payments for SimplyTapp cloud platform.
+ * Copyright 2014 SimplyTapp, Inc.
+ * 
+ * CardApplet-VCBP is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, either version 3 of the License, or 
+ * (at your option) any later version.
+ * 
+ * CardApplet-VCBP is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with CardApplet-VCBP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.st.vcbp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import javacard.security.DESKey;
+
+import org.junit.Test;
+
+import com.st.vcbp.crypto.KeyDerivation;
+import com.st.vcbp.data.AccountParamsIndex;
+
+/**
+ * Limited Use Keys taken from {@link LukPool} match the keys derived on 
+ * request, and keys derived for another hour, counter sequence or UDK are 
+ * never handed out.
+ * 
+ * @author SimplyTapp, Inc.
+ * @version 1.0
+ */
+public class LukPoolTest {
+
+    private static final int KEYS_LENGTH = 2 * KeyDerivation.BYTE_LENGTH_DES3_2KEY;
+
+    private static final byte[] UDK = {
+        (byte) 0x01, (byte) 0x23, (byte) 0x45, (byte) 0x67, (byte) 0x89, (byte) 0xAB, (byte) 0xCD, (byte) 0xEF, 
+        (byte) 0xFE, (byte) 0xDC, (byte) 0xBA, (byte) 0x98, (byte) 0x76, (byte) 0x54, (byte) 0x32, (byte) 0x10
+    };
+    private static final byte[] UDK_MSD = {
+        (byte) 0x10, (byte) 0x32, (byte) 0x54, (byte) 0x76, (byte) 0x98, (byte) 0xBA, (byte) 0xDC, (byte) 0xFE, 
+        (byte) 0xEF, (byte) 0xCD, (byte) 0xAB, (byte) 0x89, (byte) 0x67, (byte) 0x45, (byte) 0x23, (byte) 0x01
+    };
+
+    private static final int HOUR = AccountParamsIndex.pack(5, 1234, 0);
+    private static final int NEXT_HOUR = AccountParamsIndex.pack(5, 1235, 0);
+
+    private final TestDesKey udk = new TestDesKey(UDK);
+    private final TestDesKey udkMsd = new TestDesKey(UDK_MSD);
+    private final LukPool pool = new LukPool(this.udk, this.udkMsd);
+
+    @Test
+    public void pooledKeysMatchDerivedKeys() throws Exception {
+        byte[] buffer = new byte[KEYS_LENGTH];
+
+        // First request of the hour is derived by the caller.
+        assertEquals(0, this.pool.take(HOUR, buffer, (short) 0));
+
+        int pooled = 0;
+        for (int counter = 1; counter < 40; counter++) {
+            final int index = AccountParamsIndex.withCounter(HOUR, counter);
+            awaitAvailable(LukPool.DEPTH);
+
+            Arrays.fill(buffer, (byte) 0x00);
+            final short keyLength = this.pool.take(index, buffer, (short) 0);
+            assertEquals(KEYS_LENGTH, keyLength);
+            assertArrayEquals("Counter " + counter, derive(index), buffer);
+            pooled++;
+        }
+        assertEquals(39, pooled);
+    }
+
+    @Test
+    public void stopsAtLastCounterOfHour() throws Exception {
+        byte[] buffer = new byte[KEYS_LENGTH];
+        assertEquals(0, this.pool.take(AccountParamsIndex.withCounter(HOUR, 95), buffer, (short) 0));
+
+        // Only 96-99 are left in the hour.
+        awaitAvailable(4);
+        Thread.sleep(50);
+        assertEquals(4, this.pool.available());
+        assertEquals(KEYS_LENGTH, this.pool.take(AccountParamsIndex.withCounter(HOUR, 96), buffer, (short) 0));
+        assertArrayEquals(derive(AccountParamsIndex.withCounter(HOUR, 96)), buffer);
+    }
+
+    @Test
+    public void newHourDiscardsPooledKeys() throws Exception {
+        byte[] buffer = new byte[KEYS_LENGTH];
+        this.pool.take(HOUR, buffer, (short) 0);
+        awaitAvailable(LukPool.DEPTH);
+
+        // Same counter, different hour.
+        assertEquals(0, this.pool.take(AccountParamsIndex.withCounter(NEXT_HOUR, 1), buffer, (short) 0));
+
+        awaitAvailable(LukPool.DEPTH);
+        final int index = AccountParamsIndex.withCounter(NEXT_HOUR, 2);
+        assertEquals(KEYS_LENGTH, this.pool.take(index, buffer, (short) 0));
+        assertArrayEquals(derive(index), buffer);
+    }
+
+    @Test
+    public void counterRestartDiscardsPooledKeys() throws Exception {
+        byte[] buffer = new byte[KEYS_LENGTH];
+        this.pool.take(AccountParamsIndex.withCounter(HOUR, 10), buffer, (short) 0);
+        awaitAvailable(LukPool.DEPTH);
+
+        // Counter went back, e.g. after it overflowed 99.
+        assertEquals(0, this.pool.take(AccountParamsIndex.withCounter(HOUR, 5), buffer, (short) 0));
+
+        awaitAvailable(LukPool.DEPTH);
+        final int index = AccountParamsIndex.withCounter(HOUR, 6);
+        assertEquals(KEYS_LENGTH, this.pool.take(index, buffer, (short) 0));
+        assertArrayEquals(derive(index), buffer);
+    }
+
+    @Test
+    public void resetDiscardsKeysOfOldUdk() throws Exception {
+        byte[] buffer = new byte[KEYS_LENGTH];
+        this.pool.take(HOUR, buffer, (short) 0);
+        awaitAvailable(LukPool.DEPTH);
+
+        // UDK changed.
+        this.udk.setKey(UDK_MSD, (short) 0);
+        this.pool.reset();
+        assertEquals(0, this.pool.available());
+
+        final int index = AccountParamsIndex.withCounter(HOUR, 1);
+        assertEquals(0, this.pool.take(index, buffer, (short) 0));
+
+        awaitAvailable(LukPool.DEPTH);
+        final int nextIndex = AccountParamsIndex.withCounter(HOUR, 2);
+        assertEquals(KEYS_LENGTH, this.pool.take(nextIndex, buffer, (short) 0));
+        assertArrayEquals(derive(nextIndex), buffer);
+    }
+
+    private void awaitAvailable(int available) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 10000;
+        while ((this.pool.available() < available) && (System.currentTimeMillis() < deadline)) {
+            Thread.sleep(1);
+        }
+        assertTrue("Keys derived ahead of time: " + this.pool.available(), this.pool.available() >= available);
+    }
+
+    private byte[] derive(int index) {
+        byte[] keys = new byte[KEYS_LENGTH];
+        assertEquals(KEYS_LENGTH, KeyDerivation.deriveCvn43Luk(this.udk, this.udkMsd, index, keys, (short) 0));
+        return keys;
+    }
+
+    /**
+     * 2-key Triple DES key held in memory.
+     */
+    private static final class TestDesKey implements DESKey {
+
+        private final byte[] key = new byte[16];
+
+        TestDesKey(byte[] key) {
+            setKey(key, (short) 0);
+        }
+
+        public synchronized void setKey(byte[] keyData, short kOff) {
+            System.arraycopy(keyData, kOff, this.key, 0, this.key.length);
+        }
+
+        public synchronized byte getKey(byte[] keyData, short kOff) {
+            System.arraycopy(this.key, 0, keyData, kOff, this.key.length);
+            return (byte) this.key.length;
+        }
+
+        public boolean isInitialized() {
+            return true;
+        }
+
+        public void clearKey() {
+        }
+
+        public short getSize() {
+            return (short) 128;
+        }
+
+        public byte getType() {
+            // KeyBuilder.TYPE_DES
+            return (byte) 3;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/**
+ * This file is part of CardApplet-VCBP which is card applet implementation 
+ * of V Cloud-Based Payments for SimplyTapp cloud platform.
+ * Copyright 2014 SimplyTapp, Inc.
+ * 
+ * CardApplet-VCBP is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, either version 3 of the License, or 
+ * (at your option) any later version.
+ * 
+ * CardApplet-VCBP is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with CardApplet-VCBP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.st.vcbp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.st.vcbp.data.AccountParamsStatic;
+
+/**
+ * Bytes written to make a 'sequenceCounter' update durable: the counter field of 
+ * {@link PersistentRegion} against serializing the applet, which the counter relies 
+ * on without the region.
+ * 
+ * @author SimplyTapp, Inc.
+ * @version 1.0
+ */
+public class PersistentRegionBytesWrittenTest {
+
+    private static final byte[] AID = {
+        (byte) 0xA0, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x03, (byte) 0x10, (byte) 0x10
+    };
+
+    // Same layout as the 'sequenceCounter' region of STPayW.
+    private static final short LENGTH = (short) 2;
+    private static final short OFFSET_COUNTER = (short) 0;
+
+    private static final int UPDATES = 1000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        this.directory = this.folder.newFolder("regions");
+        System.setProperty(PersistentRegion.PROPERTY_DIRECTORY, this.directory.getPath());
+    }
+
+    @After
+    public void tearDown() {
+        System.clearProperty(PersistentRegion.PROPERTY_DIRECTORY);
+    }
+
+    @Test
+    public void counterUpdateWritesOnlyTheCounter() throws Exception {
+        PersistentRegion region = PersistentRegion.open(AID, (short) 0, (byte) AID.length, LENGTH);
+        RandomAccessFile file = new RandomAccessFile(new File(this.directory, "A0000000031010.dat"), "r");
+        long regionBytes = 0;
+        try {
+            region.initialize(new byte[LENGTH], (short) 0);
+            byte[] before = read(file);
+            // Count the bytes of the file each update changes.
+            for (int i = 1; i <= UPDATES; i++) {
+                region.setShort(OFFSET_COUNTER, (short) i);
+                byte[] after = read(file);
+                int changed = changed(before, after);
+                assertTrue("update " + i + ": " + changed + " B", changed <= LENGTH);
+                regionBytes += changed;
+                before = after;
+            }
+            assertEquals((short) UPDATES, region.getShort(OFFSET_COUNTER));
+
+            // The whole file bounds what the mapping can write back per update.
+            long regionFileLength = file.length();
+            long serializedBytes = getSerializedLowerBound();
+            String bytes = "region " + regionBytes + " B, file " + regionFileLength + " B, serialized at least " + (serializedBytes * UPDATES) + " B";
+            assertTrue(bytes, (regionFileLength * 4) < serializedBytes);
+        }
+        finally {
+            file.close();
+            region.close();
+        }
+    }
+
+    // Serialized applet holds at least the Static Account Parameters and the counter.
+    private static long getSerializedLowerBound() throws IOException {
+        AccountParamsStatic accountParamsStatic = new AccountParamsStatic();
+        accountParamsStatic.setAid(AID, (short) 0, (byte) AID.length);
+        accountParamsStatic.setMaxNumberAccountParamsDynamic((byte) 0x0A);
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bos);
+        out.writeObject(accountParamsStatic);
+        out.writeShort(UPDATES);
+        out.close();
+        return bos.size();
+    }
+
+    private static byte[] read(RandomAccessFile file) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        file.seek(0);
+        file.readFully(bytes);
+        return bytes;
+    }
+
+    private static int changed(byte[] before, byte[] after) {
+        int changed = 0;
+        for (int i = 0; i < after.length; i++) {
+            if (before[i] != after[i]) {
+                changed++;
+            }
+        }
+        return changed;
+    }
+
+}
@@ -0,0 +1,157 @@
+/**
+ * This file is part of CardApplet-VCBP which is card applet implementation 
+ * of V Cloud-Based Payments for SimplyTapp cloud platform.
+ * Copyright 2014 SimplyTapp, Inc.
+ * 
+ * CardApplet-VCBP is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, either version 3 of the License, or 
+ * (at your option) any later version.
+ * 
+ * CardApplet-VCBP is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with CardApplet-VCBP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.st.vcbp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import com.st.vcbp.data.AccountParamsIndex;
+import com.st.vcbp.data.TransactionVerificationLog;
+import com.st.vcbp.data.TransactionVerificationLogStore;
+
+/**
+ * {@link TransactionVerificationLogRange} reads resumed by sequence number, and 
+ * records per second of a full pull of the largest store.
+ * 
+ * @author SimplyTapp, Inc.
+ * @version 1.0
+ */
+public class TransactionVerificationLogRangeTest {
+
+    // Most logs a store holds, as set by tag DF3B.
+    private static final int MAX_LOGS = 0xFFFF;
+
+    // Le of an extended response as seen by the applet.
+    private static final int MAX_RESPONSE_LENGTH = Short.MAX_VALUE;
+
+    // Full pulls are far slower when every command walks the store to find where to resume.
+    private static final long MIN_RECORDS_PER_SECOND = 200000;
+
+    @Test
+    public void readsAllLogsWhenClockGoesBack() {
+        TransactionVerificationLogStore store = new TransactionVerificationLogStore(1000);
+        long utcTimestamp = 1400000000000L;
+        for (int i = 0; i < 1000; i++) {
+            // Clock set back by an hour every 300 logs.
+            utcTimestamp += (((i % 300) == 299) ? -3600000L : 1000L);
+            add(store, utcTimestamp, i);
+        }
+
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        long sequence = pull(store, 0, responseLength(64), records);
+        assertEquals(1000, sequence);
+        assertArrayEquals(getRecords(store, 0, 1000), records.toByteArray());
+
+        // Nothing new.
+        records.reset();
+        assertEquals(1000, pull(store, sequence, responseLength(64), records));
+        assertEquals(0, records.size());
+
+        // Only the logs added since, even with older timestamps.
+        for (int i = 0; i < 10; i++) {
+            add(store, 1300000000000L + i, 1000 + i);
+        }
+        assertEquals(1010, pull(store, sequence, responseLength(3), records));
+        assertArrayEquals(getRecords(store, 990, 10), records.toByteArray());
+    }
+
+    @Test
+    public void skipsLogsDroppedBeforeRead() {
+        TransactionVerificationLogStore store = new TransactionVerificationLogStore(100);
+        for (int i = 0; i < 300; i++) {
+            add(store, 1400000000000L + i, i);
+        }
+
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        assertEquals(300, pull(store, 5, responseLength(64), records));
+        assertArrayEquals(getRecords(store, 0, 100), records.toByteArray());
+    }
+
+    @Test
+    public void readsAllLogsOfReplacedStore() {
+        TransactionVerificationLogStore store = new TransactionVerificationLogStore(100);
+        for (int i = 0; i < 10; i++) {
+            add(store, 1400000000000L + i, i);
+        }
+
+        // Token returned by the store this one replaced.
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        assertEquals(10, pull(store, 500, responseLength(64), records));
+        assertArrayEquals(getRecords(store, 0, 10), records.toByteArray());
+    }
+
+    @Test
+    public void fullPullRecordsPerSecond() {
+        TransactionVerificationLogStore store = new TransactionVerificationLogStore(MAX_LOGS);
+        for (int i = 0; i < MAX_LOGS; i++) {
+            add(store, 1400000000000L + (i * 1000L), i);
+        }
+
+        // Extended responses, then one record per response.
+        for (int maxLength : new int[] { MAX_RESPONSE_LENGTH, responseLength(1) }) {
+            // Warm up.
+            pull(store, 0, maxLength, null);
+
+            long start = System.nanoTime();
+            assertEquals(MAX_LOGS, pull(store, 0, maxLength, null));
+            long elapsed = Math.max(System.nanoTime() - start, 1);
+
+            long recordsPerSecond = (MAX_LOGS * 1000000000L) / elapsed;
+            assertTrue("Le " + maxLength + ": " + recordsPerSecond + " records/s", recordsPerSecond >= MIN_RECORDS_PER_SECOND);
+        }
+    }
+
+    private static int responseLength(int records) {
+        return TransactionVerificationLogRange.HEADER_LENGTH + (records * TransactionVerificationLogStore.RECORD_LENGTH);
+    }
+
+    // Reads until no more logs remain, as the issuer does, and returns the last continuation token.
+    private static long pull(TransactionVerificationLogStore store, long sequence, int maxLength, ByteArrayOutputStream records) {
+        byte[] buffer = new byte[maxLength];
+        boolean more = true;
+        while (more) {
+            int length = TransactionVerificationLogRange.read(store, sequence, buffer, maxLength);
+            assertTrue(length <= maxLength);
+            more = (buffer[0] != (byte) 0x00);
+            sequence = ByteBuffer.wrap(buffer).getLong(1);
+            if (records != null) {
+                records.write(buffer, TransactionVerificationLogRange.HEADER_LENGTH, length - TransactionVerificationLogRange.HEADER_LENGTH);
+            }
+        }
+        return sequence;
+    }
+
+    private static byte[] getRecords(TransactionVerificationLogStore store, int position, int count) {
+        byte[] records = new byte[count * TransactionVerificationLogStore.RECORD_LENGTH];
+        store.getRecords(position, count, records, 0);
+        return records;
+    }
+
+    private static void add(TransactionVerificationLogStore store, long utcTimestamp, int i) {
+        store.add(utcTimestamp, AccountParamsIndex.pack(4, (i / 100) % 8784, i % 100), 
+                  TransactionVerificationLog.TRANSACTION_TYPE_QVSDC, i);
+    }
+
+}
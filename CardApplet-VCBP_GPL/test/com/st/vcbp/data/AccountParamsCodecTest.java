@@ -0,0 +1,50 @@
+/**
+ * This file is part of CardApplet-VCBP which is card applet implementation 
+ * of V Cloud-Based Payments for SimplyTapp cloud platform.
+ * Copyright 2014 SimplyTapp, Inc.
+ * 
+ * CardApplet-VCBP is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, either version 3 of the License, or 
+ * (at your option) any later version.
+ * 
+ * CardApplet-VCBP is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with CardApplet-VCBP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.st.vcbp.data;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Tests of the binary format of {@link AccountParamsCodec}.
+ * 
+ * @author SimplyTapp, Inc.
+ * @version 1.0
+ */
+public class AccountParamsCodecTest {
+
+    @Test
+    public void maxTransactionVerificationLogsUseTwoBytes() {
+        for (int maxTransactionVerificationLogs : new int[] { 0, 1, 255, 256, 10000, 65535 }) {
+            AccountParamsStatic accountParamsStatic = new AccountParamsStatic();
+            accountParamsStatic.setMaxNumberAccountParamsDynamic((byte) 0x0A);
+            accountParamsStatic.setMaxTransactionVerificationLogs((short) maxTransactionVerificationLogs);
+
+            byte[] buffer = new byte[256];
+            short length = AccountParamsCodec.encode(accountParamsStatic, buffer, (short) 0);
+            assertEquals(AccountParamsCodec.VERSION, buffer[0]);
+
+            AccountParamsStatic decoded = AccountParamsCodec.decodeStatic(buffer, 0, length);
+            assertEquals(maxTransactionVerificationLogs, decoded.getMaxTransactionVerificationLogs());
+            assertEquals(10, decoded.getMaxNumberAccountParamsDynamic());
+        }
+    }
+
+}
@@ -0,0 +1,243 @@
+/**
+ * This file is part of CardApplet-VCBP which is card applet implementation 
+ * of V Cloud-Based Payments for SimplyTapp cloud platform.
+ * Copyright 2014 SimplyTapp, Inc.
+ * 
+ * CardApplet-VCBP is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, either version 3 of the License, or 
+ * (at your option) any later version.
+ * 
+ * CardApplet-VCBP is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with CardApplet-VCBP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.st.vcbp.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Randomized comparison of {@link TransactionVerificationLogStore} against a 
+ * list of records, including sequence numbers while the clock goes backwards, 
+ * and its footprint against the map of log objects it replaced.
+ * 
+ * @author SimplyTapp, Inc.
+ * @version 1.0
+ */
+public class TransactionVerificationLogStoreTest {
+
+    private static final int FOOTPRINT_ENTRIES = 10000;
+
+    @Test
+    public void matchesListOfRecords() throws Exception {
+        Random random = new Random(20);
+        for (int capacity : new int[] { 1, 2, 7, 64, 300 }) {
+            TransactionVerificationLogStore store = new TransactionVerificationLogStore(capacity);
+            List<long[]> expected = new ArrayList<long[]>();
+            long nextSequence = 0;
+            long utcTimestamp = 1400000000000L;
+            // Few distinct indexes so lookups walk long probe sequences.
+            int[] indexes = new int[Math.max(2, capacity / 4)];
+            for (int i = 0; i < indexes.length; i++) {
+                indexes[i] = AccountParamsIndex.pack(random.nextInt(10), random.nextInt(8784), random.nextInt(100));
+            }
+
+            for (int operation = 0; operation < 20000; operation++) {
+                int choice = random.nextInt(100);
+                if (choice < 70) {
+                    // Clock may go backwards.
+                    utcTimestamp += random.nextInt(5) - 2;
+                    int index = indexes[random.nextInt(indexes.length)];
+                    byte type = random.nextBoolean() ? TransactionVerificationLog.TRANSACTION_TYPE_MSD : 
+                                                       TransactionVerificationLog.TRANSACTION_TYPE_QVSDC;
+                    int un = random.nextInt();
+                    store.add(utcTimestamp, index, type, un);
+                    if (add(expected, capacity, utcTimestamp, index, type, un, nextSequence)) {
+                        nextSequence++;
+                    }
+                    assertEquals(nextSequence, store.getNextSequence());
+                }
+                else if (choice < 80) {
+                    int count = random.nextInt(4);
+                    store.removeOldest(count);
+                    for (count = Math.min(count, expected.size()); count > 0; count--) {
+                        expected.remove(0);
+                    }
+                }
+                else if (choice < 85) {
+                    // Acknowledge up to a sequence number, as after a PUT TRANSACTION VERIFICATION LOG.
+                    long sequence = nextSequence + 1 - random.nextInt(capacity + 3);
+                    int position = store.positionOf(sequence);
+                    assertEquals(positionOf(expected, sequence), position);
+                    store.removeOldest(position);
+                    for (; position > 0; position--) {
+                        expected.remove(0);
+                    }
+                }
+                else if (choice < 87) {
+                    capacity = 1 + random.nextInt(2 * store.getCapacity());
+                    store.updateSize(capacity);
+                    while (expected.size() > capacity) {
+                        expected.remove(0);
+                    }
+                }
+                else if (choice < 88) {
+                    store = roundTrip(store);
+                }
+                else {
+                    int index = indexes[random.nextInt(indexes.length)];
+                    assertEquals(find(expected, index), store.find(index));
+                }
+
+                assertEquals(expected.size(), store.size());
+            }
+
+            for (int position = 0; position < expected.size(); position++) {
+                long[] record = expected.get(position);
+                assertEquals(record[0], store.getUtcTimestamp(position));
+                assertEquals((int) record[1], store.getAccountParametersIndex(position));
+                assertEquals((byte) record[2], store.getTransactionType(position));
+                assertEquals((int) record[3], store.getUnpredictableNumber(position));
+                assertEquals(record[4], store.getSequence(position));
+            }
+            for (int index : indexes) {
+                assertEquals(find(expected, index), store.find(index));
+            }
+        }
+    }
+
+    @Test
+    public void recordsCopyBetweenStores() {
+        Random random = new Random(21);
+        TransactionVerificationLogStore source = new TransactionVerificationLogStore(50);
+        for (int i = 0; i < 120; i++) {
+            source.add(1400000000000L + i, AccountParamsIndex.pack(4, i, i % 100), 
+                       TransactionVerificationLog.TRANSACTION_TYPE_QVSDC, random.nextInt());
+        }
+
+        byte[] buffer = new byte[source.size() * TransactionVerificationLogStore.RECORD_LENGTH];
+        assertEquals(buffer.length, source.getRecords(0, source.size(), buffer, 0));
+
+        TransactionVerificationLogStore target = new TransactionVerificationLogStore(50);
+        assertEquals(source.getUtcTimestamp(source.size() - 1), target.addRecords(buffer, 0, source.size()));
+        // A batch sent again is not stored twice.
+        target.addRecords(buffer, 0, source.size());
+
+        assertEquals(source.size(), target.size());
+        for (int position = 0; position < source.size(); position++) {
+            assertEquals(source.get(position).getAccountParametersIndex(), target.get(position).getAccountParametersIndex());
+            assertEquals(source.get(position).getUnpredictableNumber(), target.get(position).getUnpredictableNumber());
+            assertEquals(source.getUtcTimestamp(position), target.getUtcTimestamp(position));
+        }
+    }
+
+    @Test
+    public void footprintOfTenThousandLogs() {
+        Random random = new Random(22);
+        long[] timestamps = new long[FOOTPRINT_ENTRIES];
+        int[] indexes = new int[FOOTPRINT_ENTRIES];
+        String[] uns = new String[FOOTPRINT_ENTRIES];
+        for (int i = 0; i < FOOTPRINT_ENTRIES; i++) {
+            timestamps[i] = 1400000000000L + (i * 1000L);
+            indexes[i] = AccountParamsIndex.pack(4, i / 100, i % 100);
+            uns[i] = String.format("%08X", random.nextInt());
+        }
+
+        long before = usedMemory();
+        TransactionVerificationLogStore store = new TransactionVerificationLogStore(FOOTPRINT_ENTRIES);
+        for (int i = 0; i < FOOTPRINT_ENTRIES; i++) {
+            store.add(timestamps[i], indexes[i], TransactionVerificationLog.TRANSACTION_TYPE_QVSDC, 
+                      (int) Long.parseLong(uns[i], 16));
+        }
+        long storeFootprint = usedMemory() - before;
+
+        // As kept before the store: log objects by index string.
+        before = usedMemory();
+        LinkedHashMapFixedSize<String, TransactionVerificationLog> map = 
+                new LinkedHashMapFixedSize<String, TransactionVerificationLog>(FOOTPRINT_ENTRIES);
+        for (int i = 0; i < FOOTPRINT_ENTRIES; i++) {
+            TransactionVerificationLog transactionVerificationLog = 
+                    new TransactionVerificationLog(AccountParamsIndex.toString(indexes[i]), 
+                                                   TransactionVerificationLog.TRANSACTION_TYPE_QVSDC, 
+                                                   new String(uns[i]));
+            map.put(transactionVerificationLog.getAccountParametersIndex(), transactionVerificationLog);
+        }
+        long mapFootprint = usedMemory() - before;
+
+        assertEquals(FOOTPRINT_ENTRIES, store.size());
+        assertEquals(FOOTPRINT_ENTRIES, map.size());
+        String footprints = "store " + storeFootprint + " B, map " + mapFootprint + " B";
+        // Records and table: 17 B + 2 * 4 B per entry at most.
+        assertTrue(footprints, storeFootprint < (FOOTPRINT_ENTRIES * (TransactionVerificationLogStore.RECORD_LENGTH + 8)) + 4096);
+        assertTrue(footprints, storeFootprint * 4 < mapFootprint);
+    }
+
+    private static boolean add(List<long[]> expected, int capacity, long utcTimestamp, int index, byte type, int un, long sequence) {
+        for (long[] record : expected) {
+            if ((record[0] == utcTimestamp) && ((int) record[1] == index)) {
+                return false;
+            }
+        }
+        if (expected.size() == capacity) {
+            expected.remove(0);
+        }
+        expected.add(new long[] { utcTimestamp, index, type, un, sequence });
+        return true;
+    }
+
+    private static int positionOf(List<long[]> expected, long sequence) {
+        int position = 0;
+        while ((position < expected.size()) && (expected.get(position)[4] < sequence)) {
+            position++;
+        }
+        return position;
+    }
+
+    private static int find(List<long[]> expected, int index) {
+        for (int position = expected.size() - 1; position >= 0; position--) {
+            if ((int) expected.get(position)[1] == index) {
+                return position;
+            }
+        }
+        return -1;
+    }
+
+    private static TransactionVerificationLogStore roundTrip(TransactionVerificationLogStore store) throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bos);
+        out.writeObject(store);
+        out.close();
+        return (TransactionVerificationLogStore) new ObjectInputStream(new ByteArrayInputStream(bos.toByteArray())).readObject();
+    }
+
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        // Repeat until a collection frees nothing more.
+        for (int i = 0; i < 20; i++) {
+            System.gc();
+            long now = runtime.totalMemory() - runtime.freeMemory();
+            if (now >= used) {
+                break;
+            }
+            used = now;
+        }
+        return used;
+    }
+
+}
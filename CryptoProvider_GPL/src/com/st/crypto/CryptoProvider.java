@@ -0,0 +1,230 @@
+/**
+ * This file is part of CryptoProvider which is open implementation 
+ * of payment cryptography for SimplyTapp card agents and card applets.
+ * Copyright 2014 SimplyTapp, Inc.
+ * 
+ * CryptoProvider is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, either version 3 of the License, or 
+ * (at your option) any later version.
+ * 
+ * CryptoProvider is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with CryptoProvider.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.st.crypto;
+
+import java.security.GeneralSecurityException;
+
+/**
+ * Service provider interface for the cryptographic operations of the card 
+ * agents and card applets.
+ * <p>
+ * All keys are passed as raw key bytes. Double length DES keys (16 bytes) 
+ * are used as 2-key triple DES, single length DES keys (8 bytes) as single 
+ * DES. Implementations are free to keep cipher instances and key schedules 
+ * for keys that are used repeatedly, and must be safe for use by multiple 
+ * threads.
+ * 
+ * @author SimplyTapp, Inc.
+ * @version 1.0
+ */
+public interface CryptoProvider {
+
+    /**
+     * Length of a double length DES key.
+     */
+    static final int LENGTH_DES3_2KEY = 16;
+
+    /**
+     * Length of an Application Cryptogram or DES block.
+     */
+    static final int LENGTH_BLOCK = 8;
+
+    /**
+     * Generates a V CVN 43 Application Cryptogram: MAC with ISO/IEC 9797-1 
+     * Algorithm 3 over the data padded with zeros to a multiple of 8 bytes.
+     * 
+     * @param luk
+     *            the Limited Use Key
+     * @param data
+     *            the buffer holding the cryptogram input
+     * @param offset
+     *            offset of the cryptogram input
+     * @param length
+     *            length of the cryptogram input
+     * @return the 8 byte Application Cryptogram
+     * @throws GeneralSecurityException
+     */
+    byte[] generateCvn43Cryptogram(byte[] luk, byte[] data, int offset, int length) 
+            throws GeneralSecurityException;
+
+    /**
+     * Generates a V CVN 43 MSD Cryptogram: 6 decimal digits extracted from 
+     * the encryption of '0000000000000001'.
+     * 
+     * @param lukMsd
+     *            the Limited Use Key for MSD
+     * @return the 6 digit MSD Cryptogram
+     * @throws GeneralSecurityException
+     */
+    String generateCvn43MsdCryptogram(byte[] lukMsd) throws GeneralSecurityException;
+
+    /**
+     * Derives V CVN 43 Limited Use Keys from the Unique Derivation Keys.
+     * 
+     * @param udk
+     *            the Unique Derivation Key
+     * @param udkMsd
+     *            the Unique Derivation Key for MSD, or null
+     * @param index
+     *            the Account Parameters Index YHHHHCC as 7 packed digits, 
+     *            e.g. 0x04123401 for "4123401"
+     * @param buffer
+     *            the output buffer, receives LUK followed by LUK for MSD
+     * @param offset
+     *            offset in the output buffer
+     * @return the number of bytes written
+     * @throws GeneralSecurityException
+     */
+    int deriveCvn43Luk(byte[] udk, byte[] udkMsd, int index, 
+                       byte[] buffer, int offset) throws GeneralSecurityException;
+
+    /**
+     * Generates the Key Check Value of a key: the encryption of 8 zero bytes.
+     * 
+     * @param key
+     *            the key
+     * @param buffer
+     *            the output buffer
+     * @param offset
+     *            offset in the output buffer
+     * @return the number of bytes written
+     * @throws GeneralSecurityException
+     */
+    int generateKcv(byte[] key, byte[] buffer, int offset) throws GeneralSecurityException;
+
+    /**
+     * Generates a M CVC3: the encryption of IVCVC3, Unpredictable Number and 
+     * ATC with the Single Use Key.
+     * 
+     * @param suk
+     *            the Single Use Key
+     * @param ivCvc3
+     *            the 2 byte IVCVC3
+     * @param unpredictableNumber
+     *            the 4 byte Unpredictable Number
+     * @param atc
+     *            the Application Transaction Counter
+     * @param pin
+     *            the Mobile PIN the Single Use Key is combined with, or null
+     * @return the 8 byte CVC3
+     * @throws GeneralSecurityException
+     */
+    byte[] generateCvc3(byte[] suk, byte[] ivCvc3, byte[] unpredictableNumber, short atc, byte[] pin) 
+            throws GeneralSecurityException;
+
+    /**
+     * Generates a M CVN 14 Application Cryptogram: MAC with ISO/IEC 9797-1 
+     * Algorithm 3 over the data padded with zeros to a multiple of 8 bytes.
+     * 
+     * @param suk
+     *            the Single Use Key
+     * @param data
+     *            the buffer holding the cryptogram input
+     * @param offset
+     *            offset of the cryptogram input
+     * @param length
+     *            length of the cryptogram input
+     * @param pin
+     *            the Mobile PIN the Single Use Key is combined with, or null
+     * @return the 8 byte Application Cryptogram
+     * @throws GeneralSecurityException
+     */
+    byte[] generateCvn14Cryptogram(byte[] suk, byte[] data, int offset, int length, byte[] pin) 
+            throws GeneralSecurityException;
+
+    /**
+     * Generates a M Single Use Key from the ICC Master Key for AC.
+     * 
+     * @param mkAc
+     *            the ICC Master Key for AC
+     * @param atc
+     *            the Application Transaction Counter
+     * @param pin
+     *            the Mobile PIN to combine with the Single Use Key, or null
+     * @param buffer
+     *            the output buffer
+     * @param offset
+     *            offset in the output buffer
+     * @return the number of bytes written
+     * @throws GeneralSecurityException
+     */
+    int generateSuk(byte[] mkAc, short atc, byte[] pin, byte[] buffer, int offset) 
+            throws GeneralSecurityException;
+
+    /**
+     * Generates a M ICC Dynamic Number from the ICC Master Key for IDN.
+     * 
+     * @param mkIdn
+     *            the ICC Master Key for IDN
+     * @param atc
+     *            the Application Transaction Counter
+     * @param buffer
+     *            the output buffer
+     * @param offset
+     *            offset in the output buffer
+     * @return the number of bytes written
+     * @throws GeneralSecurityException
+     */
+    int generateIdn(byte[] mkIdn, short atc, byte[] buffer, int offset) throws GeneralSecurityException;
+
+    /**
+     * Generates a SHA-1 hash.
+     * 
+     * @param data
+     *            the buffer holding the hash input
+     * @param offset
+     *            offset of the hash input
+     * @param length
+     *            length of the hash input
+     * @param buffer
+     *            the output buffer
+     * @param bufferOffset
+     *            offset in the output buffer
+     * @return the number of bytes written
+     * @throws GeneralSecurityException
+     */
+    int generateHash(byte[] data, int offset, int length, byte[] buffer, int bufferOffset) 
+            throws GeneralSecurityException;
+
+    /**
+     * Signs Signed Dynamic Application Data in place.
+     * <p>
+     * The buffer holds the data to be recovered, starting with the header 
+     * '6A', followed by the hash input that is not part of the recovered 
+     * data (e.g. terminal dynamic data). The hash result is written to the 20 
+     * bytes before the trailer 'BC', then the whole block is signed with the 
+     * ICC Private Key.
+     * 
+     * @param signingEngine
+     *            the signing engine for the ICC Private Key
+     * @param buffer
+     *            the buffer holding the data
+     * @param offset
+     *            offset of the data, i.e. of the header
+     * @param length
+     *            length of the ICC Public Key Modulus
+     * @param hashInputLength
+     *            length of the hash input following the header
+     * @return the length of the Signed Dynamic Application Data
+     * @throws GeneralSecurityException
+     */
+    int generateSdad(RsaSigningEngine signingEngine, byte[] buffer, int offset, int length, int hashInputLength) 
+            throws GeneralSecurityException;
+
+}
@@ -0,0 +1,71 @@
+/**
+ * This file is part of CryptoProvider which is open implementation 
+ * of payment cryptography for SimplyTapp card agents and card applets.
+ * Copyright 2014 SimplyTapp, Inc.
+ * 
+ * CryptoProvider is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, either version 3 of the License, or 
+ * (at your option) any later version.
+ * 
+ * CryptoProvider is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with CryptoProvider.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.st.crypto;
+
+import java.util.Iterator;
+import java.util.ServiceLoader;
+
+/**
+ * Access to the {@link CryptoProvider} in use.
+ * <p>
+ * The first provider registered through {@link ServiceLoader} under 
+ * <code>META-INF/services/com.st.crypto.CryptoProvider</code> is used, 
+ * otherwise {@link DefaultCryptoProvider}.
+ * 
+ * @author SimplyTapp, Inc.
+ * @version 1.0
+ */
+public final class CryptoProviders {
+
+    private static volatile CryptoProvider provider;
+
+    private CryptoProviders() {
+    }
+
+    /**
+     * Returns the provider in use.
+     * 
+     * @return the provider
+     */
+    public static CryptoProvider getProvider() {
+        CryptoProvider provider = CryptoProviders.provider;
+        if (provider == null) {
+            synchronized (CryptoProviders.class) {
+                provider = CryptoProviders.provider;
+                if (provider == null) {
+                    Iterator<CryptoProvider> providers = ServiceLoader.load(CryptoProvider.class).iterator();
+                    provider = providers.hasNext() ? providers.next() : new DefaultCryptoProvider();
+                    CryptoProviders.provider = provider;
+                }
+            }
+        }
+        return provider;
+    }
+
+    /**
+     * Replaces the provider in use, e.g. to compare implementations.
+     * 
+     * @param provider
+     *            the provider to use, or null to look it up again
+     */
+    public static void setProvider(CryptoProvider provider) {
+        CryptoProviders.provider = provider;
+    }
+
+}
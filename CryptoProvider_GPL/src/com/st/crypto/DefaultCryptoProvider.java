@@ -0,0 +1,271 @@
+/**
+ * This file is part of CryptoProvider which is open implementation 
+ * of payment cryptography for SimplyTapp card agents and card applets.
+ * Copyright 2014 SimplyTapp, Inc.
+ * 
+ * CryptoProvider is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, either version 3 of the License, or 
+ * (at your option) any later version.
+ * 
+ * CryptoProvider is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with CryptoProvider.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.st.crypto;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Default {@link CryptoProvider} on top of the platform JCA providers.
+ * <p>
+ * DES key schedules are kept per key in a bounded least recently used 
+ * cache, so a key that is used for several operations (e.g. a Limited Use 
+ * Key for the MSD Cryptogram and the Application Cryptogram of the same 
+ * transaction) only pays for cipher lookup and key setup once. RSA keys are 
+ * held by the {@link RsaSigningEngine} of each card.
+ * 
+ * @author SimplyTapp, Inc.
+ * @version 1.0
+ */
+public class DefaultCryptoProvider implements CryptoProvider {
+
+    /**
+     * Default number of DES keys kept.
+     */
+    public static final int DEFAULT_CACHE_SIZE = 32;
+
+    private static final int LENGTH_HASH = 20;
+
+    private final Map<KeyBytes, DesKeySchedule> desKeySchedules;
+
+    // Guarded by this provider.
+    private MessageDigest sha1;
+
+    public DefaultCryptoProvider() {
+        this(DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * Creates a provider keeping up to the specified number of DES keys.
+     * 
+     * @param cacheSize
+     *            the maximum number of DES keys kept
+     */
+    public DefaultCryptoProvider(int cacheSize) {
+        this.desKeySchedules = new LruCache<KeyBytes, DesKeySchedule>(cacheSize);
+    }
+
+    public byte[] generateCvn43Cryptogram(byte[] luk, byte[] data, int offset, int length) 
+            throws GeneralSecurityException {
+        byte[] ac = new byte[LENGTH_BLOCK];
+        getDesKeySchedule(luk).mac(data, offset, length, ac, 0);
+        return ac;
+    }
+
+    public String generateCvn43MsdCryptogram(byte[] lukMsd) throws GeneralSecurityException {
+        byte[] block = new byte[LENGTH_BLOCK];
+        block[LENGTH_BLOCK - 1] = (byte) 0x01;
+        getDesKeySchedule(lukMsd).encrypt(block, 0, block.length, block, 0);
+
+        // Take the decimal digits in order, then the digits 'A' to 'F' converted to '0' to '5'.
+        final char[] digits = new char[6];
+        int count = 0;
+        for (int pass = 0; pass < 2; pass++) {
+            for (int i = 0; i < (2 * block.length); i++) {
+                int nibble = ((i & 1) == 0) ? ((block[i >> 1] >> 4) & 0x0F) : (block[i >> 1] & 0x0F);
+                if ((pass == 0) && (nibble <= 9)) {
+                    digits[count++] = (char) ('0' + nibble);
+                }
+                else if ((pass == 1) && (nibble > 9)) {
+                    digits[count++] = (char) ('0' + nibble - 10);
+                }
+                if (count == digits.length) {
+                    return new String(digits);
+                }
+            }
+        }
+        return new String(digits, 0, count);
+    }
+
+    public int deriveCvn43Luk(byte[] udk, byte[] udkMsd, int index, 
+                              byte[] buffer, int offset) throws GeneralSecurityException {
+        if ((index & 0xF0000000) != 0) {
+            throw new GeneralSecurityException("Invalid LUK derivation index: " + Integer.toHexString(index));
+        }
+
+        // '1' || YHHHHCC || '800000002' || YHHHHCC || '80000000'
+        byte[] derivationData = new byte[LENGTH_DES3_2KEY];
+        int nibbleOffset = HexCodec.putNibbles(0x1, 1, derivationData, 0);
+        nibbleOffset = HexCodec.putNibbles(index, 7, derivationData, nibbleOffset);
+        nibbleOffset = HexCodec.putNibbles(0x80000000, 8, derivationData, nibbleOffset);
+        nibbleOffset = HexCodec.putNibbles(0x2, 1, derivationData, nibbleOffset);
+        nibbleOffset = HexCodec.putNibbles(index, 7, derivationData, nibbleOffset);
+        HexCodec.putNibbles(0x80000000, 8, derivationData, nibbleOffset);
+
+        int length = getDesKeySchedule(udk).encrypt(derivationData, 0, derivationData.length, buffer, offset);
+        if (udkMsd != null) {
+            length += getDesKeySchedule(udkMsd).encrypt(derivationData, 0, derivationData.length, buffer, offset + length);
+        }
+        return length;
+    }
+
+    public int generateKcv(byte[] key, byte[] buffer, int offset) throws GeneralSecurityException {
+        return getDesKeySchedule(key).encrypt(new byte[LENGTH_BLOCK], 0, LENGTH_BLOCK, buffer, offset);
+    }
+
+    public byte[] generateCvc3(byte[] suk, byte[] ivCvc3, byte[] unpredictableNumber, short atc, byte[] pin) 
+            throws GeneralSecurityException {
+        byte[] cvc3 = new byte[LENGTH_BLOCK];
+        ByteBuffer.wrap(cvc3).put(ivCvc3).put(unpredictableNumber).putShort(atc);
+        getDesKeySchedule(combinePin(suk, pin)).encrypt(cvc3, 0, cvc3.length, cvc3, 0);
+        return cvc3;
+    }
+
+    public byte[] generateCvn14Cryptogram(byte[] suk, byte[] data, int offset, int length, byte[] pin) 
+            throws GeneralSecurityException {
+        byte[] ac = new byte[LENGTH_BLOCK];
+        getDesKeySchedule(combinePin(suk, pin)).mac(data, offset, length, ac, 0);
+        return ac;
+    }
+
+    public int generateSuk(byte[] mkAc, short atc, byte[] pin, byte[] buffer, int offset) 
+            throws GeneralSecurityException {
+        // 'ATC || F0 || 00..00 || ATC || 0F || 00..00'
+        byte[] derivationData = new byte[LENGTH_DES3_2KEY];
+        derivationData[0] = derivationData[8] = (byte) (atc >> 8);
+        derivationData[1] = derivationData[9] = (byte) atc;
+        derivationData[2] = (byte) 0xF0;
+        derivationData[10] = (byte) 0x0F;
+
+        int length = getDesKeySchedule(mkAc).encrypt(derivationData, 0, derivationData.length, buffer, offset);
+        if (pin != null) {
+            xorPin(buffer, offset, pin);
+        }
+        return length;
+    }
+
+    public int generateIdn(byte[] mkIdn, short atc, byte[] buffer, int offset) throws GeneralSecurityException {
+        // 'ATC || 00..00'
+        byte[] derivationData = new byte[LENGTH_BLOCK];
+        derivationData[0] = (byte) (atc >> 8);
+        derivationData[1] = (byte) atc;
+
+        return getDesKeySchedule(mkIdn).encrypt(derivationData, 0, derivationData.length, buffer, offset);
+    }
+
+    public synchronized int generateHash(byte[] data, int offset, int length, byte[] buffer, int bufferOffset) 
+            throws GeneralSecurityException {
+        if (this.sha1 == null) {
+            this.sha1 = MessageDigest.getInstance("SHA-1");
+        }
+        else {
+            this.sha1.reset();
+        }
+        this.sha1.update(data, offset, length);
+        return this.sha1.digest(buffer, bufferOffset, LENGTH_HASH);
+    }
+
+    public int generateSdad(RsaSigningEngine signingEngine, byte[] buffer, int offset, int length, int hashInputLength) 
+            throws GeneralSecurityException {
+        generateHash(buffer, offset + 1, hashInputLength, buffer, offset + length - LENGTH_HASH - 1);
+        buffer[offset + length - 1] = (byte) 0xBC;
+
+        return signingEngine.sign(buffer, offset, length);
+    }
+
+    private DesKeySchedule getDesKeySchedule(byte[] key) throws GeneralSecurityException {
+        DesKeySchedule desKeySchedule;
+        synchronized (this.desKeySchedules) {
+            desKeySchedule = this.desKeySchedules.get(new KeyBytes(key));
+        }
+        if (desKeySchedule == null) {
+            desKeySchedule = new DesKeySchedule(key);
+            synchronized (this.desKeySchedules) {
+                this.desKeySchedules.put(new KeyBytes(key.clone()), desKeySchedule);
+            }
+        }
+        return desKeySchedule;
+    }
+
+    /**
+     * Returns the key combined with the Mobile PIN, or the key itself if no 
+     * PIN is specified.
+     */
+    private static byte[] combinePin(byte[] key, byte[] pin) {
+        if (pin == null) {
+            return key;
+        }
+        byte[] combinedKey = key.clone();
+        xorPin(combinedKey, 0, pin);
+        return combinedKey;
+    }
+
+    /**
+     * XORs the PIN digits, shifted left by one bit, into both halves of a 
+     * double length key.
+     */
+    private static void xorPin(byte[] key, int offset, byte[] pin) {
+        for (int i = 0; i < pin.length; i++) {
+            byte mask = (byte) (pin[i] << 1);
+            key[offset + i] ^= mask;
+            key[offset + 8 + i] ^= mask;
+        }
+    }
+
+    /**
+     * Key bytes compared by value.
+     */
+    private static final class KeyBytes {
+
+        private final byte[] key;
+        private final int hashCode;
+
+        KeyBytes(byte[] key) {
+            this.key = key;
+            this.hashCode = Arrays.hashCode(key);
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hashCode;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return (obj instanceof KeyBytes) && Arrays.equals(this.key, ((KeyBytes) obj).key);
+        }
+
+    }
+
+    /**
+     * Bounded map evicting the least recently used entry.
+     */
+    private static final class LruCache<K, V> extends LinkedHashMap<K, V> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int maxSize;
+
+        LruCache(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+            return size() > this.maxSize;
+        }
+
+    }
+
+}
@@ -0,0 +1,96 @@
+/**
+ * This file is part of CryptoProvider which is open implementation 
+ * of payment cryptography for SimplyTapp card agents and card applets.
+ * Copyright 2014 SimplyTapp, Inc.
+ * 
+ * CryptoProvider is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, either version 3 of the License, or 
+ * (at your option) any later version.
+ * 
+ * CryptoProvider is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with CryptoProvider.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.st.crypto;
+
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * DES key schedule kept for a key that is used repeatedly.
+ * <p>
+ * Holds a single DES cipher for the left key half and a triple DES cipher 
+ * for the whole key, both initialized for encryption once. Chaining is done 
+ * here on single blocks, so no cipher has to be initialized again for an 
+ * IV. Operations are synchronized on the key schedule.
+ * 
+ * @author SimplyTapp, Inc.
+ * @version 1.0
+ */
+final class DesKeySchedule {
+
+    private final Cipher des;
+    private final Cipher des3;
+
+    private final byte[] block = new byte[CryptoProvider.LENGTH_BLOCK];
+
+    DesKeySchedule(byte[] key) throws GeneralSecurityException {
+        if ((key.length != 8) && (key.length != 16) && (key.length != 24)) {
+            throw new GeneralSecurityException("Invalid DES key length: " + key.length);
+        }
+
+        // Expand to a 24 byte 'K1 K2 K3' key, accepted by all providers: 
+        // 'K1 K1 K1' for single DES, 'K1 K2 K1' for 2-key triple DES.
+        byte[] key3 = new byte[24];
+        for (int i = 0; i < key3.length; i += 8) {
+            System.arraycopy(key, i % key.length, key3, i, 8);
+        }
+
+        this.des = Cipher.getInstance("DES/ECB/NoPadding");
+        this.des.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key3, 0, 8, "DES"));
+        this.des3 = Cipher.getInstance("DESede/ECB/NoPadding");
+        this.des3.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key3, "DESede"));
+    }
+
+    /**
+     * Encrypts whole blocks with triple DES in ECB mode.
+     */
+    synchronized int encrypt(byte[] input, int inputOffset, int length, byte[] output, int outputOffset) 
+            throws GeneralSecurityException {
+        return this.des3.doFinal(input, inputOffset, length, output, outputOffset);
+    }
+
+    /**
+     * Computes a MAC with ISO/IEC 9797-1 Algorithm 3, padding method 1 
+     * (zeros): single DES in CBC mode with the left key half over all blocks 
+     * but the last, triple DES over the last block.
+     */
+    synchronized void mac(byte[] data, int offset, int length, byte[] output, int outputOffset) 
+            throws GeneralSecurityException {
+        final byte[] block = this.block;
+        for (int i = 0; i < block.length; i++) {
+            block[i] = (byte) 0x00;
+        }
+
+        final int end = offset + length;
+        int position = offset;
+        do {
+            for (int i = 0; (i < block.length) && (position < end); i++, position++) {
+                block[i] ^= data[position];
+            }
+            if (position < end) {
+                this.des.doFinal(block, 0, block.length, block, 0);
+            }
+        } while (position < end);
+
+        this.des3.doFinal(block, 0, block.length, output, outputOffset);
+    }
+
+}
@@ -0,0 +1,244 @@
+/**
+ * This file is part of CryptoProvider which is open implementation 
+ * of payment cryptography for SimplyTapp card agents and card applets.
+ * Copyright 2014 SimplyTapp, Inc.
+ * 
+ * CryptoProvider is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, either version 3 of the License, or 
+ * (at your option) any later version.
+ * 
+ * CryptoProvider is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with CryptoProvider.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.st.crypto;
+
+import java.util.Arrays;
+
+/**
+ * Table driven hex and packed digit (BCD) conversions writing into caller 
+ * provided buffers.
+ * <p>
+ * Packed digits are addressed by nibble offset: nibble <code>n</code> is 
+ * the high nibble of byte <code>n / 2</code> for even <code>n</code> and 
+ * the low nibble otherwise. An odd number of digits is padded with 'F'.
+ * 
+ * @author SimplyTapp, Inc.
+ * @version 1.0
+ */
+public final class HexCodec {
+
+    private static final char[] NIBBLE_TO_CHAR = { 
+        '0', '1', '2', '3', '4', '5', '6', '7', 
+        '8', '9', 'A', 'B', 'C', 'D', 'E', 'F' 
+    };
+
+    // Nibble value of ASCII hex digits, -1 for other characters.
+    private static final byte[] CHAR_TO_NIBBLE = new byte[128];
+    static {
+        Arrays.fill(CHAR_TO_NIBBLE, (byte) -1);
+        for (int i = 0; i < NIBBLE_TO_CHAR.length; i++) {
+            CHAR_TO_NIBBLE[NIBBLE_TO_CHAR[i]] = (byte) i;
+            CHAR_TO_NIBBLE[Character.toLowerCase(NIBBLE_TO_CHAR[i])] = (byte) i;
+        }
+    }
+
+    private HexCodec() {
+    }
+
+    /**
+     * Encodes bytes as upper case hex digits.
+     * 
+     * @param data
+     *            the buffer holding the bytes
+     * @param offset
+     *            offset of the bytes
+     * @param length
+     *            number of bytes
+     * @param chars
+     *            the output buffer, receives <code>2 * length</code> digits
+     * @param charsOffset
+     *            offset in the output buffer
+     * @return the offset following the digits
+     */
+    public static int encode(byte[] data, int offset, int length, char[] chars, int charsOffset) {
+        for (int end = offset + length; offset < end; offset++) {
+            chars[charsOffset++] = NIBBLE_TO_CHAR[(data[offset] >> 4) & 0x0F];
+            chars[charsOffset++] = NIBBLE_TO_CHAR[data[offset] & 0x0F];
+        }
+        return charsOffset;
+    }
+
+    /**
+     * Returns bytes encoded as an upper case hex string.
+     * 
+     * @param data
+     *            the buffer holding the bytes
+     * @param offset
+     *            offset of the bytes
+     * @param length
+     *            number of bytes
+     * @return the hex string
+     */
+    public static String toHexString(byte[] data, int offset, int length) {
+        char[] chars = new char[2 * length];
+        encode(data, offset, length, chars, 0);
+        return new String(chars);
+    }
+
+    /**
+     * Returns the value of a hex digit, or -1 if the character is not a hex 
+     * digit.
+     */
+    public static int decodeNibble(char c) {
+        return (c < CHAR_TO_NIBBLE.length) ? CHAR_TO_NIBBLE[c] : -1;
+    }
+
+    /**
+     * Packs hex digits, two per byte.
+     * 
+     * @param digits
+     *            the hex digits
+     * @param buffer
+     *            the output buffer
+     * @param nibbleOffset
+     *            nibble offset of the first digit in the output buffer
+     * @return the nibble offset following the digits, or -1 if a character 
+     *         is not a hex digit
+     */
+    public static int putDigits(CharSequence digits, byte[] buffer, int nibbleOffset) {
+        for (int i = 0; i < digits.length(); i++) {
+            int value = decodeNibble(digits.charAt(i));
+            if (value < 0) {
+                return -1;
+            }
+            putNibble(buffer, nibbleOffset++, value);
+        }
+        return nibbleOffset;
+    }
+
+    /**
+     * Packs a non-negative number as decimal digits, zero padded on the left 
+     * and truncated to the lowest <code>digits</code> digits.
+     * 
+     * @param value
+     *            the number
+     * @param digits
+     *            number of digits
+     * @param buffer
+     *            the output buffer
+     * @param nibbleOffset
+     *            nibble offset of the first digit in the output buffer
+     * @return the nibble offset following the digits
+     */
+    public static int putDecimal(long value, int digits, byte[] buffer, int nibbleOffset) {
+        for (int i = nibbleOffset + digits - 1; i >= nibbleOffset; i--) {
+            putNibble(buffer, i, (int) (value % 10));
+            value /= 10;
+        }
+        return nibbleOffset + digits;
+    }
+
+    /**
+     * Packs the lowest nibbles of a value, most significant first.
+     * 
+     * @param value
+     *            the value, e.g. packed digits held in an int
+     * @param digits
+     *            number of nibbles, at most 8
+     * @param buffer
+     *            the output buffer
+     * @param nibbleOffset
+     *            nibble offset of the first digit in the output buffer
+     * @return the nibble offset following the digits
+     */
+    public static int putNibbles(int value, int digits, byte[] buffer, int nibbleOffset) {
+        for (int shift = 4 * (digits - 1); shift >= 0; shift -= 4) {
+            putNibble(buffer, nibbleOffset++, (value >>> shift) & 0x0F);
+        }
+        return nibbleOffset;
+    }
+
+    /**
+     * Returns packed decimal digits as a number, stopping at the first 'F' 
+     * padding nibble.
+     * 
+     * @param buffer
+     *            the buffer holding the packed digits
+     * @param offset
+     *            offset of the packed digits
+     * @param length
+     *            number of bytes
+     * @return the number, or -1 if there are no digits, a nibble is not a 
+     *         decimal digit or the number does not fit a long
+     */
+    public static long getDecimal(byte[] buffer, int offset, int length) {
+        long value = 0;
+        int nibbleOffset = 2 * offset;
+        int nibbleEnd = 2 * (offset + length);
+        for (; nibbleOffset < nibbleEnd; nibbleOffset++) {
+            int digit = getNibble(buffer, nibbleOffset);
+            if (digit == 0x0F) {
+                break;
+            }
+            if ((digit > 9) || (value > ((Long.MAX_VALUE - digit) / 10))) {
+                return -1;
+            }
+            value = (10 * value) + digit;
+        }
+        return (nibbleOffset > (2 * offset)) ? value : -1;
+    }
+
+    /**
+     * Pads an odd number of packed digits with 'F'.
+     * 
+     * @param buffer
+     *            the output buffer
+     * @param nibbleOffset
+     *            the nibble offset following the digits
+     * @return the offset of the byte following the digits
+     */
+    public static int padDigits(byte[] buffer, int nibbleOffset) {
+        if ((nibbleOffset & 1) != 0) {
+            putNibble(buffer, nibbleOffset++, 0x0F);
+        }
+        return nibbleOffset >> 1;
+    }
+
+    /**
+     * Returns hex digits packed two per byte, padded with 'F'.
+     * 
+     * @param digits
+     *            the hex digits
+     * @return the packed digits, or null if a character is not a hex digit
+     */
+    public static byte[] toPackedBytes(CharSequence digits) {
+        byte[] packed = new byte[(digits.length() + 1) / 2];
+        int nibbleOffset = putDigits(digits, packed, 0);
+        if (nibbleOffset < 0) {
+            return null;
+        }
+        padDigits(packed, nibbleOffset);
+        return packed;
+    }
+
+    private static int getNibble(byte[] buffer, int nibbleOffset) {
+        return ((nibbleOffset & 1) == 0) ? ((buffer[nibbleOffset >> 1] >> 4) & 0x0F) : (buffer[nibbleOffset >> 1] & 0x0F);
+    }
+
+    private static void putNibble(byte[] buffer, int nibbleOffset, int value) {
+        int index = nibbleOffset >> 1;
+        if ((nibbleOffset & 1) == 0) {
+            buffer[index] = (byte) ((buffer[index] & 0x0F) | (value << 4));
+        }
+        else {
+            buffer[index] = (byte) ((buffer[index] & 0xF0) | value);
+        }
+    }
+
+}
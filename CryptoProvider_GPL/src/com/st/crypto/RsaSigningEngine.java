@@ -0,0 +1,119 @@
+/**
+ * This file is part of CryptoProvider which is open implementation 
+ * of payment cryptography for SimplyTapp card agents and card applets.
+ * Copyright 2014 SimplyTapp, Inc.
+ * 
+ * CryptoProvider is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, either version 3 of the License, or 
+ * (at your option) any later version.
+ * 
+ * CryptoProvider is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with CryptoProvider.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.st.crypto;
+
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.interfaces.RSAPrivateCrtKey;
+
+import javax.crypto.Cipher;
+
+/**
+ * RSA signing engine for Signed Dynamic Application Data, holding a 
+ * ready-to-use cipher for the ICC Private Key of one card.
+ * <p>
+ * The cipher is created and initialized with the CRT private key once, 
+ * instead of per transaction, and {@link #warmUp()} runs a throw-away 
+ * signature when the card is loaded so the first transaction does not pay 
+ * for provider lookup, key import and first-use initialization. Moduli up 
+ * to 1984 bits, the maximum length of an ICC Public Key, are supported. 
+ * Signatures are synchronized on the engine.
+ * 
+ * @author SimplyTapp, Inc.
+ * @version 1.0
+ */
+public final class RsaSigningEngine {
+
+    /**
+     * Maximum length of the modulus: 1984 bits.
+     */
+    public static final int MAX_MODULUS_LENGTH = 248;
+
+    private final RSAPrivateCrtKey privateKey;
+    private final int modulusLength;
+    private final Cipher cipher;
+
+    private boolean warm;
+
+    /**
+     * Creates an engine for the specified private key.
+     * 
+     * @param privateKey
+     *            the RSA private key with CRT components
+     * @throws GeneralSecurityException
+     *             if the key is not supported
+     */
+    public RsaSigningEngine(RSAPrivateCrtKey privateKey) throws GeneralSecurityException {
+        this.modulusLength = (privateKey.getModulus().bitLength() + 7) / 8;
+        if (this.modulusLength > MAX_MODULUS_LENGTH) {
+            throw new InvalidKeyException("Unsupported modulus length: " + this.modulusLength);
+        }
+        this.privateKey = privateKey;
+
+        this.cipher = Cipher.getInstance("RSA/ECB/NoPadding");
+        this.cipher.init(Cipher.DECRYPT_MODE, privateKey);
+    }
+
+    public RSAPrivateCrtKey getPrivateKey() {
+        return this.privateKey;
+    }
+
+    public int getModulusLength() {
+        return this.modulusLength;
+    }
+
+    /**
+     * Signs a block of the modulus length in place with the raw RSA private 
+     * key operation.
+     * 
+     * @param buffer
+     *            the buffer holding the block
+     * @param offset
+     *            offset of the block
+     * @param length
+     *            length of the block, the modulus length
+     * @return the length of the signature
+     * @throws GeneralSecurityException
+     */
+    public synchronized int sign(byte[] buffer, int offset, int length) throws GeneralSecurityException {
+        if (length != this.modulusLength) {
+            throw new GeneralSecurityException("Invalid block length: " + length);
+        }
+        int signatureLength = this.cipher.doFinal(buffer, offset, length, buffer, offset);
+        this.warm = true;
+        return signatureLength;
+    }
+
+    /**
+     * Runs a throw-away signature if the engine has not signed yet.
+     * 
+     * @throws GeneralSecurityException
+     */
+    public synchronized void warmUp() throws GeneralSecurityException {
+        if (this.warm) {
+            return;
+        }
+        // Leading zero byte keeps the block below the modulus.
+        byte[] block = new byte[this.modulusLength];
+        block[1] = (byte) 0x6A;
+        block[block.length - 1] = (byte) 0xBC;
+        sign(block, 0, block.length);
+    }
+
+}
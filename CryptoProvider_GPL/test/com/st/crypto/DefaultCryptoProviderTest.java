@@ -0,0 +1,236 @@
+/**
+ * This file is part of CryptoProvider which is open implementation 
+ * of payment cryptography for SimplyTapp card agents and card applets.
+ * Copyright 2014 SimplyTapp, Inc.
+ * 
+ * CryptoProvider is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, either version 3 of the License, or 
+ * (at your option) any later version.
+ * 
+ * CryptoProvider is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with CryptoProvider.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.st.crypto;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.math.BigInteger;
+import java.security.KeyFactory;
+import java.security.interfaces.RSAPrivateCrtKey;
+import java.security.spec.RSAPrivateCrtKeySpec;
+
+import org.junit.Test;
+
+/**
+ * Known-answer tests of {@link DefaultCryptoProvider}. The expected values were 
+ * produced with the closed Crypto jars the provider replaces (CardAgent-VpayWave-Crypto 
+ * 1.3.2, CardAgent-RemoteMPP-NoDB-Crypto 1.2.1, CardApplet-VCBP-Crypto 1.3.2 and 
+ * CardApplet-MMPP-Crypto 1.2.1) from the same inputs.
+ * 
+ * @author SimplyTapp, Inc.
+ * @version 1.0
+ */
+public class DefaultCryptoProviderTest {
+
+    // Keys.
+    private static final String LUK = "0123456789ABCDEFFEDCBA9876543210";
+    private static final String LUK_MSD = "1F2E3D4C5B6A79880718293A4B5C6D7E";
+    private static final String UDK = "00112233445566778899AABBCCDDEEFF";
+    private static final String UDK_MSD = "F0E1D2C3B4A5968778695A4B3C2D1E0F";
+    private static final String MK_AC = "2B7E151628AED2A6ABF7158809CF4F3C";
+    private static final String MK_IDN = "3243F6A8885A308D313198A2E0370734";
+    private static final String SUK = "C1D0F8FB4958670DBA40AB1F3752EF0D";
+    private static final String PIN = "01020304";
+
+    // Cryptogram inputs.
+    private static final String DATA_37 =
+        "01080F161D242B323940474E555C636A71787F868D949BA2A9B0B7BEC5CCD3DA" +
+        "E1E8EFF6FD";
+    private static final String DATA_40 =
+        "A0ADBA8794E1EEFBC8D5222F3C091663707D4A57A4B1BE8B98E5F2FFCCD92633" +
+        "000D1A6774414E5B";
+    private static final String IV_CVC3 = "4D2A";
+    private static final String UNPREDICTABLE_NUMBER = "8C3E1F77";
+    private static final short ATC = (short) 0x1234;
+
+    // 768-bit ICC Private Key.
+    private static final String RSA_N =
+        "966961AB92199BCC92B89F9ECC735CDF7592C6D133FE87A702A9F37003E5130C" +
+        "0B42175204A699905997DDCF77A6978E2860815430ACE7A04F55B2AAEF8DA0D5" +
+        "4DDA4C6E2566D2DA0F9649309CE578030BA1988E96056052E77D3E1F829A14F9";
+    private static final String RSA_E = "10001";
+    private static final String RSA_D =
+        "54E55E2F778DE4C0EEFF8378CA1A988D0D7BAEF9B31DDDCB32570D59BD990A75" +
+        "D32A415215E09844958D2BB14798F6BE74C8370319D6D413B2F0FB426997994E" +
+        "5EC5AED9F82E73A72834E12DB5B699710AA651AC9C6D349AE2316E80B137B65";
+    private static final String RSA_P =
+        "C60EE9BDFB4EC57D711C60ADB52DD88E1B30EC754C4CE5685A774A6EB41AAEA9" +
+        "4E5D1EBC4BCD9C908F8E46E3D5B89CBD";
+    private static final String RSA_Q =
+        "C26A17BC091958DDA3F99201412B8FDFFA5ACF3B279B3BFF1574DB6F56F2D24D" +
+        "C2E6955156BA1FD979DEC69B8F8D82ED";
+    private static final String RSA_DP =
+        "4E7343C4BBD174CA7E4E3641381DC3C46E22CFD69A756EFD09B06CAC32ECCAB8" +
+        "4750FD46AA63F41B12B1D18497783BA5";
+    private static final String RSA_DQ =
+        "5C00A4F6C13F93845FE2ED2B56D1ECA64BEDC97FEF005166279B4374EF2ABE47" +
+        "3A62B06AEBA5ED0897D9CB1736D9FB09";
+    private static final String RSA_QINV =
+        "462C9AEF916292B6D45CDD124119AC6C393335BF209A98B568C7920EC40C582B" +
+        "9D389B98CBC19CF02871EB6A55FA9CE";
+
+    // SDAD blocks as built by the VCBP (fDDA) and MPP (CDA) card agents: header, recovered data, hash input.
+    private static final String VCBP_SDAD_INPUT =
+        "6A9501021234BBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBB" +
+        "BBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBB" +
+        "BBBBBBBBBBBBBBBBBBBBBB494A4B4C3031323334354344015A17C3E980000000";
+    private static final String MPP_SDAD_INPUT =
+        "6A050126080000000000000000801122334455667788D155C65D71F2B464185E" +
+        "884078A12B1F5D72BDDFBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBB" +
+        "BBBBBBBBBBBBBBBBBBBBBB8C3E1F770000000000000000000000000000000000";
+
+    // Expected values from the closed jars.
+    private static final String CVN43_CRYPTOGRAM_37 = "E95BD18CB715415A";
+    private static final String CVN43_CRYPTOGRAM_40 = "E6F1DA78C722B40D";
+    private static final String CVN43_MSD_CRYPTOGRAM = "615854";
+    private static final String VCBP_SDAD =
+        "903D759FABD7B80164D2ACF3E87570141BC5E265890090F17B389B84515BAFA2" +
+        "AB583ABE227EE2D4BD6131809B96CBCD753BF3C6B29D577FECB3BACAAE1F3CF4" +
+        "A102AD4BB8104D1662D4AD603819FF2DDE9E9F08A8A40E988E171FE23FDEFEC2";
+    private static final String MPP_SDAD =
+        "730626277AB87B5B91EBCA1D404A381C1D490E5F88D68C12F4F6BDF82B9D0C76" +
+        "9F07DDEB131263C8271B081A750276D665F5B7ADC06384C947A0511F72B862A0" +
+        "5D3C1A66994E8E425C0D28AEC4BC0B4A0AAF77EC10F370A9B8383855A783720A";
+    private static final String LUK_4123401 = "84490086041D9169A1A10041148DA2A76BE8C3FFC39E73101DD0739B5802B5C2";
+    private static final String LUK_9878399_NO_MSD = "AE18A74ED02D47BB25F5C64B4BE3ECB1";
+    private static final String KCV_UDK = "FB09759972301AF4";
+    private static final String CVC3 = "A1398C54B8072847";
+    private static final String CVC3_PIN = "49BC604A8A860923";
+    private static final String CVN14_CRYPTOGRAM_37 = "0631981FE47D400C";
+    private static final String CVN14_CRYPTOGRAM_40_PIN = "DCEE912D0E2B79AE";
+    private static final String SUK_ATC = "EF0482A18EFCC5F1B5B6CBFFFA241C1D";
+    private static final String SUK_ATC_PIN = "ED0084A98EFCC5F1B7B2CDF7FA241C1D";
+    private static final String IDN_ATC = "2BEB0236C8EDEFC6";
+
+    private final DefaultCryptoProvider provider = new DefaultCryptoProvider();
+
+    @Test
+    public void generateCvn43Cryptogram() throws Exception {
+        assertHex(CVN43_CRYPTOGRAM_37, this.provider.generateCvn43Cryptogram(bytes(LUK), bytes(DATA_37), 0, 37));
+        assertHex(CVN43_CRYPTOGRAM_40, this.provider.generateCvn43Cryptogram(bytes(LUK), bytes(DATA_40), 0, 40));
+    }
+
+    @Test
+    public void generateCvn43CryptogramAtOffset() throws Exception {
+        byte[] data = new byte[3 + 37 + 5];
+        System.arraycopy(bytes(DATA_37), 0, data, 3, 37);
+        assertHex(CVN43_CRYPTOGRAM_37, this.provider.generateCvn43Cryptogram(bytes(LUK), data, 3, 37));
+    }
+
+    @Test
+    public void generateCvn43MsdCryptogram() throws Exception {
+        assertEquals(CVN43_MSD_CRYPTOGRAM, this.provider.generateCvn43MsdCryptogram(bytes(LUK_MSD)));
+    }
+
+    @Test
+    public void deriveCvn43Luk() throws Exception {
+        byte[] buffer = new byte[2 + 32];
+        assertEquals(32, this.provider.deriveCvn43Luk(bytes(UDK), bytes(UDK_MSD), 0x4123401, buffer, 2));
+        assertHex(LUK_4123401, slice(buffer, 2, 32));
+
+        buffer = new byte[16];
+        assertEquals(16, this.provider.deriveCvn43Luk(bytes(UDK), null, 0x9878399, buffer, 0));
+        assertHex(LUK_9878399_NO_MSD, buffer);
+    }
+
+    @Test
+    public void generateKcv() throws Exception {
+        byte[] buffer = new byte[8];
+        assertEquals(8, this.provider.generateKcv(bytes(UDK), buffer, 0));
+        assertHex(KCV_UDK, buffer);
+    }
+
+    @Test
+    public void generateCvc3() throws Exception {
+        assertHex(CVC3, this.provider.generateCvc3(bytes(SUK), bytes(IV_CVC3), bytes(UNPREDICTABLE_NUMBER), ATC, null));
+        assertHex(CVC3_PIN, 
+                  this.provider.generateCvc3(bytes(SUK), bytes(IV_CVC3), bytes(UNPREDICTABLE_NUMBER), ATC, bytes(PIN)));
+    }
+
+    @Test
+    public void generateCvn14Cryptogram() throws Exception {
+        assertHex(CVN14_CRYPTOGRAM_37, this.provider.generateCvn14Cryptogram(bytes(SUK), bytes(DATA_37), 0, 37, null));
+        assertHex(CVN14_CRYPTOGRAM_40_PIN, 
+                  this.provider.generateCvn14Cryptogram(bytes(SUK), bytes(DATA_40), 0, 40, bytes(PIN)));
+    }
+
+    @Test
+    public void generateSuk() throws Exception {
+        byte[] buffer = new byte[16];
+        assertEquals(16, this.provider.generateSuk(bytes(MK_AC), ATC, null, buffer, 0));
+        assertHex(SUK_ATC, buffer);
+
+        buffer = new byte[1 + 16];
+        assertEquals(16, this.provider.generateSuk(bytes(MK_AC), ATC, bytes(PIN), buffer, 1));
+        assertHex(SUK_ATC_PIN, slice(buffer, 1, 16));
+    }
+
+    @Test
+    public void generateIdn() throws Exception {
+        byte[] buffer = new byte[8];
+        assertEquals(8, this.provider.generateIdn(bytes(MK_IDN), ATC, buffer, 0));
+        assertHex(IDN_ATC, buffer);
+    }
+
+    @Test
+    public void generateSdad() throws Exception {
+        RsaSigningEngine signingEngine = new RsaSigningEngine(privateKey());
+
+        byte[] buffer = new byte[4 + 96];
+        System.arraycopy(bytes(VCBP_SDAD_INPUT), 0, buffer, 4, 96);
+        assertEquals(96, this.provider.generateSdad(signingEngine, buffer, 4, 96, 93));
+        assertHex(VCBP_SDAD, slice(buffer, 4, 96));
+
+        buffer = bytes(MPP_SDAD_INPUT);
+        assertEquals(96, this.provider.generateSdad(signingEngine, buffer, 0, 96, 78));
+        assertHex(MPP_SDAD, buffer);
+    }
+
+    @Test
+    public void evictedKeysAreScheduledAgain() throws Exception {
+        DefaultCryptoProvider provider = new DefaultCryptoProvider(1);
+        for (int i = 0; i < 3; i++) {
+            assertHex(CVN43_CRYPTOGRAM_37, provider.generateCvn43Cryptogram(bytes(LUK), bytes(DATA_37), 0, 37));
+            assertHex(CVN14_CRYPTOGRAM_37, provider.generateCvn14Cryptogram(bytes(SUK), bytes(DATA_37), 0, 37, null));
+        }
+    }
+
+    private static RSAPrivateCrtKey privateKey() throws Exception {
+        RSAPrivateCrtKeySpec keySpec = new RSAPrivateCrtKeySpec(new BigInteger(RSA_N, 16), new BigInteger(RSA_E, 16), 
+                                                                new BigInteger(RSA_D, 16), new BigInteger(RSA_P, 16), 
+                                                                new BigInteger(RSA_Q, 16), new BigInteger(RSA_DP, 16), 
+                                                                new BigInteger(RSA_DQ, 16), new BigInteger(RSA_QINV, 16));
+        return (RSAPrivateCrtKey) KeyFactory.getInstance("RSA").generatePrivate(keySpec);
+    }
+
+    private static byte[] bytes(String hex) {
+        return HexCodec.toPackedBytes(hex);
+    }
+
+    private static byte[] slice(byte[] buffer, int offset, int length) {
+        byte[] slice = new byte[length];
+        System.arraycopy(buffer, offset, slice, 0, length);
+        return slice;
+    }
+
+    private static void assertHex(String expected, byte[] actual) {
+        assertArrayEquals(expected, bytes(expected), actual);
+    }
+}
@@ -0,0 +1,182 @@
+/**
+ * This file is part of CryptoProvider which is open implementation 
+ * of payment cryptography for SimplyTapp card agents and card applets.
+ * Copyright 2014 SimplyTapp, Inc.
+ * 
+ * CryptoProvider is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, either version 3 of the License, or 
+ * (at your option) any later version.
+ * 
+ * CryptoProvider is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with CryptoProvider.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.st.crypto;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.KeyPairGenerator;
+import java.security.interfaces.RSAPrivateCrtKey;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+/**
+ * Tests of {@link RsaSigningEngine} against the raw RSA private key operation 
+ * computed with {@link BigInteger}, for every supported modulus size class.
+ * 
+ * @author SimplyTapp, Inc.
+ * @version 1.0
+ */
+public class RsaSigningEngineTest {
+
+    // Modulus sizes of ICC keys: smallest, common, and the 1984-bit maximum.
+    private static final int[] MODULUS_BITS = { 512, 768, 1024, 1152, 1408, 1984 };
+
+    @Test
+    public void signMatchesPrivateKeyOperation() throws Exception {
+        Random random = new Random(17);
+        for (int bits : MODULUS_BITS) {
+            RSAPrivateCrtKey privateKey = generatePrivateKey(bits);
+            RsaSigningEngine signingEngine = new RsaSigningEngine(privateKey);
+            assertEquals(bits / 8, signingEngine.getModulusLength());
+            signingEngine.warmUp();
+
+            for (int i = 0; i < 32; i++) {
+                byte[] block = randomBlock(random, signingEngine.getModulusLength());
+                int offset = random.nextInt(8);
+                byte[] buffer = new byte[offset + block.length + 8];
+                System.arraycopy(block, 0, buffer, offset, block.length);
+
+                assertEquals(block.length, signingEngine.sign(buffer, offset, block.length));
+                byte[] signature = new byte[block.length];
+                System.arraycopy(buffer, offset, signature, 0, signature.length);
+                assertArrayEquals("modulus " + bits, sign(privateKey, block), signature);
+            }
+        }
+    }
+
+    @Test
+    public void warmUpDoesNotChangeSignatures() throws Exception {
+        Random random = new Random(18);
+        RSAPrivateCrtKey privateKey = generatePrivateKey(1024);
+        byte[] block = randomBlock(random, 128);
+
+        RsaSigningEngine coldEngine = new RsaSigningEngine(privateKey);
+        byte[] coldSignature = block.clone();
+        coldEngine.sign(coldSignature, 0, coldSignature.length);
+
+        RsaSigningEngine warmEngine = new RsaSigningEngine(privateKey);
+        warmEngine.warmUp();
+        // A second warm-up is skipped.
+        warmEngine.warmUp();
+        byte[] warmSignature = block.clone();
+        warmEngine.sign(warmSignature, 0, warmSignature.length);
+
+        assertArrayEquals(sign(privateKey, block), coldSignature);
+        assertArrayEquals(coldSignature, warmSignature);
+    }
+
+    @Test
+    public void rejectsModulusAboveMaximum() throws Exception {
+        try {
+            new RsaSigningEngine(generatePrivateKey(2048));
+            fail("2048-bit modulus accepted");
+        }
+        catch (InvalidKeyException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void rejectsBlockOfOtherLength() throws Exception {
+        RsaSigningEngine signingEngine = new RsaSigningEngine(generatePrivateKey(768));
+        byte[] buffer = new byte[128];
+        for (int length : new int[] { 0, 95, 97, 128 }) {
+            try {
+                signingEngine.sign(buffer, 0, length);
+                fail("block length " + length + " accepted");
+            }
+            catch (GeneralSecurityException e) {
+                // Expected.
+            }
+        }
+    }
+
+    @Test
+    public void concurrentSignaturesAreIndependent() throws Exception {
+        final RSAPrivateCrtKey privateKey = generatePrivateKey(1024);
+        final RsaSigningEngine signingEngine = new RsaSigningEngine(privateKey);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final long seed = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        Random random = new Random(seed);
+                        for (int i = 0; i < 200; i++) {
+                            byte[] block = randomBlock(random, 128);
+                            byte[] buffer = block.clone();
+                            signingEngine.sign(buffer, 0, buffer.length);
+                            assertArrayEquals(sign(privateKey, block), buffer);
+                        }
+                    }
+                    catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+    }
+
+    private static RSAPrivateCrtKey generatePrivateKey(int bits) throws Exception {
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("RSA");
+        keyPairGenerator.initialize(bits);
+        return (RSAPrivateCrtKey) keyPairGenerator.generateKeyPair().getPrivate();
+    }
+
+    /**
+     * Returns a random block below the modulus, with a leading zero byte as 
+     * in Signed Dynamic Application Data.
+     */
+    private static byte[] randomBlock(Random random, int length) {
+        byte[] block = new byte[length];
+        random.nextBytes(block);
+        block[0] = (byte) 0x00;
+        return block;
+    }
+
+    /**
+     * Raw RSA private key operation, left-padded to the modulus length.
+     */
+    private static byte[] sign(RSAPrivateCrtKey privateKey, byte[] block) {
+        byte[] value = new BigInteger(1, block).modPow(privateKey.getPrivateExponent(), privateKey.getModulus()).toByteArray();
+        byte[] signature = new byte[block.length];
+        int length = Math.min(value.length, signature.length);
+        System.arraycopy(value, value.length - length, signature, signature.length - length, length);
+        return signature;
+    }
+
+}
@@ -0,0 +1,46 @@
+/**
+ * This file is part of IssuerTools-VCBP which is open implementation 
+ * of issuer tools for SimplyTapp VCBP card applets.
+ * Copyright 2014 SimplyTapp, Inc.
+ * 
+ * IssuerTools-VCBP is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, either version 3 of the License, or 
+ * (at your option) any later version.
+ * 
+ * IssuerTools-VCBP is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with IssuerTools-VCBP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.st.vcbp.issuer;
+
+import java.io.IOException;
+
+/**
+ * Channel to one hosted VCBP card applet instance.
+ * <p>
+ * Implementations select the applet and open the secure channel (Initialize 
+ * Update and External Authenticate) before the first command, and wrap 
+ * commands as required by the security level of the channel.
+ * 
+ * @author SimplyTapp, Inc.
+ * @version 1.0
+ */
+public interface ApduTransport {
+
+    /**
+     * Sends a command APDU and returns the response APDU.
+     * 
+     * @param commandApdu
+     *            the command APDU with CLA '80', unwrapped
+     * @return the response APDU including SW1 SW2
+     * @throws IOException
+     *             if the command cannot be sent
+     */
+    byte[] transmit(byte[] commandApdu) throws IOException;
+
+}
@@ -0,0 +1,180 @@
+/**
+ * This file is part of IssuerTools-VCBP which is open implementation 
+ * of issuer tools for SimplyTapp VCBP card applets.
+ * Copyright 2014 SimplyTapp, Inc.
+ * 
+ * IssuerTools-VCBP is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, either version 3 of the License, or 
+ * (at your option) any later version.
+ * 
+ * IssuerTools-VCBP is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with IssuerTools-VCBP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.st.vcbp.issuer;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Transaction Verification Logs of one card held column by column.
+ * 
+ * @author SimplyTapp, Inc.
+ * @version 1.0
+ */
+public final class TransactionVerificationLogColumns {
+
+    /**
+     * Length of a binary record as returned by the card applet: UTC timestamp (8), 
+     * packed Account Parameters Index (4), transaction type (1) and Unpredictable Number (4).
+     */
+    public static final int RECORD_LENGTH = 17;
+
+    private long[] utcTimestamps;
+    private int[] accountParametersIndexes;
+    private byte[] transactionTypes;
+    private int[] unpredictableNumbers;
+    private int size;
+
+    public TransactionVerificationLogColumns() {
+        this(64);
+    }
+
+    public TransactionVerificationLogColumns(int capacity) {
+        capacity = Math.max(capacity, 1);
+        this.utcTimestamps = new long[capacity];
+        this.accountParametersIndexes = new int[capacity];
+        this.transactionTypes = new byte[capacity];
+        this.unpredictableNumbers = new int[capacity];
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public long getUtcTimestamp(int row) {
+        checkRow(row);
+        return this.utcTimestamps[row];
+    }
+
+    public int getAccountParametersIndex(int row) {
+        checkRow(row);
+        return this.accountParametersIndexes[row];
+    }
+
+    public byte getTransactionType(int row) {
+        checkRow(row);
+        return this.transactionTypes[row];
+    }
+
+    public int getUnpredictableNumber(int row) {
+        checkRow(row);
+        return this.unpredictableNumbers[row];
+    }
+
+    public void add(long utcTimestamp, int accountParametersIndex, byte transactionType, int unpredictableNumber) {
+        ensureCapacity(this.size + 1);
+        this.utcTimestamps[this.size] = utcTimestamp;
+        this.accountParametersIndexes[this.size] = accountParametersIndex;
+        this.transactionTypes[this.size] = transactionType;
+        this.unpredictableNumbers[this.size] = unpredictableNumber;
+        this.size++;
+    }
+
+    /**
+     * Adds binary records.
+     * 
+     * @param buffer
+     *            the buffer holding the records
+     * @param offset
+     *            offset of the first record
+     * @param count
+     *            number of records
+     */
+    public void addRecords(byte[] buffer, int offset, int count) {
+        ensureCapacity(this.size + count);
+        for (int end = offset + (count * RECORD_LENGTH); offset < end; offset += RECORD_LENGTH) {
+            this.utcTimestamps[this.size] = ((long) getInt(buffer, offset) << 32) | (getInt(buffer, offset + 4) & 0xFFFFFFFFL);
+            this.accountParametersIndexes[this.size] = getInt(buffer, offset + 8);
+            this.transactionTypes[this.size] = buffer[offset + 12];
+            this.unpredictableNumbers[this.size] = getInt(buffer, offset + 13);
+            this.size++;
+        }
+    }
+
+    public void clear() {
+        this.size = 0;
+    }
+
+    /**
+     * Writes the row count followed by each column.
+     */
+    void writeTo(DataOutput out) throws IOException {
+        out.writeInt(this.size);
+        for (int row = 0; row < this.size; row++) {
+            out.writeLong(this.utcTimestamps[row]);
+        }
+        for (int row = 0; row < this.size; row++) {
+            out.writeInt(this.accountParametersIndexes[row]);
+        }
+        out.write(this.transactionTypes, 0, this.size);
+        for (int row = 0; row < this.size; row++) {
+            out.writeInt(this.unpredictableNumbers[row]);
+        }
+    }
+
+    /**
+     * Replaces the rows with the ones written by {@link #writeTo(DataOutput)}.
+     */
+    void readFrom(DataInput in) throws IOException {
+        int size = in.readInt();
+        if (size < 0) {
+            throw new IOException("Invalid row count: " + size);
+        }
+
+        this.size = 0;
+        ensureCapacity(size);
+        for (int row = 0; row < size; row++) {
+            this.utcTimestamps[row] = in.readLong();
+        }
+        for (int row = 0; row < size; row++) {
+            this.accountParametersIndexes[row] = in.readInt();
+        }
+        in.readFully(this.transactionTypes, 0, size);
+        for (int row = 0; row < size; row++) {
+            this.unpredictableNumbers[row] = in.readInt();
+        }
+        this.size = size;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > this.utcTimestamps.length) {
+            capacity = Math.max(capacity, 2 * this.utcTimestamps.length);
+            this.utcTimestamps = Arrays.copyOf(this.utcTimestamps, capacity);
+            this.accountParametersIndexes = Arrays.copyOf(this.accountParametersIndexes, capacity);
+            this.transactionTypes = Arrays.copyOf(this.transactionTypes, capacity);
+            this.unpredictableNumbers = Arrays.copyOf(this.unpredictableNumbers, capacity);
+        }
+    }
+
+    private void checkRow(int row) {
+        if ((row < 0) || (row >= this.size)) {
+            throw new IndexOutOfBoundsException("row=" + row + " size=" + this.size);
+        }
+    }
+
+    private static int getInt(byte[] buffer, int offset) {
+        return (buffer[offset] << 24) | 
+               ((buffer[offset + 1] & 0xFF) << 16) | 
+               ((buffer[offset + 2] & 0xFF) << 8) | 
+               (buffer[offset + 3] & 0xFF);
+    }
+
+}
@@ -0,0 +1,121 @@
+/**
+ * This file is part of IssuerTools-VCBP which is open implementation 
+ * of issuer tools for SimplyTapp VCBP card applets.
+ * Copyright 2014 SimplyTapp, Inc.
+ * 
+ * IssuerTools-VCBP is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, either version 3 of the License, or 
+ * (at your option) any later version.
+ * 
+ * IssuerTools-VCBP is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with IssuerTools-VCBP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.st.vcbp.issuer;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Exports the Transaction Verification Logs of many hosted card applet instances, 
+ * reading the instances in parallel and writing a block per card to a columnar file.
+ * 
+ * @author SimplyTapp, Inc.
+ * @version 1.0
+ */
+public final class TransactionVerificationLogExporter {
+
+    private final int threads;
+
+    /**
+     * @param threads
+     *            number of card applet instances read at the same time
+     */
+    public TransactionVerificationLogExporter(int threads) {
+        this.threads = Math.max(threads, 1);
+    }
+
+    /**
+     * Reads the logs following the continuation token of each card and writes them.
+     * 
+     * @param transports
+     *            transport of each card by card identifier, each used by one thread at a time
+     * @param tokens
+     *            continuation token of each card from the previous export, or null; 
+     *            cards without one are read from their oldest log
+     * @param writer
+     *            the file to write a block to for each card with new logs
+     * @param failures
+     *            receives the exception of each card that could not be read or written, or null
+     * @return continuation token of each card, to pass to the next export; a card that 
+     *         could not be read keeps the token it was given
+     * @throws InterruptedException
+     *             if interrupted while waiting for the cards to be read
+     */
+    public Map<String, TransactionVerificationLogToken> export(Map<String, ApduTransport> transports, 
+                                                               Map<String, TransactionVerificationLogToken> tokens, 
+                                                               final TransactionVerificationLogFileWriter writer, 
+                                                               Map<String, Throwable> failures) throws InterruptedException {
+        Map<String, TransactionVerificationLogToken> nextTokens = new LinkedHashMap<String, TransactionVerificationLogToken>();
+        if (transports.isEmpty()) {
+            return nextTokens;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(this.threads, transports.size()));
+        try {
+            Map<String, Future<TransactionVerificationLogToken>> futures = 
+                new LinkedHashMap<String, Future<TransactionVerificationLogToken>>();
+            for (Map.Entry<String, ApduTransport> entry : transports.entrySet()) {
+                final String cardId = entry.getKey();
+                final ApduTransport transport = entry.getValue();
+                final TransactionVerificationLogToken token = getToken(tokens, cardId);
+
+                futures.put(cardId, executor.submit(new Callable<TransactionVerificationLogToken>() {
+                    public TransactionVerificationLogToken call() throws IOException {
+                        TransactionVerificationLogColumns columns = new TransactionVerificationLogColumns();
+                        TransactionVerificationLogToken nextToken = new TransactionVerificationLogReader(transport).read(token, columns);
+                        if (columns.size() > 0) {
+                            writer.write(cardId, columns);
+                        }
+                        return nextToken;
+                    }
+                }));
+            }
+
+            for (Map.Entry<String, Future<TransactionVerificationLogToken>> entry : futures.entrySet()) {
+                try {
+                    nextTokens.put(entry.getKey(), entry.getValue().get());
+                }
+                catch (ExecutionException e) {
+                    // The card keeps its previous continuation token and is read again on the next export.
+                    nextTokens.put(entry.getKey(), getToken(tokens, entry.getKey()));
+                    if (failures != null) {
+                        failures.put(entry.getKey(), e.getCause());
+                    }
+                }
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+
+        return nextTokens;
+    }
+
+    private static TransactionVerificationLogToken getToken(Map<String, TransactionVerificationLogToken> tokens, String cardId) {
+        TransactionVerificationLogToken token = (tokens != null) ? tokens.get(cardId) : null;
+        return (token != null) ? token : TransactionVerificationLogToken.START;
+    }
+
+}
@@ -0,0 +1,76 @@
+/**
+ * This file is part of IssuerTools-VCBP which is open implementation 
+ * of issuer tools for SimplyTapp VCBP card applets.
+ * Copyright 2014 SimplyTapp, Inc.
+ * 
+ * IssuerTools-VCBP is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, either version 3 of the License, or 
+ * (at your option) any later version.
+ * 
+ * IssuerTools-VCBP is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with IssuerTools-VCBP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.st.vcbp.issuer;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads a columnar file written by {@link TransactionVerificationLogFileWriter}.
+ * 
+ * @author SimplyTapp, Inc.
+ * @version 1.0
+ */
+public final class TransactionVerificationLogFileReader implements Closeable {
+
+    private final DataInputStream in;
+    private boolean ended;
+
+    public TransactionVerificationLogFileReader(InputStream in) throws IOException {
+        this.in = new DataInputStream(new BufferedInputStream(in));
+        if ((this.in.readInt() != TransactionVerificationLogFileWriter.MAGIC) || 
+            (this.in.readByte() != TransactionVerificationLogFileWriter.VERSION)) {
+            throw new IOException("Not a Transaction Verification Log file.");
+        }
+    }
+
+    /**
+     * Reads the next block.
+     * 
+     * @param columns
+     *            the columns to replace with the logs of the block
+     * @return the card identifier of the block, or null at the end of the file
+     */
+    public String read(TransactionVerificationLogColumns columns) throws IOException {
+        if (this.ended) {
+            return null;
+        }
+
+        byte flag = this.in.readByte();
+        if (flag == TransactionVerificationLogFileWriter.END) {
+            this.ended = true;
+            return null;
+        }
+        if (flag != TransactionVerificationLogFileWriter.BLOCK) {
+            throw new IOException("Invalid block flag: " + flag);
+        }
+
+        String cardId = this.in.readUTF();
+        columns.readFrom(this.in);
+        return cardId;
+    }
+
+    public void close() throws IOException {
+        this.in.close();
+    }
+
+}
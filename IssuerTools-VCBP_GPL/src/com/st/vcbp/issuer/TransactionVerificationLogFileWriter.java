@@ -0,0 +1,83 @@
+/**
+ * This file is part of IssuerTools-VCBP which is open implementation 
+ * of issuer tools for SimplyTapp VCBP card applets.
+ * Copyright 2014 SimplyTapp, Inc.
+ * 
+ * IssuerTools-VCBP is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, either version 3 of the License, or 
+ * (at your option) any later version.
+ * 
+ * IssuerTools-VCBP is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with IssuerTools-VCBP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.st.vcbp.issuer;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes Transaction Verification Logs to a columnar file.
+ * <p>
+ * The file starts with the magic 'TVLC' and a version byte, followed by one block 
+ * per card: a flag byte set to 0x01, the card identifier in modified UTF-8, the row 
+ * count and the columns of UTC timestamps (8 bytes each), packed Account Parameters 
+ * Indexes (4 bytes each), transaction types (1 byte each) and Unpredictable Numbers 
+ * (4 bytes each). A flag byte set to 0x00 ends the file.
+ * 
+ * @author SimplyTapp, Inc.
+ * @version 1.0
+ */
+public final class TransactionVerificationLogFileWriter implements Closeable {
+
+    static final int MAGIC = 0x54564C43;  // 'TVLC'
+    static final byte VERSION = (byte) 0x01;
+
+    static final byte BLOCK = (byte) 0x01;
+    static final byte END = (byte) 0x00;
+
+    private final DataOutputStream out;
+
+    public TransactionVerificationLogFileWriter(OutputStream out) throws IOException {
+        this.out = new DataOutputStream(new BufferedOutputStream(out));
+        this.out.writeInt(MAGIC);
+        this.out.writeByte(VERSION);
+    }
+
+    /**
+     * Writes the logs of one card as a block. Blocks of different cards may be 
+     * written from different threads.
+     * 
+     * @param cardId
+     *            the card identifier
+     * @param columns
+     *            the logs of the card
+     */
+    public synchronized void write(String cardId, TransactionVerificationLogColumns columns) throws IOException {
+        this.out.writeByte(BLOCK);
+        this.out.writeUTF(cardId);
+        columns.writeTo(this.out);
+    }
+
+    /**
+     * Ends the file and closes the underlying stream.
+     */
+    public synchronized void close() throws IOException {
+        try {
+            this.out.writeByte(END);
+            this.out.flush();
+        }
+        finally {
+            this.out.close();
+        }
+    }
+
+}
@@ -0,0 +1,104 @@
+/**
+ * This file is part of IssuerTools-VCBP which is open implementation 
+ * of issuer tools for SimplyTapp VCBP card applets.
+ * Copyright 2014 SimplyTapp, Inc.
+ * 
+ * IssuerTools-VCBP is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, either version 3 of the License, or 
+ * (at your option) any later version.
+ * 
+ * IssuerTools-VCBP is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with IssuerTools-VCBP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.st.vcbp.issuer;
+
+import java.io.IOException;
+
+/**
+ * Reads the Transaction Verification Logs of one hosted card applet instance 
+ * with range Get Transaction Verification Log commands.
+ * <p>
+ * Each command carries a continuation token, the sequence number of the next log 
+ * to read, and returns as many following logs as fit in an extended response.
+ * 
+ * @author SimplyTapp, Inc.
+ * @version 1.0
+ */
+public final class TransactionVerificationLogReader {
+
+    // NOTE: Use extended APDU format. P2 requests binary format (AccountParamsCodec.VERSION of the card applet), 
+    //       Lc is the 8-byte continuation token, Le is 0x0000.
+    private static final byte[] APDU_HEADER_GET_TRANSACTION_VERIFICATION_LOG_RANGE = {
+        (byte) 0x80, (byte) 0x40, (byte) 0x00, (byte) 0x02, 
+        (byte) 0x00, (byte) 0x00, (byte) TransactionVerificationLogToken.LENGTH
+    };
+
+    // More flag and continuation token preceding the records in the response.
+    private static final int RESPONSE_HEADER_LENGTH = 1 + TransactionVerificationLogToken.LENGTH;
+
+    private static final int SW_NO_ERROR = 0x9000;
+
+    private final ApduTransport transport;
+
+    public TransactionVerificationLogReader(ApduTransport transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * Reads all logs following a continuation token.
+     * 
+     * @param token
+     *            continuation token returned by the previous read, 
+     *            {@link TransactionVerificationLogToken#START} for all logs
+     * @param columns
+     *            the columns to add the logs to, oldest first
+     * @return continuation token for the next read
+     * @throws IOException
+     *             if a command cannot be sent or a response is invalid
+     */
+    public TransactionVerificationLogToken read(TransactionVerificationLogToken token, 
+                                                TransactionVerificationLogColumns columns) throws IOException {
+        byte[] command = new byte[APDU_HEADER_GET_TRANSACTION_VERIFICATION_LOG_RANGE.length + TransactionVerificationLogToken.LENGTH + 2];
+        System.arraycopy(APDU_HEADER_GET_TRANSACTION_VERIFICATION_LOG_RANGE, 0, 
+                         command, 0, APDU_HEADER_GET_TRANSACTION_VERIFICATION_LOG_RANGE.length);
+
+        boolean more = true;
+        while (more) {
+            token.put(command, APDU_HEADER_GET_TRANSACTION_VERIFICATION_LOG_RANGE.length);
+
+            byte[] response = this.transport.transmit(command);
+            if ((response == null) || (response.length < 2)) {
+                throw new IOException("No response to Get Transaction Verification Log.");
+            }
+            int sw = ((response[response.length - 2] & 0xFF) << 8) | (response[response.length - 1] & 0xFF);
+            if (sw != SW_NO_ERROR) {
+                throw new IOException("Get Transaction Verification Log failed: " + String.format("%04X", sw));
+            }
+            int dataLength = response.length - 2;
+            if ((dataLength < RESPONSE_HEADER_LENGTH) || 
+                (((dataLength - RESPONSE_HEADER_LENGTH) % TransactionVerificationLogColumns.RECORD_LENGTH) != 0)) {
+                throw new IOException("Invalid Get Transaction Verification Log response length: " + dataLength);
+            }
+
+            int count = (dataLength - RESPONSE_HEADER_LENGTH) / TransactionVerificationLogColumns.RECORD_LENGTH;
+            TransactionVerificationLogToken nextToken = TransactionVerificationLogToken.get(response, 1);
+            more = (response[0] != (byte) 0x00);
+            // NOTE: The token may go back if the card applet replaced its logs, but a response with more logs holds some.
+            if (more && (count == 0)) {
+                throw new IOException("Get Transaction Verification Log response does not advance.");
+            }
+
+            columns.addRecords(response, RESPONSE_HEADER_LENGTH, count);
+            token = nextToken;
+        }
+
+        return token;
+    }
+
+}
@@ -0,0 +1,98 @@
+/**
+ * This file is part of IssuerTools-VCBP which is open implementation 
+ * of issuer tools for SimplyTapp VCBP card applets.
+ * Copyright 2014 SimplyTapp, Inc.
+ * 
+ * IssuerTools-VCBP is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, either version 3 of the License, or 
+ * (at your option) any later version.
+ * 
+ * IssuerTools-VCBP is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with IssuerTools-VCBP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.st.vcbp.issuer;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+
+/**
+ * Continuation token of range Get Transaction Verification Log commands: the sequence 
+ * number the card applet gave the next log to read. Sequence numbers count up in the 
+ * order logs were saved, so a read resumes at the right log whatever its timestamp.
+ * 
+ * @author SimplyTapp, Inc.
+ * @version 1.0
+ */
+public final class TransactionVerificationLogToken implements Serializable {
+
+    private static final long serialVersionUID = 2L;
+
+    /**
+     * Length of the binary token in commands and responses.
+     */
+    public static final int LENGTH = 8;
+
+    /**
+     * Token to read all logs.
+     */
+    public static final TransactionVerificationLogToken START = new TransactionVerificationLogToken(0L);
+
+    private final long sequence;
+
+    /**
+     * @param sequence
+     *            sequence number of the next log to read, 0 or more
+     */
+    public TransactionVerificationLogToken(long sequence) {
+        if (sequence < 0) {
+            throw new IllegalArgumentException("Invalid sequence: " + sequence);
+        }
+        this.sequence = sequence;
+    }
+
+    /**
+     * Reads a binary token: sequence number (8).
+     */
+    public static TransactionVerificationLogToken get(byte[] buffer, int offset) {
+        return new TransactionVerificationLogToken(ByteBuffer.wrap(buffer, offset, LENGTH).getLong());
+    }
+
+    /**
+     * Writes the binary token.
+     * 
+     * @return the offset following the token
+     */
+    public int put(byte[] buffer, int offset) {
+        ByteBuffer.wrap(buffer, offset, LENGTH).putLong(this.sequence);
+        return offset + LENGTH;
+    }
+
+    public long getSequence() {
+        return this.sequence;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof TransactionVerificationLogToken)) {
+            return false;
+        }
+        return this.sequence == ((TransactionVerificationLogToken) obj).sequence;
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (this.sequence ^ (this.sequence >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        return String.valueOf(this.sequence);
+    }
+
+}